@@ -0,0 +1,529 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.applications;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+import rappsilber.ms.dataAccess.AbstractStackedSpectraAccess;
+import rappsilber.ms.dataAccess.StackedSpectraAccess;
+import rappsilber.ms.spectra.Spectra;
+
+/**
+ * Periodically records how far a search got, so that a search that died can
+ * be resumed instead of started again.<br/>
+ * Spectra are identified by their position in the order they come out of the
+ * input filters. The search loop marks a spectrum as done after all of its
+ * matches were handed to the output. A checkpoint briefly blocks that hand
+ * over, flushes the outputs and records their size together with the spectra
+ * that got done since the last checkpoint. Syncing the files and writing the
+ * record happens after the search continued.<br/>
+ * The checkpoint file is only ever appended to - each record holds the output
+ * offsets and the newly done spectra as a bitmap. On resume the outputs are
+ * cut back to the offsets of the last complete record, and the spectra done
+ * up to then are skipped.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class SearchCheckpoint implements SearchProgress {
+    /** start of each checkpoint file */
+    private static final int MAGIC = 0x58694350;
+
+    private final File m_file;
+    /** identifies the search (config, inputs, outputs) */
+    private final String m_key;
+    private final ArrayList<Output> m_outputs = new ArrayList<Output>();
+    /** offsets of the outputs in the last record, when resuming */
+    private long[] m_resumeOffsets;
+    /** length of the checkpoint file up to the last complete record */
+    private long m_validLength = 0;
+
+    /** all spectra, that are done */
+    private final BitSet m_done = new BitSet();
+    /** spectra done since the last record */
+    private BitSet m_new = new BitSet();
+    /** spectra handed out to the search, that are not done yet */
+    private final IdentityHashMap<Spectra, Integer> m_inFlight = new IdentityHashMap<Spectra, Integer>();
+    private int m_skipped = 0;
+    /** search threads hold the read lock while they hand over results */
+    private final ReentrantReadWriteLock m_lock = new ReentrantReadWriteLock();
+
+    private XiProcess m_search;
+    private FileChannel m_log;
+    private Thread m_timer;
+    private volatile boolean m_running = false;
+
+    /**
+     * @param file where to write the checkpoints
+     * @param key identifies the search - a checkpoint can only be resumed
+     * with the same key
+     * @param resume read the existing checkpoint and continue from it
+     * @throws IOException if the checkpoint could not be read or belongs to
+     * a different search
+     */
+    public SearchCheckpoint(File file, String key, boolean resume) throws IOException {
+        m_file = file;
+        m_key = key;
+        if (resume) {
+            load();
+        }
+    }
+
+    /**
+     * reads all complete records of the checkpoint file
+     */
+    private void load() throws IOException {
+        if (!m_file.exists()) {
+            throw new IOException("No checkpoint found at " + m_file);
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(m_file + " is not a checkpoint file");
+            }
+            String key = in.readUTF();
+            if (!key.equals(m_key)) {
+                throw new IOException("The checkpoint " + m_file + " belongs to a different search");
+            }
+            int outputs = in.readInt();
+            m_validLength = 4 + 2 + key.getBytes("UTF-8").length + 4;
+            int records = 0;
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    if (length < 0 || m_validLength + 4 + length + 8 > m_file.length()) {
+                        // a record, that did not get written completely
+                        break;
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                    crc.reset();
+                    crc.update(record);
+                    if (in.readLong() != crc.getValue()) {
+                        Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "Damaged record in checkpoint - ignoring everything after it");
+                        break;
+                    }
+                } catch (EOFException ex) {
+                    // a record, that did not get written completely
+                    break;
+                }
+                DataInputStream r = new DataInputStream(new ByteArrayInputStream(record));
+                long[] offsets = new long[outputs];
+                for (int o = 0; o < outputs; o++) {
+                    offsets[o] = r.readLong();
+                }
+                int base = r.readInt();
+                long[] words = new long[r.readInt()];
+                for (int w = 0; w < words.length; w++) {
+                    words[w] = r.readLong();
+                }
+                BitSet bits = BitSet.valueOf(words);
+                for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+                    m_done.set(base + i);
+                }
+                m_resumeOffsets = offsets;
+                m_validLength += 4 + record.length + 8;
+                records++;
+            }
+            Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Resuming from {0} checkpoints - {1} spectra were already searched", new Object[]{records, m_done.cardinality()});
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * opens an output file. When resuming the file gets cut back to the size
+     * recorded in the checkpoint and then appended to.
+     * @param path
+     * @param gzip compress the output - each checkpoint closes a gzip-member
+     * and the next output starts a new one
+     * @return
+     * @throws IOException
+     */
+    public OutputStream openOutput(String path, boolean gzip) throws IOException {
+        long offset = m_resumeOffsets == null ? -1 : m_resumeOffsets[m_outputs.size()];
+        Output out = new Output(new File(path), gzip, offset);
+        m_outputs.add(out);
+        return out;
+    }
+
+    /**
+     * @return a filter, that skips all spectra, that are already done and
+     * keeps track of the ones handed out to the search - should be the last
+     * filter before the search
+     */
+    @Override
+    public StackedSpectraAccess getFilter() {
+        return new Filter();
+    }
+
+    /**
+     * starts writing checkpoints
+     * @param search the search - its output gets flushed for each checkpoint
+     * @param interval seconds between checkpoints
+     * @throws IOException
+     */
+    public void start(XiProcess search, final int interval) throws IOException {
+        m_search = search;
+        m_log = FileChannel.open(m_file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (m_validLength == 0) {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(header);
+            dos.writeInt(MAGIC);
+            dos.writeUTF(m_key);
+            dos.writeInt(m_outputs.size());
+            m_log.truncate(0);
+            m_log.write(ByteBuffer.wrap(header.toByteArray()));
+            m_log.force(false);
+        } else {
+            m_log.truncate(m_validLength);
+            m_log.position(m_validLength);
+        }
+        m_running = true;
+        m_timer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (m_running) {
+                    try {
+                        Thread.sleep(interval * 1000L);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    try {
+                        checkpoint();
+                    } catch (IOException ex) {
+                        Logger.getLogger(SearchCheckpoint.class.getName()).log(Level.SEVERE, "Could not write checkpoint", ex);
+                    }
+                }
+            }
+        }, "Checkpoint");
+        m_timer.setDaemon(true);
+        m_timer.start();
+    }
+
+    /**
+     * stops the periodic checkpoints and writes the last one. Should be called
+     * after the search finished but before the outputs get closed.
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        m_running = false;
+        if (m_timer != null) {
+            m_timer.interrupt();
+            try {
+                m_timer.join();
+            } catch (InterruptedException ex) {
+                Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        if (m_log != null) {
+            checkpoint();
+            m_log.close();
+        }
+        if (m_skipped > 0) {
+            Logger.getLogger(this.getClass().getName()).log(Level.INFO, "{0} spectra were skipped as they were searched before", m_skipped);
+        }
+    }
+
+    /**
+     * records the current state.<br/>
+     * The search only waits while the outputs get flushed.
+     */
+    private synchronized void checkpoint() throws IOException {
+        long[] offsets = new long[m_outputs.size()];
+        BitSet done;
+        m_lock.writeLock().lock();
+        try {
+            synchronized (m_done) {
+                if (m_new.isEmpty()) {
+                    return;
+                }
+                done = m_new;
+                m_new = new BitSet();
+            }
+            m_search.getOutput().flush();
+            for (int o = 0; o < offsets.length; o++) {
+                offsets[o] = m_outputs.get(o).checkpoint();
+            }
+        } finally {
+            m_lock.writeLock().unlock();
+        }
+
+        for (Output o : m_outputs) {
+            o.sync();
+        }
+
+        int base = done.nextSetBit(0);
+        long[] words = done.get(base, done.length()).toLongArray();
+        ByteArrayOutputStream record = new ByteArrayOutputStream(16 + offsets.length * 8 + words.length * 8);
+        DataOutputStream dos = new DataOutputStream(record);
+        for (long o : offsets) {
+            dos.writeLong(o);
+        }
+        dos.writeInt(base);
+        dos.writeInt(words.length);
+        for (long w : words) {
+            dos.writeLong(w);
+        }
+        byte[] data = record.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ByteBuffer buf = ByteBuffer.allocate(4 + data.length + 8);
+        buf.putInt(data.length).put(data).putLong(crc.getValue());
+        buf.flip();
+        while (buf.hasRemaining()) {
+            m_log.write(buf);
+        }
+        m_log.force(false);
+        Logger.getLogger(this.getClass().getName()).log(Level.FINE, "Checkpoint: {0} spectra done", done.cardinality());
+    }
+
+    /**
+     * Has to be called by a search thread before it hands over the results
+     * of a spectrum. Each call must be followed by a call to
+     * {@link #done(rappsilber.ms.spectra.Spectra)}.
+     */
+    @Override
+    public void beginOutput() {
+        m_lock.readLock().lock();
+    }
+
+    /**
+     * marks a spectrum as done - all of its results were handed over to the
+     * output.
+     * @param s the spectrum as it was returned by the filter
+     */
+    @Override
+    public void done(Spectra s) {
+        try {
+            synchronized (m_done) {
+                Integer position = m_inFlight.remove(s);
+                if (position != null) {
+                    m_done.set(position);
+                    m_new.set(position);
+                }
+            }
+        } finally {
+            m_lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * skips the spectra, that are already done and remembers the position of
+     * every spectrum handed out
+     */
+    private class Filter extends AbstractStackedSpectraAccess {
+        /** number of spectra taken from the inner access */
+        private int m_position = 0;
+        private Spectra m_next;
+        private int m_nextPosition;
+        private Spectra m_current;
+
+        @Override
+        public boolean hasNext() {
+            synchronized (m_sync) {
+                if (m_next != null) {
+                    return true;
+                }
+                while (m_InnerAcces.hasNext()) {
+                    Spectra s = m_InnerAcces.next();
+                    if (s == null) {
+                        continue;
+                    }
+                    int p = m_position++;
+                    synchronized (m_done) {
+                        if (m_done.get(p)) {
+                            m_skipped++;
+                            continue;
+                        }
+                    }
+                    m_next = s;
+                    m_nextPosition = p;
+                    return true;
+                }
+                return false;
+            }
+        }
+
+        @Override
+        public Spectra next() {
+            synchronized (m_sync) {
+                if (!hasNext()) {
+                    return null;
+                }
+                m_current = m_next;
+                m_next = null;
+                synchronized (m_done) {
+                    m_inFlight.put(m_current, m_nextPosition);
+                }
+                return m_current;
+            }
+        }
+
+        @Override
+        public Spectra current() {
+            return m_current;
+        }
+
+        @Override
+        public void restart() throws IOException {
+            synchronized (m_sync) {
+                super.restart();
+                m_position = 0;
+                m_next = null;
+            }
+        }
+    }
+
+    /**
+     * an output file, that can be cut back to a checkpoint.<br/>
+     * When resuming with a non-empty file, the first line written (the
+     * header) is dropped.
+     */
+    private static class Output extends OutputStream {
+        private final FileChannel m_channel;
+        private final BufferedOutputStream m_file;
+        /** the gzip-members get closed - but not the file */
+        private final OutputStream m_uncloseable;
+        private final boolean m_gzip;
+        private GZIPOutputStream m_member;
+        private boolean m_skipHeader = false;
+
+        /**
+         * @param offset where to continue the file - -1 to start a new one
+         */
+        Output(File file, boolean gzip, long offset) throws IOException {
+            m_channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (offset < 0) {
+                m_channel.truncate(0);
+            } else {
+                if (m_channel.size() < offset) {
+                    m_channel.close();
+                    throw new IOException(file + " is shorter than recorded in the checkpoint");
+                }
+                m_channel.truncate(offset);
+                m_channel.position(offset);
+                m_skipHeader = offset > 0;
+            }
+            m_file = new BufferedOutputStream(Channels.newOutputStream(m_channel), 64 * 1024);
+            m_uncloseable = new FilterOutputStream(m_file) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+            m_gzip = gzip;
+        }
+
+        private OutputStream target() throws IOException {
+            if (!m_gzip) {
+                return m_file;
+            }
+            if (m_member == null) {
+                m_member = new GZIPOutputStream(m_uncloseable, 64 * 1024);
+            }
+            return m_member;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (m_skipHeader) {
+                int end = off;
+                while (end < off + len && b[end] != '\n') {
+                    end++;
+                }
+                if (end == off + len) {
+                    return;
+                }
+                m_skipHeader = false;
+                len -= end + 1 - off;
+                off = end + 1;
+            }
+            if (len > 0) {
+                target().write(b, off, len);
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (m_member != null) {
+                m_member.flush();
+            }
+            m_file.flush();
+        }
+
+        /**
+         * writes out everything written so far
+         * @return the size of the file
+         */
+        synchronized long checkpoint() throws IOException {
+            if (m_member != null) {
+                m_member.close();
+                m_member = null;
+            }
+            m_file.flush();
+            return m_channel.position();
+        }
+
+        /**
+         * makes sure everything up to the last checkpoint is on disk
+         */
+        void sync() throws IOException {
+            m_channel.force(false);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (m_member != null) {
+                m_member.close();
+                m_member = null;
+            }
+            m_file.close();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.applications;
+
+import rappsilber.ms.dataAccess.StackedSpectraAccess;
+import rappsilber.ms.spectra.Spectra;
+
+/**
+ * Gets told by the search loop, which spectra are done - i.e. all of their
+ * matches were handed to the output.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public interface SearchProgress {
+
+    /**
+     * @return a filter, that keeps track of the spectra handed out to the
+     * search - has to be the last filter before the search
+     */
+    StackedSpectraAccess getFilter();
+
+    /**
+     * Has to be called by a search thread before it hands over the results
+     * of a spectrum. Each call must be followed by a call to
+     * {@link #done(rappsilber.ms.spectra.Spectra)}.
+     */
+    void beginOutput();
+
+    /**
+     * marks a spectrum as done - all of its results were handed over to the
+     * output.
+     * @param s the spectrum as it was returned by the filter
+     */
+    void done(Spectra s);
+}
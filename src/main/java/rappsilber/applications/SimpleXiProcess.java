@@ -33,7 +33,10 @@ import java.util.LinkedList;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -49,13 +52,18 @@ import rappsilber.ms.dataAccess.SpectraAccess;
 import rappsilber.ms.dataAccess.StackedSpectraAccess;
 import rappsilber.ms.dataAccess.filter.candidates.CandidatePairFilter;
 import rappsilber.ms.dataAccess.filter.candidates.CandidatePairFromGroups;
+import rappsilber.ms.dataAccess.filter.fastafilter.FilterByID;
 import rappsilber.ms.dataAccess.output.AbstractStackedResultWriter;
 import rappsilber.ms.dataAccess.output.BufferedResultWriter;
+import rappsilber.ms.dataAccess.output.MinimumRequirementsFilter;
 import rappsilber.ms.dataAccess.output.PreFilterResultWriter;
 import rappsilber.ms.dataAccess.output.ResultWriter;
 import rappsilber.ms.lookup.fragments.FragmentLookup;
+import rappsilber.ms.lookup.fragments.FragmentTreeSlimedMTvArrayOnly;
+import rappsilber.ms.lookup.peptides.CompactPeptideLookup;
 import rappsilber.ms.lookup.peptides.FUPeptideTree;
 import rappsilber.ms.lookup.peptides.PeptideLookup;
+import rappsilber.ms.lookup.peptides.PeptideMassIndex;
 import rappsilber.ms.lookup.peptides.PeptideTree;
 import rappsilber.ms.score.AbstractScoreSpectraMatch;
 import rappsilber.ms.score.BS3ReporterIonScore;
@@ -67,12 +75,14 @@ import rappsilber.ms.score.FragmentLibraryScore;
 import rappsilber.ms.score.LinkSiteDelta;
 import rappsilber.ms.score.Normalizer;
 import rappsilber.ms.score.NormalizerML;
+import rappsilber.ms.score.ScoreRegistry;
 import rappsilber.ms.score.ScoreSpectraMatch;
 import rappsilber.ms.score.SpectraCoverage;
 import rappsilber.ms.score.SpectraCoverageConservative;
 import rappsilber.ms.sequence.AminoAcid;
 import rappsilber.ms.sequence.ModificationType;
 import rappsilber.ms.sequence.Peptide;
+import rappsilber.ms.sequence.PeptideStore;
 import rappsilber.ms.sequence.Sequence;
 import rappsilber.ms.sequence.SequenceList;
 import rappsilber.ms.sequence.digest.AASpecificity;
@@ -93,6 +103,7 @@ import rappsilber.ms.spectra.match.filter.MatchFilter;
 import rappsilber.ms.statistics.utils.UpdateableInteger;
 import rappsilber.utils.ArithmeticScoredOccurence;
 import rappsilber.utils.MyArrayUtils;
+import rappsilber.utils.StringUtils;
 import rappsilber.utils.Util;
 import rappsilber.utils.XiVersion;
 //import rappsilber.utils.ScoredLinkedList2;
@@ -107,6 +118,8 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
     private SequenceList m_sequences;
     protected PeptideLookup m_peptides;
     protected PeptideLookup m_peptidesLinear;
+    /** array based copy of m_peptides - created on first use */
+    private PeptideMassIndex m_peptideMassIndex;
     protected FragmentLookup m_Fragments;
     protected ArrayList<CrossLinker> m_Crosslinker;
     protected ToleranceUnit m_PrecoursorTolerance;
@@ -120,7 +133,11 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
     //private StackedSpectraAccess m_filter = null;
     private DummyScore m_deltaScore  = new DummyScore(0, new String[] {"delta", "deltaMod", "combinedDelta"});
     private final String MatchScore = Normalizer.NAME;
+    /** {@link ScoreRegistry} slot of the match score */
+    private static final int MatchScoreSlot = ScoreRegistry.slot(Normalizer.NAME);
     protected boolean m_doStop = false;
+    /** if set, records which spectra are done */
+    protected SearchProgress m_checkpoint = null;
 
     protected ArrayList<StackedSpectraAccess> m_filters = new ArrayList<StackedSpectraAccess>();
 
@@ -138,6 +155,58 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
     private double m_maxPeptideMass = Double.MAX_VALUE;
     /** Minimum score of the top match for a scan to be reported */
     private double m_minTopScore = -10;
+    /** highest rank of a match that gets reported (-1 no limit) */
+    private int m_maxOutputRank = -1;
+
+    /**
+     * The places where matches get dropped before they are handed to the 
+     * result writer
+     */
+    public enum DropStage {
+        /** no fragment was matched */
+        NO_FRAGMENTS,
+        /** the top-match of the spectrum did not reach MINIMUM_TOP_SCORE */
+        MIN_TOP_SCORE,
+        /** only the top-match was requested */
+        TOP_ONLY,
+        /** rank was higher then the highest reported rank */
+        MAX_RANK,
+        /** would not pass the MinimumRequirementsFilter */
+        MIN_REQUIREMENTS,
+        /** pre-score gate: could not reach a reported rank before the fragments were matched */
+        PRESCORE_UNMATCHED,
+        /** pre-score gate: could not reach a reported rank before the expensive scores */
+        PRESCORE_EXPENSIVE
+    }
+    /** how many matches were dropped at each {@link DropStage} */
+    private final AtomicLongArray m_droppedMatches = new AtomicLongArray(DropStage.values().length);
+    /** 
+     * should candidates, that can't reach a reported rank anymore, be dropped 
+     * before they are fully evaluated
+     */
+    private boolean m_preScoreGate = false;
+    /** a candidate is only dropped if its highest possible score is lower by more then this */
+    private double m_preScoreMargin = 0;
+    /** simple class-names of the scores that only run for candidates that pass the gate */
+    private HashSet<String> m_expensiveScores = new HashSet<String>();
+    /** 
+     * how many candidates were checked before the fragment matching and 
+     * before the expensive scores and how many were fully scored
+     */
+    private final AtomicLongArray m_preScoreCounts = new AtomicLongArray(3);
+    /** 
+     * spectra with at least this many candidates get their candidates 
+     * evaluated in parallel - 0 turns it off
+     */
+    private int m_parallelCandidates = 0;
+    /** how many candidates each parallel subtask evaluates */
+    private int m_parallelCandidatesChunk = 64;
+    /** 
+     * shared by all search threads to evaluate the candidates of expensive 
+     * spectra. A search thread waits while its candidates are evaluated - so
+     * the pool only gets half of the search threads to not overbook the CPUs.
+     */
+    private ForkJoinPool m_candidatePool;
     
     private DebugFrame m_debugFrame;
     
@@ -168,18 +237,31 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
     
     private ArrayList<CandidatePairFilter> candidatePairFilters = new ArrayList<>();
 
+    /**
+     * @return a filter that only accepts proteins from the configured protein
+     * groups - or null if no groups are defined
+     */
+    protected FilterByID proteinGroupFilter() {
+        if (m_config.getProteinGroups().isEmpty())
+            return null;
+        FilterByID filter = new FilterByID(FilterByID.INCLUDE);
+        for (HashSet<String> set : m_config.getProteinGroups().values()) {
+            for (String accession : set) {
+                filter.addAccession(accession.trim());
+            }
+        }
+        return filter;
+    }
+
     protected void filterProteins() {
         if (m_config.getProteinGroups().size() >0) {
-            HashSet<String> accessions = new HashSet<>();
-            for (HashSet<String> set : m_config.getProteinGroups().values()) {
-                accessions.addAll(set);
-            }
-            ArrayList<Sequence> remove = new ArrayList<>();
-            for (Sequence s : m_sequences) {
-                if (!accessions.contains(s.getSplitFastaHeader().getAccession().trim()))
-                    remove.add(s);
+            // sequences read from FASTA-files are already filtered - but they
+            // could have been provided in some other way
+            Collection<Sequence> keep = proteinGroupFilter().getSequences(m_sequences);
+            if (keep.size() < m_sequences.size()) {
+                m_sequences.clear();
+                m_sequences.addAll(keep);
             }
-            m_sequences.removeAll(remove);
             if (m_config.getProteinGroups().size() >1)
                 candidatePairFilters.add(new CandidatePairFromGroups(
                     new ArrayList<HashSet<String>>(m_config.getProteinGroups().values())));
@@ -327,6 +409,56 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
         this.m_output = m_output;
     }
 
+    /**
+     * records the spectra that are done with the given checkpoint - or
+     * reports them to the coordinator of a distributed search. Has to be set
+     * before the search is started.
+     * @param checkpoint
+     */
+    public void setCheckpoint(SearchProgress checkpoint) {
+        m_checkpoint = checkpoint;
+    }
+
+    /**
+     * @return true if the search loop of this flavour reports the spectra
+     * that are done to the checkpoint (needed for checkpoints and
+     * distributed searches)
+     */
+    public boolean supportsCheckpoint() {
+        return false;
+    }
+
+    /**
+     * @return true if the search loop used is the one declared in the given
+     * class (and not overwritten by a sub-class)
+     */
+    protected boolean usesProcessOf(Class<?> c) {
+        try {
+            return getClass().getMethod("process", SpectraAccess.class, ResultWriter.class, AtomicBoolean.class).getDeclaringClass() == c;
+        } catch (NoSuchMethodException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * to be called before the results of a spectrum are handed to the output
+     */
+    protected void beginSpectrumOutput() {
+        if (m_checkpoint != null) {
+            m_checkpoint.beginOutput();
+        }
+    }
+
+    /**
+     * to be called after all results of a spectrum were handed to the output
+     * @param s the spectrum as it came from the input
+     */
+    protected void spectrumDone(Spectra s) {
+        if (m_checkpoint != null) {
+            m_checkpoint.done(s);
+        }
+    }
+
     /**
      * @return the m_searchThreads
      */
@@ -379,6 +511,20 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
         return m_peptides;
     }
 
+    /**
+     * a read-only copy of the cross-linkable peptides, that can look up mass
+     * windows without creating lists.<br/>
+     * Created on the first call - so it should only be requested after the
+     * peptide lookup is final.
+     * @return the index
+     */
+    public synchronized PeptideMassIndex getPeptideMassIndex() {
+        if (m_peptideMassIndex == null) {
+            m_peptideMassIndex = new PeptideMassIndex(m_peptides, m_PrecoursorTolerance);
+        }
+        return m_peptideMassIndex;
+    }
+
     /**
      * @return the m_peptidesLinear
      */
@@ -425,6 +571,21 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
 
 
         m_minTopScore = m_config.retrieveObject("MINIMUM_TOP_SCORE", m_minTopScore);
+        m_maxOutputRank = m_config.retrieveObject("MAXIMUM_OUTPUT_RANK", m_maxOutputRank);
+        m_preScoreGate = m_config.retrieveObject("PRESCORE_GATE", m_preScoreGate);
+        m_preScoreMargin = m_config.retrieveObject("PRESCORE_MARGIN", m_preScoreMargin);
+        m_expensiveScores.clear();
+        for (String score : m_config.retrieveObject("PRESCORE_EXPENSIVE", "FragmentLibraryScore,SpectraCoverageConservative,LinkSiteDelta").split(",")) {
+            if (!score.trim().isEmpty()) {
+                m_expensiveScores.add(score.trim());
+            }
+        }
+        AbstractScoreSpectraMatch.DO_STATS = m_config.retrieveObject("SCORE_STATISTICS", AbstractScoreSpectraMatch.DO_STATS);
+        m_parallelCandidates = m_config.retrieveObject("PARALLEL_CANDIDATES", m_parallelCandidates);
+        m_parallelCandidatesChunk = Math.max(1, m_config.retrieveObject("PARALLEL_CANDIDATES_CHUNK", m_parallelCandidatesChunk));
+        if (m_parallelCandidates > 0 && m_candidatePool == null) {
+            m_candidatePool = new ForkJoinPool(Math.max(1, m_config.getSearchThreads() / 2));
+        }
 
         
     }
@@ -791,11 +952,147 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
         Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Peptides:" + m_peptides.size());
         m_peptides.cleanup(m_min_pep_length);
         m_peptidesLinear.cleanup(m_min_pep_length);
+        m_peptideMassIndex = null;
         Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Peptides after cleanup:" + m_peptides.size());
         //        setStatus("total number of peptides:" +  m_peptides.size());
         m_sequences.buildIndex();
     }
 
+    /**
+     * Adds further protein sequences to an already prepared search - without
+     * rebuilding the peptide and fragment lookups.<br/>
+     * The new sequences go through the same preparation as the original ones
+     * but into separate peptide lookups. These get merged into the existing
+     * lookups and only the peptides, that were not already known, get their
+     * fragments added as a new segment of the fragment tree. All existing
+     * peptides keep their ids.<br/>
+     * Decoys of the new sequences, that collide with existing targets, are
+     * just left out instead of being replaced by permuted peptides. And
+     * existing peptides, that get replaced by a target of the new sequences or
+     * that are now found in too many proteins, stay in the fragment tree
+     * until the next full preparation. Peptides, that were already dropped
+     * for being found in too many proteins, can come back with the new
+     * sequences.<br/>
+     * Must not be called while a search is running.
+     * @param sequences the new (target) sequences
+     */
+    public void addSequences(SequenceList sequences) {
+        if (m_sequences.getAllPeptideIDs().isCompact()) {
+            throw new UnsupportedOperationException("Sequences can not be added after the peptides were compacted");
+        }
+        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Adding " + sequences.size() + " sequences");
+        generateDecoys(sequences);
+        sequences.applyLabel(getConfig());
+        sequences.applyFixedModifications(getConfig());
+
+        // prepare the peptides of the new sequences on their own
+        PeptideLookup peptides = m_peptides;
+        PeptideLookup peptidesLinear = m_peptidesLinear;
+        if (peptides instanceof FUPeptideTree) {
+            m_peptides = new FUPeptideTree(m_PrecoursorTolerance);
+            m_peptidesLinear = new FUPeptideTree(m_PrecoursorTolerance);
+        } else {
+            m_peptides = new PeptideTree(m_PrecoursorTolerance);
+            m_peptidesLinear = new PeptideTree(m_PrecoursorTolerance);
+        }
+        Digestion digest = getConfig().getDigestion_method();
+        try {
+            digest.setPeptideLookup(m_peptides, m_peptidesLinear);
+            sequences.digest(digest, m_maxPeptideMass, m_Crosslinker);
+            variableModifications();
+            m_peptides.cleanup(m_min_pep_length);
+            m_peptidesLinear.cleanup(m_min_pep_length);
+        } finally {
+            PeptideLookup newPeptides = m_peptides;
+            PeptideLookup newPeptidesLinear = m_peptidesLinear;
+            m_peptides = peptides;
+            m_peptidesLinear = peptidesLinear;
+            digest.setPeptideLookup(m_peptides, m_peptidesLinear);
+            peptides = newPeptides;
+            peptidesLinear = newPeptidesLinear;
+        }
+
+        // merge them into the existing lookups
+        for (Peptide p : peptides) {
+            mergePeptide(m_peptides, p);
+        }
+        for (Peptide p : peptidesLinear) {
+            mergePeptide(m_peptidesLinear, p);
+        }
+        // merged peptides can now be found in too many proteins
+        m_peptides.cleanup(m_min_pep_length);
+        m_peptidesLinear.cleanup(m_min_pep_length);
+        // a peptide that was already known got merged into the existing one
+        ArrayList<Peptide> added = new ArrayList<Peptide>();
+        for (Peptide p : peptides) {
+            ArrayList<Peptide> same = m_peptides.getPeptidesByExactMass(p.getMass());
+            if (same != null) {
+                for (Peptide e : same) {
+                    if (e == p) {
+                        added.add(p);
+                        break;
+                    }
+                }
+            }
+        }
+        m_peptideMassIndex = null;
+
+        m_sequences.addAll(sequences);
+        m_sequences.extendIndex(sequences, m_peptides, m_peptidesLinear);
+        if (m_Fragments instanceof FragmentTreeSlimedMTvArrayOnly) {
+            ((FragmentTreeSlimedMTvArrayOnly) m_Fragments).addSegment(added);
+        } else if (m_Fragments != null) {
+            fragmentTree();
+        }
+        // the library score has to see the new peptides
+        for (ScoreSpectraMatch s : getConfig().getScores()) {
+            if (s instanceof FragmentLibraryScore) {
+                ((FragmentLibraryScore) s).setFragmentLookup(m_Fragments, m_sequences.getCountPeptides());
+            }
+        }
+        preScoreRanges();
+        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "New peptides:" + added.size());
+    }
+
+    /**
+     * Replaces the peptide objects by a compact store of their values and the
+     * peptide lookups by read-only copies on top of that store (see
+     * {@link SequenceList#compactPeptides()}). Peptide objects are then only
+     * created, while they are needed for scoring and output.<br/>
+     * Afterwards no sequences can be added to the search.
+     */
+    protected void compactPeptides() {
+        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Compact peptides - before: " + Util.memoryToString());
+        PeptideStore store = m_sequences.getAllPeptideIDs();
+        m_peptides = new CompactPeptideLookup(m_peptides, store, m_PrecoursorTolerance);
+        m_peptidesLinear = new CompactPeptideLookup(m_peptidesLinear, store, m_PrecoursorTolerance);
+        getConfig().getDigestion_method().setPeptideLookup(m_peptides, m_peptidesLinear);
+        m_peptideMassIndex = null;
+        m_sequences.compactPeptides();
+        rappsilber.utils.Util.forceGC();
+        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Compact peptides - " + store.size()
+                + " peptides in " + StringUtils.toHuman(store.bytes()) + " - after: " + Util.memoryToString());
+    }
+
+    /**
+     * adds the peptide to the lookup - or all of its sources to the same
+     * peptide, if that is already in the lookup
+     */
+    private void mergePeptide(PeptideLookup lookup, Peptide p) {
+        ArrayList<Peptide> sameMass = lookup.getPeptidesByExactMass(p.getMass());
+        if (sameMass != null) {
+            for (Peptide e : sameMass) {
+                if (e.isDecoy() == p.isDecoy() && e.equalSequenceAAMass(p)) {
+                    for (Peptide.PeptidePositions pp : p.getPositions()) {
+                        e.addSource(pp.base, pp.start, p.length());
+                    }
+                    return;
+                }
+            }
+        }
+        lookup.addPeptide(p);
+    }
+
     protected boolean readSequences() {
         Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Setup the search environment");
         // read sequences
@@ -804,86 +1101,102 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
             
             if (m_fasta != null && m_sequences == null) {
                 
-                m_sequences = new SequenceList(m_fasta, getConfig());
+                m_sequences = new SequenceList(getConfig());
                 
-            } else if (m_fasta != null) {
+            }
+            if (m_fasta != null) {
                 
-                for (File f : m_fasta) {
-                    m_sequences.addFasta(f);
+                // only keep the proteins of the protein groups while reading
+                FilterByID groupFilter = proteinGroupFilter();
+                if (groupFilter != null) {
+                    m_sequences.addFilter(groupFilter);
                 }
+                m_sequences.addFasta(m_fasta);
                 
             }
             filterProteins();
             
-            if (m_AUTODECOY) {
-                Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Decoys should be auto-generated");
-                
-                if (!m_sequences.hasDecoy()) {
-                
-                    Digestion dig = m_config.getDigestion_method();
+            generateDecoys(m_sequences);
+            
+        } catch (IOException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Error while reading sequences (FASTA-files)", ex);
+            return true;
+        }
+        return false;
+    }
 
-                    boolean decoyDigestionAware = m_config.retrieveObject("DECOY_DIGESTION_AWARE", true);
-                    String decoyGeneration = m_config.retrieveObject("DECOY_GENERATION", "reverse").trim().toLowerCase();
-                    
-                    if (decoyGeneration.contentEquals("reverse")) {
-                        if (dig instanceof AASpecificity && decoyDigestionAware) {
+    /**
+     * adds the configured decoy sequences to the given sequences - unless
+     * these already contain decoys
+     * @param sequences
+     */
+    protected void generateDecoys(SequenceList sequences) {
+        if (m_AUTODECOY) {
+            Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Decoys should be auto-generated");
+            
+            if (!sequences.hasDecoy()) {
+            
+                Digestion dig = m_config.getDigestion_method();
 
-                            Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Including reversed sequences with swapped amino-acids");
-                            m_sequences.includeReverseAndSwap(((AASpecificity) dig).getAminoAcidSpecificity());
+                boolean decoyDigestionAware = m_config.retrieveObject("DECOY_DIGESTION_AWARE", true);
+                String decoyGeneration = m_config.retrieveObject("DECOY_GENERATION", "reverse").trim().toLowerCase();
+                
+                if (decoyGeneration.contentEquals("reverse")) {
+                    if (dig instanceof AASpecificity && decoyDigestionAware) {
 
-                        } else {
+                        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Including reversed sequences with swapped amino-acids");
+                        sequences.includeReverseAndSwap(((AASpecificity) dig).getAminoAcidSpecificity());
 
-                            Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Including reversed sequences");
-                            m_sequences.includeReverse();
+                    } else {
 
-                        }
-                    } else if (decoyGeneration.contentEquals("shuffle")){
-                        if (dig instanceof AASpecificity && decoyDigestionAware) {
+                        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Including reversed sequences");
+                        sequences.includeReverse();
 
-                            Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Including shuffled sequences with fixed amino-acids");
-                            m_sequences.includeShuffled(((AASpecificity) dig).getAminoAcidSpecificity());
+                    }
+                } else if (decoyGeneration.contentEquals("reverse_peptides")) {
+                    Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Including sequences with reversed peptides");
+                    sequences.includeReversedPeptides(dig, decoyDigestionAware);
+                } else if (decoyGeneration.contentEquals("shuffle")){
+                    if (dig instanceof AASpecificity && decoyDigestionAware) {
 
-                        } else {
+                        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Including shuffled sequences with fixed amino-acids");
+                        sequences.includeShuffled(((AASpecificity) dig).getAminoAcidSpecificity());
 
-                            Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Including shuffled sequences");
-                            m_sequences.includeShuffled();
-                        }
-                    } else if (decoyGeneration.contentEquals("random")){
-                        if (dig instanceof AASpecificity && decoyDigestionAware) {
+                    } else {
 
-                            Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Including randomized sequences with fixed amino-acids");
-                            m_sequences.includeRandomizedN(((AASpecificity) dig).getAminoAcidSpecificity(),100);
+                        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Including shuffled sequences");
+                        sequences.includeShuffled();
+                    }
+                } else if (decoyGeneration.contentEquals("random")){
+                    if (dig instanceof AASpecificity && decoyDigestionAware) {
 
-                        } else {
+                        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Including randomized sequences with fixed amino-acids");
+                        sequences.includeRandomizedN(((AASpecificity) dig).getAminoAcidSpecificity(),100);
 
-                            Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Including random sequences");
-                            m_sequences.includeRandomizedN(new HashSet<AminoAcid>(),100);
-                        }
-                    } else if (decoyGeneration.contentEquals("random_directed")){
-                        if (dig instanceof AASpecificity && decoyDigestionAware) {
+                    } else {
+
+                        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Including random sequences");
+                        sequences.includeRandomizedN(new HashSet<AminoAcid>(),100);
+                    }
+                } else if (decoyGeneration.contentEquals("random_directed")){
+                    if (dig instanceof AASpecificity && decoyDigestionAware) {
 
-                            Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Including randomized sequences with fixed amino-acids");
-                            m_sequences.includeRandomizedDirectedN(((AASpecificity) dig).getAminoAcidSpecificity(),100);
+                        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Including randomized sequences with fixed amino-acids");
+                        sequences.includeRandomizedDirectedN(((AASpecificity) dig).getAminoAcidSpecificity(),100);
 
-                        } else {
+                    } else {
 
-                            Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Including random sequences");
-                            m_sequences.includeRandomizedDirectedN(new HashSet<AminoAcid>(),100);
-                        }
+                        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Including random sequences");
+                        sequences.includeRandomizedDirectedN(new HashSet<AminoAcid>(),100);
                     }
-                    
-                } else {
-                    Logger.getLogger(this.getClass().getName()).log(Level.INFO, "A decoy-database was configured, so not generating additional decoys");
-                    
                 }
                 
+            } else {
+                Logger.getLogger(this.getClass().getName()).log(Level.INFO, "A decoy-database was configured, so not generating additional decoys");
+                
             }
             
-        } catch (IOException ex) {
-            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Error while reading sequences (FASTA-files)", ex);
-            return true;
         }
-        return false;
     }
 
     protected void setupScores() {
@@ -917,6 +1230,35 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
         getConfig().getScores().add(new NormalizerML(getConfig()));
         // add dummy score for feeding in the delta score
         getConfig().getScores().add(m_deltaScore);
+        registerScores();
+        preScoreRanges();
+    }
+
+    /**
+     * tells the {@link NormalizerML} the ranges of scores, that depend on the
+     * search - so the pre-score gate can bound them
+     */
+    protected void preScoreRanges() {
+        NormalizerML normalizer = getNormalizer();
+        if (normalizer == null) {
+            return;
+        }
+        for (ScoreSpectraMatch s : getConfig().getScores()) {
+            if (s instanceof FragmentLibraryScore) {
+                normalizer.setScoreRange(FragmentLibraryScore.LogScore, 
+                        Double.NEGATIVE_INFINITY, ((FragmentLibraryScore) s).getMaxLogScore());
+            }
+        }
+    }
+
+    /**
+     * assigns all score names a slot - so that the scores of each match can be
+     * allocated in one go
+     */
+    protected void registerScores() {
+        for (ScoreSpectraMatch ssm : getConfig().getScores()) {
+            ScoreRegistry.register(ssm);
+        }
     }
 
     protected void variableModifications() {
@@ -958,6 +1300,9 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
     }
 
     public void startSearch(int numberOfThreads) {
+        if (m_config.retrieveObject("COMPACT_PEPTIDES", false) && !m_sequences.getAllPeptideIDs().isCompact()) {
+            compactPeptides();
+        }
         m_ThreadInput = m_msmInput;
 
 
@@ -971,6 +1316,13 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
             m_ThreadInput = f;
         }
 
+        // skips the spectra done before and keeps track of the ones handed out
+        if (m_checkpoint != null) {
+            StackedSpectraAccess f = m_checkpoint.getFilter();
+            f.setReader(m_ThreadInput);
+            m_ThreadInput = f;
+        }
+
         // should redundant cluster be deleted?
         boolean filterCluster = getConfig().retrieveObject("DELETE_REDUNDANT_CLUSTER", true);
         if (filterCluster) {
@@ -979,7 +1331,9 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
         
         Object bufferOut = getConfig().retrieveObject("BUFFEROUTPUT");
         if (bufferOut != null && (Integer.valueOf((String) bufferOut) > 0)) {
-            BufferedResultWriter bout =  new BufferedResultWriter(m_output, Integer.valueOf((String) bufferOut));
+            // how many threads should forward the results independent of the number of search threads
+            int writerThreads = getConfig().retrieveObject("BUFFEROUTPUTTHREADS", 1);
+            BufferedResultWriter bout =  new BufferedResultWriter(m_output, Integer.valueOf((String) bufferOut), writerThreads);
             setOutput(bout);
         }
 
@@ -1140,6 +1494,7 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
                 int tickCountDown=maxCountDown;
                 long lastProcessesd=0;
                 int checkGC = 10;
+                int logStats = 10;
                 boolean first = true;
                 @Override
                 public void run() {
@@ -1182,6 +1537,11 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
                             checkGC();
                             checkGC=10;
                         }
+                        // the statistics are merged on read - so this does not hold up the search
+                        if (AbstractScoreSpectraMatch.DO_STATS && --logStats==0) {
+                            Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Score statistics so far:\n" + ScoreStatistic());
+                            logStats=10;
+                        }
                     } catch (Exception e) {
                         Logger.getLogger(this.getClass().getName()).log(Level.WARNING,"Error im watchdog : ", e);
                     }
@@ -1358,7 +1718,7 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
 
         if (m_msmInput.hasNext() && !m_config.searchStopped()) {
             emptyBufferedWriters();
-            for (BufferedResultWriter brw : (LinkedList<BufferedResultWriter>)BufferedResultWriter.allActiveWriters.clone()) {
+            for (BufferedResultWriter brw : new ArrayList<BufferedResultWriter>(BufferedResultWriter.allActiveWriters)) {
                 if (brw.getInnerWriter() instanceof BufferedResultWriter) {
                     brw.flush();
                     brw.finished();
@@ -1373,6 +1733,12 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
             waitEnd();
             return;
         }
+
+        // all search threads are finished
+        if (m_candidatePool != null) {
+            m_candidatePool.shutdown();
+            m_candidatePool = null;
+        }
         
         // make sure all the results are write out
         if (!BufferedResultWriter.allActiveWriters.isEmpty()) {
@@ -1384,11 +1750,11 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
                 Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "Buffer not empty - might have lost some data");
             }
             
-            for (BufferedResultWriter brw : (LinkedList<BufferedResultWriter>)BufferedResultWriter.allActiveWriters.clone()) {
+            for (BufferedResultWriter brw : new ArrayList<BufferedResultWriter>(BufferedResultWriter.allActiveWriters)) {
                 brw.flush();
             }
             
-            for (BufferedResultWriter brw : (LinkedList<BufferedResultWriter>)BufferedResultWriter.allActiveWriters.clone()) {
+            for (BufferedResultWriter brw : new ArrayList<BufferedResultWriter>(BufferedResultWriter.allActiveWriters)) {
                 brw.flush();
                 brw.finished();
                 brw.waitForFinished();
@@ -1444,6 +1810,11 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
         System.out.flush();
         Util.logStackTraces(Level.FINE);
         
+        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Matches dropped before writing:\n" + getDropStatistics());
+        if (m_preScoreGate) {
+            Logger.getLogger(this.getClass().getName()).log(Level.INFO, getPreScoreStatistics());
+        }
+
         if (AbstractScoreSpectraMatch.DO_STATS) {
             Logger.getLogger(this.getClass().getName()).log(Level.INFO, ScoreStatistic());
         }
@@ -1488,7 +1859,7 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
         while (empty <2 && Calendar.getInstance().getTimeInMillis() - c < 1000*60*10) {
             
             boolean notEmpty = false;
-            for (BufferedResultWriter brw : (LinkedList<BufferedResultWriter>)BufferedResultWriter.allActiveWriters.clone()) {
+            for (BufferedResultWriter brw : new ArrayList<BufferedResultWriter>(BufferedResultWriter.allActiveWriters)) {
                 brw.selfFlush();
                 if (!brw.isBufferEmpty()) {
                     notEmpty = true;
@@ -1615,7 +1986,7 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
                 countSpectra ++;
 
 
-                ArrayList<MatchedXlinkedPeptide> scanMatches = new ArrayList<MatchedXlinkedPeptide>();
+                ArrayList<MatchedXlinkedPeptide> scanMatches = newScanMatches();
 
 
 
@@ -1849,16 +2220,48 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
 
     protected MatchedXlinkedPeptide evaluateMatch(MatchedXlinkedPeptide match, int betaCount, Collection<MatchedXlinkedPeptide> scanMatches, boolean primaryOnly) {
         match.setCountPossibleBeta(betaCount);
+        
+        // lowest score a candidate needs to still get reported
+        double gate = Double.NEGATIVE_INFINITY;
+        NormalizerML normalizer = null;
+        if (m_preScoreGate) {
+            normalizer = getNormalizer();
+            if (normalizer != null) {
+                gate = preScoreGate(scanMatches);
+            }
+        }
+        if (gate > Double.NEGATIVE_INFINITY) {
+            m_preScoreCounts.incrementAndGet(0);
+            if (normalizer.upperBound(match) + m_preScoreMargin < gate) {
+                dropMatch(match, DropStage.PRESCORE_UNMATCHED);
+                return null;
+            }
+        }
+        
         match.matchPeptides();
         
         filterMatch(match);
 
-        if (match.getMatchedFragments().isEmpty())
+        if (match.getMatchedFragments().isEmpty()) {
+            dropMatch(match, DropStage.NO_FRAGMENTS);
             return null;
+        }
 
+        boolean gated = gate == Double.NEGATIVE_INFINITY;
         for (ScoreSpectraMatch ssm : getConfig().getScores()) {
+            if (!gated && m_expensiveScores.contains(ssm.getClass().getSimpleName())) {
+                gated = true;
+                m_preScoreCounts.incrementAndGet(1);
+                if (normalizer.upperBound(match) + m_preScoreMargin < gate) {
+                    dropMatch(match, DropStage.PRESCORE_EXPENSIVE);
+                    return null;
+                }
+            }
             ssm.score(match);
         }
+        if (m_preScoreGate) {
+            m_preScoreCounts.incrementAndGet(2);
+        }
 //        for (double score : match.getScores().values())
 //            if(Double.isNaN(score)) {
 //                System.err.println("found it " + this.getClass().getName());
@@ -1874,12 +2277,100 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
 
 
 
+    /**
+     * Evaluates a single candidate of a spectrum.
+     */
+    protected interface CandidateEvaluator {
+        /**
+         * @param candidate the index of the candidate
+         * @param scanMatches receives the resulting matches
+         */
+        void evaluate(int candidate, ArrayList<MatchedXlinkedPeptide> scanMatches);
+    }
+
+    /**
+     * Evaluates consecutive candidates into their own list of matches.<br/>
+     * Ranges get split along chunk boundaries - so which candidates end up 
+     * together does not depend on the number of threads.
+     */
+    private class CandidateTask extends RecursiveAction {
+        private final CandidateEvaluator m_evaluator;
+        private final int m_from;
+        private final int m_to;
+        private final ArrayList<MatchedXlinkedPeptide>[] m_chunkMatches;
+
+        CandidateTask(CandidateEvaluator evaluator, int from, int to, ArrayList<MatchedXlinkedPeptide>[] chunkMatches) {
+            m_evaluator = evaluator;
+            m_from = from;
+            m_to = to;
+            m_chunkMatches = chunkMatches;
+        }
+
+        @Override
+        protected void compute() {
+            int chunks = (m_to - m_from + m_parallelCandidatesChunk - 1) / m_parallelCandidatesChunk;
+            if (chunks > 1) {
+                int mid = m_from + chunks / 2 * m_parallelCandidatesChunk;
+                invokeAll(new CandidateTask(m_evaluator, m_from, mid, m_chunkMatches),
+                        new CandidateTask(m_evaluator, mid, m_to, m_chunkMatches));
+                return;
+            }
+            ArrayList<MatchedXlinkedPeptide> matches = newScanMatches();
+            for (int c = m_from; c < m_to; c++) {
+                m_evaluator.evaluate(c, matches);
+            }
+            m_chunkMatches[m_from / m_parallelCandidatesChunk] = matches;
+        }
+    }
+
+    /**
+     * Evaluates all candidates of a spectrum.<br/>
+     * Spectra with at least PARALLEL_CANDIDATES candidates get their 
+     * candidates split into chunks, that are evaluated on the shared 
+     * candidate pool. The matches of the chunks are then appended in the 
+     * order of the candidates - so the result is the same as if they had been 
+     * evaluated one after the other.<br/>
+     * With the pre-score gate each chunk only sees its own matches. So it 
+     * drops less candidates but still the same ones in each run.
+     * @param candidates the number of candidates
+     * @param scanMatches receives the matches
+     * @param evaluator evaluates a single candidate - needs to be thread-safe
+     */
+    protected void evaluateCandidates(int candidates, ArrayList<MatchedXlinkedPeptide> scanMatches, CandidateEvaluator evaluator) {
+        if (m_candidatePool == null || m_parallelCandidates <= 0 || candidates < m_parallelCandidates) {
+            for (int c = 0; c < candidates; c++) {
+                evaluator.evaluate(c, scanMatches);
+            }
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        ArrayList<MatchedXlinkedPeptide>[] chunkMatches = new ArrayList[(candidates + m_parallelCandidatesChunk - 1) / m_parallelCandidatesChunk];
+        m_candidatePool.invoke(new CandidateTask(evaluator, 0, candidates, chunkMatches));
+        for (ArrayList<MatchedXlinkedPeptide> matches : chunkMatches) {
+            scanMatches.addAll(matches);
+        }
+    }
+
     public void outputScanMatches(MatchedXlinkedPeptide[] matches, ResultWriter output)  throws IOException {
+        // if the writer is a MinimumRequirementsFilter we can already drop 
+        // matches here that it would not forward
+        MinimumRequirementsFilter mrf = null;
+        int maxRank = m_maxOutputRank;
+        if (output instanceof MinimumRequirementsFilter) {
+            mrf = (MinimumRequirementsFilter) output;
+            int filterRank = mrf.getRankLimit();
+            if (filterRank > 0 && (maxRank <= 0 || filterRank < maxRank))
+                maxRank = filterRank;
+        }
 
         if (matches.length == 1) {
             MatchedXlinkedPeptide m = matches[0];
             double score = m.getScore(MatchScore);
-            if (score >= m_minTopScore)  {
+            if (score < m_minTopScore) {
+                dropMatch(m, DropStage.MIN_TOP_SCORE);
+            } else if (mrf != null && !mrf.meetsMinimum(m)) {
+                dropMatch(m, DropStage.MIN_REQUIREMENTS);
+            } else {
                 m_deltaScore.setScore(m,"delta", score);
                 m_deltaScore.setScore(m,"deltaMod", score);
                 m_deltaScore.setScore(m, "combinedDelta", score);
@@ -1902,6 +2393,12 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
 
             }
 
+            // nothing of this spectrum will be reported
+            if (topScore < m_minTopScore) {
+                dropMatches(matches, 0, DropStage.MIN_TOP_SCORE);
+                return;
+            }
+
             // make modification independend lookup for top-match
             HashMap<String,HashSet<String>> topMatchHash = new HashMap<String,HashSet<String>>();
             Peptide[] topPeps = topMatch.getPeptides();
@@ -1950,11 +2447,6 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
 
 
             double secondScore = (topScore < 0 ? topScore : 0);
-            // ignore matches smaller then ten
-
-            if (topScore < m_minTopScore) 
-                return;
-
 
 
             for (int m=1;m<matches.length;m++) {
@@ -1991,8 +2483,15 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
             m_deltaScore.setScore(m,"deltaMod", deltaMod);
             m_deltaScore.setScore(m, "combinedDelta", combined);
 
-            linksitedelta.score(m);
-            output.writeResult(m);
+            // has a match of this spectrum been written with its annotations
+            boolean written = false;
+            if (mrf != null && !mrf.meetsMinimum(m)) {
+                dropMatch(m, DropStage.MIN_REQUIREMENTS);
+            } else {
+                linksitedelta.score(m);
+                output.writeResult(m);
+                written = true;
+            }
             
             double lastS = s;
             int i;
@@ -2009,23 +2508,35 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
                 m_deltaScore.setScore(m,"deltaMod", deltaMod);
                 m_deltaScore.setScore(m, "combinedDelta", combined);
                 m.setMatchrank(rank);
+                if (mrf != null && !mrf.meetsMinimum(m)) {
+                    dropMatch(m, DropStage.MIN_REQUIREMENTS);
+                    continue;
+                }
                 linksitedelta.score(m);
                 //only the first writen spectrum needs to have peaks
-                if ((!BufferedResultWriter.m_ForceNoClearAnnotationsOnBuffer) && BufferedResultWriter.m_clearAnnotationsOnBuffer) {
+                if (written && (!BufferedResultWriter.m_ForceNoClearAnnotationsOnBuffer) && BufferedResultWriter.m_clearAnnotationsOnBuffer) {
                     m.clearAnnotations();
                     m.setSpectrum(m.getSpectrum().getOrigin());
                 }
                 output.writeResult(m);
+                written = true;
             }
             
-            if (OutputTopOnly())
+            if (OutputTopOnly()) {
+                dropMatches(matches, i, DropStage.TOP_ONLY);
                 return;
+            }
 
             for (; i < matches.length ; i++) {
                 m = matches[i];
                 s = m.getScore(MatchScore);
                 if (s != lastS)
                     rank++;
+                // ranks only go up from here - so nothing else will be reported
+                if (maxRank > 0 && rank > maxRank) {
+                    dropMatches(matches, i, DropStage.MAX_RANK);
+                    return;
+                }
                 delta = s - noModSecond;
                 combined = (delta + topScore)/2;
                 deltaMod = s - secondScore;
@@ -2034,14 +2545,231 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
                 m_deltaScore.setScore(m,"deltaMod", deltaMod);
                 m_deltaScore.setScore(m, "combinedDelta", combined);
                 m.setMatchrank(rank);
-                output.writeResult(m);
                 lastS = s;
+                if (mrf != null && !mrf.passes(m)) {
+                    dropMatch(m, DropStage.MIN_REQUIREMENTS);
+                } else {
+                    output.writeResult(m);
+                }
             }
         }
 
     }
 
+    /**
+     * A match that will not be reported gets counted and freed up right away 
+     * instead of being passed down the result writers.
+     * @param match the match to drop
+     * @param stage where it got dropped
+     */
+    protected void dropMatch(MatchedXlinkedPeptide match, DropStage stage) {
+        m_droppedMatches.incrementAndGet(stage.ordinal());
+        match.free();
+    }
 
+    /**
+     * drops all matches starting from the given index.
+     * @param matches 
+     * @param from the first match to drop
+     * @param stage where they got dropped
+     */
+    protected void dropMatches(MatchedXlinkedPeptide[] matches, int from, DropStage stage) {
+        if (from >= matches.length)
+            return;
+        m_droppedMatches.addAndGet(stage.ordinal(), matches.length - from);
+        for (int i = from; i < matches.length; i++) {
+            matches[i].free();
+        }
+    }
+
+    /**
+     * @param stage
+     * @return how many matches got dropped at the given stage so far
+     */
+    public long getDroppedMatches(DropStage stage) {
+        return m_droppedMatches.get(stage.ordinal());
+    }
+
+    /**
+     * @return the number of dropped matches per {@link DropStage}
+     */
+    public String getDropStatistics() {
+        StringBuilder sb = new StringBuilder();
+        for (DropStage stage : DropStage.values()) {
+            sb.append(stage.name()).append(" : ").append(getDroppedMatches(stage)).append("\n");
+        }
+        return sb.toString();
+    }
+
+
+
+    /**
+     * the {@link NormalizerML} that produces the match score
+     * @return the normalizer or null if the match score is produced by something else
+     */
+    protected NormalizerML getNormalizer() {
+        for (ScoreSpectraMatch ssm : getConfig().getScores()) {
+            if (ssm instanceof NormalizerML) {
+                return (NormalizerML) ssm;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The score a further candidate needs to reach to still get reported.<br/>
+     * That is the score of the first already scored match below the highest 
+     * reported rank - as this one can still define the delta-scores.
+     * @param scanMatches the already scored matches for the spectrum
+     * @return the score or -Infinity if any candidate could still be reported
+     */
+    protected double preScoreGate(Collection<MatchedXlinkedPeptide> scanMatches) {
+        int maxRank = OutputTopOnly() ? 1 : m_maxOutputRank;
+        if (maxRank <= 0 || scanMatches.size() <= maxRank) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        if (scanMatches instanceof ScanMatchList) {
+            ScanMatchList l = (ScanMatchList) scanMatches;
+            if (l.m_top.length == maxRank + 1) {
+                return l.gate();
+            }
+        }
+        double[] top = new double[maxRank + 1];
+        int count = 0;
+        for (MatchedXlinkedPeptide m : scanMatches) {
+            count = ScanMatchList.insertDistinct(top, count, m.getScore(MatchScoreSlot));
+        }
+        return count == top.length ? top[count - 1] : Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * @return a new list to collect the matches of a spectrum in
+     */
+    protected ArrayList<MatchedXlinkedPeptide> newScanMatches() {
+        if (!m_preScoreGate) {
+            return new ArrayList<MatchedXlinkedPeptide>();
+        }
+        int maxRank = OutputTopOnly() ? 1 : m_maxOutputRank;
+        if (maxRank <= 0) {
+            return new ArrayList<MatchedXlinkedPeptide>();
+        }
+        return new ScanMatchList(maxRank + 1);
+    }
+
+    /**
+     * A list of matches that keeps track of the highest distinct match scores
+     * while matches get appended. 
+     * So the score needed to pass the pre-score gate can be read without 
+     * going through all matches again.<br/>
+     * Any other change to the list makes it go once through all matches on 
+     * the next request.
+     */
+    protected static class ScanMatchList extends ArrayList<MatchedXlinkedPeptide> {
+        private static final long serialVersionUID = 8260473513049725871L;
+        /** the highest distinct scores - highest first */
+        private final double[] m_top;
+        /** how many of m_top are defined */
+        private int m_topCount = 0;
+        /** modCount at the time m_top was last updated */
+        private int m_topModCount;
+
+        /**
+         * @param ranks how many distinct scores to keep track of
+         */
+        public ScanMatchList(int ranks) {
+            m_top = new double[ranks];
+            m_topModCount = modCount;
+        }
+
+        /**
+         * inserts a score into a list of distinct scores (highest first) 
+         * that is capped at the length of the array.
+         * @return the new number of scores in the array
+         */
+        static int insertDistinct(double[] top, int count, double score) {
+            if (Double.isNaN(score)) {
+                return count;
+            }
+            int i = 0;
+            while (i < count && top[i] > score) {
+                i++;
+            }
+            if (i == top.length || (i < count && top[i] == score)) {
+                return count;
+            }
+            int n = Math.min(count, top.length - 1);
+            System.arraycopy(top, i, top, i + 1, n - i);
+            top[i] = score;
+            return n + 1;
+        }
+
+        private void track(MatchedXlinkedPeptide m) {
+            if (m_topModCount + 1 != modCount) {
+                // something else changed the list
+                recount();
+                return;
+            }
+            m_topCount = insertDistinct(m_top, m_topCount, m.getScore(MatchScoreSlot));
+            m_topModCount = modCount;
+        }
+
+        private void recount() {
+            m_topCount = 0;
+            for (int i = 0; i < size(); i++) {
+                m_topCount = insertDistinct(m_top, m_topCount, get(i).getScore(MatchScoreSlot));
+            }
+            m_topModCount = modCount;
+        }
+
+        /**
+         * @return the lowest of the tracked distinct scores, or -Infinity if 
+         * there are not yet enough distinct scores
+         */
+        double gate() {
+            if (m_topModCount != modCount) {
+                recount();
+            }
+            return m_topCount == m_top.length ? m_top[m_topCount - 1] : Double.NEGATIVE_INFINITY;
+        }
+
+        @Override
+        public boolean add(MatchedXlinkedPeptide m) {
+            super.add(m);
+            track(m);
+            return true;
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends MatchedXlinkedPeptide> c) {
+            boolean changed = super.addAll(c);
+            recount();
+            return changed;
+        }
+
+        @Override
+        public MatchedXlinkedPeptide set(int index, MatchedXlinkedPeptide m) {
+            MatchedXlinkedPeptide ret = super.set(index, m);
+            // set does not count as modification
+            modCount++;
+            return ret;
+        }
+    }
+
+    /**
+     * @return how many candidates the pre-score gate has checked and dropped
+     */
+    public String getPreScoreStatistics() {
+        long unmatchedChecked = m_preScoreCounts.get(0);
+        long unmatchedDropped = getDroppedMatches(DropStage.PRESCORE_UNMATCHED);
+        long expensiveChecked = m_preScoreCounts.get(1);
+        long expensiveDropped = getDroppedMatches(DropStage.PRESCORE_EXPENSIVE);
+        return "Pre-score gate:\n"
+                + "before fragment matching: " + unmatchedDropped + " of " + unmatchedChecked + " dropped ("
+                + (unmatchedChecked == 0 ? 0 : Math.round(unmatchedDropped * 1000.0 / unmatchedChecked) / 10.0) + "%)\n"
+                + "before expensive scores: " + expensiveDropped + " of " + expensiveChecked + " dropped ("
+                + (expensiveChecked == 0 ? 0 : Math.round(expensiveDropped * 1000.0 / expensiveChecked) / 10.0) + "%)\n"
+                + "fully scored: " + m_preScoreCounts.get(2);
+    }
 
     @Override
     public SequenceList getSequenceList() {
@@ -2069,6 +2797,7 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
         countNonLossy.value = 0;
         // find non-crosslinked y ion of pep1 or crosslinked b-yons of pep1
         // and non-crosslinked b ions of peptide 2 or crosslinked large y-ions
+        // and sum up the intensity of all of them
         for (MatchedBaseFragment mbf : mfc) {
             Fragment f = mbf.getBaseFragment();
             // ignore double fragmentation
@@ -2078,16 +2807,16 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
             if (f.getPeptide() == pep1) {
             // linear fragments after the linkage site
                 if (f.getStart() > link1 && f.isCTerminal()) {
-                    supportingIntensity = getIntensitySupport(mbf, f, pep1, countNonLossy);
+                    supportingIntensity += getIntensitySupport(mbf, f, pep1, countNonLossy);
                 } else if (f.isNTerminal() && f.getEnd() >= link1) {
-                    supportingIntensity = getIntensitySupport(mbf, f, pep1, countNonLossy);
+                    supportingIntensity += getIntensitySupport(mbf, f, pep1, countNonLossy);
                 }
             } else {
                 // linear fragments before the linkage site
                 if (f.getEnd() < link2 && f.isNTerminal()) {
-                    supportingIntensity = getIntensitySupport(mbf, f, pep2, countNonLossy);
+                    supportingIntensity += getIntensitySupport(mbf, f, pep2, countNonLossy);
                 } else if (f.isCTerminal() && f.getStart() <= link2) {
-                    supportingIntensity = getIntensitySupport(mbf, f, pep2, countNonLossy);
+                    supportingIntensity += getIntensitySupport(mbf, f, pep2, countNonLossy);
                 }
             }
         }
@@ -17,12 +17,14 @@ package rappsilber.applications;
 
 import java.io.File;
 import java.text.MessageFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -37,6 +39,7 @@ import rappsilber.ms.dataAccess.StackedSpectraAccess;
 import rappsilber.ms.dataAccess.filter.candidates.CandidatePairFilter;
 import rappsilber.ms.dataAccess.output.BufferedResultWriter;
 import rappsilber.ms.dataAccess.output.MinimumRequirementsFilter;
+import rappsilber.ms.lookup.fragments.ShardedFragmentLookup;
 import rappsilber.ms.score.AutoValidation;
 import rappsilber.ms.score.DummyScore;
 import rappsilber.ms.score.FragmentCoverage;
@@ -336,6 +339,16 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
             m_Fragments = new rappsilber.ms.lookup.fragments.FragmentTreeSlimedIntArray(m_peptides, getSequenceList(), m_config.getPreSearchThreads(), getConfig());
         } else if (tree.contentEquals("array")) {
             m_Fragments = new rappsilber.ms.lookup.fragments.ArrayBackedFragmentLookup(m_peptides, getSequenceList(), m_config.getPreSearchThreads(), getConfig());
+        } else if (tree.contentEquals("sharded")) {
+            if (!supportsShardedFragments()) {
+                String message = getClass().getName() + " looks up the alpha candidates for each spectrum on its own - FRAGMENTTREE:sharded is not supported";
+                Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, message);
+                m_config.getStatusInterface().setStatus(message);
+                System.exit(-1);
+            }
+            String dir = getConfig().retrieveObject("FRAGMENT_SHARD_DIR", "");
+            m_Fragments = new ShardedFragmentLookup(m_peptides, getSequenceList(), getConfig().retrieveObject("FRAGMENT_SHARDS", 8),
+                    dir.isEmpty() ? null : new File(dir), m_config.getPreSearchThreads(), getConfig());
         }
 //        try {
 //            m_Fragments.writeOutTree(new File("/home/lfischer/temp/fragmenttree_sorted"+ (ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^a-zA-Z0-9\\._]+", "_")) + ".csv"));
@@ -345,6 +358,21 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
     }
     
     
+    @Override
+    public boolean supportsCheckpoint() {
+        return usesProcessOf(SimpleXiProcessLinearIncluded.class);
+    }
+
+    /**
+     * A {@link ShardedFragmentLookup} has to go through all shards for each
+     * look-up. So it can only be used by search loops, that look up the alpha
+     * candidates for blocks of spectra (see {@link AlphaCandidateBlock}).
+     * @return whether the search loop does that
+     */
+    protected boolean supportsShardedFragments() {
+        return usesProcessOf(SimpleXiProcessLinearIncluded.class);
+    }
+
     @Override
     public void process(SpectraAccess input, ResultWriter output, AtomicBoolean threadStop) {
         SpectraAccess unbufInput = input;
@@ -380,8 +408,14 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
 
             int countSpectra = 0;
             int processed = 0;
+            // a sharded fragment lookup has to go through all shards for each
+            // look-up - so the alpha candidates are looked up for blocks of spectra
+            AlphaCandidateBlock block = null;
+            if (m_Fragments instanceof ShardedFragmentLookup) {
+                block = new AlphaCandidateBlock((ShardedFragmentLookup) m_Fragments, getConfig().retrieveObject("FRAGMENT_SHARD_SPECTRA", 1000));
+            }
             // go through each spectra
-            while (delayedHasNext(input, unbufInput) && ! m_config.searchStopped()) {
+            while (((block != null && block.hasNext()) || delayedHasNext(input, unbufInput)) && ! m_config.searchStopped()) {
                 
                 if (input.countReadSpectra() % 100 ==  0) {
                     Logger.getLogger(this.getClass().getName()).log(Level.INFO,"("+Thread.currentThread().getName()+")Spectra Read " + unbufInput.countReadSpectra() + "\n");
@@ -390,7 +424,13 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
                 if (m_doStop)
                     break;
                 // ScoredLinkedList<Peptide,Double> scoredPeptides = new ScoredLinkedList<Peptide, Double>();
-                Spectra spectraAllchargeStatess = input.next();
+                Spectra spectraAllchargeStatess;
+                if (block != null) {
+                    block.fill(input, unbufInput);
+                    spectraAllchargeStatess = block.next();
+                } else {
+                    spectraAllchargeStatess = input.next();
+                }
 //                int sn = spectraAllchargeStatess.getScanNumber();
                 if (spectraAllchargeStatess == null) {
                     Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "({0}) did not get a spectra", Thread.currentThread().getName());
@@ -406,7 +446,9 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
                 // spectraAllchargeStatess
                 
                 Collection<Spectra> specs;
-                if (isRelaxedPrecursorMatching())
+                if (block != null)
+                    specs = block.getAlternatives(spectraAllchargeStatess);
+                else if (isRelaxedPrecursorMatching())
                     specs = spectraAllchargeStatess.getRelaxedAlternativeSpectra();
                 else
                     specs = spectraAllchargeStatess.getAlternativeSpectra();
@@ -417,16 +459,24 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
 
                     
                     
-                    Spectra mgc = getMGCSpectrum(spectra);
-                    if (mgc == null)
-                        continue;
+                    Spectra mgc = null;
+                    Spectra mgx;
+                    if (block != null) {
+                        // already done for the whole block
+                        mgx = block.getMGX(spectra);
+                        if (mgx == null)
+                            continue;
+                    } else {
+                        mgc = getMGCSpectrum(spectra);
+                        if (mgc == null)
+                            continue;
+                        mgx = getMGXSpectra(mgc, spectra);
+                    }
 
                     // the actuall mass of the precursors
                     double precMass = spectra.getPrecurserMass();
 
                     double matchcount = 0;
-
-                    Spectra mgx = getMGXSpectra(mgc, spectra);
                     
                     spectra.getIsotopeClusters().clear();
 
@@ -437,7 +487,11 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
 
                     double maxPrecoursorMass = m_PrecoursorTolerance.getMaxRange(precoursorMass);
                     //ArithmeticScoredOccurence<Peptide> mgcMatchScores = getMGCMatchScores(mgc, allfragments, maxPrecoursorMass);
-                    ScoredOccurence<Peptide> mgcMatchScores = m_Fragments.getAlphaCandidates(mgx, maxPrecoursorMass);
+                    ScoredOccurence<Peptide> mgcMatchScores;
+                    if (block != null)
+                        mgcMatchScores = block.getAlphaCandidates(spectra);
+                    else
+                        mgcMatchScores = m_Fragments.getAlphaCandidates(mgx, maxPrecoursorMass);
 
 
 
@@ -449,7 +503,8 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
 
 
                     // try to give back some memory
-                    mgc.free();
+                    if (mgc != null)
+                        mgc.free();
                     mgc = null;
 
                     // we get 10 times the accepted alpha candidates to be able to hanlde different modification states as single entries
@@ -644,6 +699,7 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
 
                 checkLinearPostEvaluation(scanMatches);
 
+                beginSpectrumOutput();
                 // is there any match to this spectra left over?
                 if (countMatches>0) {
                     MatchedXlinkedPeptide[] matches = scanMatches.toArray(new MatchedXlinkedPeptide[0]);
@@ -661,6 +717,11 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
                     }
                     outputScanMatches(matches, output);
                 }
+                if (m_checkpoint != null) {
+                    // the results have to be past the thread's own buffer
+                    brw.selfFlush();
+                }
+                spectrumDone(spectraAllchargeStatess);
                 scanMatches.clear();
                 // report every 100 or if no progress report was done in 10 seconds
                 if (processed >= 100 || Calendar.getInstance().getTimeInMillis() - lastProgressReport > 10000) {
@@ -690,6 +751,113 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
 
     }
 
+    /**
+     * Reads a block of spectra ahead and looks up the alpha candidates for all
+     * of them in one go.<br/>
+     * Used for a {@link ShardedFragmentLookup}, where each look-up has to go
+     * through all the shards. The mgc- and mgx-spectra are also prepared here
+     * - exactly as the search loop would do it.
+     */
+    protected class AlphaCandidateBlock {
+        private final ShardedFragmentLookup m_lookup;
+        /** how many spectra to read ahead */
+        private final int m_size;
+        /** the spectra read ahead */
+        private final ArrayDeque<Spectra> m_queue = new ArrayDeque<Spectra>();
+        /** the alternative spectra for each read spectrum */
+        private final IdentityHashMap<Spectra, Collection<Spectra>> m_alternatives = new IdentityHashMap<Spectra, Collection<Spectra>>();
+        /** mgx-spectra of each alternative spectrum */
+        private final IdentityHashMap<Spectra, Spectra> m_mgx = new IdentityHashMap<Spectra, Spectra>();
+        /** alpha-candidates of each alternative spectrum */
+        private final IdentityHashMap<Spectra, ScoredOccurence<Peptide>> m_candidates = new IdentityHashMap<Spectra, ScoredOccurence<Peptide>>();
+
+        public AlphaCandidateBlock(ShardedFragmentLookup lookup, int size) {
+            m_lookup = lookup;
+            m_size = Math.max(1, size);
+        }
+
+        /**
+         * @return are there still spectra read ahead
+         */
+        public boolean hasNext() {
+            return !m_queue.isEmpty();
+        }
+
+        /**
+         * if all read ahead spectra are handed out, reads the next block and
+         * looks up the alpha candidates for these
+         */
+        public void fill(SpectraAccess input, SpectraAccess unbufInput) {
+            if (!m_queue.isEmpty()) {
+                return;
+            }
+            m_alternatives.clear();
+            m_mgx.clear();
+            m_candidates.clear();
+            ArrayList<Spectra> alternatives = new ArrayList<Spectra>();
+            ArrayList<Spectra> mgxs = new ArrayList<Spectra>();
+            while (m_queue.size() < m_size && !m_doStop && !m_config.searchStopped() && delayedHasNext(input, unbufInput)) {
+                Spectra s = input.next();
+                if (s == null) {
+                    continue;
+                }
+                Collection<Spectra> specs;
+                if (isRelaxedPrecursorMatching())
+                    specs = s.getRelaxedAlternativeSpectra();
+                else
+                    specs = s.getAlternativeSpectra();
+                m_queue.add(s);
+                m_alternatives.put(s, specs);
+                for (Spectra spectra : specs) {
+                    Spectra mgc = getMGCSpectrum(spectra);
+                    if (mgc == null)
+                        continue;
+                    Spectra mgx = getMGXSpectra(mgc, spectra);
+                    mgc.free();
+                    m_mgx.put(spectra, mgx);
+                    alternatives.add(spectra);
+                    mgxs.add(mgx);
+                }
+            }
+            double[] maxPeptideMass = new double[alternatives.size()];
+            for (int i = 0; i < maxPeptideMass.length; i++) {
+                maxPeptideMass[i] = m_PrecoursorTolerance.getMaxRange(alternatives.get(i).getPrecurserMass());
+            }
+            ArrayList<ArithmeticScoredOccurence<Peptide>> candidates = m_lookup.getAlphaCandidates(mgxs, maxPeptideMass);
+            for (int i = 0; i < maxPeptideMass.length; i++) {
+                m_candidates.put(alternatives.get(i), candidates.get(i));
+            }
+        }
+
+        /**
+         * @return the next read ahead spectrum or null if there is none
+         */
+        public Spectra next() {
+            return m_queue.poll();
+        }
+
+        /**
+         * @return the alternative spectra for a read ahead spectrum
+         */
+        public Collection<Spectra> getAlternatives(Spectra s) {
+            return m_alternatives.remove(s);
+        }
+
+        /**
+         * @return the mgx-spectrum for an alternative spectrum (null if there is no mgc-spectrum)
+         */
+        public Spectra getMGX(Spectra alternative) {
+            return m_mgx.remove(alternative);
+        }
+
+        /**
+         * @return the alpha candidates for an alternative spectrum
+         */
+        public ScoredOccurence<Peptide> getAlphaCandidates(Spectra alternative) {
+            return m_candidates.remove(alternative);
+        }
+    }
+
     protected void sortResultMatches(ArrayList<MatchedXlinkedPeptide> scanMatches) {
         java.util.Collections.sort(scanMatches, m_matchSortComparator);
     }
@@ -15,6 +15,7 @@
  */
 package rappsilber.applications;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import java.io.File;
 import java.text.MessageFormat;
 import java.util.ArrayList;
@@ -36,8 +37,10 @@ import rappsilber.ms.dataAccess.output.ResultWriter;
 import rappsilber.ms.dataAccess.SpectraAccess;
 import rappsilber.ms.dataAccess.StackedSpectraAccess;
 import rappsilber.ms.dataAccess.filter.candidates.CandidatePairFilter;
-import rappsilber.ms.dataAccess.output.BufferedResultWriter;
+import rappsilber.ms.dataAccess.output.BatchForwardResultWriter;
 import rappsilber.ms.dataAccess.output.MinimumRequirementsFilter;
+import rappsilber.ms.lookup.fragments.ShardedFragmentLookup;
+import rappsilber.ms.lookup.peptides.PeptideMassIndex;
 import rappsilber.ms.score.AutoValidation;
 import rappsilber.ms.sequence.AminoAcid;
 import rappsilber.ms.sequence.Peptide;
@@ -87,12 +90,23 @@ public class SimpleXiProcessMultipleCandidates extends SimpleXiProcessLinearIncl
  
     
     
+    @Override
+    public boolean supportsCheckpoint() {
+        return usesProcessOf(SimpleXiProcessMultipleCandidates.class);
+    }
+
+    @Override
+    protected boolean supportsShardedFragments() {
+        return usesProcessOf(SimpleXiProcessMultipleCandidates.class);
+    }
+
     @Override
     public void process(SpectraAccess input, ResultWriter output, AtomicBoolean threadStop) {
         SpectraAccess unbufInput = input;
 //        BufferedSpectraAccess bsa = new BufferedSpectraAccess(input, 100);
 //        input = bsa;
-        BufferedResultWriter brw = new BufferedResultWriter(output, 100);
+        // results of each spectrum are handed over in one go to the shared output buffer
+        BatchForwardResultWriter brw = new BatchForwardResultWriter(output, 100);
         output = brw;
         String quitReason="";
 
@@ -119,16 +133,27 @@ public class SimpleXiProcessMultipleCandidates extends SimpleXiProcessLinearIncl
             }
 
             boolean evaluateSingles = getConfig().isEvaluateLinears();
+            final PeptideMassIndex peptideIndex = getPeptideMassIndex();
+            final PeptideMassIndex.Batch betaBatch = peptideIndex.newBatch();
+            // for each beta mass the alpha and the cross-linker
+            final IntArrayList betaAlpha = new IntArrayList();
+            final IntArrayList betaLinker = new IntArrayList();
 
             int countSpectra = 0;
             int processed = 0;
+            // a sharded fragment lookup has to go through all shards for each
+            // look-up - so the alpha candidates are looked up for blocks of spectra
+            AlphaCandidateBlock block = null;
+            if (m_Fragments instanceof ShardedFragmentLookup) {
+                block = new AlphaCandidateBlock((ShardedFragmentLookup) m_Fragments, getConfig().retrieveObject("FRAGMENT_SHARD_SPECTRA", 1000));
+            }
             // go through each spectra
             while (true) {
                 if (m_config.searchStopped()) {
                     quitReason="Search got stoped through config";
                     break;
                 }
-                if (!(delayedHasNext(input, unbufInput) && ! m_config.searchStopped())) {
+                if (!(((block != null && block.hasNext()) || delayedHasNext(input, unbufInput)) && ! m_config.searchStopped())) {
                     quitReason="no new spectra";
                     break;
                 }
@@ -142,7 +167,13 @@ public class SimpleXiProcessMultipleCandidates extends SimpleXiProcessLinearIncl
                     break;
                 }
                 // ScoredLinkedList<Peptide,Double> scoredPeptides = new ScoredLinkedList<Peptide, Double>();
-                Spectra spectraAllchargeStatess = input.next();
+                Spectra spectraAllchargeStatess;
+                if (block != null) {
+                    block.fill(input, unbufInput);
+                    spectraAllchargeStatess = block.next();
+                } else {
+                    spectraAllchargeStatess = input.next();
+                }
 //                int sn = spectraAllchargeStatess.getScanNumber();
                 if (spectraAllchargeStatess == null) {
                     Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "({0}) did not get a spectra", Thread.currentThread().getName());
@@ -151,26 +182,28 @@ public class SimpleXiProcessMultipleCandidates extends SimpleXiProcessLinearIncl
                 processed ++;
                 countSpectra ++;
                 
-                ArrayList<MatchedXlinkedPeptide> scanMatches = new ArrayList<MatchedXlinkedPeptide>();
+                ArrayList<MatchedXlinkedPeptide> scanMatches = newScanMatches();
 
                 // for some spectra we are not sure of the charge state
                 // so we have to considere every possible one for these
                 // spectraAllchargeStatess
 
                 Collection<Spectra> specs;
-                if (isRelaxedPrecursorMatching())
+                if (block != null)
+                    specs = block.getAlternatives(spectraAllchargeStatess);
+                else if (isRelaxedPrecursorMatching())
                     specs = spectraAllchargeStatess.getRelaxedAlternativeSpectra();
                 else
                     specs = spectraAllchargeStatess.getAlternativeSpectra();
 
-                ScoredOccurence<MGXMatchSpectrum> mgxScoreMatches = new ArithmeticScoredOccurence<MGXMatchSpectrum>();
+                final ScoredOccurence<MGXMatchSpectrum> mgxScoreMatches = new ArithmeticScoredOccurence<MGXMatchSpectrum>();
 
-                ScoredOccurence<Peptide> mgcMatchScoresAll = new ArithmeticScoredOccurence<>();
+                final ScoredOccurence<Peptide> mgcMatchScoresAll = new ArithmeticScoredOccurence<>();
 
                 boolean multipleAlphaCandidates = false;
                 int alphaConsidered = 0;
                 int alphaCount = 0;
-                HashMap<String, Integer> mgcListAll = new HashMap<String,Integer>(globalMaxMgcHits);
+                final HashMap<String, Integer> mgcListAll = new HashMap<String,Integer>(globalMaxMgcHits);
                 int maxMgcHits = globalMaxMgcHits;
                 boolean hasMasses = spectraAllchargeStatess.getPeptideCandidateMasses() != null && 
                             spectraAllchargeStatess.getPeptideCandidateMasses().size() > 0;
@@ -178,17 +211,25 @@ public class SimpleXiProcessMultipleCandidates extends SimpleXiProcessLinearIncl
                 for (Spectra spectra : specs) {
                     HashMap<Peptide,HashSet<Peptide>> alphaPeptides = new HashMap<Peptide, HashSet<Peptide>>();
                     
-                    Spectra mgc = getMGCSpectrum(spectra);
-                    if (mgc == null)
-                        continue;
+                    Spectra mgc = null;
+                    Spectra mgx;
+                    if (block != null) {
+                        // already done for the whole block
+                        mgx = block.getMGX(spectra);
+                        if (mgx == null)
+                            continue;
+                    } else {
+                        mgc = getMGCSpectrum(spectra);
+                        if (mgc == null)
+                            continue;
+                        mgx = getMGXSpectra(mgc, spectra);
+                    }
 
                     // the actuall mass of the precursors
                     double precMass = spectra.getPrecurserMass();
 
                     double matchcount = 0;
 
-                    Spectra mgx = getMGXSpectra(mgc, spectra);
-
                     spectra.getIsotopeClusters().clear();
 
                     if (!m_config.isLowResolution())
@@ -197,13 +238,18 @@ public class SimpleXiProcessMultipleCandidates extends SimpleXiProcessLinearIncl
                     double precoursorMass = spectra.getPrecurserMass();
 
                     double maxPrecoursorMass = m_PrecoursorTolerance.getMaxRange(precoursorMass);
-                    final ScoredOccurence<Peptide> mgcMatchScores = m_Fragments.getAlphaCandidates(mgx, maxPrecoursorMass);
+                    final ScoredOccurence<Peptide> mgcMatchScores;
+                    if (block != null)
+                        mgcMatchScores = block.getAlphaCandidates(spectra);
+                    else
+                        mgcMatchScores = m_Fragments.getAlphaCandidates(mgx, maxPrecoursorMass);
 
                     mgcMatchScoresAll.addAllLowest(mgcMatchScores);
 
 
                     // try to give back some memory
-                    mgc.free();
+                    if (mgc != null)
+                        mgc.free();
                     mgc = null;
 
                     // we get 10 times the accepted alpha candidates to be able to hanlde different modification states as single entries
@@ -288,6 +334,13 @@ public class SimpleXiProcessMultipleCandidates extends SimpleXiProcessLinearIncl
 
                     alphaCount += mgcMatchScores.size();
                     
+                    // alphas that passed and the beta masses to look up for them
+                    ArrayList<Peptide> acceptedAlphas = new ArrayList<Peptide>();
+                    ArrayList<Double> acceptedAlphaWeights = new ArrayList<Double>();
+                    betaBatch.clear();
+                    betaAlpha.clear();
+                    betaLinker.clear();
+
                     MgcLoop:
                     for (Peptide ap : scoreSortedAlphaPeptides) {
                         // make sure we never considere a peptide twice as alpha
@@ -325,58 +378,75 @@ public class SimpleXiProcessMultipleCandidates extends SimpleXiProcessLinearIncl
                             if (alphaWeight == null)
                                 alphaWeight = 0d;
                         }
+                        acceptedAlphas.add(ap);
+                        acceptedAlphaWeights.add(alphaWeight);
 
                         // not a linear match?
                         if (m_PrecoursorTolerance.compare(ap.getMass(),precoursorMass) != 0) {
 
                             double gapMass = mgx.getPrecurserMass() - ap.getMass();
 
-                            // for each cross-linker get all the beta - peptide canidates
-                            for (CrossLinker cl : m_Crosslinker) {
-                                double betaMass = gapMass - cl.getCrossLinkedMass();
+                            // for each cross-linker the mass of the beta - peptide canidates
+                            for (int c = 0; c < m_Crosslinker.size(); c++) {
+                                double betaMass = gapMass - m_Crosslinker.get(c).getCrossLinkedMass();
 
                                 if (betaMass > AminoAcid.MINIMUM_MASS) {
-
-                                    ArrayList<Peptide> betaCandidates = m_peptides.getForMass(betaMass, precMass);
-                                    int betaCount = betaCandidates.size();
-                                    betaloop: for (Peptide beta : betaCandidates) {
-                                        // beta already seen as alpha before?
-                                        HashSet<Peptide> prevBeta = alphaPeptides.get(beta);    
-                                        
-                                        // we only want to have every peptide pair only ones
-                                        if (cl.canCrossLink(ap,beta) && 
-                                                (prevBeta == null || !prevBeta.contains(ap)) && 
-                                                cl.canCrossLink(ap, beta)) {
-                                            for (CandidatePairFilter cf : getCadidatePairFilter()) {
-                                                if (!cf.passes(spectra, cl, ap, beta)) {
-                                                    continue betaloop;
-                                                }
-                                            }
-                                            betaList.add(beta);
-                                            Double betaWeight = 0.0;
-                                            if (hasMasses) {
-                                                betaWeight =  masscandidateWeights.get(ap);
-                                                if (betaWeight == null)
-                                                    betaWeight = 0d;
-                                            }
-
-                                            double mgxscore = getMGXMatchScores(mgx, ap, beta, cl, allfragments);
-                                            MGXMatchSpectrum mms = new MGXMatchSpectrum(new Peptide[]{ap, beta}, cl, betaCount,spectra);
-                                            
-                                            // did we find these via predefined peptide masses? if so flag the associated weigths
-                                            mms.setWeights(new double[]{alphaWeight,betaWeight});
-                                            
-                                            
-                                            mgxScoreMatches.add(mms, mgxscore);
-
-                                        }
-                                    }
+                                    betaBatch.add(betaMass);
+                                    betaAlpha.add(acceptedAlphas.size() - 1);
+                                    betaLinker.add(c);
                                 }
                             }
 
                         }
                     } //mgxloop
 
+                    // look up all beta candidates of this spectrum in one go
+                    // and go through them in the same order as the alphas
+                    betaBatch.resolve(precMass);
+                    for (int q = 0; q < betaBatch.size(); q++) {
+                        int a = betaAlpha.getInt(q);
+                        Peptide ap = acceptedAlphas.get(a);
+                        Double alphaWeight = acceptedAlphaWeights.get(a);
+                        HashSet<Peptide> betaList = alphaPeptides.get(ap);
+                        CrossLinker cl = m_Crosslinker.get(betaLinker.getInt(q));
+                        int betaFrom = betaBatch.from(q);
+                        int betaTo = betaBatch.to(q);
+                        int betaCount = betaTo - betaFrom;
+                        betaloop: for (int b = betaFrom; b < betaTo; b++) {
+                            Peptide beta = peptideIndex.get(b);
+                            // beta already seen as alpha before?
+                            HashSet<Peptide> prevBeta = alphaPeptides.get(beta);    
+
+                            // we only want to have every peptide pair only ones
+                            if (cl.canCrossLink(ap,beta) && 
+                                    (prevBeta == null || !prevBeta.contains(ap)) && 
+                                    cl.canCrossLink(ap, beta)) {
+                                for (CandidatePairFilter cf : getCadidatePairFilter()) {
+                                    if (!cf.passes(spectra, cl, ap, beta)) {
+                                        continue betaloop;
+                                    }
+                                }
+                                betaList.add(beta);
+                                Double betaWeight = 0.0;
+                                if (hasMasses) {
+                                    betaWeight =  masscandidateWeights.get(ap);
+                                    if (betaWeight == null)
+                                        betaWeight = 0d;
+                                }
+
+                                double mgxscore = getMGXMatchScores(mgx, ap, beta, cl, allfragments);
+                                MGXMatchSpectrum mms = new MGXMatchSpectrum(new Peptide[]{ap, beta}, cl, betaCount,spectra);
+
+                                // did we find these via predefined peptide masses? if so flag the associated weigths
+                                mms.setWeights(new double[]{alphaWeight,betaWeight});
+
+
+                                mgxScoreMatches.add(mms, mgxscore);
+
+                            }
+                        }
+                    }
+
 
 
                     if (evaluateSingles) {
@@ -420,7 +490,7 @@ public class SimpleXiProcessMultipleCandidates extends SimpleXiProcessLinearIncl
                     // the second best matches are taken as reference - the bigger
                     // the distance between the top and the second the more likely
                     // the top one is right
-                    double secondMGX = mgxResults.size() >1 ?  - Math.log(mgxScoreMatches.Score(mgxResults.get(1), 1)) : 0;
+                    final double secondMGX = mgxResults.size() >1 ?  - Math.log(mgxScoreMatches.Score(mgxResults.get(1), 1)) : 0;
 
                     double secondMGC = 0;
                     if (multipleAlphaCandidates) {
@@ -440,100 +510,118 @@ public class SimpleXiProcessMultipleCandidates extends SimpleXiProcessLinearIncl
                         }
                     }
 
-                    //int mgxID = 0;
-                    for (MGXMatchSpectrum cmgx : mgxResults) {
-                        double mgxScore = mgxScoreMatches.Score(cmgx, 0);
+                    // the rank depends on all the better candidates
+                    final int[] mgxRanks = new int[mgxResults.size()];
+                    for (int c = 0; c < mgxRanks.length; c++) {
+                        double mgxScore = mgxScoreMatches.Score(mgxResults.get(c), 0);
 
                         if (oldMGXScore != mgxScore)
                             mgxRank ++;
 
                         oldMGXScore=mgxScore;
+                        mgxRanks[c] = mgxRank;
+                    }
 
-                        MGXMatch matched = cmgx;
-                        Peptide ap = matched.Peptides[0];
-                        Peptide bp = (matched.Peptides.length>1? matched.Peptides[1]:null);
-                        CrossLinker cl = matched.cl;
-                        int betaCount = matched.countBeta;
-                        Integer mgcRankAp = mgcListAll.get(ap.toStringBaseSequence());
-                        Integer mgcRankBp = null;
-                        if (bp != null) {
-                            mgcRankBp = mgcListAll.get(bp.toStringBaseSequence());
-
-                            if (mgcRankAp == null) {
-                                if (mgcRankBp != null) {
+                    final ArrayList<MGXMatchSpectrum> candidates = mgxResults;
+                    final int candidateAlphaCount = alphaCount;
+                    final int candidateAlphaConsidered = alphaConsidered;
+                    final double candidateSecondMGC = secondMGC;
+                    final int candidateMaxMgcHits = maxMgcHits;
+                    // spectra with a lot of candidates get evaluated in parallel
+                    evaluateCandidates(candidates.size(), scanMatches, new CandidateEvaluator() {
+                        @Override
+                        public void evaluate(int candidate, ArrayList<MatchedXlinkedPeptide> scanMatches) {
+                            MGXMatchSpectrum cmgx = candidates.get(candidate);
+                            double mgxScore = mgxScoreMatches.Score(cmgx, 0);
+                            int mgxRank = mgxRanks[candidate];
+
+                            MGXMatch matched = cmgx;
+                            Peptide ap = matched.Peptides[0];
+                            Peptide bp = (matched.Peptides.length>1? matched.Peptides[1]:null);
+                            CrossLinker cl = matched.cl;
+                            int betaCount = matched.countBeta;
+                            Integer mgcRankAp = mgcListAll.get(ap.toStringBaseSequence());
+                            Integer mgcRankBp = null;
+                            if (bp != null) {
+                                mgcRankBp = mgcListAll.get(bp.toStringBaseSequence());
+
+                                if (mgcRankAp == null) {
+                                    if (mgcRankBp != null) {
+                                        mgcRankAp = mgcRankBp;
+                                        mgcRankBp = null;
+                                    } else {
+                                        mgcRankAp = candidateMaxMgcHits*2;
+                                    }
+                                } else if (mgcRankBp != null && mgcRankBp<mgcRankAp) {
+                                    Integer t = mgcRankAp;
                                     mgcRankAp = mgcRankBp;
-                                    mgcRankBp = null;
-                                } else {
-                                    mgcRankAp = maxMgcHits*2;
+                                    mgcRankBp = t;
                                 }
-                            } else if (mgcRankBp != null && mgcRankBp<mgcRankAp) {
-                                Integer t = mgcRankAp;
-                                mgcRankAp = mgcRankBp;
-                                mgcRankBp = t;
+                            } else if (mgcRankAp == null) {
+                                mgcRankAp = candidateMaxMgcHits*2;
                             }
-                        } else if (mgcRankAp == null) {
-                            mgcRankAp = maxMgcHits*2;
-                        }
 
 
-                        double pa = mgcMatchScoresAll.Score(ap, 1);
+                            double pa = mgcMatchScoresAll.Score(ap, 1);
 
 
-                        double alphaMGC = -Math.log(pa);
+                            double alphaMGC = -Math.log(pa);
 
 
-                        double pb = mgcMatchScoresAll.Score(bp, 1);
+                            double pb = mgcMatchScoresAll.Score(bp, 1);
 
-                        double mgcDelta = 0;
-                        double betaMGC = 0;
-                        double mgcScore = alphaMGC;
-                        double mgcScoreProb = 0;
+                            double mgcDelta = 0;
+                            double betaMGC = 0;
+                            double mgcScore = alphaMGC;
+                            double mgcScoreProb = 0;
 
-                        if (bp == null) {
-                            mgcDelta = alphaMGC - secondMGC;
-                            mgcScoreProb = pa;
-                        } else {
-                            mgcDelta = alphaMGC - secondMGC;
-                            betaMGC = -Math.log(pb);                                
-                            mgcScoreProb = 1-(1-pa)*(1-pb);
-                            if (pb == 1) {
-                                mgcScoreProb = 1 - (1 - pa) * (0.00000001);
+                            if (bp == null) {
+                                mgcDelta = alphaMGC - candidateSecondMGC;
+                                mgcScoreProb = pa;
+                            } else {
+                                mgcDelta = alphaMGC - candidateSecondMGC;
+                                betaMGC = -Math.log(pb);                                
+                                mgcScoreProb = 1-(1-pa)*(1-pb);
+                                if (pb == 1) {
+                                    mgcScoreProb = 1 - (1 - pa) * (0.00000001);
+                                }
+                                mgcScore += betaMGC;
                             }
-                            mgcScore += betaMGC;
-                        }
-
-                        mgxScore = - Math.log(mgxScore);
-
-                        double mgxDelta =  mgxScore - secondMGX;
-
-                        // if we have no mgc for the alpha peptide (came from
-                        // the linear suplement)
-                        // take the mgx-score as an estimate of the mgc-score
-                        if (bp == null && pa == 1)
-                            mgcScore = mgxScore;
-
-                        double mgcShiftedDelta =  0;//mgcScore - topShiftedCrosslinkedScoreMGCScore;
 
-                        ArrayList<MatchedXlinkedPeptide> sr = new ArrayList<>(1);
-                        evaluateMatch(cmgx.spectrum, ap, bp, cl, alphaCount, alphaConsidered, betaCount, sr, mgcScore, mgcDelta, mgcShiftedDelta, alphaMGC, betaMGC, mgxScore, mgxDelta, mgxRank, mgcRankAp, false);
-                        if (cmgx.Peptides.length>1) {
-                            for (MatchedXlinkedPeptide mp : sr) {
-                                Peptide p = mp.getPeptide1();
-                                if (p == cmgx.Peptides[0]) {
-                                    mp.setPeptide1Weight(cmgx.weights[0]);
-                                } else if (p == cmgx.Peptides[1]) {
-                                    mp.setPeptide1Weight(cmgx.weights[1]);
-                                }
-                                p = mp.getPeptide2();
-                                if (p == cmgx.Peptides[0]) {
-                                    mp.setPeptide2Weight(cmgx.weights[0]);
-                                } else if (p == cmgx.Peptides[1]) {
-                                    mp.setPeptide2Weight(cmgx.weights[1]);
+                            mgxScore = - Math.log(mgxScore);
+
+                            double mgxDelta =  mgxScore - secondMGX;
+
+                            // if we have no mgc for the alpha peptide (came from
+                            // the linear suplement)
+                            // take the mgx-score as an estimate of the mgc-score
+                            if (bp == null && pa == 1)
+                                mgcScore = mgxScore;
+
+                            double mgcShiftedDelta =  0;//mgcScore - topShiftedCrosslinkedScoreMGCScore;
+
+                            // evaluate against the matches found so far - so the 
+                            // pre-score gate knows what it has to beat
+                            int firstNew = scanMatches.size();
+                            evaluateMatch(cmgx.spectrum, ap, bp, cl, candidateAlphaCount, candidateAlphaConsidered, betaCount, scanMatches, mgcScore, mgcDelta, mgcShiftedDelta, alphaMGC, betaMGC, mgxScore, mgxDelta, mgxRank, mgcRankAp, false);
+                            if (cmgx.Peptides.length>1) {
+                                for (MatchedXlinkedPeptide mp : scanMatches.subList(firstNew, scanMatches.size())) {
+                                    Peptide p = mp.getPeptide1();
+                                    if (p == cmgx.Peptides[0]) {
+                                        mp.setPeptide1Weight(cmgx.weights[0]);
+                                    } else if (p == cmgx.Peptides[1]) {
+                                        mp.setPeptide1Weight(cmgx.weights[1]);
+                                    }
+                                    p = mp.getPeptide2();
+                                    if (p == cmgx.Peptides[0]) {
+                                        mp.setPeptide2Weight(cmgx.weights[0]);
+                                    } else if (p == cmgx.Peptides[1]) {
+                                        mp.setPeptide2Weight(cmgx.weights[1]);
+                                    }
                                 }
                             }
                         }
-                        scanMatches.addAll(sr);
-                    }
+                    });
                 }
 
 
@@ -550,6 +638,7 @@ public class SimpleXiProcessMultipleCandidates extends SimpleXiProcessLinearIncl
                 // test wether a linear match should be top-ranked
                 checkLinearPostEvaluation(scanMatches);
 
+                beginSpectrumOutput();
                 // is there any match to this spectra left over?
                 if (countMatches>0) {
                     MatchedXlinkedPeptide[] matches = scanMatches.toArray(new MatchedXlinkedPeptide[0]);
@@ -566,7 +655,9 @@ public class SimpleXiProcessMultipleCandidates extends SimpleXiProcessLinearIncl
                         top.setValidated(true);
                     }
                     outputScanMatches(matches, output);
+                    brw.selfFlush();
                 }
+                spectrumDone(spectraAllchargeStatess);
                 scanMatches.clear();
                 if (processed >= 100 || Calendar.getInstance().getTimeInMillis() - lastProgressReport > 10000) {
                     increaseProcessedScans(processed);
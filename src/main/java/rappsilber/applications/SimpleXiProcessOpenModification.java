@@ -260,7 +260,7 @@ public class SimpleXiProcessOpenModification extends SimpleXiProcessLinearInclud
                     double precoursorMass = spectra.getPrecurserMass();
 
                     double maxPrecoursorMass = m_PrecoursorTolerance.getMaxRange(precoursorMass);
-                    ArithmeticScoredOccurence<Peptide> mgcMatchScores = getMGCMatchScores(om, allfragments, maxPrecoursorMass);
+                    final ArithmeticScoredOccurence<Peptide> mgcMatchScores = getMGCMatchScores(om, allfragments, maxPrecoursorMass);
 
 
 
@@ -284,7 +284,7 @@ public class SimpleXiProcessOpenModification extends SimpleXiProcessLinearInclud
 
 
 
-                    ArithmeticScoredOccurence<MGXMatch> mgxScoreMatches = new ArithmeticScoredOccurence<MGXMatch>();
+                    final ArithmeticScoredOccurence<MGXMatch> mgxScoreMatches = new ArithmeticScoredOccurence<MGXMatch>();
 
                     //mgc-level
                     // go through the list of sorted alpha peptides until lastindex
@@ -401,7 +401,7 @@ public class SimpleXiProcessOpenModification extends SimpleXiProcessLinearInclud
 
 
                     
-                    MGXMatch[] mgxResults = mgxScoreMatches.getScoredSortedArray(new MGXMatch[0]);
+                    final MGXMatch[] mgxResults = mgxScoreMatches.getScoredSortedArray(new MGXMatch[0]);
 
 
 
@@ -438,33 +438,39 @@ public class SimpleXiProcessOpenModification extends SimpleXiProcessLinearInclud
                     // the second best matches are taken as reference - the bigger
                     // the distance between the top and the second the more likely
                     // the top one is right
-                    double secondMGX = mgxResults.length >1 ?  - Math.log(mgxScoreMatches.Score(mgxResults[1], 1)) : 0;
-                    double secondMGC = scoreSortedAlphaPeptides.length >1 ?  - Math.log(mgcMatchScores.Score(scoreSortedAlphaPeptides[1], 1)):0;
+                    final double secondMGX = mgxResults.length >1 ?  - Math.log(mgxScoreMatches.Score(mgxResults[1], 1)) : 0;
+                    final double secondMGC = scoreSortedAlphaPeptides.length >1 ?  - Math.log(mgcMatchScores.Score(scoreSortedAlphaPeptides[1], 1)):0;
                     
-                    for (int mgxID = 0; mgxID <= lastMGXIndex;mgxID++) {
-                        MGXMatch matched = mgxResults[mgxID];
-                        Peptide ap = matched.Peptides[0];
+                    final Spectra candidateSpectra = spectra;
+                    final int candidateAlphaCount = alphaCount;
+                    // spectra with a lot of candidates get evaluated in parallel
+                    evaluateCandidates(lastMGXIndex + 1, scanMatches, new CandidateEvaluator() {
+                        @Override
+                        public void evaluate(int mgxID, ArrayList<MatchedXlinkedPeptide> scanMatches) {
+                            MGXMatch matched = mgxResults[mgxID];
+                            Peptide ap = matched.Peptides[0];
 
-                        double pa = mgcMatchScores.Score(ap, 1);
+                            double pa = mgcMatchScores.Score(ap, 1);
 
-                        double alphaMGC = -Math.log(pa);
+                            double alphaMGC = -Math.log(pa);
 
-                        double mgcDelta = alphaMGC - secondMGC;
-                        double mgcScore = alphaMGC;
+                            double mgcDelta = alphaMGC - secondMGC;
+                            double mgcScore = alphaMGC;
 
-                        double mgxScore = - Math.log(mgxScoreMatches.Score(matched, 1));
+                            double mgxScore = - Math.log(mgxScoreMatches.Score(matched, 1));
 
-                        double mgxDelta =  mgxScore - secondMGX;
+                            double mgxDelta =  mgxScore - secondMGX;
 
-                        // if we have no mgc for the alpha peptide (came from
-                        // the linear suplement)
-                        // take the mgx-score as an estimate of the mgc-score
-                        mgcScore = mgxScore;
+                            // if we have no mgc for the alpha peptide (came from
+                            // the linear suplement)
+                            // take the mgx-score as an estimate of the mgc-score
+                            mgcScore = mgxScore;
 
-                        double mgcShiftedDelta =  -mgcScore;
+                            double mgcShiftedDelta =  -mgcScore;
 
-                        evaluateMatch(spectra.cloneComplete(), ap, null, null, 0, alphaCount, 0, scanMatches, mgcScore, mgcDelta, mgcShiftedDelta, alphaMGC, 0, mgxScore, mgxDelta, mgxID,0, false);
-                    }
+                            evaluateMatch(candidateSpectra.cloneComplete(), ap, null, null, 0, candidateAlphaCount, 0, scanMatches, mgcScore, mgcDelta, mgcShiftedDelta, alphaMGC, 0, mgxScore, mgxDelta, mgxID,0, false);
+                        }
+                    });
                     spectra.free();
 
                 }
@@ -588,8 +588,8 @@ public class SimpleXiProcessOpenModificationSiteProb extends SimpleXiProcessLine
         for (ScoreSpectraMatch ssm : getConfig().getScores()) {
             ssm.score(match);
         }
-        for (double score : match.getScores().values())
-            if(Double.isNaN(score)) {
+        for (int slot = 0; slot < match.getScoreSlots(); slot++)
+            if(match.hasScore(slot) && Double.isNaN(match.getScore(slot))) {
                 //System.err.println("found it " + this.getClass().getName());
                 for (ScoreSpectraMatch ssm : getConfig().getScores()) {
                     ssm.score(match);
@@ -23,6 +23,11 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -32,8 +37,10 @@ import java.util.zip.GZIPOutputStream;
 import rappsilber.config.RunConfigFile;
 import rappsilber.gui.SimpleXiGui;
 import rappsilber.gui.components.DebugFrame;
+import rappsilber.ms.dataAccess.AbstractSpectraAccess;
 import rappsilber.ms.dataAccess.msm.AbstractMSMAccess;
 import rappsilber.ms.dataAccess.msm.MSMListIterator;
+import rappsilber.ms.dataAccess.output.BinaryPeakListWriter;
 import rappsilber.ms.dataAccess.output.CSVExportMatches;
 import rappsilber.ms.dataAccess.output.PeakListWriter;
 import rappsilber.ms.dataAccess.output.ResultMultiplexer;
@@ -59,6 +66,11 @@ public class Xi {
      * the fastaArgs-files to search
      */
     ArrayList<String> fastaArgs = new ArrayList<>();
+
+    /**
+     * fasta-files, that get added to the prepared search of the fastaArgs
+     */
+    ArrayList<String> addFastaArgs = new ArrayList<>();
     
     /**
      * The config file used to define parameters
@@ -75,6 +87,11 @@ public class Xi {
      * Where to write an annotated peaks
      */
     ArrayList<String> annotatedPeaksOut = new ArrayList<>();
+
+    /**
+     * Where to write annotated peaks in the binary format
+     */
+    ArrayList<String> annotatedPeaksOutBinary = new ArrayList<>();
     
     /**
      * if --help is called then this will be set to true
@@ -114,6 +131,34 @@ public class Xi {
     
     private DebugFrame debugGui;
     private ObjectWrapper<String> locale = new ObjectWrapper<>("en");
+
+    /**
+     * if set, the search is distributed over this many local worker JVMs
+     */
+    private ObjectWrapper<String> workers = new ObjectWrapper<>(null);
+
+    /**
+     * if set, this is a worker of a distributed search and connects to the
+     * coordinator at this host:port
+     */
+    private ObjectWrapper<String> coordinator = new ObjectWrapper<>(null);
+
+    /**
+     * the arguments that get handed on to the workers of a distributed search
+     */
+    ArrayList<String> workerArgs = new ArrayList<>();
+
+    /**
+     * if set, the search writes checkpoints to this file
+     */
+    private ObjectWrapper<String> checkpointArg = new ObjectWrapper<>(null);
+
+    /**
+     * continue the search from the checkpoint
+     */
+    boolean resume = false;
+
+    private SearchCheckpoint checkpoint;
     
     XiProcess m_xi_process;
     /**
@@ -134,6 +179,11 @@ public class Xi {
                 + "--fasta      a fasta file against wich the peaklists are \n"
                 + "             searched\n"
                 + "             can be repeated\n"
+                + "--addfasta   a fasta file, that gets added to the search\n"
+                + "             after the --fasta files were prepared -\n"
+                + "             without rebuilding their peptides and\n"
+                + "             fragments\n"
+                + "             can be repeated\n"
                 + "--output     where to write the csv-output\n"
                 + "             - will output to stdout\n"
                 + "             can be repeated\n"
@@ -144,7 +194,18 @@ public class Xi {
                 + "--gui        forwards the arguments to the xi-gui\n"
                 + "--dbgui      opens the database bound gui\n"
                 + "--peaksout   write out annotated peaks\n"
+                + "--peaksoutbin write out annotated peaks in a compact binary\n"
+                + "             format - can be converted to the --peaksout\n"
+                + "             format with\n"
+                + "             rappsilber.ms.dataAccess.output.BinaryPeakListConverter\n"
                 + "--locale     what local to use for writingh out numbers\n"
+                + "--workers    distribute the search over that many worker \n"
+                + "             processes on this machine (only csv-output)\n"
+                + "--worker     join a distributed search as worker - given\n"
+                + "             as host:port of the coordinator\n"
+                + "--checkpoint regularly record the progress of the search\n"
+                + "             in this file (only csv-output)\n"
+                + "--resume     continue a search from its --checkpoint\n"
                 + "If no arguments are gvien the GUI is shown.");
     }
     
@@ -175,10 +236,15 @@ public class Xi {
         argnames.put("--config", configArgs);
         argnames.put("--peaks", peaklistArgs);
         argnames.put("--fasta", fastaArgs);
+        argnames.put("--addfasta", addFastaArgs);
         argnames.put("--xiconf", xiArgs);
         argnames.put("--output",outputArgs);
         argnames.put("--peaksout",annotatedPeaksOut);
+        argnames.put("--peaksoutbin",annotatedPeaksOutBinary);
         argnames.put("--locale",locale);
+        argnames.put("--workers",workers);
+        argnames.put("--worker",coordinator);
+        argnames.put("--checkpoint",checkpointArg);
         if (args.length == 0) 
             useGui = true;
         for(String arg : args) {
@@ -194,6 +260,9 @@ public class Xi {
             } else if (arg.contentEquals("--dbgui")) {
                 useDBGui = true;
                 parsedArgs++;
+            } else if (arg.contentEquals("--resume")) {
+                resume = true;
+                parsedArgs++;
             } else if (arg.startsWith("--exampleconfig=")) {
                 try {
                     writeDefaultConfig(arg.substring("--exampleconfig=".length()));
@@ -220,6 +289,10 @@ public class Xi {
                     if (argOption instanceof ObjectWrapper)
                         ((ObjectWrapper)argOption).value = argParts[1];
                     
+                    // workers get everything needed for the search - but write no files
+                    if (argOption != outputArgs && argOption != annotatedPeaksOut && argOption != annotatedPeaksOutBinary
+                            && argOption != workers && argOption != coordinator && argOption != checkpointArg)
+                        workerArgs.add(arg);
                     parsedArgs++;
                 }
             }
@@ -266,6 +339,12 @@ public class Xi {
     }
     
     public void setupOutput() {
+        // should each output get its own buffer and thread
+        int perWriterBuffer = xiconfig.retrieveObject("BUFFEROUTPUTPERWRITER", 0);
+        if (perWriterBuffer > 0) {
+            result_multiplexer.setChildQueueSize(perWriterBuffer);
+        }
+        
         for (String out : outputArgs) {
             try {
                 boolean gzip = false;
@@ -280,6 +359,9 @@ public class Xi {
                 CSVExportMatches CSVOut = null;
                 if (out.contentEquals("-")) {
                     CSVOut = new CSVExportMatches(System.out, xiconfig,gzip);
+                } else if (checkpoint != null) {
+                    // the checkpoint takes care of the compression
+                    CSVOut = new CSVExportMatches(checkpoint.openOutput(out, gzip), xiconfig, false);
                 } else {
                     CSVOut = new CSVExportMatches(new FileOutputStream(out), xiconfig,gzip);
                 }
@@ -320,10 +402,53 @@ public class Xi {
                 }
             }
         }
+        
+        for (String out : annotatedPeaksOutBinary) {
+            try {
+                OutputStream op = new FileOutputStream(out);
+                if (out.endsWith(".gz")) {
+                    op = new GZIPOutputStream(op);
+                }
+                result_multiplexer.addResultWriter(new BinaryPeakListWriter(op));
+            } catch (IOException ex) {
+                Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "could not open ouput file:" + out, ex);
+            }
+        }
 
     }
     
     
+    /**
+     * @return a key, that identifies the search - a checkpoint can only be
+     * resumed for the same key
+     */
+    private String checkpointKey() throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+        md.update(XiVersion.getVersionString().getBytes(StandardCharsets.UTF_8));
+        for (String conf : configArgs) {
+            md.update(Files.readAllBytes(new File(conf).toPath()));
+        }
+        for (String conf : xiArgs) {
+            md.update(conf.getBytes(StandardCharsets.UTF_8));
+        }
+        ArrayList<String> files = new ArrayList<>(fastaArgs);
+        files.addAll(addFastaArgs);
+        files.addAll(peaklistArgs);
+        for (String f : files) {
+            File file = new File(f).getAbsoluteFile();
+            md.update((file.getPath() + "|" + file.length() + "|" + file.lastModified()).getBytes(StandardCharsets.UTF_8));
+        }
+        for (String out : outputArgs) {
+            md.update(new File(out).getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+        }
+        return new BigInteger(1, md.digest()).toString(16);
+    }
+
     public void startXi() throws IOException, FileNotFoundException, ParseException {
 
         Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Xi Version: {0}", XiVersion.getVersionString());
@@ -362,6 +487,34 @@ public class Xi {
             }
         }
         
+        if (workers.value != null) {
+            // the workers do the actual search
+            if (annotatedPeaksOut.size() > 0 || annotatedPeaksOutBinary.size() > 0) {
+                Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "A distributed search can only write csv-output");
+                System.exit(1);
+            }
+            new XiCoordinator(xiconfig, peaklistArgs, outputArgs, Integer.parseInt(workers.value), workerArgs).run();
+            return;
+        }
+        
+        XiWorker worker = null;
+        if (coordinator.value != null) {
+            worker = new XiWorker(coordinator.value);
+        }
+
+        if (resume && checkpointArg.value == null) {
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "--resume needs the --checkpoint to resume from");
+            System.exit(1);
+        }
+        if (checkpointArg.value != null) {
+            // only files, that can be cut back to the checkpoint
+            if (worker != null || outputArgs.contains("-") || annotatedPeaksOut.size() > 0 || annotatedPeaksOutBinary.size() > 0) {
+                Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Checkpoints are only supported for csv-output to files");
+                System.exit(1);
+            }
+            checkpoint = new SearchCheckpoint(new File(checkpointArg.value), checkpointKey(), resume);
+        }
+        
         setupMSMIterator();
         
         File[] fastas = new File[fastaArgs.size()];
@@ -372,16 +525,60 @@ public class Xi {
         
         sequences = new SequenceList(fastas, xiconfig);
         
-        setupOutput();
+        AbstractSpectraAccess input = peaklist;
+        if (worker == null) {
+            setupOutput();
+        } else {
+            worker.setupOutput(result_multiplexer, xiconfig, locale.value);
+            input = worker.getInput(peaklist, peaklistArgs, xiconfig);
+        }
         
         
-        m_xi_process = XiProvider.getXiSearch(sequences, peaklist, result_multiplexer, null, xiconfig, SimpleXiProcessMultipleCandidates.class);
+        m_xi_process = XiProvider.getXiSearch(sequences, input, result_multiplexer, null, xiconfig, SimpleXiProcessMultipleCandidates.class);
         System.out.println("Xi - flavor:" + m_xi_process.getClass().getName());
+        if (checkpoint != null) {
+            if (!(m_xi_process instanceof SimpleXiProcess && ((SimpleXiProcess) m_xi_process).supportsCheckpoint())) {
+                Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "{0} does not support checkpoints", m_xi_process.getClass().getName());
+                System.exit(1);
+            }
+            ((SimpleXiProcess) m_xi_process).setCheckpoint(checkpoint);
+        }
+        if (worker != null) {
+            // results are handed back per partition - once all its spectra are done
+            if (!(m_xi_process instanceof SimpleXiProcess && ((SimpleXiProcess) m_xi_process).supportsCheckpoint())) {
+                Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "{0} can not be used for a distributed search", m_xi_process.getClass().getName());
+                System.exit(1);
+            }
+            worker.setSearch(m_xi_process);
+            ((SimpleXiProcess) m_xi_process).setCheckpoint(worker);
+        }
         
         m_xi_process.prepareSearch();
+        if (addFastaArgs.size() > 0) {
+            if (!(m_xi_process instanceof SimpleXiProcess)) {
+                Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "{0} can not add sequences to a prepared search", m_xi_process.getClass().getName());
+                System.exit(1);
+            }
+            File[] added = new File[addFastaArgs.size()];
+            i = 0;
+            for (String f : addFastaArgs) {
+                added[i++] = new File(f);
+            }
+            ((SimpleXiProcess) m_xi_process).addSequences(new SequenceList(added, xiconfig));
+        }
         m_xi_process.startSearch();
+        if (checkpoint != null) {
+            checkpoint.start(m_xi_process, xiconfig.retrieveObject("CHECKPOINT_INTERVAL", 300));
+        }
         m_xi_process.waitEnd();
+        if (checkpoint != null) {
+            checkpoint.finish();
+        }
         result_multiplexer.finished();
+        if (worker != null) {
+            result_multiplexer.waitForFinished();
+            worker.finished();
+        }
     }
     
     public static void main(String[] args) throws IOException, FileNotFoundException, ParseException {
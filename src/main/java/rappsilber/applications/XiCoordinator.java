@@ -0,0 +1,656 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.applications;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+import rappsilber.config.RunConfig;
+import rappsilber.ms.dataAccess.msm.MSMListIterator;
+
+/**
+ * Runs a search distributed over several worker JVMs.<br/>
+ * The spectra are split into partitions - either one per peak-list or ranges
+ * of DISTRIBUTED_PARTITION_SPECTRA consecutive spectra of a peak-list. A
+ * partition is given by the index of the peak-list and the positions within
+ * it, so a worker only reads the peak-list of a partition. The coordinator
+ * listens on a plain socket and hands out partitions to each connected
+ * {@link XiWorker}, whenever it asks for one. A worker builds up its peptide
+ * and fragment index once and then searches partition after partition until
+ * nothing is left.<br/>
+ * The results come back as CSV-lines tagged with their partition and are
+ * spooled per partition. When the worker reports a partition as completed,
+ * its results are appended to the outputs. Workers regularly report how many
+ * spectra they are done with. If a worker fails or - with a
+ * DISTRIBUTED_PARTITION_TIMEOUT set - got no further spectrum done for that
+ * many seconds, the partitions it did not complete are handed out again -
+ * each partition at most DISTRIBUTED_RETRIES times.<br/>
+ * Local workers are started as separate JVMs with the same class-path. More
+ * workers - e.g. on other machines - can connect with
+ * <code>--worker=host:port</code>.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class XiCoordinator {
+    /** the first thing a worker sends */
+    static final int MAGIC = 0x58694457;
+    /** worker asks for the next partition */
+    static final byte NEXT = 'N';
+    /**
+     * coordinator hands out a partition (followed by its id, the peak-list
+     * and first and end position within the peak-list)
+     */
+    static final byte PARTITION = 'P';
+    /** coordinator has no partition left */
+    static final byte DONE = 'D';
+    /**
+     * worker sends results (followed by the partition or -1 for the header,
+     * the output, the length and the bytes)
+     */
+    static final byte RESULT = 'R';
+    /** worker has sent all results of a partition (followed by its id) */
+    static final byte COMPLETED = 'C';
+    /** worker is alive (followed by the number of spectra it is done with) */
+    static final byte HEARTBEAT = 'H';
+    /** seconds between two heartbeats of a worker */
+    static final int HEARTBEAT_INTERVAL = 10;
+    /** worker has written all its results */
+    static final byte FINISHED = 'F';
+
+    /**
+     * a range of spectra of a peak-list - by position in the order they are
+     * read
+     */
+    private static class Partition {
+        final int id;
+        final int peaklist;
+        final int from;
+        final int to;
+        int tries = 0;
+        /** the connection to the worker searching it */
+        Socket worker;
+        /** when it was handed out or its worker last got a spectrum done */
+        long progress;
+
+        Partition(int id, int peaklist, int from, int to) {
+            this.id = id;
+            this.peaklist = peaklist;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * the results of a partition, until it is completed
+     */
+    private static class Spool {
+        final Partition partition;
+        final File[] files;
+        final OutputStream[] out;
+
+        Spool(Partition partition, int outputs) throws IOException {
+            this.partition = partition;
+            files = new File[outputs];
+            out = new OutputStream[outputs];
+            try {
+                for (int c = 0; c < outputs; c++) {
+                    files[c] = File.createTempFile("xi_results_" + partition.id + "_", ".spool");
+                    files[c].deleteOnExit();
+                    out[c] = new BufferedOutputStream(new FileOutputStream(files[c]));
+                }
+            } catch (IOException ex) {
+                delete();
+                throw ex;
+            }
+        }
+
+        void close() throws IOException {
+            for (OutputStream o : out) {
+                if (o != null) {
+                    o.close();
+                }
+            }
+        }
+
+        /**
+         * closes and deletes the spool-files
+         */
+        void delete() {
+            try {
+                close();
+            } catch (IOException ex) {
+            }
+            for (File f : files) {
+                if (f != null) {
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    private final RunConfig m_config;
+    private final ArrayList<String> m_peaklists;
+    private final ArrayList<String> m_outputs;
+    /** arguments handed on to local workers */
+    private final List<String> m_workerArgs;
+    /** how many local workers to start */
+    private final int m_localWorkers;
+    /** how often a partition is handed out again after its worker failed */
+    private final int m_retries;
+    /** seconds a worker may go without getting a spectrum done (0: no limit) */
+    private final int m_timeout;
+
+    private final LinkedList<Partition> m_pending = new LinkedList<Partition>();
+    /** partitions handed out and not completed yet */
+    private final ArrayList<Partition> m_running = new ArrayList<Partition>();
+    private int m_partitionCount = 0;
+    private int m_done = 0;
+    /** number of connected workers */
+    private int m_connected = 0;
+    /** local workers that failed before they took any partition */
+    private int m_workerFailures = 0;
+    /** if set the search failed */
+    private String m_failure = null;
+
+    private final ArrayList<Process> m_processes = new ArrayList<Process>();
+    private OutputStream[] m_out;
+    private boolean[] m_headerWritten;
+    private ServerSocket m_server;
+    private String m_workerAddress;
+
+    /**
+     * @param config
+     * @param peaklists the peak-lists to search
+     * @param outputs where to write the results (CSV only)
+     * @param localWorkers how many worker JVMs to start on this machine
+     * @param workerArgs the arguments for the local workers (config, fasta,
+     * peak-lists ...)
+     */
+    public XiCoordinator(RunConfig config, ArrayList<String> peaklists, ArrayList<String> outputs, int localWorkers, List<String> workerArgs) {
+        m_config = config;
+        m_peaklists = peaklists;
+        m_outputs = outputs;
+        m_localWorkers = localWorkers;
+        m_workerArgs = workerArgs;
+        m_retries = config.retrieveObject("DISTRIBUTED_RETRIES", 2);
+        m_timeout = config.retrieveObject("DISTRIBUTED_PARTITION_TIMEOUT", 0);
+    }
+
+    /**
+     * is the output written tab-separated
+     */
+    static boolean isTabSeparated(String out) {
+        return out.endsWith("txt.gz") || out.endsWith("tsv.gz") || out.endsWith("txt") || out.endsWith("tsv");
+    }
+
+    /**
+     * runs the search and returns after all partitions are done
+     * @throws IOException if the search failed
+     */
+    public void run() throws IOException, ParseException {
+        createPartitions();
+        openOutputs();
+
+        String host = m_config.retrieveObject("DISTRIBUTED_HOST", "127.0.0.1");
+        m_server = new ServerSocket(m_config.retrieveObject("DISTRIBUTED_PORT", 0), 50, InetAddress.getByName(host));
+        m_workerAddress = (m_server.getInetAddress().isAnyLocalAddress() ? "127.0.0.1" : host) + ":" + m_server.getLocalPort();
+        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Waiting for workers on {0}", m_workerAddress);
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptWorkers();
+            }
+        }, "Coordinator");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        try {
+            synchronized (this) {
+                for (int i = 0; i < m_localWorkers; i++) {
+                    startWorker();
+                }
+            }
+            waitForPartitions();
+        } finally {
+            m_server.close();
+            closeOutputs();
+            synchronized (this) {
+                for (Process p : m_processes) {
+                    try {
+                        // a worker, that got dropped, might still hang
+                        if (!p.waitFor(60, TimeUnit.SECONDS)) {
+                            Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "A worker did not stop - killing it");
+                            p.destroy();
+                        }
+                    } catch (InterruptedException ex) {
+                        p.destroy();
+                    }
+                }
+            }
+        }
+        if (m_failure != null) {
+            throw new IOException(m_failure);
+        }
+    }
+
+    /**
+     * splits the spectra into partitions
+     */
+    private void createPartitions() throws IOException, ParseException {
+        int size = m_config.retrieveObject("DISTRIBUTED_PARTITION_SPECTRA", 1000);
+        int total = 0;
+        for (int pl = 0; pl < m_peaklists.size(); pl++) {
+            int count = countSpectra(m_peaklists.get(pl));
+            if (size <= 0) {
+                // one partition per peak-list
+                m_pending.add(new Partition(m_pending.size(), pl, 0, count));
+            } else {
+                for (int from = 0; from < count; from += size) {
+                    m_pending.add(new Partition(m_pending.size(), pl, from, Math.min(count, from + size)));
+                }
+            }
+            total += count;
+        }
+        m_partitionCount = m_pending.size();
+        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "{0} spectra in {1} partitions", new Object[]{total, m_partitionCount});
+    }
+
+    /**
+     * opens a single peak-list - the coordinator and the workers read the
+     * peak-lists the same way, so the positions of the spectra match
+     */
+    static MSMListIterator openPeaklist(String peaklist, RunConfig config) throws IOException, ParseException {
+        ArrayList<String> single = new ArrayList<String>(1);
+        single.add(peaklist);
+        MSMListIterator spectra = new MSMListIterator(single, new File(".").getAbsolutePath(), config.getFragmentTolerance(), config.retrieveObject("MINCHARGE", 1), config);
+        spectra.init();
+        return spectra;
+    }
+
+    /**
+     * counts the spectra of a peak-list, exactly as the workers will read them
+     */
+    private int countSpectra(String peaklist) throws IOException, ParseException {
+        m_config.getStatusInterface().setStatus("Counting spectra of " + peaklist);
+        MSMListIterator spectra = openPeaklist(peaklist, m_config);
+        int count = 0;
+        try {
+            while (spectra.hasNext()) {
+                spectra.next();
+                count++;
+            }
+        } finally {
+            spectra.close();
+        }
+        return count;
+    }
+
+    private void openOutputs() throws IOException {
+        m_out = new OutputStream[m_outputs.size()];
+        m_headerWritten = new boolean[m_outputs.size()];
+        for (int i = 0; i < m_out.length; i++) {
+            String out = m_outputs.get(i);
+            OutputStream os = out.contentEquals("-") ? System.out : new FileOutputStream(out);
+            if (out.endsWith(".gz")) {
+                os = new GZIPOutputStream(os);
+            }
+            m_out[i] = new BufferedOutputStream(os);
+        }
+    }
+
+    private synchronized void closeOutputs() {
+        for (int i = 0; i < m_out.length; i++) {
+            try {
+                if (m_outputs.get(i).contentEquals("-")) {
+                    m_out[i].flush();
+                } else {
+                    m_out[i].close();
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Error closing output " + m_outputs.get(i), ex);
+                m_failure = "could not write " + m_outputs.get(i);
+            }
+        }
+    }
+
+    /**
+     * starts a worker JVM on this machine
+     */
+    private void startWorker() {
+        ArrayList<String> cmd = new ArrayList<String>();
+        cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        for (String arg : m_config.retrieveObject("DISTRIBUTED_WORKER_JVM", "").trim().split("\\s+")) {
+            if (!arg.isEmpty()) {
+                cmd.add(arg);
+            }
+        }
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(Xi.class.getName());
+        cmd.add("--worker=" + m_workerAddress);
+        cmd.addAll(m_workerArgs);
+        try {
+            File log = File.createTempFile("xi_worker_" + m_processes.size() + "_", ".log");
+            ProcessBuilder pb = new ProcessBuilder(cmd);
+            pb.redirectErrorStream(true);
+            pb.redirectOutput(log);
+            m_processes.add(pb.start());
+            Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Started worker {0} - log in {1}", new Object[]{m_processes.size(), log});
+        } catch (IOException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Could not start a worker", ex);
+            m_failure = "could not start a worker: " + ex.getMessage();
+            notifyAll();
+        }
+    }
+
+    private void acceptWorkers() {
+        while (!m_server.isClosed()) {
+            try {
+                final Socket s = m_server.accept();
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serveWorker(s);
+                    }
+                }, "Worker " + s.getRemoteSocketAddress());
+                t.setDaemon(true);
+                t.start();
+            } catch (SocketException ex) {
+                // the server got closed
+            } catch (IOException ex) {
+                Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "Error accepting a worker", ex);
+            }
+        }
+    }
+
+    /**
+     * waits until all partitions are done or the search failed
+     */
+    private synchronized void waitForPartitions() {
+        int lastDone = -1;
+        while (m_done < m_partitionCount && m_failure == null) {
+            try {
+                wait(1000);
+            } catch (InterruptedException ex) {
+                m_failure = "interrupted";
+                break;
+            }
+            if (lastDone != m_done) {
+                m_config.getStatusInterface().setStatus(m_done + " of " + m_partitionCount + " partitions done");
+                lastDone = m_done;
+            }
+            dropTimedOut();
+            if (m_localWorkers > 0 && m_connected == 0 && m_done < m_partitionCount && !workerAlive()) {
+                // all local workers are gone - without holding any partition
+                if (++m_workerFailures > m_retries) {
+                    m_failure = "all workers failed";
+                } else {
+                    Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "No worker left - starting a new one");
+                    startWorker();
+                }
+            }
+        }
+    }
+
+    /**
+     * closes the connection to workers, that made no progress in time - their
+     * partitions get handed out again
+     */
+    private void dropTimedOut() {
+        if (m_timeout <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Partition p : m_running) {
+            if (now - p.progress > m_timeout * 1000L && !p.worker.isClosed()) {
+                Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "No progress on partition {0} for {1} seconds - dropping worker {2}",
+                        new Object[]{p.id, m_timeout, p.worker.getRemoteSocketAddress()});
+                try {
+                    p.worker.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+
+    private boolean workerAlive() {
+        for (Process p : m_processes) {
+            try {
+                p.exitValue();
+            } catch (IllegalThreadStateException ex) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param worker the connection to the worker, that gets the partition
+     * @return the next partition or null if none is left
+     */
+    private synchronized Partition nextPartition(Socket worker) {
+        if (m_failure != null) {
+            return null;
+        }
+        Partition p = m_pending.poll();
+        if (p != null) {
+            p.worker = worker;
+            p.progress = System.currentTimeMillis();
+            m_running.add(p);
+        }
+        return p;
+    }
+
+    /**
+     * hands the partitions, that a failed worker did not complete, out again
+     */
+    private synchronized void failed(ArrayList<Partition> taken) {
+        for (int i = taken.size() - 1; i >= 0; i--) {
+            Partition p = taken.get(i);
+            m_running.remove(p);
+            if (++p.tries > m_retries) {
+                m_failure = "partition " + p.id + " failed " + p.tries + " times";
+            }
+            m_pending.addFirst(p);
+        }
+        if (!taken.isEmpty() && m_failure == null) {
+            Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "A worker failed - {0} partitions, that it did not complete, are handed out again", taken.size());
+            if (m_localWorkers > 0) {
+                startWorker();
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * appends the spooled results of a completed partition to the outputs
+     * @param spool the closed spool of the partition
+     * @param header the header of each output, as written by the worker
+     */
+    private synchronized void commit(Spool spool, ByteArrayOutputStream[] header) throws IOException {
+        for (int c = 0; c < spool.files.length; c++) {
+            if (!m_headerWritten[c] && header[c].size() > 0) {
+                header[c].writeTo(m_out[c]);
+                m_headerWritten[c] = true;
+            }
+            InputStream in = new BufferedInputStream(new FileInputStream(spool.files[c]));
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    m_out[c].write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            m_out[c].flush();
+        }
+        m_running.remove(spool.partition);
+        m_done++;
+        notifyAll();
+    }
+
+    /**
+     * the worker got spectra done - restarts the timeout of its partitions
+     */
+    private synchronized void progress(Socket worker) {
+        long now = System.currentTimeMillis();
+        for (Partition p : m_running) {
+            if (p.worker == worker) {
+                p.progress = now;
+            }
+        }
+    }
+
+    private synchronized void connected(int delta) {
+        m_connected += delta;
+        notifyAll();
+    }
+
+    /**
+     * talks to one worker until it is finished or fails
+     */
+    private void serveWorker(Socket s) {
+        // the partitions this worker holds and did not complete
+        HashMap<Integer, Spool> spools = new HashMap<Integer, Spool>();
+        ByteArrayOutputStream[] header = new ByteArrayOutputStream[m_out.length];
+        connected(1);
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a xi worker: " + s.getRemoteSocketAddress());
+            }
+            // tell the worker what to write
+            out.writeInt(m_outputs.size());
+            for (String o : m_outputs) {
+                out.writeBoolean(isTabSeparated(o));
+            }
+            out.flush();
+            for (int c = 0; c < header.length; c++) {
+                header[c] = new ByteArrayOutputStream();
+            }
+            byte[] buffer = new byte[64 * 1024];
+            boolean finished = false;
+            int spectraDone = 0;
+            while (!finished) {
+                byte cmd = in.readByte();
+                if (cmd == NEXT) {
+                    Partition p = nextPartition(s);
+                    if (p == null) {
+                        out.writeByte(DONE);
+                    } else {
+                        try {
+                            spools.put(p.id, new Spool(p, m_out.length));
+                        } catch (IOException ex) {
+                            ArrayList<Partition> back = new ArrayList<Partition>(1);
+                            back.add(p);
+                            failed(back);
+                            throw ex;
+                        }
+                        out.writeByte(PARTITION);
+                        out.writeInt(p.id);
+                        out.writeInt(p.peaklist);
+                        out.writeInt(p.from);
+                        out.writeInt(p.to);
+                    }
+                    out.flush();
+                } else if (cmd == RESULT) {
+                    int id = in.readInt();
+                    int c = in.readUnsignedByte();
+                    int len = in.readInt();
+                    OutputStream target;
+                    if (id < 0) {
+                        target = header[c];
+                    } else if (spools.containsKey(id)) {
+                        target = spools.get(id).out[c];
+                    } else {
+                        throw new IOException("results for partition " + id + ", that the worker does not hold");
+                    }
+                    while (len > 0) {
+                        int read = in.read(buffer, 0, Math.min(len, buffer.length));
+                        if (read < 0) {
+                            throw new IOException("connection to worker lost");
+                        }
+                        target.write(buffer, 0, read);
+                        len -= read;
+                    }
+                } else if (cmd == COMPLETED) {
+                    int id = in.readInt();
+                    Spool spool = spools.remove(id);
+                    if (spool == null) {
+                        throw new IOException("partition " + id + " completed, that the worker does not hold");
+                    }
+                    try {
+                        spool.close();
+                        commit(spool, header);
+                    } finally {
+                        spool.delete();
+                    }
+                } else if (cmd == HEARTBEAT) {
+                    int done = in.readInt();
+                    if (done != spectraDone) {
+                        spectraDone = done;
+                        progress(s);
+                    }
+                } else if (cmd == FINISHED) {
+                    if (!spools.isEmpty()) {
+                        throw new IOException("worker finished without completing " + spools.size() + " partitions");
+                    }
+                    finished = true;
+                } else {
+                    throw new IOException("unknown command from worker: " + cmd);
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "Worker " + s.getRemoteSocketAddress() + " failed", ex);
+        } finally {
+            try {
+                s.close();
+            } catch (IOException ex) {
+            }
+            ArrayList<Partition> open = new ArrayList<Partition>(spools.size());
+            for (Spool spool : spools.values()) {
+                spool.delete();
+                open.add(spool.partition);
+            }
+            if (!open.isEmpty()) {
+                failed(open);
+            }
+            connected(-1);
+        }
+    }
+}
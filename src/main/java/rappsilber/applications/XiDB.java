@@ -68,6 +68,8 @@ public class XiDB {
         // 2. Set the conneciton pool
         try {
             m_connection_pool = new ConnectionPool("org.postgresql.Driver", m_db_connection, m_db_user, m_db_passwd);
+            m_connection_pool.setMaxWait(Long.parseLong(System.getProperty("XI_DB_POOL_MAXWAIT", "" + m_connection_pool.getMaxWait())));
+            m_connection_pool.setStatementCacheSize(Integer.parseInt(System.getProperty("XI_DB_STATEMENT_CACHE", "" + m_connection_pool.getStatementCacheSize())));
             m_dbconfig = new DBRunConfig(m_connection_pool);
 
             String DBOutput = System.getProperty("XI_DB_OUTPUT", "YES");
@@ -194,6 +196,9 @@ public class XiDB {
             }
         } finally {
             
+            if (xi != null && xi.m_connection_pool != null) {
+                Logger.getLogger(XiDB.class.getName()).log(Level.INFO, "Connection pool: " + xi.m_connection_pool.getStatistics());
+            }
         
             if (df != null) {
                 df.setVisible(false);
@@ -0,0 +1,680 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.applications;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rappsilber.config.RunConfig;
+import rappsilber.ms.dataAccess.AbstractSpectraAccess;
+import rappsilber.ms.dataAccess.AbstractStackedSpectraAccess;
+import rappsilber.ms.dataAccess.StackedSpectraAccess;
+import rappsilber.ms.dataAccess.msm.MSMListIterator;
+import rappsilber.ms.dataAccess.output.AbstractResultWriter;
+import rappsilber.ms.dataAccess.output.CSVExportMatches;
+import rappsilber.ms.dataAccess.output.ResultMultiplexer;
+import rappsilber.ms.spectra.Spectra;
+import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
+
+/**
+ * The worker side of a distributed search (see {@link XiCoordinator}).<br/>
+ * Connects to the coordinator and provides the search with an input, that
+ * asks the coordinator for the next partition of spectra whenever the current
+ * one is used up. The results are written as CSV and streamed back over the
+ * same connection - tagged with the partition the spectrum came from.<br/>
+ * The search reports the spectra, that are done. Once all spectra of a
+ * partition are done, its results are flushed and the partition is reported
+ * as completed. As the spectra pass the input filters in order, a partition
+ * has passed the filters, when a spectrum of a later partition comes out of
+ * them or the input is used up.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class XiWorker implements SearchProgress {
+    private final Socket m_socket;
+    private final DataInputStream m_in;
+    private final DataOutputStream m_out;
+    /** for each output of the coordinator: is it tab-separated */
+    private final boolean[] m_tabSeparated;
+    /** set if the connection to the coordinator failed */
+    private volatile IOException m_error;
+    /** the search - its output gets flushed before a partition is reported */
+    private XiProcess m_search;
+    /** number of spectra done - reported with each heartbeat */
+    private final AtomicInteger m_spectraDone = new AtomicInteger();
+    /** sends the heartbeats */
+    private Thread m_heartbeat;
+
+    /** partitions handed to this worker, that are not completed - in the order they came */
+    private final LinkedList<Partition> m_open = new LinkedList<Partition>();
+    /** the partition of each spectrum - by the spectrum as read from the peak-list */
+    private final IdentityHashMap<Spectra, Partition> m_partitionOf = new IdentityHashMap<Spectra, Partition>();
+    /** spectra handed out to the search, that are not done yet */
+    private final IdentityHashMap<Spectra, Partition> m_inFlight = new IdentityHashMap<Spectra, Partition>();
+    /** partition of the last spectrum handed out to the search */
+    private Partition m_lastHandedOut;
+
+    /**
+     * a partition handed out by the coordinator
+     */
+    private static class Partition {
+        final int id;
+        /** index of the peak-list */
+        final int peaklist;
+        /** first and end position within the peak-list */
+        final int from;
+        final int to;
+        /** the spectra read for this partition */
+        final ArrayList<Spectra> read = new ArrayList<Spectra>();
+        /** number of its spectra handed out to the search, that are not done */
+        int inFlight = 0;
+        /** all of its spectra came through the filters */
+        boolean passed = false;
+
+        Partition(int id, int peaklist, int from, int to) {
+            this.id = id;
+            this.peaklist = peaklist;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * connects to the coordinator
+     * @param coordinator host:port of the coordinator
+     * @throws IOException
+     */
+    public XiWorker(String coordinator) throws IOException {
+        int colon = coordinator.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IOException("coordinator should be given as host:port - got " + coordinator);
+        }
+        m_socket = new Socket(coordinator.substring(0, colon), Integer.parseInt(coordinator.substring(colon + 1)));
+        m_in = new DataInputStream(new BufferedInputStream(m_socket.getInputStream()));
+        m_out = new DataOutputStream(new BufferedOutputStream(m_socket.getOutputStream()));
+        m_out.writeInt(XiCoordinator.MAGIC);
+        m_out.flush();
+        m_tabSeparated = new boolean[m_in.readInt()];
+        for (int i = 0; i < m_tabSeparated.length; i++) {
+            m_tabSeparated[i] = m_in.readBoolean();
+        }
+        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Connected to coordinator {0}", coordinator);
+    }
+
+    /**
+     * adds a CSV-writer for each output of the coordinator
+     * @param result
+     * @param config
+     * @param locale the locale for numbers (or null)
+     * @throws IOException
+     */
+    public void setupOutput(ResultMultiplexer result, RunConfig config, String locale) throws IOException {
+        for (int c = 0; c < m_tabSeparated.length; c++) {
+            ResultStream stream = new ResultStream(c);
+            CSVExportMatches csv = new CSVExportMatches(new BufferedOutputStream(stream, 64 * 1024), config, false);
+            if (m_tabSeparated[c]) {
+                csv.setDelimChar("\t");
+            }
+            if (locale != null && !csv.setLocale(locale)) {
+                throw new IOException("could not set the number locale: " + locale);
+            }
+            result.addResultWriter(new PartitionWriter(csv, stream));
+        }
+    }
+
+    /**
+     * @param spectra all spectra - only used for the information gathered
+     * about them
+     * @param peaklists the peak-lists - in the same order as the coordinator
+     * got them
+     * @param config
+     * @return an input, that only returns the spectra of the partitions, that
+     * the coordinator hands out to this worker
+     */
+    public AbstractSpectraAccess getInput(AbstractSpectraAccess spectra, ArrayList<String> peaklists, RunConfig config) {
+        return new PartitionAccess(spectra, peaklists, config);
+    }
+
+    /**
+     * @param search the search - has to be set before the search starts
+     */
+    public void setSearch(XiProcess search) {
+        m_search = search;
+        m_heartbeat = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                heartbeat();
+            }
+        }, "Heartbeat");
+        m_heartbeat.setDaemon(true);
+        m_heartbeat.start();
+    }
+
+    /**
+     * tells the coordinator regularly how many spectra are done - so it can
+     * tell a slow worker from a hanging one
+     */
+    private void heartbeat() {
+        while (m_error == null) {
+            try {
+                Thread.sleep(XiCoordinator.HEARTBEAT_INTERVAL * 1000L);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            try {
+                synchronized (m_out) {
+                    m_out.writeByte(XiCoordinator.HEARTBEAT);
+                    m_out.writeInt(m_spectraDone.get());
+                    m_out.flush();
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Lost the connection to the coordinator", ex);
+                m_error = ex;
+            }
+        }
+    }
+
+    /**
+     * tells the coordinator, that all results are written and waits for it to
+     * take them over
+     * @throws IOException if anything went wrong with the connection
+     */
+    public void finished() throws IOException {
+        try {
+            if (m_heartbeat != null) {
+                m_heartbeat.interrupt();
+                try {
+                    m_heartbeat.join();
+                } catch (InterruptedException ex) {
+                    Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+            if (m_error != null) {
+                throw m_error;
+            }
+            synchronized (m_out) {
+                m_out.writeByte(XiCoordinator.FINISHED);
+                m_out.flush();
+            }
+            // the coordinator closes the connection, after it took over the results
+            while (m_in.read() >= 0) {
+            }
+        } finally {
+            m_socket.close();
+        }
+    }
+
+    /**
+     * @return the next partition or null if none is left
+     */
+    private Partition nextPartition() throws IOException {
+        Partition p;
+        synchronized (m_out) {
+            m_out.writeByte(XiCoordinator.NEXT);
+            m_out.flush();
+            byte reply = m_in.readByte();
+            if (reply == XiCoordinator.DONE) {
+                return null;
+            }
+            if (reply != XiCoordinator.PARTITION) {
+                throw new IOException("unexpected reply from the coordinator: " + reply);
+            }
+            p = new Partition(m_in.readInt(), m_in.readInt(), m_in.readInt(), m_in.readInt());
+        }
+        synchronized (m_open) {
+            m_open.add(p);
+        }
+        return p;
+    }
+
+    /**
+     * @return the partition a spectrum (or a spectrum derived from it)
+     * belongs to or null if it is unknown
+     */
+    private Partition partitionOf(Spectra s) {
+        synchronized (m_open) {
+            Partition p = m_partitionOf.get(s.getOrigin());
+            return p == null ? unknownOrigin() : p;
+        }
+    }
+
+    /**
+     * for spectra, whose origin got lost in the filters. They come from the
+     * partition of the last spectrum handed out to the search or a later one.
+     * Taking the earlier one means the results might be duplicated, if the
+     * worker fails, but they are never lost.
+     * @return the partition to count the spectrum to
+     */
+    private Partition unknownOrigin() {
+        if (m_lastHandedOut != null && m_open.contains(m_lastHandedOut)) {
+            return m_lastHandedOut;
+        }
+        return m_open.peekFirst();
+    }
+
+    @Override
+    public StackedSpectraAccess getFilter() {
+        return new PartitionFilter();
+    }
+
+    @Override
+    public void beginOutput() {
+        // completed partitions are only reported after the spectra are done
+    }
+
+    @Override
+    public void done(Spectra s) {
+        ArrayList<Partition> completed = new ArrayList<Partition>(1);
+        m_spectraDone.incrementAndGet();
+        synchronized (m_open) {
+            Partition p = m_inFlight.remove(s);
+            if (p != null && --p.inFlight == 0 && p.passed) {
+                m_open.remove(p);
+                completed.add(p);
+            }
+        }
+        completed(completed);
+    }
+
+    /**
+     * marks the partitions before the given one as passed through the
+     * filters
+     * @param p the partition of the spectrum, that came out of the filters or
+     * null if the input is used up
+     * @param completed gets the partitions, that are completed by that
+     */
+    private void passed(Partition p, ArrayList<Partition> completed) {
+        Iterator<Partition> i = m_open.iterator();
+        while (i.hasNext()) {
+            Partition o = i.next();
+            if (o == p) {
+                break;
+            }
+            o.passed = true;
+            if (o.inFlight == 0) {
+                i.remove();
+                completed.add(o);
+            }
+        }
+    }
+
+    /**
+     * flushes the results and reports the partitions as completed
+     */
+    private void completed(ArrayList<Partition> completed) {
+        if (completed.isEmpty()) {
+            return;
+        }
+        try {
+            if (m_error != null) {
+                throw m_error;
+            }
+            // all results of the partitions were handed to the output
+            m_search.getOutput().flush();
+            if (m_error != null) {
+                throw m_error;
+            }
+            synchronized (m_out) {
+                for (Partition p : completed) {
+                    m_out.writeByte(XiCoordinator.COMPLETED);
+                    m_out.writeInt(p.id);
+                }
+                m_out.flush();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Lost the connection to the coordinator", ex);
+            m_error = ex;
+        }
+        synchronized (m_open) {
+            for (Partition p : completed) {
+                for (Spectra s : p.read) {
+                    m_partitionOf.remove(s);
+                }
+            }
+        }
+    }
+
+    /**
+     * sends everything written to it as results of one partition for one
+     * output
+     */
+    private class ResultStream extends OutputStream {
+        private final int m_channel;
+        /** the partition the results belong to - -1 for the header */
+        private int m_partition = -1;
+
+        ResultStream(int channel) {
+            m_channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                synchronized (m_out) {
+                    m_out.writeByte(XiCoordinator.RESULT);
+                    m_out.writeInt(m_partition);
+                    m_out.writeByte(m_channel);
+                    m_out.writeInt(len);
+                    m_out.write(b, off, len);
+                }
+            } catch (IOException ex) {
+                // the CSV-writer would swallow the exception
+                m_error = ex;
+                throw ex;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (m_out) {
+                m_out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the connection stays open for the other outputs
+            flush();
+        }
+    }
+
+    /**
+     * hands each match to the CSV-writer - after the CSV-writer wrote out
+     * everything buffered for a different partition
+     */
+    private class PartitionWriter extends AbstractResultWriter {
+        private final CSVExportMatches m_csv;
+        private final ResultStream m_stream;
+
+        PartitionWriter(CSVExportMatches csv, ResultStream stream) {
+            m_csv = csv;
+            m_stream = stream;
+        }
+
+        @Override
+        public synchronized void writeHeader() {
+            m_csv.writeHeader();
+        }
+
+        @Override
+        public synchronized void writeResult(MatchedXlinkedPeptide match) throws IOException {
+            Partition p = partitionOf(match.getSpectrum());
+            if (p == null) {
+                IOException ex = new IOException("result for a spectrum of no known partition");
+                m_error = ex;
+                throw ex;
+            }
+            if (p.id != m_stream.m_partition) {
+                m_csv.flush();
+                m_stream.m_partition = p.id;
+            }
+            m_csv.writeResult(match);
+        }
+
+        @Override
+        public int getResultCount() {
+            return m_csv.getResultCount();
+        }
+
+        @Override
+        public int getTopResultCount() {
+            return m_csv.getTopResultCount();
+        }
+
+        @Override
+        public void setFreeMatch(boolean doFree) {
+            m_csv.setFreeMatch(doFree);
+        }
+
+        @Override
+        public synchronized void flush() {
+            m_csv.flush();
+        }
+
+        @Override
+        public synchronized void finished() {
+            m_csv.finished();
+            super.finished();
+        }
+    }
+
+    /**
+     * the last filter before the search - keeps track of the spectra handed
+     * out to the search
+     */
+    private class PartitionFilter extends AbstractStackedSpectraAccess {
+        private Spectra m_current;
+
+        @Override
+        public boolean hasNext() {
+            synchronized (m_sync) {
+                if (m_InnerAcces.hasNext()) {
+                    return true;
+                }
+            }
+            // nothing left - so every partition passed the filters
+            ArrayList<Partition> completed = new ArrayList<Partition>();
+            synchronized (m_open) {
+                passed(null, completed);
+            }
+            completed(completed);
+            return false;
+        }
+
+        @Override
+        public Spectra next() {
+            ArrayList<Partition> completed = new ArrayList<Partition>(0);
+            try {
+                synchronized (m_sync) {
+                    Spectra s = m_InnerAcces.next();
+                    if (s == null) {
+                        return null;
+                    }
+                    synchronized (m_open) {
+                        Partition p = m_partitionOf.get(s.getOrigin());
+                        if (p == null) {
+                            // the filters did not keep the origin
+                            p = unknownOrigin();
+                            if (p != null) {
+                                m_partitionOf.put(s.getOrigin(), p);
+                                p.read.add(s.getOrigin());
+                            }
+                        } else if (m_open.contains(p)) {
+                            passed(p, completed);
+                        }
+                        if (p != null) {
+                            p.inFlight++;
+                            m_inFlight.put(s, p);
+                            m_lastHandedOut = p;
+                        }
+                    }
+                    m_current = s;
+                    return s;
+                }
+            } finally {
+                completed(completed);
+            }
+        }
+
+        @Override
+        public Spectra current() {
+            return m_current;
+        }
+
+        @Override
+        public boolean canRestart() {
+            return false;
+        }
+
+        @Override
+        public void restart() throws IOException {
+            throw new UnsupportedOperationException("The spectra of a worker can not be restarted");
+        }
+    }
+
+    /**
+     * returns the spectra of the partitions handed out by the coordinator.<br/>
+     * Each peak-list gets its own reader, that keeps its position. So spectra
+     * only get skipped within the peak-list of a partition and only that
+     * peak-list gets restarted, if a partition starts before the current
+     * position.
+     */
+    private class PartitionAccess extends AbstractSpectraAccess {
+        /** all spectra - for the information gathered about them */
+        private final AbstractSpectraAccess m_all;
+        private final ArrayList<String> m_peaklists;
+        private final RunConfig m_config;
+        /** a reader for each peak-list - opened, when first needed */
+        private final MSMListIterator[] m_readers;
+        /** number of spectra taken from each reader */
+        private final int[] m_positions;
+        /** the current partition */
+        private Partition m_partition;
+        private boolean m_done = false;
+        private Spectra m_current;
+        private int m_read = 0;
+
+        PartitionAccess(AbstractSpectraAccess all, ArrayList<String> peaklists, RunConfig config) {
+            m_all = all;
+            m_peaklists = peaklists;
+            m_config = config;
+            m_readers = new MSMListIterator[peaklists.size()];
+            m_positions = new int[peaklists.size()];
+        }
+
+        @Override
+        public synchronized boolean hasNext() {
+            while (m_partition == null || m_positions[m_partition.peaklist] >= m_partition.to || !m_readers[m_partition.peaklist].hasNext()) {
+                if (m_done) {
+                    return false;
+                }
+                try {
+                    Partition p = nextPartition();
+                    if (p == null) {
+                        m_done = true;
+                        return false;
+                    }
+                    seek(p);
+                    m_partition = p;
+                } catch (IOException | ParseException ex) {
+                    Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Could not read the next partition", ex);
+                    m_error = ex instanceof IOException ? (IOException) ex : new IOException(ex);
+                    m_done = true;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * positions the reader of the partition's peak-list at its first spectrum
+         */
+        private void seek(Partition p) throws IOException, ParseException {
+            if (p.peaklist >= m_readers.length) {
+                throw new IOException("the coordinator knows more peak-lists than this worker");
+            }
+            MSMListIterator reader = m_readers[p.peaklist];
+            if (reader == null) {
+                reader = XiCoordinator.openPeaklist(m_peaklists.get(p.peaklist), m_config);
+                m_readers[p.peaklist] = reader;
+            } else if (p.from < m_positions[p.peaklist]) {
+                reader.restart();
+                m_positions[p.peaklist] = 0;
+            }
+            while (m_positions[p.peaklist] < p.from && reader.hasNext()) {
+                reader.next();
+                m_positions[p.peaklist]++;
+            }
+        }
+
+        @Override
+        public synchronized Spectra next() {
+            if (!hasNext()) {
+                return null;
+            }
+            m_current = m_readers[m_partition.peaklist].next();
+            m_positions[m_partition.peaklist]++;
+            m_read++;
+            synchronized (m_open) {
+                m_partitionOf.put(m_current.getOrigin(), m_partition);
+                m_partition.read.add(m_current.getOrigin());
+            }
+            return m_current;
+        }
+
+        @Override
+        public Spectra current() {
+            return m_current;
+        }
+
+        @Override
+        public int countReadSpectra() {
+            return m_read;
+        }
+
+        @Override
+        public boolean canRestart() {
+            return false;
+        }
+
+        @Override
+        public void restart() throws IOException {
+            throw new UnsupportedOperationException("The spectra of a worker can not be restarted");
+        }
+
+        @Override
+        public synchronized void close() {
+            for (MSMListIterator r : m_readers) {
+                if (r != null) {
+                    r.close();
+                }
+            }
+            m_all.close();
+        }
+
+        @Override
+        public int getSpectraCount() {
+            return m_all.getSpectraCount();
+        }
+
+        @Override
+        public void gatherData() throws FileNotFoundException, IOException {
+            m_all.gatherData();
+        }
+
+        @Override
+        public double getMaxPrecursorMass() {
+            return m_all.getMaxPrecursorMass();
+        }
+    }
+}
@@ -17,13 +17,24 @@ package rappsilber.db;
 
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Provides a way to run some batchupdates in a second thread
  * especially usefull - for running large batch-update, that can be split
  * into several smaller ones.
  * E.g. preparing the next 1000 batch-elementsl while the first 1000 gets
- * send to the database
+ * send to the database.<br/>
+ * The batches are executed by a fixed pool of threads, that is shared between
+ * all instances.
  * @author Lutz Fischer <l.fischer@ed.ac.uk>
  */
 public class AsynchronousBatchExecute {
@@ -35,19 +46,32 @@ public class AsynchronousBatchExecute {
      * Should be max AvailableProcessors - 1
      */
     private static final int MAX_CONCURENT_EXECUTE = 2;
+
     /**
-     * How many updates are active
+     * the threads, that send data to the database
      */
-    private int m_CountConcurrentThread = 0;
-//    private Object m_threadNotification = new Object();
-
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(MAX_CONCURENT_EXECUTE, new ThreadFactory() {
+        private int count = 0;
+        public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "AsynchronousBatchExecute_" + (count++));
+            t.setDaemon(true);
+            return t;
+        }
+    });
 
-//    private Statement m_toRun;
+    /**
+     * limits how many batches of this instance can be queued up or running
+     */
+    private final Semaphore m_slots = new Semaphore(MAX_CONCURENT_EXECUTE);
 
+    /**
+     * the batches, that where not yet waited for
+     */
+    private final ArrayList<Future<?>> m_pending = new ArrayList<Future<?>>();
 
 
     /**
-     * the actual thread, that sends data to the database
+     * sends the batch to the database
      */
     private class runner implements Runnable{
         private Statement m_stm;
@@ -61,65 +85,69 @@ public class AsynchronousBatchExecute {
         }
 
         /**
-         * gets called by Thread and sends the actual data to the database
+         * gets called by the executor and sends the actual data to the database
          */
         public void run() {
             try {
                 m_stm.executeBatch();
                 m_stm.clearBatch();
             } catch (SQLException ex) {
-                throw new Error(ex);
-            }
-            decrementThreads();
-        }
-
-    }
-
-    /**
-     * syncronised function for keeping track of the used threads
-     * Also ensures that only the maximum number of threads are used.
-     * If all threads are used it waits until one finishes.
-     */
-    private synchronized void incrementThreads() {
-        if (m_CountConcurrentThread >= MAX_CONCURENT_EXECUTE) {
-            try {
-                wait();
-            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            } finally {
+                m_slots.release();
             }
         }
-        m_CountConcurrentThread ++;
-    }
 
-    /**
-     * syncronised function for keeping track of the used threads
-     */
-    private synchronized void decrementThreads() {
-        m_CountConcurrentThread --;
-        notify();
     }
 
     /**
-     * adds a new statement that can be executed asynchronysly
+     * adds a new statement that can be executed asynchronysly.
+     * If the maximum number of batches is already running this blocks until
+     * one of them is finished.
      * @param toRun
      */
     public void runBatchUpdate(Statement toRun) {
-        incrementThreads();
-        new Thread(new runner(toRun)).start();
+        m_slots.acquireUninterruptibly();
+        Future<?> f = EXECUTOR.submit(new runner(toRun));
+        synchronized (m_pending) {
+            m_pending.add(f);
+        }
     }
 
     /**
      * before anything can be done with the transfered data - we have to ensure
      * that all data got there in the first place.
-     * That is done here. It basicaly waits until all outstanding updatethreads
+     * That is done here. It basicaly waits until all outstanding updates
      * have finished their tascs and then returns
+     * @throws SQLException the first error that happened in any of the batches
      */
-    public void waitFinisheAllUpdates() {
-        while (m_CountConcurrentThread > 0) {
+    public void waitFinisheAllUpdates() throws SQLException {
+        ArrayList<Future<?>> pending;
+        synchronized (m_pending) {
+            pending = new ArrayList<Future<?>>(m_pending);
+            m_pending.clear();
+        }
+        SQLException error = null;
+        for (Future<?> f : pending) {
             try {
-                wait(2000);
+                f.get();
             } catch (InterruptedException ex) {
+                Logger.getLogger(AsynchronousBatchExecute.class.getName()).log(Level.WARNING, null, ex);
+            } catch (ExecutionException ex) {
+                Logger.getLogger(AsynchronousBatchExecute.class.getName()).log(Level.SEVERE, "Error executing batch", ex.getCause());
+                if (error == null) {
+                    Throwable c = ex.getCause();
+                    if (c != null && c.getCause() instanceof SQLException) {
+                        error = (SQLException) c.getCause();
+                    } else {
+                        error = new SQLException(c);
+                    }
+                }
             }
         }
+        if (error != null) {
+            throw error;
+        }
     }
 
 
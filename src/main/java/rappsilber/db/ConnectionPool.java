@@ -1,5 +1,5 @@
-/* 
- * 
+/*
+ *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
@@ -19,18 +19,98 @@ import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * A pool of database connections.<br/>
+ * Connections are handed out with {@link #getConnection()} and have to be
+ * given back via {@link #free(java.sql.Connection)}.
+ * <ul>
+ * <li>Waiting for a connection is bounded by {@link #setMaxWait(long)}</li>
+ * <li>connections that were idle for longer then
+ * {@link #setValidationIdleTime(long)} get validated before they are handed out</li>
+ * <li>each connection has a small cache of prepared statements
+ * (see {@link #prepareStatement(java.sql.Connection, java.lang.String)})</li>
+ * <li>if the last idle connection is handed out a new one is already created
+ * in the background - so the next request does not have to wait for it</li>
+ * </ul>
+ */
 public class ConnectionPool implements Runnable {
 
     private final static int DEFAULT_POOL_MINSIZE = 2;
     private final static int DEFAULT_POOL_MAXSIZE = 16;
     private final static boolean DEFAULT_POOL_WAIT_IF_BUSY = true;
+    /** how long to wait at most for a connection (ms) */
+    private final static long DEFAULT_MAX_WAIT = 10*60*1000;
+    /** connections idle for longer then this (ms) get validated before use */
+    private final static long DEFAULT_VALIDATION_IDLE = 30*1000;
+    /** how many prepared statements are cached per connection */
+    private final static int DEFAULT_STATEMENT_CACHE_SIZE = 50;
+    /** seconds to wait for a validation to succeed */
+    private final static int VALIDATION_TIMEOUT = 5;
 
     private String driver, url, username, password;
     private int maxConnections;
     private boolean waitIfBusy;
-    private Vector availableConnections, busyConnections;
+    /** idle connections - the last one added is the first one handed out */
+    private ArrayDeque<PooledConnection> availableConnections;
+    /** connections currently in use */
+    private IdentityHashMap<Connection,PooledConnection> busyConnections;
     private boolean connectionPending = false;
     private int minimumConnections = DEFAULT_POOL_MINSIZE;
+    private long maxWait = DEFAULT_MAX_WAIT;
+    private long validationIdleTime = DEFAULT_VALIDATION_IDLE;
+    private int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+    /** if null Connection.isValid() is used for validation */
+    private volatile String validationQuery = null;
+
+    // some statistics
+    private long countRequests = 0;
+    private long countWaited = 0;
+    private long waitTime = 0;
+    private long maxWaitTime = 0;
+    private long countTimeOuts = 0;
+    private long countValidationFailed = 0;
+    private long countStatementCacheHits = 0;
+    private long countStatementCacheMisses = 0;
+    private int maxActive = 0;
+
+    /**
+     * A connection with the information the pool needs for it
+     */
+    private class PooledConnection {
+        final Connection connection;
+        /** when was the connection given back the last time */
+        long lastUsed = System.currentTimeMillis();
+        /** prepared statements - the least recently used gets closed if the cache is full */
+        final LinkedHashMap<String,PreparedStatement> statements = new LinkedHashMap<String,PreparedStatement>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > statementCacheSize) {
+                    closeStatement(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        void close() {
+            for (PreparedStatement st : statements.values()) {
+                closeStatement(st);
+            }
+            statements.clear();
+            try {
+                if (!connection.isClosed()) {
+                    connection.close();
+                }
+            } catch (SQLException sqle) {
+                // Ignore errors; garbage collect anyhow
+            }
+        }
+    }
 
     public ConnectionPool(String driver, String url,
             String username, String password) throws SQLException {
@@ -53,72 +133,158 @@ public class ConnectionPool implements Runnable {
             initialConnections = maxConnections;
         }
         minimumConnections = initialConnections;
-        availableConnections = new Vector(initialConnections);
-        busyConnections = new Vector();
+        availableConnections = new ArrayDeque<PooledConnection>(maxConnections);
+        busyConnections = new IdentityHashMap<Connection, PooledConnection>(maxConnections);
         synchronized(this) {
             for (int i = 0; i < initialConnections; i++) {
-                availableConnections.addElement(makeNewConnection());
+                availableConnections.addLast(new PooledConnection(makeNewConnection()));
             }
         }
     }
 
-    public synchronized Connection getConnection()
+    /**
+     * Get a connection from the pool. Waits at most {@link #getMaxWait()}
+     * milliseconds for a connection to become available.
+     * @return a connection
+     * @throws SQLException if no connection could be got
+     */
+    public Connection getConnection()
             throws SQLException {
-        if (!availableConnections.isEmpty()) {
-            Connection existingConnection
-                    = (Connection) availableConnections.lastElement();
-            int lastIndex = availableConnections.size() - 1;
-            availableConnections.removeElementAt(lastIndex);
-            boolean connectionUsable = false;
-            if (!existingConnection.isClosed()) {
-                try {
-                    Statement st = existingConnection.createStatement();
-                    st.execute("SELECT 1+1;");
-                    st.close();
-                    connectionUsable = true;
-                } catch (Exception e) {
+        return getConnection(maxWait);
+    }
+
+    /**
+     * Get a connection from the pool
+     * @param maxWait how many milliseconds to wait at most (0 = no limit)
+     * @return a connection
+     * @throws SQLException if no connection could be got in time
+     */
+    public Connection getConnection(long maxWait)
+            throws SQLException {
+        long start = System.currentTimeMillis();
+        boolean waited = false;
+        synchronized (this) {
+            countRequests++;
+        }
+        while (true) {
+            PooledConnection existingConnection;
+            long idle;
+            synchronized (this) {
+                existingConnection = availableConnections.pollLast();
+                if (existingConnection == null) {
+                    // Three possible cases:
+                    // 1) You haven't reached maxConnections limit. So
+                    //    establish one in the background if there isn't
+                    //    already one pending, then wait for
+                    //    the next available connection (whether or not
+                    //    it was the newly established one).
+                    // 2) You reached maxConnections limit and waitIfBusy
+                    //    flag is false. Throw SQLException in such a case.
+                    // 3) You reached maxConnections limit and waitIfBusy
+                    //    flag is true. Then do the same thing as in second
+                    //    part of step 1: wait for next available connection.
+                    if ((totalConnections() < maxConnections)) {
+                        if (!connectionPending) {
+                            makeBackgroundConnection();
+                        }
+                    } else if (!waitIfBusy) {
+                        throw new SQLException("Connection limit reached");
+                    }
+                    // Wait for either a new connection to be established
+                    // (if you called makeBackgroundConnection) or for
+                    // an existing connection to be freed up.
+                    long remaining = 0;
+                    if (maxWait > 0) {
+                        remaining = maxWait - (System.currentTimeMillis() - start);
+                        if (remaining <= 0) {
+                            countTimeOuts++;
+                            throw new SQLException("No database connection available after " + maxWait + "ms - " + toString());
+                        }
+                    }
+                    waited = true;
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException ie) {
+                        throw new SQLException("Interrupted while waiting for a database connection", ie);
+                    }
+                    continue;
+                }
+                // counts as busy while it gets validated
+                busyConnections.put(existingConnection.connection, existingConnection);
+                idle = validationIdleTime;
+            }
+
+            // validation can take a while - so nobody else should wait for it
+            if (!isUsable(existingConnection, idle)) {
+                // If connection on available list is closed (e.g.,
+                // it timed out), then remove it and repeat the process 
+                // of obtaining a connection.
+                existingConnection.close();
+                synchronized (this) {
+                    countValidationFailed++;
+                    busyConnections.remove(existingConnection.connection);
+                    notifyAll();
                 }
+                continue;
             }
-            // If connection on available list is closed (e.g.,
-            // it timed out), then remove it from available list
-            // and repeat the process of obtaining a connection.
-            // Also wake up threads that were waiting for a
-            // connection because maxConnection limit was reached.
-            if (existingConnection.isClosed() || !connectionUsable) {
-                notifyAll(); // Freed up a spot for anybody waiting
-                return (getConnection());
-            } else {
-                busyConnections.addElement(existingConnection);
-                return (existingConnection);
+
+            synchronized (this) {
+                if (busyConnections.size() > maxActive) {
+                    maxActive = busyConnections.size();
+                }
+                // prefetch the next connection
+                if (availableConnections.isEmpty()
+                        && totalConnections() < maxConnections
+                        && !connectionPending) {
+                    makeBackgroundConnection();
+                }
+                if (waited) {
+                    long w = System.currentTimeMillis() - start;
+                    countWaited++;
+                    waitTime += w;
+                    if (w > maxWaitTime) {
+                        maxWaitTime = w;
+                    }
+                }
             }
-        } else {
+            return existingConnection.connection;
+        }
+    }
 
-            // Three possible cases:
-            // 1) You haven't reached maxConnections limit. So
-            //    establish one in the background if there isn't
-            //    already one pending, then wait for
-            //    the next available connection (whether or not
-            //    it was the newly established one).
-            // 2) You reached maxConnections limit and waitIfBusy
-            //    flag is false. Throw SQLException in such a case.
-            // 3) You reached maxConnections limit and waitIfBusy
-            //    flag is true. Then do the same thing as in second
-            //    part of step 1: wait for next available connection.
-            if ((totalConnections() < maxConnections)
-                    && !connectionPending) {
-                makeBackgroundConnection();
-            } else if (!waitIfBusy) {
-                throw new SQLException("Connection limit reached");
+    /**
+     * checks whether a connection can still be used.
+     * Only connections that have not been used for a while are actually
+     * tested against the database.
+     */
+    private boolean isUsable(PooledConnection pc, long validationIdleTime) {
+        try {
+            if (pc.connection.isClosed()) {
+                return false;
+            }
+            if (System.currentTimeMillis() - pc.lastUsed < validationIdleTime) {
+                return true;
+            }
+            if (validationQuery == null) {
+                try {
+                    return pc.connection.isValid(VALIDATION_TIMEOUT);
+                } catch (SQLFeatureNotSupportedException e) {
+                    validationQuery = "SELECT 1+1;";
+                } catch (AbstractMethodError e) {
+                    // pre JDBC 4 driver
+                    validationQuery = "SELECT 1+1;";
+                }
             }
-            // Wait for either a new connection to be established
-            // (if you called makeBackgroundConnection) or for
-            // an existing connection to be freed up.
+            Statement st = pc.connection.createStatement();
             try {
-                wait();
-            } catch (InterruptedException ie) {
+                st.setQueryTimeout(VALIDATION_TIMEOUT);
+                st.execute(validationQuery);
+            } finally {
+                st.close();
             }
-            // Someone freed up a connection, so try again.
-            return (getConnection());
+            return true;
+        } catch (Exception e) {
+            Logger.getLogger(ConnectionPool.class.getName()).log(Level.INFO, "Dropping unusable connection", e);
+            return false;
         }
     }
 
@@ -134,41 +300,47 @@ public class ConnectionPool implements Runnable {
         try {
             Thread connectThread = new Thread(this);
             connectThread.setName(connectThread.getName() + " - ConnectionPool:makeBackgroundConnection");
+            connectThread.setDaemon(true);
             connectThread.start();
         } catch (OutOfMemoryError oome) {
             // Give up on new connection
+            connectionPending = false;
         }
     }
 
     public void run() {
         int tries = 12;
-        while (tries >0) {
-            try {
-                do {
-                    Logger.getLogger(ConnectionPool.class.getName()).log(Level.INFO, "totalConnections:" + totalConnections() +"  minimumConnections:"+this.minimumConnections);
-                    Connection connection = makeNewConnection();
-                    synchronized (this) {
-                        availableConnections.addElement(connection);
-                        tries=0;
-                    }
-                } while (totalConnections() < this.minimumConnections) ;
-                synchronized (this) {
-                    connectionPending = false;
-                    notifyAll();
-                }
-            } catch (Exception e) { 
-                // SQLException or OutOfMemory
-                // Give up on new connection and wait for existing one
-                // to free up.
-                // we try several times and if it still fails fail silently.
-                tries--;
+        try {
+            while (tries >0) {
                 try {
-                    Thread.currentThread().sleep(5000);
-                } catch (InterruptedException ex) {
-                    Logger.getLogger(ConnectionPool.class.getName()).log(Level.SEVERE, null, ex);
+                    do {
+                        Logger.getLogger(ConnectionPool.class.getName()).log(Level.INFO, "totalConnections:" + totalConnections() +"  minimumConnections:"+this.minimumConnections);
+                        Connection connection = makeNewConnection();
+                        synchronized (this) {
+                            availableConnections.addLast(new PooledConnection(connection));
+                            tries=0;
+                            // let anybody waiting know right away
+                            notifyAll();
+                        }
+                    } while (totalConnections() < this.minimumConnections) ;
+                } catch (Exception e) {
+                    // SQLException or OutOfMemory
+                    // Give up on new connection and wait for existing one
+                    // to free up.
+                    // we try several times and if it still fails fail silently.
+                    tries--;
+                    try {
+                        Thread.sleep(5000);
+                    } catch (InterruptedException ex) {
+                        Logger.getLogger(ConnectionPool.class.getName()).log(Level.SEVERE, null, ex);
+                    }
                 }
             }
-            
+        } finally {
+            synchronized (this) {
+                connectionPending = false;
+                notifyAll();
+            }
         }
     }
 
@@ -201,7 +373,7 @@ public class ConnectionPool implements Runnable {
                 }
                 Logger.getLogger(ConnectionPool.class.getName()).log(Level.WARNING, "Error creating connection will retry", e);
                 try {
-                    Thread.currentThread().sleep((10-timeOut)*10000);
+                    Thread.sleep((10-timeOut)*10000);
                 } catch (InterruptedException ex) {
                     Logger.getLogger(ConnectionPool.class.getName()).log(Level.SEVERE, null, ex);
                 }
@@ -209,11 +381,69 @@ public class ConnectionPool implements Runnable {
         }
     }
 
-  
+    /**
+     * Returns a prepared statement for the given connection. Statements are
+     * cached per connection - so the same sql on the same connection returns
+     * the same statement (with cleared parameters).<br/>
+     * The returned statement should not be closed by the caller - it gets
+     * closed together with the connection or when it drops out of the cache.
+     * @param connection a connection got from this pool
+     * @param sql
+     * @return
+     * @throws SQLException
+     */
+    public PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException {
+        PooledConnection pc;
+        synchronized (this) {
+            pc = busyConnections.get(connection);
+        }
+        // not one of ours - so nothing to cache
+        if (pc == null || statementCacheSize <= 0) {
+            return connection.prepareStatement(sql);
+        }
+        // a busy connection is only used by one thread at a time
+        synchronized (pc) {
+            PreparedStatement st = pc.statements.get(sql);
+            if (st != null && !st.isClosed()) {
+                synchronized (this) {
+                    countStatementCacheHits++;
+                }
+                st.clearParameters();
+                return st;
+            }
+            synchronized (this) {
+                countStatementCacheMisses++;
+            }
+            st = connection.prepareStatement(sql);
+            pc.statements.put(sql, st);
+            return st;
+        }
+    }
+
+    private static void closeStatement(Statement st) {
+        try {
+            st.close();
+        } catch (SQLException ex) {
+            // nothing we can do about it
+        }
+    }
 
     public synchronized void free(Connection connection) {
-        busyConnections.removeElement(connection);
-        availableConnections.addElement(connection);
+        PooledConnection pc = busyConnections.remove(connection);
+        if (pc == null) {
+            pc = new PooledConnection(connection);
+        }
+        boolean closed = true;
+        try {
+            closed = connection.isClosed();
+        } catch (SQLException ex) {
+        }
+        if (closed) {
+            pc.close();
+        } else {
+            pc.lastUsed = System.currentTimeMillis();
+            availableConnections.addLast(pc);
+        }
         // Wake up threads that are waiting for a connection
         notifyAll();
     }
@@ -223,6 +453,20 @@ public class ConnectionPool implements Runnable {
                 + busyConnections.size());
     }
 
+    /**
+     * @return the number of connections currently in use
+     */
+    public synchronized int getActiveConnections() {
+        return busyConnections.size();
+    }
+
+    /**
+     * @return the number of idle connections
+     */
+    public synchronized int getIdleConnections() {
+        return availableConnections.size();
+    }
+
     /**
      * Close all the connections. Use with caution: be sure no connections are
      * in use before calling. Note that you are not <I>required</I> to call this
@@ -232,25 +476,101 @@ public class ConnectionPool implements Runnable {
      */
     public synchronized void closeAllConnections() {
         closeConnections(availableConnections);
-        availableConnections = new Vector();
-        closeConnections(busyConnections);
-        busyConnections = new Vector();
+        availableConnections.clear();
+        closeConnections(busyConnections.values());
+        busyConnections.clear();
     }
 
-    private void closeConnections(Vector connections) {
-        try {
-            for (int i = 0; i < connections.size(); i++) {
-                Connection connection
-                        = (Connection) connections.elementAt(i);
-                if (!connection.isClosed()) {
-                    connection.close();
-                }
-            }
-        } catch (SQLException sqle) {
-            // Ignore errors; garbage collect anyhow
+    private void closeConnections(Collection<PooledConnection> connections) {
+        for (PooledConnection connection : connections) {
+            connection.close();
         }
     }
 
+    /**
+     * @return how long to wait at most for a connection in ms (0 = no limit)
+     */
+    public synchronized long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * @param maxWait how long to wait at most for a connection in ms (0 = no limit)
+     */
+    public synchronized void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * @return connections that were idle for longer then this (ms) get
+     * validated before they are handed out
+     */
+    public synchronized long getValidationIdleTime() {
+        return validationIdleTime;
+    }
+
+    /**
+     * @param validationIdleTime connections that were idle for longer then
+     * this (ms) get validated before they are handed out
+     */
+    public synchronized void setValidationIdleTime(long validationIdleTime) {
+        this.validationIdleTime = validationIdleTime;
+    }
+
+    /**
+     * @param validationQuery query used to validate connections.
+     * If null Connection.isValid() is used.
+     */
+    public synchronized void setValidationQuery(String validationQuery) {
+        this.validationQuery = validationQuery;
+    }
+
+    /**
+     * @return how many prepared statements are cached per connection
+     */
+    public synchronized int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * @param statementCacheSize how many prepared statements are cached per
+     * connection (0 = no caching)
+     */
+    public synchronized void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    /**
+     * @return average time (ms) a request had to wait for a connection -
+     * only counting requests that had to wait
+     */
+    public synchronized double getAverageWaitTime() {
+        return countWaited == 0 ? 0 : waitTime / (double) countWaited;
+    }
+
+    /**
+     * @return the longest time (ms) a request had to wait for a connection
+     */
+    public synchronized long getLongestWaitTime() {
+        return maxWaitTime;
+    }
+
+    /**
+     * @return some statistics about the usage of the pool
+     */
+    public synchronized String getStatistics() {
+        return "requests=" + countRequests
+                + ", waited=" + countWaited
+                + ", avg wait (ms)=" + getAverageWaitTime()
+                + ", max wait (ms)=" + maxWaitTime
+                + ", timeouts=" + countTimeOuts
+                + ", active=" + busyConnections.size()
+                + ", max active=" + maxActive
+                + ", failed validations=" + countValidationFailed
+                + ", statement cache hits=" + countStatementCacheHits
+                + ", statement cache misses=" + countStatementCacheMisses;
+    }
+
     public synchronized String toString() {
         String info
                 = "ConnectionPool(" + url + "," + username + ")"
@@ -18,6 +18,7 @@ package rappsilber.ms.dataAccess;
 import java.io.File;
 import java.io.IOException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import rappsilber.config.RunConfig;
@@ -36,26 +37,32 @@ public class DBSequenceList extends SequenceList {
     public DBSequenceList(ConnectionPool dbCon, int SearchID, String basedir, RunConfig config) throws SQLException, IOException {
         super(config);
         Connection con = dbCon.getConnection();
+        try {
+            PreparedStatement st = dbCon.prepareStatement(con,
+                    "SELECT file_path || '/' || file_name, decoy_file, id FROM sequence_file sdb " +
+                    "INNER JOIN search_sequencedb ssdb ON ssdb.seqdb_id = sdb.id  " +
+                    "WHERE ssdb.search_id = ?");
+            st.setInt(1, SearchID);
+            ResultSet rs = st.executeQuery();
 
-        ResultSet rs = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY).executeQuery(
-                "SELECT file_path || '/' || file_name, decoy_file, id FROM sequence_file sdb " +
-                "INNER JOIN search_sequencedb ssdb ON ssdb.seqdb_id = sdb.id  " +
-                "WHERE ssdb.search_id = " + SearchID);
+            while (rs.next()) {
+                FastaFile source = new FastaFile(basedir + rs.getString(1));
+                source.setId(rs.getLong(3));
 
-        while (rs.next()) {
-            FastaFile source = new FastaFile(basedir + rs.getString(1));
-            source.setId(rs.getLong(3));
-            
-            if (rs.getBoolean(2)) {
-                addFasta(new File(source.getPath()), DECOY_GENERATION.ISDECOY);
-            } else
-                addFasta(new File(basedir + rs.getString(1)));
+                if (rs.getBoolean(2)) {
+                    addFasta(new File(source.getPath()), DECOY_GENERATION.ISDECOY);
+                } else
+                    addFasta(new File(basedir + rs.getString(1)));
+
+                for (Sequence s : this) {
+                    if (s.getSource() == null || s.getSource().getId() == null)
+                        s.setSource(source);
+                }
 
-            for (Sequence s : this) {
-                if (s.getSource() == null || s.getSource().getId() == null)
-                    s.setSource(source);
             }
-            
+            rs.close();
+        } finally {
+            dbCon.free(con);
         }
     }
 }
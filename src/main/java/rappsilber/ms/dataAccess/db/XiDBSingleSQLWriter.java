@@ -27,6 +27,7 @@ import rappsilber.config.RunConfig;
 import rappsilber.db.ConnectionPool;
 import rappsilber.ms.dataAccess.output.AbstractResultWriter;
 import rappsilber.ms.dataAccess.output.ResultWriter;
+import rappsilber.ms.score.ScoreRegistry;
 import rappsilber.ms.sequence.Peptide;
 import rappsilber.ms.sequence.Sequence;
 import rappsilber.ms.sequence.ions.Fragment;
@@ -453,7 +454,7 @@ public class XiDBSingleSQLWriter extends AbstractResultWriter {
         savePeakclusters(matched_spectrum.getIsotopeClusters(), result_ids);
 
         // 5. Save Socres
-        saveScoreInformation(match.getScores(), spectrum_match_id, result_ids);
+        saveScoreInformation(match, spectrum_match_id, result_ids);
 
 //        System.out.println(" cluster  writen : " + result_ids.i_peak_cluster_id );
 
@@ -778,10 +779,15 @@ public class XiDBSingleSQLWriter extends AbstractResultWriter {
     }
 
 
-    private void saveScoreInformation(HashMap<String, Double> scores, long spec_match_id, IDs result_ids) {
+    private void saveScoreInformation(MatchedXlinkedPeptide match, long spec_match_id, IDs result_ids) {
         try {
             // First check if we've encouneterd the first score we come accross in the spectra
-            for(String name: scores.keySet()){
+            for (int slot = 0; slot < match.getScoreSlots(); slot++) {
+                if (!match.hasScore(slot)) {
+                    continue;
+                }
+                String name = ScoreRegistry.name(slot);
+                double score = match.getScore(slot);
                int score_id = -1;
                int display_order = -1;
                String description = "";
@@ -826,13 +832,13 @@ public class XiDBSingleSQLWriter extends AbstractResultWriter {
 
 
                String insert_score = "INSERT INTO spectrum_match_score(spectrum_match_id, score_id, score) VALUES("
-                       + spec_match_id + "," + score_id + "," + scores.get(name) + ")";
+                       + spec_match_id + "," + score_id + "," + score + ")";
 
 //               m_spectrum_match_score.setLong(1, spec_match_id);
 //               m_spectrum_match_score.setInt(2, score_id);
 //
 //
-//               m_spectrum_match_score.setDouble(3, scores.get(name));
+//               m_spectrum_match_score.setDouble(3, score);
 
 
 //               m_spectrum_match_score.executeUpdate();
@@ -33,6 +33,7 @@ import rappsilber.config.RunConfig;
 import rappsilber.db.ConnectionPool;
 import rappsilber.ms.dataAccess.output.AbstractResultWriter;
 import rappsilber.ms.dataAccess.output.ResultWriter;
+import rappsilber.ms.score.ScoreRegistry;
 import rappsilber.ms.sequence.Peptide;
 import rappsilber.ms.sequence.Sequence;
 import rappsilber.ms.sequence.ions.Fragment;
@@ -575,7 +576,7 @@ public class XiDBWriter extends AbstractResultWriter {
 
         // 5. Save Socres
 //        mon7 = MonitorFactory.start("saveScoreInformation()");
-        saveScoreInformation(match.getScores(), spectrum_match_id, result_ids);
+        saveScoreInformation(match, spectrum_match_id, result_ids);
 //        mon7.stop();
         //System.out.println("saveScoreInformation(): " +  mon7.getLastValue() + mon7.getUnits());
 
@@ -892,10 +893,15 @@ public class XiDBWriter extends AbstractResultWriter {
     }
 
 
-    private void saveScoreInformation(HashMap<String, Double> scores, long spec_match_id, IDs result_ids) {
+    private void saveScoreInformation(MatchedXlinkedPeptide match, long spec_match_id, IDs result_ids) {
         try {
             // First check if we've encouneterd the first score we come accross in the spectra
-            for(String name: scores.keySet()){
+            for (int slot = 0; slot < match.getScoreSlots(); slot++) {
+                if (!match.hasScore(slot)) {
+                    continue;
+                }
+                String name = ScoreRegistry.name(slot);
+                double score = match.getScore(slot);
                int score_id = -1;
                int display_order = -1;
                String description = "";
@@ -941,7 +947,7 @@ public class XiDBWriter extends AbstractResultWriter {
                m_spectrum_match_score.setInt(2, score_id);
 
                
-               m_spectrum_match_score.setString(3, String.valueOf(scores.get(name)));
+               m_spectrum_match_score.setString(3, String.valueOf(score));
   
 
 //               m_spectrum_match_score.executeUpdate();
@@ -35,6 +35,7 @@ import rappsilber.config.RunConfig;
 import rappsilber.db.ConnectionPool;
 import rappsilber.ms.dataAccess.output.AbstractResultWriter;
 import rappsilber.ms.dataAccess.output.ResultWriter;
+import rappsilber.ms.score.ScoreRegistry;
 import rappsilber.ms.sequence.Peptide;
 import rappsilber.ms.sequence.Sequence;
 import rappsilber.ms.sequence.ions.Fragment;
@@ -975,7 +976,7 @@ public class XiDBWriterMultiInsertSql extends AbstractResultWriter {
 
         // 5. Save Socres
 //        mon7 = MonitorFactory.start("saveScoreInformation()");
-        saveScoreInformation(match.getScores(), spectrum_match_id, result_ids);
+        saveScoreInformation(match, spectrum_match_id, result_ids);
 //        mon7.stop();
 
 //        System.out.println(" cluster  writen : " + result_ids.i_peak_cluster_id );
@@ -1306,10 +1307,15 @@ public class XiDBWriterMultiInsertSql extends AbstractResultWriter {
     }
 
 
-    private void saveScoreInformation(HashMap<String, Double> scores, long spec_match_id, IDs result_ids) {
+    private void saveScoreInformation(MatchedXlinkedPeptide match, long spec_match_id, IDs result_ids) {
         try {
             // First check if we've encouneterd the first score we come accross in the spectra
-            for(String name: scores.keySet()){
+            for (int slot = 0; slot < match.getScoreSlots(); slot++) {
+                if (!match.hasScore(slot)) {
+                    continue;
+                }
+                String name = ScoreRegistry.name(slot);
+                double score = match.getScore(slot);
                int score_id = -1;
                int display_order = -1;
                String description = "";
@@ -1352,12 +1358,12 @@ public class XiDBWriterMultiInsertSql extends AbstractResultWriter {
                 // spectrum_match_id | bigint  | not null
                 // score_id          | integer | not null
                 // score             | numeric |
-               addSpectrumMatchScore(spec_match_id, score_id, scores.get(name));
+               addSpectrumMatchScore(spec_match_id, score_id, score);
 //               m_spectrum_match_score.setLong(1, spec_match_id);
 //               m_spectrum_match_score.setInt(2, score_id);
 //
 //
-//               m_spectrum_match_score.setString(3, String.valueOf(scores.get(name)));
+//               m_spectrum_match_score.setString(3, String.valueOf(score));
 //
 //
 ////               m_spectrum_match_score.executeUpdate();
@@ -0,0 +1,33 @@
+/* 
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.dataAccess.filter.fastafilter;
+
+import rappsilber.ms.sequence.fasta.FastaHeader;
+
+/**
+ * A {@link FastaFilter} that can reject sequences based on the FASTA-header
+ * alone. So while reading a FASTA-file, the sequence of a rejected entry
+ * does not need to be parsed at all.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public interface FastaHeaderFilter extends FastaFilter {
+
+    /**
+     * @param header
+     * @return false if no sequence with this header can pass the filter
+     */
+    boolean passesHeader(FastaHeader header);
+}
@@ -19,12 +19,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import rappsilber.ms.sequence.Sequence;
+import rappsilber.ms.sequence.fasta.FastaHeader;
 
 /**
  *
  * @author Lutz Fischer <l.fischer@ed.ac.uk>
  */
-public class FilterByID implements FastaFilter {
+public class FilterByID implements FastaHeaderFilter {
 
     HashSet<String> m_accessions = new HashSet<String>();
 
@@ -77,6 +78,10 @@ public class FilterByID implements FastaFilter {
         }
     }
 
+    public boolean passesHeader(FastaHeader header) {
+        return m_accessions.contains(header.getAccession()) == (m_mode == INCLUDE);
+    }
+
     public Collection<Sequence> getSequences(Collection<Sequence> s) {
         ArrayList<Sequence> ret = new ArrayList<Sequence>(s.size());
         if (m_mode == INCLUDE) {
@@ -18,12 +18,13 @@ package rappsilber.ms.dataAccess.filter.fastafilter;
 import java.util.ArrayList;
 import java.util.Collection;
 import rappsilber.ms.sequence.Sequence;
+import rappsilber.ms.sequence.fasta.FastaHeader;
 
 /**
  *
  * @author Lutz Fischer <l.fischer@ed.ac.uk>
  */
-public class MultiFilterAnd implements FastaFilter{
+public class MultiFilterAnd implements FastaHeaderFilter{
 
     ArrayList<FastaFilter> m_filters = new ArrayList<FastaFilter>();
     
@@ -43,6 +44,13 @@ public class MultiFilterAnd implements FastaFilter{
         return s;
     }
     
+    public boolean passesHeader(FastaHeader header) {
+        for (FastaFilter ff  : m_filters)
+            if (ff instanceof FastaHeaderFilter && !((FastaHeaderFilter) ff).passesHeader(header))
+                return false;
+        return true;
+    }
+
     public void addFilter(FastaFilter ff) {
         m_filters.add(ff);
     }
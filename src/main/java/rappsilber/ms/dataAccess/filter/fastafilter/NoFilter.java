@@ -17,12 +17,13 @@ package rappsilber.ms.dataAccess.filter.fastafilter;
 
 import java.util.Collection;
 import rappsilber.ms.sequence.Sequence;
+import rappsilber.ms.sequence.fasta.FastaHeader;
 
 /**
  *
  * @author Lutz Fischer <l.fischer@ed.ac.uk>
  */
-public class NoFilter implements FastaFilter{
+public class NoFilter implements FastaHeaderFilter{
 
     public Sequence[] getSequences(Sequence s) {
         return new Sequence[]{s};
@@ -31,5 +32,9 @@ public class NoFilter implements FastaFilter{
     public Collection<Sequence> getSequences(Collection<Sequence> s) {
         return s;
     }
+
+    public boolean passesHeader(FastaHeader header) {
+        return true;
+    }
     
 }
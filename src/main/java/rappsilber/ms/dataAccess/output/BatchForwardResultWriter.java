@@ -0,0 +1,120 @@
+/* 
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.dataAccess.output;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
+
+/**
+ * Collects results in a list and hands them over to the inner writer as one
+ * batch, when {@link #selfFlush()} is called (e.g. after all results for a
+ * spectrum where written).<br/>
+ * This is meant to be used by a single thread - e.g. each search thread can
+ * have its own instance, that forwards to one shared {@link BufferedResultWriter}.
+ * If the inner writer is not a {@link BatchResultWriter} the results are
+ * written one by one while holding a lock on the inner writer.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class BatchForwardResultWriter extends AbstractStackedResultWriter {
+    private ArrayList<MatchedXlinkedPeptide> m_batch;
+    private int m_batchSize;
+    private int m_countMatches = 0;
+    private int m_countTopMatches = 0;
+
+    /**
+     * @param innerWriter where to forward the results to
+     * @param batchSize if that many results are collected they get forwarded
+     * even without calling {@link #selfFlush()}
+     */
+    public BatchForwardResultWriter(ResultWriter innerWriter, int batchSize) {
+        setInnerWriter(innerWriter);
+        m_batchSize = batchSize;
+        m_batch = new ArrayList<MatchedXlinkedPeptide>(batchSize);
+    }
+
+    @Override
+    public void writeResult(MatchedXlinkedPeptide match) throws IOException {
+        m_batch.add(match);
+        m_countMatches++;
+        if (match.getMatchrank() == 1)
+            m_countTopMatches++;
+        if (m_batch.size() >= m_batchSize)
+            forward();
+    }
+
+    /**
+     * hand over all collected results to the inner writer
+     */
+    private void forward() throws IOException {
+        if (m_batch.isEmpty())
+            return;
+        ResultWriter inner = getInnerWriter();
+        if (inner instanceof BatchResultWriter) {
+            ((BatchResultWriter) inner).batchWriteResult(m_batch);
+        } else {
+            synchronized (inner) {
+                for (MatchedXlinkedPeptide match : m_batch)
+                    inner.writeResult(match);
+            }
+        }
+        m_batch.clear();
+    }
+
+    /**
+     * forward the collected results but don't flush the inner writer
+     */
+    public void selfFlush() throws IOException {
+        forward();
+    }
+
+    @Override
+    public void flush() {
+        try {
+            forward();
+        } catch (IOException ex) {
+            Logger.getLogger(BatchForwardResultWriter.class.getName()).log(Level.SEVERE, "Error while forwarding results", ex);
+        }
+        super.flush();
+    }
+
+    @Override
+    public int getResultCount() {
+        return m_countMatches;
+    }
+
+    @Override
+    public int getTopResultCount() {
+        return m_countTopMatches;
+    }
+
+    @Override
+    public void selfFinished() {
+        try {
+            forward();
+        } catch (IOException ex) {
+            Logger.getLogger(BatchForwardResultWriter.class.getName()).log(Level.SEVERE, "Error while forwarding results", ex);
+        }
+    }
+
+    @Override
+    public boolean selfWaitForFinished() {
+        return true;
+    }
+
+}
@@ -0,0 +1,194 @@
+/* 
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.dataAccess.output;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Converts the binary stream written by {@link BinaryPeakListWriter} into the
+ * text format written by {@link PeakListWriter}.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class BinaryPeakListConverter {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ArrayList<String> m_strings = new ArrayList<String>();
+    private DataInputStream m_in;
+    private PeakListWriter m_out;
+
+    public BinaryPeakListConverter(InputStream in, PeakListWriter out) {
+        m_in = new DataInputStream(new BufferedInputStream(in, 1024*1024));
+        m_out = out;
+    }
+
+    private String string(int id) {
+        return id < 0 ? "" : m_strings.get(id);
+    }
+
+    /**
+     * reads the next record that is not a string-table entry or reset
+     */
+    private byte nextRecord() throws IOException {
+        byte rec = m_in.readByte();
+        while (rec == BinaryPeakListWriter.REC_STRING || rec == BinaryPeakListWriter.REC_RESET) {
+            if (rec == BinaryPeakListWriter.REC_RESET) {
+                m_strings.clear();
+            } else {
+                int id = m_in.readInt();
+                byte[] b = new byte[m_in.readInt()];
+                m_in.readFully(b);
+                while (m_strings.size() <= id)
+                    m_strings.add(null);
+                m_strings.set(id, new String(b, UTF8));
+            }
+            rec = m_in.readByte();
+        }
+        return rec;
+    }
+
+    /**
+     * converts the whole stream
+     * @return number of converted matches
+     * @throws IOException
+     */
+    public int convert() throws IOException {
+        if (m_in.readInt() != BinaryPeakListWriter.MAGIC)
+            throw new IOException("Not a binary peak list");
+        int version = m_in.readInt();
+        // version 1 is the same format without resets of the string table
+        if (version < 1 || version > BinaryPeakListWriter.VERSION)
+            throw new IOException("Unsupported version of binary peak list: " + version);
+
+        m_out.writeHeader();
+        int matches = 0;
+        while (true) {
+            byte rec;
+            try {
+                rec = nextRecord();
+            } catch (EOFException eof) {
+                break;
+            }
+            if (rec != BinaryPeakListWriter.REC_MATCH)
+                throw new IOException("Unexpected record type " + rec + " after match " + matches);
+            convertMatch();
+            matches++;
+        }
+        m_out.flush();
+        return matches;
+    }
+
+    private void convertMatch() throws IOException {
+        String run = string(m_in.readInt());
+        int scan = m_in.readInt();
+        double score = m_in.readDouble();
+        String crosslinker = string(m_in.readInt());
+        String fasta1 = string(m_in.readInt());
+        String peptide1 = string(m_in.readInt());
+        String fasta2 = string(m_in.readInt());
+        int pep2ID = m_in.readInt();
+        String peptide2 = string(pep2ID);
+        int linkSite1 = m_in.readInt();
+        int linkSite2 = m_in.readInt();
+        double maxIntensity = m_in.readDouble();
+        int peaks = m_in.readInt();
+        String prefix = m_out.matchPrefix(run, scan, score, crosslinker, fasta1, peptide1, fasta2, peptide2);
+
+        for (int p = 0; p < peaks; p++) {
+            byte rec = nextRecord();
+            if (rec != BinaryPeakListWriter.REC_PEAK)
+                throw new IOException("Expected peak record but found " + rec);
+            double mz = m_in.readDouble();
+            double intensity = m_in.readDouble();
+            byte peakFlags = m_in.readByte();
+            int assignments = m_in.readInt();
+            double relative = intensity / maxIntensity;
+            if (assignments == 0) {
+                m_out.writeUnmatchedPeak(prefix, mz,
+                        (peakFlags & BinaryPeakListWriter.PEAK_MONOISOTOPIC) != 0,
+                        (peakFlags & BinaryPeakListWriter.PEAK_ISOTOPE) != 0,
+                        intensity, relative);
+            }
+            PeakListWriter.MatchedPeak mp = new PeakListWriter.MatchedPeak();
+            mp.crosslinked = pep2ID >= 0;
+            mp.linkSite1 = linkSite1;
+            mp.linkSite2 = linkSite2;
+            mp.expMZ = mz;
+            mp.monoisotopic = (peakFlags & BinaryPeakListWriter.PEAK_MONOISOTOPIC) != 0;
+            mp.virtual = (peakFlags & BinaryPeakListWriter.PEAK_VIRTUAL) != 0;
+            mp.intensity = intensity;
+            mp.relativeIntensity = relative;
+            for (int a = 0; a < assignments; a++) {
+                mp.matchedPeptide = string(m_in.readInt());
+                mp.fragmentName = string(m_in.readInt());
+                mp.fragment = string(m_in.readInt());
+                mp.neutralMass = m_in.readDouble();
+                mp.charge = m_in.readByte();
+                mp.calcMZ = m_in.readDouble();
+                byte flags = m_in.readByte();
+                mp.alpha = (flags & BinaryPeakListWriter.FRAG_ALPHA) != 0;
+                mp.linear = (flags & BinaryPeakListWriter.FRAG_LINEAR) != 0;
+                mp.missingMono = (flags & BinaryPeakListWriter.FRAG_MISSING_MONO) != 0;
+                mp.loss = (flags & BinaryPeakListWriter.FRAG_LOSS) != 0;
+                mp.primary = (flags & BinaryPeakListWriter.FRAG_PRIMARY) != 0;
+                mp.basePeakMZ = mp.loss ? m_in.readDouble() : Double.NaN;
+                mp.firstForPeak = a == 0;
+                m_out.writeMatchedPeak(prefix, mp);
+            }
+        }
+        if (nextRecord() != BinaryPeakListWriter.REC_END)
+            throw new IOException("Match not terminated");
+        m_out.writeMatchEnd();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("java -cp xiSEARCH.jar " + BinaryPeakListConverter.class.getName() + " binaryfile [textfile] [locale]\n"
+                    + "converts annotated peaks written with --peaksoutbin into the format written by --peaksout\n"
+                    + "files ending in .gz are read/written compressed\n"
+                    + "if no textfile is given (or it is -) the result is written to stdout");
+            System.exit(1);
+        }
+        InputStream in = new FileInputStream(args[0]);
+        if (args[0].endsWith(".gz"))
+            in = new GZIPInputStream(in);
+        OutputStream out = System.out;
+        if (args.length > 1 && !args[1].contentEquals("-")) {
+            out = new FileOutputStream(args[1]);
+            if (args[1].endsWith(".gz"))
+                out = new GZIPOutputStream(out);
+        }
+        PeakListWriter plw = new PeakListWriter(out);
+        if (!plw.setLocale(args.length > 2 ? args[2] : "en")) {
+            System.err.println("unknown locale " + args[2]);
+            System.exit(1);
+        }
+        int matches = new BinaryPeakListConverter(in, plw).convert();
+        plw.finished();
+        in.close();
+        System.err.println(matches + " matches converted");
+    }
+}
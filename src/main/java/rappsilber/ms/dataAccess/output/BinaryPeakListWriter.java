@@ -0,0 +1,285 @@
+/* 
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.dataAccess.output;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rappsilber.ms.sequence.Peptide;
+import rappsilber.ms.sequence.ions.Fragment;
+import rappsilber.ms.sequence.ions.loss.Loss;
+import rappsilber.ms.spectra.Spectra;
+import rappsilber.ms.spectra.SpectraPeak;
+import rappsilber.ms.spectra.annotation.SpectraPeakAnnotation;
+import rappsilber.ms.spectra.annotation.SpectraPeakMatchedFragment;
+import rappsilber.ms.spectra.match.MatchedBaseFragment;
+import rappsilber.ms.spectra.match.MatchedFragmentCollection;
+import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
+
+/**
+ * Writes the annotated peaks of each match as a compact binary stream.<br/>
+ * Instead of rendering a text line for each peak-fragment assignment (as the
+ * {@link PeakListWriter} does) only the raw values are written. All strings
+ * (runs, peptides, fragment names ...) go into a string table that is written
+ * inline the first time a string is used and afterwards only referenced by id.
+ * The table is bounded - once it holds {@link #MAX_STRINGS} strings it gets
+ * reset before the next match and strings are written again when next used.
+ * <br/>
+ * {@link BinaryPeakListConverter} converts the stream into the text format
+ * written by the {@link PeakListWriter}.
+ * <p>Format (all numbers big-endian as written by {@link DataOutputStream}):
+ * <pre>
+ * header:   int MAGIC, int VERSION
+ * string:   byte REC_STRING, int id, int length, byte[length] utf-8
+ * reset:    byte REC_RESET (all string ids before are void)
+ * match:    byte REC_MATCH, int run, int scan, double score, int crosslinker,
+ *           int fastaHeader1, int peptide1, int fastaHeader2, int peptide2,
+ *           int linkSite1, int linkSite2, double maxIntensity, int peaks
+ * peak:     byte REC_PEAK, double mz, double intensity, byte flags, int assignments
+ * assigned: int matchedPeptide, int fragmentName, int fragment,
+ *           double neutralMass, byte charge, double calcMZ, byte flags
+ *           [, double basePeakMZ if the fragment is a loss]
+ * end:      byte REC_END
+ * </pre>
+ * string ids of -1 denote an empty value.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class BinaryPeakListWriter extends AbstractResultWriter {
+    public static final int MAGIC = 0x5869504b; // "XiPK"
+    public static final int VERSION = 2;
+    /** the string table gets reset when it reaches this size */
+    public static final int MAX_STRINGS = 100000;
+
+    public static final byte REC_END = 0;
+    public static final byte REC_STRING = 1;
+    public static final byte REC_MATCH = 2;
+    public static final byte REC_PEAK = 3;
+    public static final byte REC_RESET = 4;
+
+    // peak flags
+    public static final byte PEAK_MONOISOTOPIC = 1;
+    public static final byte PEAK_ISOTOPE = 2;
+    public static final byte PEAK_VIRTUAL = 4;
+
+    // assignment flags
+    public static final byte FRAG_ALPHA = 1;
+    public static final byte FRAG_LINEAR = 2;
+    public static final byte FRAG_MISSING_MONO = 4;
+    public static final byte FRAG_PRIMARY = 8;
+    public static final byte FRAG_LOSS = 16;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** the stream used to write something */
+    private DataOutputStream m_out;
+    private int m_resultCount = 0;
+    private int m_topResultCount = 0;
+
+    /** the string table */
+    private HashMap<String, Integer> m_strings = new HashMap<String, Integer>();
+    /** string ids of the fragments of the current match */
+    private IdentityHashMap<Fragment, int[]> m_fragmentIds = new IdentityHashMap<Fragment, int[]>();
+    /** string ids of the peptides of the current match */
+    private IdentityHashMap<Peptide, Integer> m_peptideIds = new IdentityHashMap<Peptide, Integer>();
+
+    /**
+     * create a new class and connect it to the given output stream
+     * @param out where to output the data
+     */
+    public BinaryPeakListWriter(OutputStream out) {
+        m_out = new DataOutputStream(new BufferedOutputStream(out, 1024*1024));
+        // we need annotations
+        BufferedResultWriter.m_ForceNoClearAnnotationsOnBuffer=true;
+    }
+
+    @Override
+    public void writeHeader() {
+        try {
+            m_out.writeInt(MAGIC);
+            m_out.writeInt(VERSION);
+        } catch (IOException ex) {
+            Logger.getLogger(BinaryPeakListWriter.class.getName()).log(Level.SEVERE, "Error writing header", ex);
+        }
+    }
+
+    /**
+     * returns the id for the string - and if the string was not seen before
+     * writes it to the string table
+     */
+    private int stringID(String s) throws IOException {
+        if (s == null || s.isEmpty())
+            return -1;
+        Integer id = m_strings.get(s);
+        if (id == null) {
+            id = m_strings.size();
+            m_strings.put(s, id);
+            byte[] b = s.getBytes(UTF8);
+            m_out.writeByte(REC_STRING);
+            m_out.writeInt(id);
+            m_out.writeInt(b.length);
+            m_out.write(b);
+        }
+        return id;
+    }
+
+    private int peptideID(Peptide p) throws IOException {
+        Integer id = m_peptideIds.get(p);
+        if (id == null) {
+            id = stringID(p.toString());
+            m_peptideIds.put(p, id);
+        }
+        return id;
+    }
+
+    private int[] fragmentIDs(Fragment f) throws IOException {
+        int[] ids = m_fragmentIds.get(f);
+        if (ids == null) {
+            ids = new int[] {stringID(f.name()), stringID(f.toString())};
+            m_fragmentIds.put(f, ids);
+        }
+        return ids;
+    }
+
+    @Override
+    public void writeResult(MatchedXlinkedPeptide match) throws IOException {
+        Spectra s = match.getSpectrum();
+        Peptide[] peps = match.getPeptides();
+        Peptide pep1 = peps[0];
+        Peptide pep2 = (peps.length>1? peps[1] : null);
+        MatchedFragmentCollection mfc = match.getMatchedFragments();
+
+        // keep the string table from growing with every peptide of the search
+        if (m_strings.size() >= MAX_STRINGS) {
+            m_strings.clear();
+            m_out.writeByte(REC_RESET);
+        }
+
+        // write all strings needed for the match record first
+        int run = stringID(s.getRun());
+        int crosslinker = pep2 != null ? stringID(match.getCrosslinker().getName()) : -1;
+        int fasta1 = stringID(pep1.getSequence().getFastaHeader());
+        int peptide1 = peptideID(pep1);
+        int fasta2 = pep2 != null ? stringID(pep2.getSequence().getFastaHeader()) : -1;
+        int peptide2 = pep2 != null ? peptideID(pep2) : -1;
+
+        m_out.writeByte(REC_MATCH);
+        m_out.writeInt(run);
+        m_out.writeInt(s.getScanNumber());
+        m_out.writeDouble(match.getScore());
+        m_out.writeInt(crosslinker);
+        m_out.writeInt(fasta1);
+        m_out.writeInt(peptide1);
+        m_out.writeInt(fasta2);
+        m_out.writeInt(peptide2);
+        m_out.writeInt(match.getLinkingSite(0));
+        m_out.writeInt(pep2 != null ? match.getLinkingSite(1) : -1);
+        m_out.writeDouble(s.getMaxIntensity());
+        m_out.writeInt(s.getPeaks().size());
+
+        for (SpectraPeak peak : s.getPeaks()) {
+            // strings need to be in the stream before the peak record starts
+            for (SpectraPeakMatchedFragment mf: peak.getMatchedAnnotation()) {
+                fragmentIDs(mf.getFragment());
+                peptideID(mf.getFragment().getPeptide());
+            }
+            byte peakFlags = 0;
+            if (peak.hasAnnotation(SpectraPeakAnnotation.monoisotop))
+                peakFlags |= PEAK_MONOISOTOPIC;
+            if (peak.hasAnnotation(SpectraPeakAnnotation.isotop))
+                peakFlags |= PEAK_ISOTOPE;
+            if (peak.hasAnnotation(SpectraPeakAnnotation.virtual))
+                peakFlags |= PEAK_VIRTUAL;
+            m_out.writeByte(REC_PEAK);
+            m_out.writeDouble(peak.getMZ());
+            m_out.writeDouble(peak.getIntensity());
+            m_out.writeByte(peakFlags);
+            m_out.writeInt(peak.getMatchedAnnotation().size());
+
+            for (SpectraPeakMatchedFragment mf: peak.getMatchedAnnotation()) {
+                Fragment f = mf.getFragment();
+                Peptide p = f.getPeptide();
+                int[] fids = fragmentIDs(f);
+                byte flags = 0;
+                if (p == pep1)
+                    flags |= FRAG_ALPHA;
+                if (mf.isLinear())
+                    flags |= FRAG_LINEAR;
+                if (mf.matchedMissing())
+                    flags |= FRAG_MISSING_MONO;
+                if (mf.isPrimary())
+                    flags |= FRAG_PRIMARY;
+                if (f instanceof Loss)
+                    flags |= FRAG_LOSS;
+                m_out.writeInt(peptideID(p));
+                m_out.writeInt(fids[0]);
+                m_out.writeInt(fids[1]);
+                m_out.writeDouble(f.getNeutralMass());
+                m_out.writeByte(mf.getCharge());
+                m_out.writeDouble(mf.getMZ());
+                m_out.writeByte(flags);
+                if (f instanceof Loss) {
+                    MatchedBaseFragment mbf = mfc.getMatchedFragmentGroup((Loss) f, mf.getCharge());
+                    m_out.writeDouble(mbf.isBaseFragmentFound() ? mbf.getBasePeak().getMZ() : Double.NaN);
+                }
+            }
+        }
+        m_out.writeByte(REC_END);
+        // fragments and peptides are specific to this match
+        m_fragmentIds.clear();
+        m_peptideIds.clear();
+
+        m_resultCount++;
+        if (match.getMatchrank() == 1)
+            m_topResultCount++;
+        if (m_doFreeMatch)
+            match.free();
+    }
+
+    @Override
+    public int getResultCount() {
+        return m_resultCount;
+    }
+
+    @Override
+    public int getTopResultCount() {
+        return m_topResultCount;
+    }
+
+    @Override
+    public void flush() {
+        try {
+            m_out.flush();
+        } catch (IOException ex) {
+            Logger.getLogger(BinaryPeakListWriter.class.getName()).log(Level.SEVERE, "Error flushing output", ex);
+        }
+    }
+
+    @Override
+    public void finished() {
+        try {
+            m_out.close();
+        } catch (IOException ex) {
+            Logger.getLogger(BinaryPeakListWriter.class.getName()).log(Level.SEVERE, "Error closing output", ex);
+        }
+        super.finished();
+    }
+}
@@ -16,97 +16,221 @@
 package rappsilber.ms.dataAccess.output;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
-import java.util.LinkedList;
-import rappsilber.ms.dataAccess.output.ResultWriter;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import rappsilber.ms.spectra.Spectra;
-import rappsilber.ms.spectra.SpectraPeak;
-import rappsilber.ms.spectra.match.MatchedFragmentCollection;
 import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
 
 /**
  * provides asynchronous writer by buffering the actual request to write in a
  * queue and use a separate thread to access the inner writer.<br/>
- * Since the WriteResult method is synchronised, the class can also be used to
+ * Since the WriteResult method is thread-safe, the class can also be used to
  * combine results produced by several threads, into one out-put stream.<br/>
- * The class uses an ArrayBlockingQueue to to hand over the data to the actual
- * ResultWriter. Therefor the writeRsult-method just fills up the queue and only
- * blocks if the queue is full and has to wait for the ResultWriter to process
- * the next element.
+ * The buffer is split into stripes - each with its own lock and its own
+ * writer thread. Each producing thread always writes into the same stripe, so
+ * the order of results from one thread is kept and threads only compete for
+ * the lock with other threads on the same stripe. Whole batches of results can
+ * be handed over with one lock acquisition (see {@link #batchWriteResult(java.util.Collection)})
+ * and the writer threads take everything that is in a stripe at once.<br/>
+ * Calls to the inner writer are serialised - so the inner writer does not need
+ * to be thread-safe.<br/>
+ * The writeResult-method just fills up the buffer and only blocks if the
+ * stripe is full and has to wait for the ResultWriter to process the
+ * buffered elements.
  *
  * @author Lutz Fischer <l.fischer@ed.ac.uk>
  */
 public class BufferedResultWriter extends AbstractStackedResultWriter implements ResultWriter, BatchResultWriter {
 
-    // private ResultWriter m_innerWriter;
-    private ArrayBlockingQueue<MatchedXlinkedPeptide> m_buffer;
-//    protected Object m_running_Synch = new Object();
+    /**
+     * one part of the buffer with its own lock and writer thread
+     */
+    private class Stripe implements Runnable {
+        final ReentrantLock lock = new ReentrantLock();
+        /** signaled when something was added to the queue */
+        final Condition notEmpty = lock.newCondition();
+        /** signaled when the writer thread took results out of the queue */
+        final Condition notFull = lock.newCondition();
+        /** signaled when the writer thread is done with everything it had */
+        final Condition drained = lock.newCondition();
+        final ArrayDeque<MatchedXlinkedPeptide> queue;
+        final int capacity;
+        /** the writer thread has results taken from the queue but not yet written */
+        boolean inFlight = false;
+        Thread runner;
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+            this.queue = new ArrayDeque<MatchedXlinkedPeptide>(capacity);
+        }
+
+        /**
+         * waits until there is space in the queue.
+         * Needs to be called while holding the lock
+         */
+        void awaitSpace() throws IOException {
+            while (queue.size() >= capacity) {
+                reportFull();
+                try {
+                    if (!notFull.await(60, TimeUnit.SECONDS) && !runner.isAlive()) {
+                        String message= "The writer part of the of the buffer has stoped";
+                        Logger.getLogger(BufferedResultWriter.class.getName()).log(Level.WARNING, "{0}:{1}", new Object[]{Thread.currentThread().getName(), message});
+                        throw new IOException(message);
+                    }
+                } catch (InterruptedException ex) {
+                    Logger.getLogger(BufferedResultWriter.class.getName()).log(Level.WARNING, "interrupted while writing - retrying", ex);
+                }
+            }
+        }
+
+        void add(MatchedXlinkedPeptide match) throws IOException {
+            lock.lock();
+            try {
+                awaitSpace();
+                queue.add(match);
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void addAll(Collection<MatchedXlinkedPeptide> matches) throws IOException {
+            lock.lock();
+            try {
+                for (MatchedXlinkedPeptide match : matches) {
+                    if (queue.size() >= capacity) {
+                        // let the writer start on what we have so far
+                        notEmpty.signal();
+                        awaitSpace();
+                    }
+                    queue.add(match);
+                }
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * waits for elements to become available and forwards these
+         */
+        public void run() {
+            ArrayList<MatchedXlinkedPeptide> list =  new ArrayList<MatchedXlinkedPeptide>(capacity);
+            try {
+                while (true) {
+                    lock.lock();
+                    try {
+                        while (queue.isEmpty()) {
+                            inFlight = false;
+                            drained.signalAll();
+                            if (!m_running.get())
+                                return;
+                            notEmpty.await(1000, TimeUnit.MILLISECONDS);
+                        }
+                        list.addAll(queue);
+                        queue.clear();
+                        inFlight = true;
+                        notFull.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                    forward(list);
+                    list.clear();
+                }
+            } catch (IOException ex) {
+                m_exceptionOccured = true;
+                Logger.getLogger(BufferedResultWriter.class.getName()).log(Level.SEVERE, null, ex);
+            } catch (InterruptedException ex) {
+                Logger.getLogger(BufferedResultWriter.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                lock.lock();
+                try {
+                    inFlight = false;
+                    drained.signalAll();
+                    notFull.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                if (runnerFinished()) {
+                    m_finished.set(true);
+                    allActiveWriters.remove(BufferedResultWriter.this);
+                }
+            }
+        }
+
+        /**
+         * waits until everything that was in the queue was forwarded.
+         */
+        void awaitDrained() {
+            lock.lock();
+            try {
+                while ((inFlight || !queue.isEmpty()) && runner.isAlive()) {
+                    drained.await(1000, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException ex) {
+                Logger.getLogger(BufferedResultWriter.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return queue.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void wakeUp() {
+            lock.lock();
+            try {
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private Stripe[] m_stripes;
     private AtomicBoolean m_running = new AtomicBoolean(true);
-    private Thread m_runner;
+    /** how many of the writer threads are still running */
+    private AtomicInteger m_activeRunner = new AtomicInteger(0);
     private AtomicInteger m_countMatches = new AtomicInteger(0);
     private AtomicInteger m_countTopMatches = new AtomicInteger(0);
     private AtomicInteger m_countForwardedMatches = new AtomicInteger(0);
-//    private final Object m_countMatchesSync = new Object();
-//    private int m_runningCount = 0;
-//    private boolean m_doFreeMatch = false;
-    private AtomicBoolean m_active = new AtomicBoolean();
-//    private final Object m_activeSync = new Object();
-//    private final Object m_finished_sync = new Object();
     private AtomicBoolean m_finished = new AtomicBoolean(false);
-//    /**
-//     * how many buffered writers are still active - meaning having still data to
-//     * be written
-//     */
-//    private static int m_countActiveWriters = 0;
-//    private static final Object m_countActiveWritersSync = new Object();
-    private Object m_doFlushSync = new Object();
-    private final Object m_writeSync = new Object();
-
-    private AtomicBoolean m_doFlush = new AtomicBoolean(true);
+    /**
+     * serialises the access to the inner writer
+     */
+    private final ReentrantLock m_innerLock = new ReentrantLock();
 
     private static int m_defaultbuffersize = 10;
-    
+
     private int m_buffersize = m_defaultbuffersize;
 
     
-    public static LinkedList<BufferedResultWriter> allActiveWriters = new LinkedList<BufferedResultWriter>();
+    public static ConcurrentLinkedQueue<BufferedResultWriter> allActiveWriters = new ConcurrentLinkedQueue<BufferedResultWriter>();
 
-    public static LinkedList<BufferedResultWriter> allWriters = new LinkedList<BufferedResultWriter>();
+    public static ConcurrentLinkedQueue<BufferedResultWriter> allWriters = new ConcurrentLinkedQueue<BufferedResultWriter>();
     
     
-    private boolean m_exceptionOccured = false;
+    private volatile boolean m_exceptionOccured = false;
     
     public static boolean m_clearAnnotationsOnBuffer = true;
     
     public static boolean m_ForceNoClearAnnotationsOnBuffer = false;
-   
-//    private static void incActiveCounter() {
-//        synchronized (m_countActiveWritersSync) {
-//            m_countActiveWriters ++;
-//        }
-//    }
-//
-//    private static void decActiveCounter() {
-//        synchronized (m_countActiveWritersSync) {
-//            m_countActiveWriters --;
-//        }
-//    }
-//    public static boolean hasActiveBuffer() {
-//        int count = 0;
-//        synchronized (m_countActiveWritersSync) {
-//            count = m_countActiveWriters;
-//        }
-//        return count > 0;
-//    }
+
     /**
      * creates a new BufferedResultWriter, that forwards the results to the
      * given ResultWriter.<br/>
@@ -131,52 +255,67 @@ public class BufferedResultWriter extends AbstractStackedResultWriter implements
      * can be queued up before the writeResult-method blocks
      */
     public BufferedResultWriter(ResultWriter InnerResultWriter, int buffersize) {
-        m_active.set(false);
+        this(InnerResultWriter, buffersize, 1);
+    }
+
+    /**
+     * creates a new BufferedResultWriter, that forwards the results to the
+     * given ResultWriter.<br/>
+     * The buffer is split into writerThreads stripes, each having space for
+     * buffersize elements and its own thread forwarding the results.
+     *
+     * @param InnerResultWriter The actual method for physically writing the
+     * result
+     * @param buffersize the size of each stripe of the buffer
+     * @param writerThreads how many stripes and therefore threads to use
+     */
+    public BufferedResultWriter(ResultWriter InnerResultWriter, int buffersize, int writerThreads) {
         setInnerWriter(InnerResultWriter);
         m_buffersize = buffersize;
-        m_buffer = new ArrayBlockingQueue<MatchedXlinkedPeptide>(buffersize);
+        m_stripes = new Stripe[Math.max(1, writerThreads)];
+        for (int s = 0; s < m_stripes.length; s++) {
+            m_stripes[s] = new Stripe(buffersize);
+        }
         startProcessing();
         allWriters.add(this);
     }
 
     /**
-     * Starts a new thread, that calls the processQueue-method
+     * Starts the threads, that forward the buffered results.
      * Should normally not needed to be called from anywhere outside this class
-     * But currently have some bug with thread synchronisation that leads to a 
-     * premature death of the processing thread - and then restarting it can be 
+     * But if a writer thread died prematurely restarting it can be 
      * helpful.
      */
     public void startProcessing() {
-        
-        if (getInnerWriter() instanceof BatchResultWriter) {
-            m_runner = new Thread(new Runnable() {
-                public void run() {
-                    try {
-                        processQueueBatch();
-                    } catch (IOException ex) {
-                        m_exceptionOccured = true;
-                        Logger.getLogger(BufferedResultWriter.class.getName()).log(Level.SEVERE, null, ex);
-                    }
-                }
-            });
-            m_runner.setName("BufferedResultWriter_batchforward" + m_runner.getId());
-        } else {
-            m_runner = new Thread(new Runnable() {
-                public void run() {
-                    try {
-                        processQueue();
-                    } catch (IOException ex) {
-                        m_exceptionOccured = true;
-                        Logger.getLogger(BufferedResultWriter.class.getName()).log(Level.SEVERE, null, ex);
-                    }
+        for (final Stripe s : m_stripes) {
+            if (s.runner == null || !s.runner.isAlive()) {
+                s.runner = new Thread(s);
+                if (getInnerWriter() instanceof BatchResultWriter) {
+                    s.runner.setName("BufferedResultWriter_batchforward" + s.runner.getId());
+                } else {
+                    s.runner.setName("BufferedResultWriter_forward" + s.runner.getId());
                 }
-            });
-            m_runner.setName("BufferedResultWriter_forward" + m_runner.getId());
+                m_activeRunner.incrementAndGet();
+                s.runner.start();
+            }
         }
+        if (!allActiveWriters.contains(this))
+            allActiveWriters.add(this);
+    }
 
-        m_runner.start();
-        allActiveWriters.add(this);
+    /**
+     * each thread writes always into the same stripe
+     */
+    private Stripe getStripe() {
+        return m_stripes[(int) (Thread.currentThread().getId() % m_stripes.length)];
+    }
 
+    /**
+     * a writer thread has finished
+     * @return true if this was the last active writer thread
+     */
+    private boolean runnerFinished() {
+        return m_activeRunner.decrementAndGet() == 0;
     }
 
     @Override
@@ -189,71 +328,30 @@ public class BufferedResultWriter extends AbstractStackedResultWriter implements
         if (!isAlive() && ! m_exceptionOccured) {
             startProcessing();
         }
-        boolean notWriten = true;
-        while (notWriten) {
-            try {
-                synchronized(m_writeSync) {
-                    if (m_buffer.offer(match,60,TimeUnit.SECONDS)) {
-                        notWriten = false;
-                    } else if (!m_runner.isAlive()) {
-                        String message= "The writer part of the of the buffer has stoped";
-                        Logger.getLogger(this.getClass().getName()).log(Level.WARNING, message);
-                        // prevent an automatic restart
-
-                        throw new IOException(message);
-                    }
-                }
-
-                    
-            } catch (InterruptedException ex) {
-                Logger.getLogger(BufferedResultWriter.class.getName()).log(Level.WARNING, "interrupted while writing - retrying", ex);
-            }
-        }
+        getStripe().add(match);
         m_countMatches.incrementAndGet();
         if (match.getMatchrank() == 1)
             m_countTopMatches.incrementAndGet();
-//        m_runningCount--;
     }
 
     @Override
     public void batchWriteResult(Collection<MatchedXlinkedPeptide> matches) throws IOException{
-        
-//        if (match.getSpectra() == null)
-//            System.out.println("found it");
-//        if ((++m_runningCount) > 1) {
-//            m_runningCount += 0;
-//        }
-
-        int diff = 0;
-        int countBefore = 0 ;
-        int countAfter = 0;
-        synchronized(m_writeSync) {
-            countBefore = m_countMatches.get();
-            for (MatchedXlinkedPeptide match : matches) {
-                boolean written = false;
-                while (!written) {
-                    try {
-                        written = m_buffer.offer(match,60,TimeUnit.SECONDS);
-                    } catch (InterruptedException ex) {
-                        Logger.getLogger(BufferedResultWriter.class.getName()).log(Level.WARNING, "interrupted while writing - retrying", ex);
-                    }
-                }
-                if (!m_runner.isAlive()) {
-                    String message= "The writer part of the of the buffer has stoped";
-                    Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "{0}:{1}", new Object[]{Thread.currentThread().getName(), message});
-                    throw new IOException(message);
-                }
-                m_countMatches.incrementAndGet();
-                if (match.getMatchrank() == 1)
-                    m_countTopMatches.incrementAndGet();
-            }
-            countAfter=m_countMatches.get();
-            diff = countAfter - countBefore;
-                
+        if (matches.isEmpty())
+            return;
+        int top = 0;
+        boolean reduce = m_clearAnnotationsOnBuffer && !m_ForceNoClearAnnotationsOnBuffer;
+        for (MatchedXlinkedPeptide match : matches) {
+            if (reduce)
+                match.reduceToMinimum();
+            if (match.getMatchrank() == 1)
+                top++;
         }
-        if (diff != matches.size()) 
-                Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "did not take up all results from the input");
-//        m_runningCount--;
+        if (!isAlive() && ! m_exceptionOccured) {
+            startProcessing();
+        }
+        getStripe().addAll(matches);
+        m_countMatches.addAndGet(matches.size());
+        m_countTopMatches.addAndGet(top);
     }
     
     
@@ -265,181 +363,50 @@ public class BufferedResultWriter extends AbstractStackedResultWriter implements
     int fullReported = 0;
 
     /**
-     * waits for elements to become available and forwards these
+     * mark up if we have nothing left in the buffer - but don't do it all the time
      */
-    private void processQueue() throws IOException {
-        while (m_running.get() || !m_buffer.isEmpty()) {
-            try {
-                // mark up if we have nothing left in the buffer
-                if (m_buffer.remainingCapacity() == 0) {
-                    if (doReportFull) {
-                        bfc++;
-                        long n = Calendar.getInstance().getTimeInMillis();
-                        // but don't do it all the time
-                        if (n - c > 30000) {
-                            c = n;
-                            Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Buffer is full (" + bfc + ") in Thread " + Thread.currentThread().getName() );
-                            //bec = 0;
-                            if (fullReported++ > 10) {
-                                doReportFull = false;
-                            }
-                        }
-                    }
+    private void reportFull() {
+        if (doReportFull) {
+            bfc++;
+            long n = Calendar.getInstance().getTimeInMillis();
+            // but don't do it all the time
+            if (n - c > 30000) {
+                c = n;
+                Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Buffer is full (" + bfc + ") in Thread " + Thread.currentThread().getName() );
+                if (fullReported++ > 10) {
+                    doReportFull = false;
                 }
-                
-                ArrayList<MatchedXlinkedPeptide> list =  new ArrayList<MatchedXlinkedPeptide>(m_buffersize);
-                // wait for something to be in the queue
-                MatchedXlinkedPeptide m = m_buffer.poll(1000, TimeUnit.MILLISECONDS);
-                if (m!= null) {
-                    innerWriteResult(m);
-                    m_countForwardedMatches.incrementAndGet();
-                    if (m_doFreeMatch) {
-                        m.free();
-                    }
-                    list.clear();
-                    // get everything else that is in the list
-                    m_buffer.drainTo(list);
-
-                    if (!list.isEmpty()) {
-                        // write all the results we got
-                        for (MatchedXlinkedPeptide next : list) {
-                            innerWriteResult(next);
-                            m_countForwardedMatches.incrementAndGet();
-                            if (m_doFreeMatch) {
-                                next.free();
-                            }
-                        }
-                    } else {
-    //                    synchronized (m_activeSync) {
-    //                        if (m_active) {
-    ////                            decActiveCounter();
-    //                            m_active = false;
-    //                        }
-    //                    }
-                    }
-                    list.clear();
-                }
-                
-                if (m_doFlush.get()) {
-
-                    
-                    m_buffer.drainTo(list);
-                    for (MatchedXlinkedPeptide next : list) {
-                        innerWriteResult(next);
-                        m_countForwardedMatches.incrementAndGet();
-                        if (m_doFreeMatch) {
-                            next.free();
-                        }
-                    }
-                    super.flush();
-                    m_doFlush.getAndSet(false);
-                }
-
-
-            } catch (InterruptedException ex) {
-                Logger.getLogger(BufferedResultWriter.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
-//        getInnerWriter().finished();
-//        getInnerWriter().waitForFinished();
-//        synchronized(m_finished_sync) {
-        m_finished.set(true);
-        allActiveWriters.remove(this);
-//        }
-
-//        synchronized (m_activeSync) {
-//            if (m_active) {
-////                decActiveCounter();
-//                m_active = false;
-//            }
-//        }
     }
 
     /**
-     * waits for elements to become available and forwards these
+     * forwards a list of results to the inner writer
      */
-    private void processQueueBatch() throws IOException {
-        BatchResultWriter batchwrite = (BatchResultWriter) getInnerWriter();
-        
-        while (m_running.get() || !m_buffer.isEmpty()) {
-            try {
-                // mark up if we have nothing left in the buffer
-                if (m_buffer.remainingCapacity() == 0) {
-                    if (doReportFull) {
-                        bfc++;
-                        long n = Calendar.getInstance().getTimeInMillis();
-                        // but don't do it all the time
-                        if (n - c > 30000) {
-                            c = n;
-                            Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Buffer is full (" + bfc + ") in Thread " + Thread.currentThread().getName() );
-                            //bec = 0;
-                            if (fullReported++ > 10) {
-                                doReportFull = false;
-                            }
-                        }
-                    }
+    private void forward(ArrayList<MatchedXlinkedPeptide> list) throws IOException {
+        m_innerLock.lock();
+        try {
+            if (getInnerWriter() instanceof BatchResultWriter) {
+                ((BatchResultWriter) getInnerWriter()).batchWriteResult(new ArrayList<MatchedXlinkedPeptide>(list));
+            } else {
+                for (MatchedXlinkedPeptide next : list) {
+                    innerWriteResult(next);
                 }
-                
-                ArrayList<MatchedXlinkedPeptide> list =  new ArrayList<MatchedXlinkedPeptide>(m_buffersize);
-                // wait for something to be in the queue
-                MatchedXlinkedPeptide m = m_buffer.poll(1000, TimeUnit.MILLISECONDS);
-                if (m!= null) {
-                    
-                    list.add(m);
-                    
-                    // get everything else that is in the list
-                    m_buffer.drainTo(list);
-                    m_countForwardedMatches.addAndGet(list.size());
-                    
-                    batchwrite.batchWriteResult((Collection<MatchedXlinkedPeptide>) list.clone());
-                    if (m_doFreeMatch) {
-                        for (MatchedXlinkedPeptide match : list)
-                            match.free();
-                    }
-                    list.clear();
-                }
-                
-                if (m_doFlush.get()) {
-
-                    
-                    m_buffer.drainTo(list);
-                    m_countForwardedMatches.addAndGet(list.size());
-                    if (!list.isEmpty()) {
-                        batchwrite.batchWriteResult(list);
-                        if (m_doFreeMatch) {
-                            for (MatchedXlinkedPeptide match : list)
-                                match.free();
-                        }
-                        list.clear();
-                    }
-                    
-                    super.flush();
-                    m_doFlush.getAndSet(false);
-                }
-
-
-            } catch (InterruptedException ex) {
-                Logger.getLogger(BufferedResultWriter.class.getName()).log(Level.SEVERE, null, ex);
             }
+        } finally {
+            m_innerLock.unlock();
+        }
+        m_countForwardedMatches.addAndGet(list.size());
+        if (m_doFreeMatch) {
+            for (MatchedXlinkedPeptide match : list)
+                match.free();
         }
-//        getInnerWriter().finished();
-//        getInnerWriter().waitForFinished();
-//        synchronized(m_finished_sync) {
-        m_finished.set(true);
-        allActiveWriters.remove(this);
-//        }
-
-//        synchronized (m_activeSync) {
-//            if (m_active) {
-////                decActiveCounter();
-//                m_active = false;
-//            }
-//        }
     }
     
     public void selfFinished() {
         setRunning(false);
-        //m_innerWriter.finished();
+        for (Stripe s : m_stripes)
+            s.wakeUp();
     }
 
     public int getResultCount() {
@@ -459,14 +426,9 @@ public class BufferedResultWriter extends AbstractStackedResultWriter implements
         if (m_running.get()) {
             selfFinished();
         }
-        boolean waiting = true;
-        int countDown = 100;
-        while (waiting || (countDown<0 && m_buffer.isEmpty())) {
+        for (Stripe s : m_stripes) {
             try {
-                waiting = !(m_finished.get());
-                if (waiting) {
-                    Thread.sleep(100);
-                }
+                s.runner.join();
             } catch (InterruptedException ex) {
                 Logger.getLogger(BufferedResultWriter.class.getName()).log(Level.SEVERE, null, ex);
             }
@@ -476,37 +438,36 @@ public class BufferedResultWriter extends AbstractStackedResultWriter implements
     }
 
     public boolean isFinished() {
-        if (m_buffer.isEmpty())
-            return !m_runner.isAlive();
-        else return false;
+        return isBufferEmpty() && !isAlive();
     }
 
     public boolean isBufferEmpty() {
-        return m_buffer.isEmpty();
+        return bufferedMatches() == 0;
     }
 
     public int bufferedMatches() {
-        return m_buffer.size();
-    }    
+        int size = 0;
+        for (Stripe s : m_stripes)
+            size += s.size();
+        return size;
+    }
+
+    /**
+     * @return true if all writer threads are alive
+     */
     public boolean isAlive() {
-        return m_runner.isAlive();
+        for (Stripe s : m_stripes)
+            if (!s.runner.isAlive())
+                return false;
+        return true;
     }
     
     /**
      * flush but don't forward the flush to the inner writer
      */
     public void selfFlush() {
-//        boolean doFlush;
-        m_doFlush.set(true);
-        if (m_runner.isAlive() && !m_buffer.isEmpty()) {
-            while ((m_doFlush.get() || (m_finished.get() && !m_buffer.isEmpty())) && m_runner.isAlive() ) {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException ex) {
-                    Logger.getLogger(BufferedResultWriter.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            }
-        }
+        for (Stripe s : m_stripes)
+            s.awaitDrained();
     }    
     
     
@@ -514,9 +475,13 @@ public class BufferedResultWriter extends AbstractStackedResultWriter implements
      * flush
      */
     public void flush() {
-//        boolean doFlush;
         selfFlush();
-        getInnerWriter().flush();
+        m_innerLock.lock();
+        try {
+            getInnerWriter().flush();
+        } finally {
+            m_innerLock.unlock();
+        }
     }
 
     /**
@@ -534,10 +499,17 @@ public class BufferedResultWriter extends AbstractStackedResultWriter implements
     }
 
     /**
-     * @return the m_runner
+     * @return the thread forwarding the first stripe
      */
     public Thread getBufferThread() {
-        return m_runner;
+        return m_stripes[0].runner;
+    }
+
+    /**
+     * @return the number of threads (and stripes) used for forwarding
+     */
+    public int getWriterThreads() {
+        return m_stripes.length;
     }
 
     /**
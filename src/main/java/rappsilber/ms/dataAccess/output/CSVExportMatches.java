@@ -21,6 +21,7 @@ import java.io.PrintStream;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.NumberFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -29,6 +30,7 @@ import java.util.Locale;
 import java.util.zip.GZIPOutputStream;
 import rappsilber.config.RunConfig;
 import rappsilber.ms.crosslinker.CrossLinker;
+import rappsilber.ms.score.ScoreRegistry;
 import rappsilber.ms.score.ScoreSpectraMatch;
 import rappsilber.ms.sequence.AminoAcid;
 import rappsilber.ms.sequence.AminoModification;
@@ -64,6 +66,8 @@ public class CSVExportMatches extends AbstractResultWriter implements ResultWrit
     private String localNumberDecimalSeparator;
     private NumberFormat numberFormat;
     private Locale locale=Locale.ENGLISH;
+    /** the {@link ScoreRegistry} slots of the exported scores */
+    private int[] m_scoreSlots;
 
     /**
      * create a new class and connect it to the given output stream
@@ -441,13 +445,21 @@ public class CSVExportMatches extends AbstractResultWriter implements ResultWrit
     }
 
     private String scoreValues(MatchedXlinkedPeptide match) {
-        String line = "";
-        Collection<ScoreSpectraMatch> scores = m_config.getScores();
-        for (ScoreSpectraMatch score : scores) {
-            for (String name : score.scoreNames() )
-                line += delimChar + d2s(match.getScore(name));
+        int[] slots = m_scoreSlots;
+        if (slots == null) {
+            ArrayList<String> names = new ArrayList<String>();
+            for (ScoreSpectraMatch score : m_config.getScores()) {
+                for (String name : score.scoreNames() )
+                    names.add(name);
+            }
+            slots = ScoreRegistry.slots(names.toArray(new String[names.size()]));
+            m_scoreSlots = slots;
+        }
+        StringBuilder line = new StringBuilder();
+        for (int slot : slots) {
+            line.append(delimChar).append(d2s(match.getScore(slot)));
         }
-        return line;
+        return line.toString();
     }
 
 
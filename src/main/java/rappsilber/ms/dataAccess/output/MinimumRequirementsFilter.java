@@ -46,7 +46,23 @@ public class MinimumRequirementsFilter extends AbstractStackedResultWriter {
 
     @Override
     public void writeResult(MatchedXlinkedPeptide match) throws IOException {
-        if (match.getScore("fragment " + FragmentCoverage.mNL) <= 1 || 
+        if (passes(match)) {
+            innerWriteResult(match);
+        } else if (m_doFreeMatch) {
+            match.free();
+        }
+    }
+
+    /**
+     * The rank independent part of the requirements - more then one fragment 
+     * matched and if a ms2 limit is defined no average error above the limit.
+     * <br/>These only depend on the scores of the match and can therefore be 
+     * checked before ranks or deltas are assigned.
+     * @param match
+     * @return true if the match fulfils the basic requirements
+     */
+    public boolean meetsMinimum(MatchedXlinkedPeptide match) {
+        return !(match.getScore("fragment " + FragmentCoverage.mNL) <= 1 || 
                 // do we have a defined ms2 limit?
                 ((!Double.isNaN(ms2limit)) && (
                     // overall should not exceed it
@@ -60,31 +76,44 @@ public class MinimumRequirementsFilter extends AbstractStackedResultWriter {
                     ((!Double.isNaN(match.getScore(rappsilber.ms.score.Error.mAverageAbsolutePep2MS2))) 
                             && match.getScore(rappsilber.ms.score.Error.mAverageAbsolutePep2MS2) > ms2limit)
                     )
-                )
-                ) {
-            if (m_doFreeMatch)
-                match.free();
-            return;
-        }
+                ));
+    }
+
+    /**
+     * Would the match be forwarded by this filter.<br/>
+     * Needs the rank and delta score of the match to be set.
+     * @param match
+     * @return 
+     */
+    public boolean passes(MatchedXlinkedPeptide match) {
+        if (!meetsMinimum(match))
+            return false;
 
         // top matches get always writen
         if (match.getMatchrank() <= 2)
-            innerWriteResult(match);
-        else {
-            // if it explaines more then 5% of the spectra - peak or intensity wise - and has 3 or more fragmentation sites it will be writen
-            if (((match.getScore(SpectraCoverage.mp)>0.025 ||
-                    match.getScore(SpectraCoverage.pmp)>0.025) && (
-                    match.getMatchedFragments().size() >2)))
-                // also exlude any match, that has a larger negative delta score, then its own match score - should be meaningless match
-                if (-2*match.getScore("delta")<match.getScore("match score"))
-                    if (getMaxRank() == -1 || match.getMatchrank() <= getMaxRank()) {
-                        innerWriteResult(match);
-                        return;
-                    }
-            if (m_doFreeMatch)
-                match.free();
-        }
+            return true;
 
+        // if it explaines more then 5% of the spectra - peak or intensity wise - and has 3 or more fragmentation sites it will be writen
+        if (((match.getScore(SpectraCoverage.mp)>0.025 ||
+                match.getScore(SpectraCoverage.pmp)>0.025) && (
+                match.getMatchedFragments().size() >2)))
+            // also exlude any match, that has a larger negative delta score, then its own match score - should be meaningless match
+            if (-2*match.getScore("delta")<match.getScore("match score"))
+                if (getMaxRank() == -1 || match.getMatchrank() <= getMaxRank()) {
+                    return true;
+                }
+        return false;
+    }
+
+    /**
+     * The highest rank that could pass this filter. As the first two ranks 
+     * always get forwarded this is at least 2.
+     * @return the highest rank that could pass or -1 for no limit
+     */
+    public int getRankLimit() {
+        if (getMaxRank() == -1)
+            return -1;
+        return Math.max(2, getMaxRank());
     }
 
     /**
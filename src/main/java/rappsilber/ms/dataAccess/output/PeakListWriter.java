@@ -31,7 +31,6 @@ import rappsilber.ms.spectra.annotation.SpectraPeakAnnotation;
 import rappsilber.ms.spectra.annotation.SpectraPeakMatchedFragment;
 import rappsilber.ms.spectra.match.MatchedBaseFragment;
 import rappsilber.ms.spectra.match.MatchedFragmentCollection;
-import rappsilber.utils.CountOccurence;
 import rappsilber.utils.Util;
 
 /**
@@ -107,150 +106,180 @@ public class PeakListWriter extends AbstractResultWriter{
         Peptide[] peps = match.getPeptides();
         Peptide pep1 = peps[0];
         Peptide pep2 = (peps.length>1? peps[1] : null);
-        CountOccurence<Fragment> count = new CountOccurence<Fragment>();
         MatchedFragmentCollection mfc = match.getMatchedFragments();
-        double maxIntens = s.getMaxIntensity();
+        String matchPrefix = matchPrefix(s.getRun(), s.getScanNumber(), match.getScore(),
+                (pep2!=null ? match.getCrosslinker().getName() : ""),
+                pep1.getSequence().getFastaHeader(), pep1.toString(),
+                (pep2!=null ? pep2.getSequence().getFastaHeader() : ""),
+                (pep2!=null ? pep2.toString() :""));
 
 
         for (SpectraPeak peak :  match.getSpectrum().getPeaks()) {
-//            ArrayList<SpectraPeakMatchedFragment> spmf = peak.getMatchedAnnotation();
             double relative = peak.getIntensity()/s.getMaxIntensity();
 
-//            if ((int) peak.getMZ() == 330)
-//                System.out.println("found");
-//            ArrayList<SpectraPeakMatchedFragment> spmfReduced;
             // How to check if a peak has matches - write this 'header' for each match, for no match, write header only
             if (peak.getMatchedAnnotation().isEmpty()) {
                 try {
-                m_out.print(
-                        s.getRun() + "\t" + i2s(s.getScanNumber()) + "\t" + d2s(match.getScore()) +
-                        "\t" + (pep2!=null ? match.getCrosslinker().getName() : "") +
-                        "\t" + pep1.getSequence().getFastaHeader() +
-                        "\t" + pep1.toString() +
-                        "\t" + (pep2!=null ? pep2.getSequence().getFastaHeader() : "") +
-                        "\t" + (pep2!=null ? pep2.toString() :"")+
-                        "\t" +  "\t" + 
-                        "\t" + 
-                        "\t" + 
-                        "\t" + 
-                        "\t" + "\t" + 
-                        "\t" + "\t" +
-                        "\t"  + d2s(peak.getMZ()) +
-                        "\t" + 
-                        "\t" + (peak.hasAnnotation(SpectraPeakAnnotation.monoisotop)? "monoisotopic" :(peak.hasAnnotation(SpectraPeakAnnotation.isotop)? "isotope": "")) +
-                        "\t" +
-                        "\t\t\t" + d2s(peak.getIntensity()) +"\t" + d2s(relative) + "\t");
-                m_out.println("\t" + peakToAscii(relative));
+                    writeUnmatchedPeak(matchPrefix, peak.getMZ(), 
+                            peak.hasAnnotation(SpectraPeakAnnotation.monoisotop), 
+                            peak.hasAnnotation(SpectraPeakAnnotation.isotop), 
+                            peak.getIntensity(), relative);
                 } catch (Exception e) {
                     throw new Error(e);
                 }
             } else {
-//               spmfReduced = AnnotationUtil.getReducedAnnotation(peak, mfc) ;
-
-                boolean first=true;
+                MatchedPeak mp = new MatchedPeak();
+                mp.crosslinked = pep2 != null;
+                mp.linkSite1 = match.getLinkingSite(0);
+                mp.linkSite2 = (pep2 != null ? match.getLinkingSite(1) : -1);
+                mp.expMZ = peak.getMZ();
+                mp.monoisotopic = peak.hasAnnotation(SpectraPeakAnnotation.monoisotop);
+                mp.virtual = peak.hasAnnotation(SpectraPeakAnnotation.virtual);
+                mp.intensity = peak.getIntensity();
+                mp.relativeIntensity = relative;
+                mp.firstForPeak = true;
                 for (SpectraPeakMatchedFragment mf: peak.getMatchedAnnotation()) {
                     Fragment f = mf.getFragment();
-                    count.add(f);
                     Peptide p = f.getPeptide();
-                    if (Math.abs(mf.getMZ() - peak.getMZ()) > 1)
-                        p = f.getPeptide();
-                    m_out.print(
-                            s.getRun() + "\t" + i2s(s.getScanNumber()) +  "\t" + d2s(match.getScore()) +
-                            "\t" + (pep2!=null ? match.getCrosslinker().getName() : "") +
-                            "\t" + pep1.getSequence().getFastaHeader() +
-                            "\t" + pep1.toString() +
-                            "\t" + (pep2!=null ? pep2.getSequence().getFastaHeader() :"") +
-                            "\t" + (pep2!=null ? pep2.toString():"") +
-                            "\t" + p.toString() + "\t" + (p == pep1 ? "alpha" : "beta")  +
-                            "\t" + (pep2!=null ? i2s(match.getLinkingSite(0)+1) :"") +
-                            "\t" + (pep2!=null ? i2s(match.getLinkingSite(1)+1) : "") +
-                            "\t" + f.name() +
-                            "\t" + f + "\t" + d2s(f.getNeutralMass()) +
-                            "\t" + mf.getCharge() + "\t" + d2s(mf.getMZ()) +
-                            "\t" + d2s(peak.getMZ())  +
-                            "\t" + d2s(peak.getMZ() - mf.getMZ()) +
-                            "\t" + (peak.hasAnnotation(SpectraPeakAnnotation.monoisotop)? "monoisotpoic" :"")  +
-                            "\t\"" + (mf.isLinear() ? "linear" : "crosslinked") + (mf.matchedMissing() ? " missing mono": "") + "\"" +
-                            "\t" + (peak.hasAnnotation(SpectraPeakAnnotation.virtual) ? "virtual": "no" ));
+                    mp.basePeakMZ = Double.NaN;
                     if (f instanceof Loss) {
                         Loss l = (Loss)f;
                         MatchedBaseFragment mbf = mfc.getMatchedFragmentGroup(l, mf.getCharge());
-                        //SpectraPeak base = l.getBasePeak(match.getSpectra(), mf.getCharge(), mf.getModification(), match.getFragmentTolerance());
-                        //m_out.print("\t" + (base == null ? "\"No Base Peak\"" : "" + base.getMZ()));
-                        m_out.print("\t" + (mbf.isBaseFragmentFound() ? mbf.getBasePeak().getMZ() : "\"No Base Peak\""));
-                    } else {
-                        m_out.print("\t");
-                    }
-                    m_out.print("\t" + d2s(peak.getIntensity()) +"\t" + d2s(peak.getIntensity()/maxIntens));
-                    m_out.print("\t" + (mf.isPrimary()?1:0) );
-                    if (first) {
-                        m_out.println("\t" + peakToAscii(relative));
-                        first = false;
-                    } else {
-                        m_out.println("\t ^");
+                        if (mbf.isBaseFragmentFound())
+                            mp.basePeakMZ = mbf.getBasePeak().getMZ();
                     }
-
+                    mp.matchedPeptide = p.toString();
+                    mp.alpha = p == pep1;
+                    mp.fragmentName = f.name();
+                    mp.fragment = f.toString();
+                    mp.neutralMass = f.getNeutralMass();
+                    mp.charge = mf.getCharge();
+                    mp.calcMZ = mf.getMZ();
+                    mp.linear = mf.isLinear();
+                    mp.missingMono = mf.matchedMissing();
+                    mp.loss = f instanceof Loss;
+                    mp.primary = mf.isPrimary();
+                    writeMatchedPeak(matchPrefix, mp);
+                    mp.firstForPeak = false;
                 }
             }
         }
-        m_out.println();
+        writeMatchEnd();
         m_resultCount++;
         
         if (match.getMatchrank() == 1)
             m_topResultCount++;
         if (m_doFreeMatch)
             match.free();
+    }
 
-//        for (Fragment f :  match.getPeptide(0)Fragments()) {
-//           m_out.print(pep1.getSequence().getFastaHeader() + "\t");
-//           m_out.print(pep1.toString() + "\t");
-//           m_out.print(pep1.getMass() + "\t");
-//           m_out.print(pep2.getSequence().getFastaHeader() + "\t");
-//           m_out.print(pep2.toString() + "\t");
-//           m_out.print(pep2.getMass() + "\t");
-//           m_out.print("alpha\t");
-//           if (f instanceof BIon) {
-//               m_out.print("B-Ion\t");
-//           } else if (f instanceof YIon) {
-//               m_out.print("Y-Ion\t");
-//           } else if (f instanceof AIon) {
-//               m_out.print("A-Ion\t");
-//           } else {
-//               m_out.print(f.getClass().getSimpleName() + "\t");
-//           }
-//           m_out.print(f.name() + "\t");
-//
-//           m_out.print(f.toString() + "\t");
-//           m_out.print(f.getMass() + "\t");
-//           m_out.print(count.count(f) + "\t");
-//           m_out.println();
-//        }
-//
-//        for (Fragment f :  match.getPeptide2Fragments()) {
-//           m_out.print(pep1.getSequence().getFastaHeader() + "\t");
-//           m_out.print(pep1.toString() + "\t");
-//           m_out.print(pep1.getMass() + "\t");
-//           m_out.print(pep2.getSequence().getFastaHeader() + "\t");
-//           m_out.print(pep2.toString() + "\t");
-//           m_out.print(pep2.getMass() + "\t");
-//           m_out.print("beta\t");
-//           if (f instanceof BIon) {
-//               m_out.print("B-Ion\t");
-//           } else if (f instanceof YIon) {
-//               m_out.print("Y-Ion\t");
-//           } else if (f instanceof AIon) {
-//               m_out.print("A-Ion\t");
-//           } else {
-//               m_out.print(f.getClass().getSimpleName() + "\t");
-//           }
-//           m_out.print(f.name() + "\t");
-//           m_out.print(f.toString() + "\t");
-//           m_out.print(f.getMass() + "\t");
-//           m_out.print(count.count(f) + "\t");
-//           m_out.println();
-//        }
+    /**
+     * the columns describing the match, that are repeated on each line
+     */
+    protected String matchPrefix(String run, int scan, double score, 
+            String crosslinker, String fastaHeader1, String peptide1, 
+            String fastaHeader2, String peptide2) {
+        return run + "\t" + i2s(scan) + "\t" + d2s(score) +
+                "\t" + crosslinker +
+                "\t" + fastaHeader1 +
+                "\t" + peptide1 +
+                "\t" + fastaHeader2 +
+                "\t" + peptide2;
+    }
 
+    /**
+     * writes the line for a peak without annotation
+     */
+    protected void writeUnmatchedPeak(String matchPrefix, double mz, 
+            boolean monoisotopic, boolean isotope, double intensity, double relative) {
+        m_out.print(
+                matchPrefix +
+                "\t" +  "\t" + 
+                "\t" + 
+                "\t" + 
+                "\t" + 
+                "\t" + "\t" + 
+                "\t" + "\t" +
+                "\t"  + d2s(mz) +
+                "\t" + 
+                "\t" + (monoisotopic? "monoisotopic" :(isotope? "isotope": "")) +
+                "\t" +
+                "\t\t\t" + d2s(intensity) +"\t" + d2s(relative) + "\t");
+        m_out.println("\t" + peakToAscii(relative));
+    }
 
+    /**
+     * one fragment matched to a peak - everything that gets written about it
+     */
+    protected static class MatchedPeak {
+        /** the peptide the fragment belongs to */
+        String matchedPeptide;
+        /** is it the first peptide of the match */
+        boolean alpha;
+        /** is the match cross-linked - only then link sites are written */
+        boolean crosslinked;
+        int linkSite1;
+        int linkSite2;
+        String fragmentName;
+        String fragment;
+        double neutralMass;
+        int charge;
+        double calcMZ;
+        /** the m/z of the peak */
+        double expMZ;
+        /** the peak is annotated as monoisotopic */
+        boolean monoisotopic;
+        boolean linear;
+        boolean missingMono;
+        /** the peak is annotated as virtual */
+        boolean virtual;
+        boolean loss;
+        /** for losses the m/z of the peak of the non-lossy fragment; NaN if not found */
+        double basePeakMZ;
+        double intensity;
+        /** intensity relative to the highest peak of the spectrum */
+        double relativeIntensity;
+        boolean primary;
+        /** the first fragment written for the peak */
+        boolean firstForPeak;
+    }
+
+    /**
+     * writes the line for one fragment matched to a peak
+     */
+    protected void writeMatchedPeak(String matchPrefix, MatchedPeak mp) {
+        m_out.print(
+                matchPrefix +
+                "\t" + mp.matchedPeptide + "\t" + (mp.alpha ? "alpha" : "beta")  +
+                "\t" + (mp.crosslinked ? i2s(mp.linkSite1+1) :"") +
+                "\t" + (mp.crosslinked ? i2s(mp.linkSite2+1) : "") +
+                "\t" + mp.fragmentName +
+                "\t" + mp.fragment + "\t" + d2s(mp.neutralMass) +
+                "\t" + mp.charge + "\t" + d2s(mp.calcMZ) +
+                "\t" + d2s(mp.expMZ)  +
+                "\t" + d2s(mp.expMZ - mp.calcMZ) +
+                "\t" + (mp.monoisotopic? "monoisotpoic" :"")  +
+                "\t\"" + (mp.linear ? "linear" : "crosslinked") + (mp.missingMono ? " missing mono": "") + "\"" +
+                "\t" + (mp.virtual ? "virtual": "no" ));
+        if (mp.loss) {
+            m_out.print("\t" + (!Double.isNaN(mp.basePeakMZ) ? mp.basePeakMZ : "\"No Base Peak\""));
+        } else {
+            m_out.print("\t");
+        }
+        m_out.print("\t" + d2s(mp.intensity) +"\t" + d2s(mp.relativeIntensity));
+        m_out.print("\t" + (mp.primary?1:0) );
+        if (mp.firstForPeak) {
+            m_out.println("\t" + peakToAscii(mp.relativeIntensity));
+        } else {
+            m_out.println("\t ^");
+        }
+    }
+
+    /**
+     * separates the matches in the output
+     */
+    protected void writeMatchEnd() {
+        m_out.println();
     }
 
 
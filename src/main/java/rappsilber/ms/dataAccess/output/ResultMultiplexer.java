@@ -1,4 +1,4 @@
-/* 
+/*
  * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
@@ -17,30 +17,295 @@ package rappsilber.ms.dataAccess.output;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
 
 /**
- *
+ * Forwards each result to a list of result writers.<br/>
+ * By default the writers are called one after the other in the thread that
+ * calls {@link #writeResult(rappsilber.ms.spectra.match.MatchedXlinkedPeptide)}.
+ * If a child queue size is defined (see {@link #setChildQueueSize(int)}) each
+ * writer gets its own bounded queue and thread. A slow writer then only
+ * throttles the others once its queue is full.<br/>
+ * In that mode the same match object is handed to all writers - so the writers
+ * must not change the match. If matches should be freed, that happens after the
+ * last writer is done with it.
  * @author Lutz Fischer <l.fischer@ed.ac.uk>
  */
 public class ResultMultiplexer extends AbstractResultWriter{
     private ArrayList<ResultWriter> m_out = new ArrayList<ResultWriter>();
     private int                     m_resultCount = 0;
     private int                     m_topResultCount = 0;
+    /**
+     * if bigger then 0 each writer gets a queue of that size and its own thread
+     */
+    private int                     m_childQueueSize = 0;
+    /**
+     * the forwarding threads for each writer (only used if m_childQueueSize &gt; 0)
+     */
+    private ArrayList<ChildForwarder> m_forwarder = new ArrayList<ChildForwarder>();
+
+    /**
+     * A match that is shared between several child writers.
+     * Keeps track of how many writers still need to write it out.
+     */
+    private static class SharedMatch {
+        final MatchedXlinkedPeptide match;
+        final AtomicInteger pending;
+        final long queued = System.nanoTime();
+        /** if not null this is not a match but a request to flush */
+        final CountDownLatch flushed;
+        /** marks the end of the data for a child */
+        final boolean last;
+
+        SharedMatch(MatchedXlinkedPeptide match, int writers) {
+            this.match = match;
+            this.pending = new AtomicInteger(writers);
+            this.flushed = null;
+            this.last = false;
+        }
+
+        SharedMatch(CountDownLatch flushed, boolean last) {
+            this.match = null;
+            this.pending = null;
+            this.flushed = flushed;
+            this.last = last;
+        }
+    }
+
+    /**
+     * Takes matches from a bounded queue and hands them to one writer in its
+     * own thread
+     */
+    private class ChildForwarder implements Runnable {
+        final ResultWriter writer;
+        final ArrayBlockingQueue<SharedMatch> queue;
+        final Thread thread;
+        volatile IOException error = null;
+        /** set when the thread stopped forwarding - for whatever reason */
+        volatile boolean stopped = false;
+        /** how many matches where forwarded */
+        final AtomicLong count = new AtomicLong(0);
+        /** nano seconds spend inside the writer */
+        final AtomicLong writeTime = new AtomicLong(0);
+        /** nano seconds between queuing and written */
+        final AtomicLong latency = new AtomicLong(0);
+        /** highest observed number of queued matches */
+        final AtomicInteger maxQueued = new AtomicInteger(0);
+
+        ChildForwarder(ResultWriter writer, int queueSize) {
+            this.writer = writer;
+            this.queue = new ArrayBlockingQueue<SharedMatch>(queueSize);
+            this.thread = new Thread(this);
+            this.thread.setName("ResultMultiplexer_" + writer.getClass().getSimpleName() + thread.getId());
+        }
+
+        /**
+         * queues up a match for the writer. If the writer has stopped the
+         * match is released right away and an exception is thrown.
+         */
+        void put(SharedMatch m) throws IOException {
+            boolean notWritten = true;
+            while (notWritten) {
+                if (stopped) {
+                    discard(m);
+                    if (error != null) {
+                        throw new IOException("Writer " + writer.getClass().getSimpleName() + " has stopped", error);
+                    }
+                    throw new IOException("The forwarding thread for " + writer.getClass().getSimpleName() + " has stopped");
+                }
+                try {
+                    notWritten = !queue.offer(m, 60, TimeUnit.SECONDS);
+                    if (notWritten && !thread.isAlive()) {
+                        stopped = true;
+                    }
+                } catch (InterruptedException ex) {
+                    Logger.getLogger(ResultMultiplexer.class.getName()).log(Level.WARNING, "interrupted while writing - retrying", ex);
+                }
+            }
+            if (stopped) {
+                // the thread might have died before it saw this one
+                drainStopped();
+            }
+            int size = queue.size();
+            int max = maxQueued.get();
+            while (size > max && !maxQueued.compareAndSet(max, size)) {
+                max = maxQueued.get();
+            }
+        }
+
+        public void run() {
+            ArrayList<SharedMatch> list = new ArrayList<SharedMatch>(queue.remainingCapacity());
+            boolean running = true;
+            int pos = 0;
+            try {
+                while (running) {
+                    SharedMatch first = queue.poll(1000, TimeUnit.MILLISECONDS);
+                    if (first == null)
+                        continue;
+                    list.add(first);
+                    queue.drainTo(list);
+                    for (pos = 0; pos < list.size(); pos++) {
+                        SharedMatch m = list.get(pos);
+                        if (m.match != null) {
+                            long start = System.nanoTime();
+                            writer.writeResult(m.match);
+                            long end = System.nanoTime();
+                            writeTime.addAndGet(end - start);
+                            latency.addAndGet(end - m.queued);
+                            count.incrementAndGet();
+                            release(m);
+                        } else {
+                            if (m.last) {
+                                writer.finished();
+                                running = false;
+                            } else {
+                                writer.flush();
+                            }
+                            m.flushed.countDown();
+                        }
+                    }
+                    list.clear();
+                }
+            } catch (IOException ex) {
+                error = ex;
+                Logger.getLogger(ResultMultiplexer.class.getName()).log(Level.SEVERE, "Error while writing to " + writer.getClass().getSimpleName(), ex);
+            } catch (InterruptedException ex) {
+                Logger.getLogger(ResultMultiplexer.class.getName()).log(Level.SEVERE, null, ex);
+            } catch (RuntimeException ex) {
+                Logger.getLogger(ResultMultiplexer.class.getName()).log(Level.SEVERE, "Error while writing to " + writer.getClass().getSimpleName(), ex);
+            } finally {
+                if (running) {
+                    // whatever is still queued will not be written - but should 
+                    // not block anybody waiting or keep the matches from being freed
+                    stopped = true;
+                    for (int i = pos; i < list.size(); i++) {
+                        discard(list.get(i));
+                    }
+                    drainStopped();
+                }
+            }
+        }
+
+        /**
+         * releases everything still queued for a stopped writer
+         */
+        synchronized void drainStopped() {
+            ArrayList<SharedMatch> remaining = new ArrayList<SharedMatch>();
+            queue.drainTo(remaining);
+            for (SharedMatch m : remaining) {
+                discard(m);
+            }
+        }
+
+        /**
+         * a match or signal, that will not reach the writer
+         */
+        void discard(SharedMatch m) {
+            if (m.match != null)
+                release(m);
+            else
+                m.flushed.countDown();
+        }
+
+        /**
+         * signal, that this writer is done with the match.
+         * The last writer frees up the match - if requested.
+         */
+        void release(SharedMatch m) {
+            if (m.pending.decrementAndGet() == 0 && m_doFreeMatch) {
+                m.match.free();
+            }
+        }
+
+        /**
+         * place a marker in the queue and wait until it is processed
+         */
+        void signal(boolean last) {
+            CountDownLatch done = new CountDownLatch(1);
+            try {
+                put(new SharedMatch(done, last));
+                while (!done.await(1000, TimeUnit.MILLISECONDS)) {
+                    if (!thread.isAlive())
+                        return;
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(ResultMultiplexer.class.getName()).log(Level.WARNING, "Could not signal " + writer.getClass().getSimpleName(), ex);
+            } catch (InterruptedException ex) {
+                Logger.getLogger(ResultMultiplexer.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+
+        @Override
+        public String toString() {
+            long c = count.get();
+            return writer.getClass().getSimpleName()
+                    + " written: " + c
+                    + " queued: " + queue.size()
+                    + " max queued: " + maxQueued.get()
+                    + " avg write (ms): " + (c == 0 ? 0 : writeTime.get() / c / 1000000.0)
+                    + " avg latency (ms): " + (c == 0 ? 0 : latency.get() / c / 1000000.0);
+        }
+    }
+
+    public ResultMultiplexer() {
+    }
+
+    /**
+     * creates a multiplexer, where each writer gets its own queue and thread.
+     * @param childQueueSize how many matches can be queued up for each writer
+     */
+    public ResultMultiplexer(int childQueueSize) {
+        setChildQueueSize(childQueueSize);
+    }
 
     public void writeHeader() {
         for (ResultWriter writer : m_out)
             writer.writeHeader();
+        startForwarders();
+    }
+
+    /**
+     * start the threads forwarding to the individual writers
+     */
+    private synchronized void startForwarders() {
+        for (ChildForwarder f : m_forwarder) {
+            if (f.thread.getState() == Thread.State.NEW)
+                f.thread.start();
+        }
     }
 
     public void writeResult(MatchedXlinkedPeptide match) throws IOException {
-        for (ResultWriter writer : m_out)
-            writer.writeResult(match);
         m_resultCount ++;
         if (match.getMatchrank() == 1)
             m_topResultCount++;
-        if (m_doFreeMatch)
-            match.free();
+        if (m_forwarder.isEmpty()) {
+            for (ResultWriter writer : m_out)
+                writer.writeResult(match);
+            if (m_doFreeMatch)
+                match.free();
+        } else {
+            SharedMatch m = new SharedMatch(match, m_forwarder.size());
+            if (m_resultCount == 1)
+                startForwarders();
+            // every forwarder has to get or release the match - otherwise it would never be freed
+            IOException error = null;
+            for (ChildForwarder f : m_forwarder) {
+                try {
+                    f.put(m);
+                } catch (IOException ex) {
+                    error = ex;
+                }
+            }
+            if (error != null)
+                throw error;
+        }
     }
 
     public int getResultCount() {
@@ -50,24 +315,91 @@ public class ResultMultiplexer extends AbstractResultWriter{
     public int getTopResultCount() {
         return m_topResultCount;
     }
-    
+
     public void finished() {
-        for (ResultWriter writer : m_out)
-            writer.finished();
+        if (m_forwarder.isEmpty()) {
+            for (ResultWriter writer : m_out)
+                writer.finished();
+        } else {
+            for (ChildForwarder f : m_forwarder) {
+                if (f.thread.isAlive())
+                    f.signal(true);
+                else
+                    f.writer.finished();
+            }
+        }
         super.finished();
     }
 
     public void addResultWriter(ResultWriter out) {
         m_out.add(out);
+        if (m_childQueueSize > 0)
+            m_forwarder.add(new ChildForwarder(out, m_childQueueSize));
     }
-    
+
     public ArrayList<ResultWriter> getWriters() {
         return m_out;
     }
 
+    /**
+     * If set to a value bigger then 0 each writer will get its own queue of
+     * the given size and thread.<br/>
+     * Needs to be set before any result is written.
+     * @param size
+     */
+    public void setChildQueueSize(int size) {
+        if (m_childQueueSize == size)
+            return;
+        for (ChildForwarder f : m_forwarder) {
+            if (f.thread.getState() != Thread.State.NEW)
+                throw new IllegalStateException("Results are already forwarded - can't change the queue size anymore");
+        }
+        m_childQueueSize = size;
+        m_forwarder.clear();
+        if (size > 0) {
+            for (ResultWriter out : m_out)
+                m_forwarder.add(new ChildForwarder(out, size));
+        }
+    }
+
+    /**
+     * how many matches can be queued up for each writer before writing blocks.
+     * 0 means all writers are called directly.
+     */
+    public int getChildQueueSize() {
+        return m_childQueueSize;
+    }
+
+    /**
+     * the number of written matches, the current and maximal queue depth
+     * and the average write-time and latency for each writer
+     * @return
+     */
+    public String getChildStatistics() {
+        StringBuilder sb = new StringBuilder();
+        for (ChildForwarder f : m_forwarder) {
+            sb.append(f.toString()).append("\n");
+        }
+        return sb.toString();
+    }
 
     @Override
     public boolean waitForFinished() {
+        if (!m_forwarder.isEmpty()) {
+            if (!m_finished) {
+                flush();
+                return false;
+            }
+            for (ChildForwarder f : m_forwarder) {
+                try {
+                    f.thread.join();
+                } catch (InterruptedException ex) {
+                    Logger.getLogger(ResultMultiplexer.class.getName()).log(Level.SEVERE, null, ex);
+                    return false;
+                }
+            }
+            Logger.getLogger(ResultMultiplexer.class.getName()).log(Level.INFO, "Writer statistics:\n{0}", getChildStatistics());
+        }
         for (ResultWriter writer : m_out)
             if (!writer.waitForFinished())
                 return false;
@@ -75,14 +407,23 @@ public class ResultMultiplexer extends AbstractResultWriter{
     }
 
     public void flush() {
-        for (ResultWriter rw : m_out)
-            rw.flush();
+        if (m_forwarder.isEmpty()) {
+            for (ResultWriter rw : m_out)
+                rw.flush();
+        } else {
+            for (ChildForwarder f : m_forwarder) {
+                if (f.thread.isAlive())
+                    f.signal(false);
+                else
+                    f.writer.flush();
+            }
+        }
     }
-    
+
     public void ping() {
         for (ResultWriter writer : m_out) {
             writer.ping();
         }
-        
+
     }
 }
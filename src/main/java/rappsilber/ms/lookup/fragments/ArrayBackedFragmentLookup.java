@@ -107,7 +107,7 @@ public class ArrayBackedFragmentLookup implements FragmentLookup {
             fragMasses.setMaxIncrement(1000000);
             pepIDs.setMaxIncrement(1000000);
             int count =0;
-            int maxPeps = m_list.getAllPeptideIDs().length;
+            int maxPeps = m_list.getAllPeptideIDs().size();
             int percent = 0;
             //Peptide pep;
             for (Peptide pep : peptides ) {
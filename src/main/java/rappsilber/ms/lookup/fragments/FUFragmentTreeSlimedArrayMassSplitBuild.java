@@ -40,6 +40,7 @@ import rappsilber.ms.ToleranceUnit;
 import rappsilber.ms.lookup.peptides.PeptideLookup;
 import rappsilber.ms.sequence.Iterators.PeptideIterator;
 import rappsilber.ms.sequence.Peptide;
+import rappsilber.ms.sequence.PeptideStore;
 import rappsilber.ms.sequence.Sequence;
 import rappsilber.ms.sequence.SequenceList;
 import rappsilber.ms.sequence.ions.Fragment;
@@ -66,6 +67,8 @@ public class FUFragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup,
     private AtomicInteger m_processedSequences = new AtomicInteger(0);
 
     private PeptideIterator m_peptides = null;
+    /** the last fragmented peptide - the iterator is not kept, as it would keep the peptide lookup alive */
+    private Peptide m_lastPeptide = null;
     private int[]   peptides_perTree;
    private  int     m_maxPeakCandidates;
     
@@ -303,6 +306,8 @@ public class FUFragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup,
         m_maxPeakCandidates = m_config.getMaximumPeptideCandidatesPerPeak();
 
         insertFragementsFromPeptides(PeptideList);
+        m_lastPeptide = m_peptides.current();
+        m_peptides = null;
     }
 
     public FUFragmentTreeSlimedArrayMassSplitBuild(PeptideLookup PeptideList, long maxPeptides, Peptide lastPeptide, SequenceList list, ToleranceUnit Tolerance, int threads, double MaximumPeptideMass, RunConfig config){
@@ -320,6 +325,8 @@ public class FUFragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup,
         m_maxPeakCandidates = m_config.getMaximumPeptideCandidatesPerPeak();
 
         insertFragementsFromPeptides(PeptideList);
+        m_lastPeptide = m_peptides.current();
+        m_peptides = null;
     }
 
     public void insertFragements(Iterator<Sequence> sequences) {
@@ -395,7 +402,7 @@ public class FUFragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup,
 
     public ArrayList<Peptide> getForMass(double mass) {
         ArrayList<Peptide> ret = new ArrayList<Peptide>();
-        Peptide[] allPeptides = m_list.getAllPeptideIDs();
+        PeptideStore allPeptides = m_list.getAllPeptideIDs();
         for (int t = 0; t<m_threadTrees.length;t++) {
 //            if ((int)mass == 173)
 //                        System.err.println("found it");
@@ -407,7 +414,7 @@ public class FUFragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup,
                 for (int i = 0; i < ids.length; i++) {
 //                    if (allPeptides[ids.m_peptideIds[i]] == null)
 //                        System.err.println("found it");
-                    ret.add(allPeptides[ids[i]]);
+                    ret.add(allPeptides.get(ids[i]));
                 }
             }
         }
@@ -418,12 +425,12 @@ public class FUFragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup,
         ArrayList<Peptide> ret = new ArrayList<Peptide>();
         for (int t = 0; t<m_threadTrees.length;t++) {
             Collection<int[]> entries =  m_threadTrees[t].subMap(m_Tolerance.getMinRange(mass, referenceMass), m_Tolerance.getMaxRange(mass, referenceMass)).values();
-            Peptide[] allPeptides = m_list.getAllPeptideIDs();
+            PeptideStore allPeptides = m_list.getAllPeptideIDs();
             Iterator<int[]> it = entries.iterator();
             while (it.hasNext()) {
                 int[] ids = it.next();
                 for (int i = 0; i < ids.length; i++) {
-                    ret.add(allPeptides[ids[i]]);
+                    ret.add(allPeptides.get(ids[i]));
                 }
             }
         }
@@ -434,14 +441,13 @@ public class FUFragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup,
         ArrayList<Peptide> ret = new ArrayList<Peptide>();
         for (int t = 0; t<m_threadTrees.length;t++) {
             Collection<int[]> entries =  m_threadTrees[t].subMap(m_Tolerance.getMinRange(mass, referenceMass), m_Tolerance.getMaxRange(mass, referenceMass)).values();
-            Peptide[] allPeptides = m_list.getAllPeptideIDs();
+            PeptideStore allPeptides = m_list.getAllPeptideIDs();
             Iterator<int[]> it = entries.iterator();
             while (it.hasNext()) {
                 int[] ids = it.next();
                 for (int i = 0; i < ids.length; i++) {
-                    Peptide p = allPeptides[ids[i]];
-                    if (p.getMass()<maxPepass)
-                        ret.add(p);
+                    if (allPeptides.getMass(ids[i])<maxPepass)
+                        ret.add(allPeptides.get(ids[i]));
                 }
             }
         }
@@ -463,14 +469,13 @@ public class FUFragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup,
         if (count<= maxPeptides) {
             for (int t = 0; t<allEntries.length;t++) {
                 Collection<int[]> entries =allEntries[t];
-                Peptide[] allPeptides = m_list.getAllPeptideIDs();
+                PeptideStore allPeptides = m_list.getAllPeptideIDs();
                 Iterator<int[]> it = entries.iterator();
                 while (it.hasNext()) {
                     int[] ids = it.next();
                     for (int i = 0; i < ids.length; i++) {
-                        Peptide p = allPeptides[ids[i]];
-                        if (p.getMass()<maxPepass)
-                            ret.add(p);
+                        if (allPeptides.getMass(ids[i])<maxPepass)
+                            ret.add(allPeptides.get(ids[i]));
                     }
                 }
             }
@@ -480,7 +485,7 @@ public class FUFragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup,
     
     public ArrayList<Peptide> getPeptidesExactFragmentMass(double mass) {
         ArrayList<Peptide> ret = new ArrayList<Peptide>();
-        Peptide[] allPeptides = m_list.getAllPeptideIDs();
+        PeptideStore allPeptides = m_list.getAllPeptideIDs();
         for (int t = 0; t<m_threadTrees.length;t++) {
 //            if ((int)mass == 173)
 //                        System.err.println("found it");
@@ -489,7 +494,7 @@ public class FUFragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup,
                 for (int i = 0; i < ids.length; i++) {
     //                    if (allPeptides[ids.m_peptideIds[i]] == null)
     //                        System.err.println("found it");
-                    ret.add(allPeptides[ids[i]]);
+                    ret.add(allPeptides.get(ids[i]));
                 }
         }
         return ret;
@@ -529,12 +534,12 @@ public class FUFragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup,
         for (int t = 0; t<m_threadTrees.length;t++) {
             Range r = m_Tolerance.getRange(mass);
             Collection<int[]> entries =  m_threadTrees[t].subMap(r.min,r.max).values();
-            Peptide[] allPeptides = m_list.getAllPeptideIDs();
+            PeptideStore allPeptides = m_list.getAllPeptideIDs();
             Iterator<int[]> it = entries.iterator();
             while (it.hasNext()) {
                 int[] ids = it.next();
                 for (int i = 0; i < ids.length; i++)
-                    ret.put(allPeptides[ids[i]], mass);
+                    ret.put(allPeptides.get(ids[i]), mass);
             }
         }
         return ret;
@@ -613,7 +618,7 @@ public class FUFragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup,
 
     public void dump(Writer out) throws IOException {
         BufferedWriter bw = new BufferedWriter(out);
-        Peptide[] allPeptides = m_list.getAllPeptideIDs();
+        PeptideStore allPeptides = m_list.getAllPeptideIDs();
         HashSet<Double> masses = new HashSet<Double>();
         for (int i = 0; i < m_threadTrees.length; i++) {
             java.util.Set<Double> s = m_threadTrees[i].keySet();
@@ -817,7 +822,7 @@ public class FUFragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup,
 
     @Override
     public Peptide lastFragmentedPeptide() {
-        return m_peptides.current();
+        return m_lastPeptide;
     }
 
     public PeptideIterator getPeptideIterator() {
@@ -41,6 +41,7 @@ import rappsilber.ms.ToleranceUnit;
 import rappsilber.ms.lookup.peptides.PeptideLookup;
 import rappsilber.ms.sequence.Iterators.PeptideIterator;
 import rappsilber.ms.sequence.Peptide;
+import rappsilber.ms.sequence.PeptideStore;
 import rappsilber.ms.sequence.Sequence;
 import rappsilber.ms.sequence.SequenceList;
 import rappsilber.ms.sequence.ions.Fragment;
@@ -71,6 +72,8 @@ public class FUFragmentTreeSlimedIntArray implements FragmentLookup, FragmentCol
     private AtomicInteger m_processedSequences = new AtomicInteger(0);
 
     private PeptideIterator m_peptides = null;
+    /** the last fragmented peptide - the iterator is not kept, as it would keep the peptide lookup alive */
+    private Peptide m_lastPeptide = null;
     private int[]   peptides_perTree;
     
     private int     m_maxPeakCandidates;
@@ -303,6 +306,8 @@ public class FUFragmentTreeSlimedIntArray implements FragmentLookup, FragmentCol
         m_maxPeakCandidates = m_config.getMaximumPeptideCandidatesPerPeak();
 
         insertFragementsFromPeptides(PeptideList);
+        m_lastPeptide = m_peptides.current();
+        m_peptides = null;
     }
 
     public FUFragmentTreeSlimedIntArray(PeptideLookup PeptideList, long maxPeptides, Peptide lastPeptide, SequenceList list, ToleranceUnit Tolerance, int threads, double MaximumPeptideMass, RunConfig config){
@@ -320,6 +325,8 @@ public class FUFragmentTreeSlimedIntArray implements FragmentLookup, FragmentCol
         m_maxPeakCandidates = m_config.getMaximumPeptideCandidatesPerPeak();
 
         insertFragementsFromPeptides(PeptideList);
+        m_lastPeptide = m_peptides.current();
+        m_peptides = null;
     }
 
     public void insertFragements(Iterator<Sequence> sequences) {
@@ -412,7 +419,7 @@ public class FUFragmentTreeSlimedIntArray implements FragmentLookup, FragmentCol
         int max = (int) (m_Tolerance.getMaxRange(mass)*divide);
         
         ArrayList<Peptide> ret = new ArrayList<Peptide>();
-        Peptide[] allPeptides = m_list.getAllPeptideIDs();
+        PeptideStore allPeptides = m_list.getAllPeptideIDs();
         for (int t = 0; t<m_threadTrees.length;t++) {
 //            if ((int)mass == 173)
 //                        System.err.println("found it");
@@ -424,7 +431,7 @@ public class FUFragmentTreeSlimedIntArray implements FragmentLookup, FragmentCol
                 for (int i = 0; i < ids.length; i++) {
 //                    if (allPeptides[ids.m_peptideIds[i]] == null)
 //                        System.err.println("found it");
-                    ret.add(allPeptides[ids[i]]);
+                    ret.add(allPeptides.get(ids[i]));
                 }
             }
         }
@@ -437,12 +444,12 @@ public class FUFragmentTreeSlimedIntArray implements FragmentLookup, FragmentCol
         int max = (int) (m_Tolerance.getMaxRange(mass, referenceMass)*divide);
         for (int t = 0; t<m_threadTrees.length;t++) {
             Collection<int[]> entries =  m_threadTrees[t].subMap(min,max).values();
-            Peptide[] allPeptides = m_list.getAllPeptideIDs();
+            PeptideStore allPeptides = m_list.getAllPeptideIDs();
             Iterator<int[]> it = entries.iterator();
             while (it.hasNext()) {
                 int[] ids = it.next();
                 for (int i = 0; i < ids.length; i++) {
-                    ret.add(allPeptides[ids[i]]);
+                    ret.add(allPeptides.get(ids[i]));
                 }
             }
         }
@@ -456,14 +463,13 @@ public class FUFragmentTreeSlimedIntArray implements FragmentLookup, FragmentCol
         int max = (int) (m_Tolerance.getMaxRange(mass, referenceMass)*divide);
         for (int t = 0; t<m_threadTrees.length;t++) {
             Collection<int[]> entries =  m_threadTrees[t].subMap(min,max).values();
-            Peptide[] allPeptides = m_list.getAllPeptideIDs();
+            PeptideStore allPeptides = m_list.getAllPeptideIDs();
             Iterator<int[]> it = entries.iterator();
             while (it.hasNext()) {
                 int[] ids = it.next();
                 for (int i = 0; i < ids.length; i++) {
-                    Peptide p = allPeptides[ids[i]];
-                    if (p.getMass()<maxPepMass)
-                        ret.add(p);
+                    if (allPeptides.getMass(ids[i])<maxPepMass)
+                        ret.add(allPeptides.get(ids[i]));
                 }
             }
         }
@@ -488,14 +494,13 @@ public class FUFragmentTreeSlimedIntArray implements FragmentLookup, FragmentCol
         if (count<= maxPeptides) {
             for (int t = 0; t<allEntries.length;t++) {
                 Collection<int[]> entries =allEntries[t];
-                Peptide[] allPeptides = m_list.getAllPeptideIDs();
+                PeptideStore allPeptides = m_list.getAllPeptideIDs();
                 Iterator<int[]> it = entries.iterator();
                 while (it.hasNext()) {
                     int[] ids = it.next();
                     for (int i = 0; i < ids.length; i++) {
-                        Peptide p = allPeptides[ids[i]];
-                        if (p.getMass()<maxPepMass)
-                            ret.add(p);
+                        if (allPeptides.getMass(ids[i])<maxPepMass)
+                            ret.add(allPeptides.get(ids[i]));
                     }
                 }
             }
@@ -509,7 +514,7 @@ public class FUFragmentTreeSlimedIntArray implements FragmentLookup, FragmentCol
 
     protected ArrayList<Peptide> getPeptidesExactFragmentMass(int mass) {
         ArrayList<Peptide> ret = new ArrayList<Peptide>();
-        Peptide[] allPeptides = m_list.getAllPeptideIDs();
+        PeptideStore allPeptides = m_list.getAllPeptideIDs();
         for (int t = 0; t<m_threadTrees.length;t++) {
 //            if ((int)mass == 173)
 //                        System.err.println("found it");
@@ -518,7 +523,7 @@ public class FUFragmentTreeSlimedIntArray implements FragmentLookup, FragmentCol
                 for (int i = 0; i < ids.length; i++) {
     //                    if (allPeptides[ids.m_peptideIds[i]] == null)
     //                        System.err.println("found it");
-                    ret.add(allPeptides[ids[i]]);
+                    ret.add(allPeptides.get(ids[i]));
                 }
         }
         return ret;
@@ -562,12 +567,12 @@ public class FUFragmentTreeSlimedIntArray implements FragmentLookup, FragmentCol
         int max = (int) (m_Tolerance.getMaxRange(mass)*divide);
         for (int t = 0; t<m_threadTrees.length;t++) {
             Collection<int[]> entries =  m_threadTrees[t].subMap(min, max).values();
-            Peptide[] allPeptides = m_list.getAllPeptideIDs();
+            PeptideStore allPeptides = m_list.getAllPeptideIDs();
             Iterator<int[]> it = entries.iterator();
             while (it.hasNext()) {
                 int[] ids = it.next();
                 for (int i = 0; i < ids.length; i++)
-                    ret.put(allPeptides[ids[i]], mass);
+                    ret.put(allPeptides.get(ids[i]), mass);
             }
         }
         return ret;
@@ -648,7 +653,7 @@ public class FUFragmentTreeSlimedIntArray implements FragmentLookup, FragmentCol
 
     public void dump(Writer out) throws IOException {
         BufferedWriter bw = new BufferedWriter(out);
-        Peptide[] allPeptides = m_list.getAllPeptideIDs();
+        PeptideStore allPeptides = m_list.getAllPeptideIDs();
         HashSet<Integer> masses = new HashSet<Integer>();
         for (int i = 0; i < m_threadTrees.length; i++) {
             java.util.Set<Integer> s = m_threadTrees[i].keySet();
@@ -717,7 +722,7 @@ public class FUFragmentTreeSlimedIntArray implements FragmentLookup, FragmentCol
 
     @Override
     public Peptide lastFragmentedPeptide() {
-        return m_peptides.current();
+        return m_lastPeptide;
     }
 
     public PeptideIterator getPeptideIterator() {
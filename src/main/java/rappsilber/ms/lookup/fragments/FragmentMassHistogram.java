@@ -0,0 +1,231 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.lookup.fragments;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Cumulative counts of the fragments in a fragment tree, for counting the
+ * fragments within a mass window in constant time.<br/>
+ * The distinct fragment masses of all sub-trees are kept in one sorted array
+ * together with the running number of peptide-ids and of tree-entries up to
+ * each mass. On top of that the masses are split into bins of equal ppm-width
+ * (equal width on a log-scale) - each bin knows where its masses start. So a
+ * window boundary is found by jumping to its bin and stepping over the few
+ * masses in that bin.<br/>
+ * The copy of the masses costs 16 bytes per distinct mass (see
+ * {@link #bytes()}) - a fraction of what the tree itself needs per mass.
+ * Keeping only counts per bin would be smaller, but a tolerance window
+ * rarely ends on an empty bin or a bin edge - so nearly every count would
+ * have to go back to the tree for its boundary bins.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class FragmentMassHistogram {
+    /** average number of distinct masses per bin */
+    private static final int MASSES_PER_BIN = 4;
+
+    /** the distinct fragment masses - sorted */
+    private final double[] m_masses;
+    /** number of peptide-ids for all masses before the given index */
+    private final int[] m_peptideCounts;
+    /** number of tree-entries for all masses before the given index */
+    private final int[] m_entryCounts;
+    /** index of the first mass in each bin */
+    private final int[] m_binStart;
+    /** log of the smallest mass */
+    private final double m_logMinMass;
+    /** bins per log-unit of mass */
+    private final double m_binScale;
+
+    /**
+     * builds up the histogram from the sub-trees of a fragment tree
+     * @param trees mass to peptide-ids
+     */
+    public FragmentMassHistogram(SortedMap<Double, int[]>[] trees) {
+        this(merge(trees));
+    }
+
+    /**
+     * builds up the histogram from already merged counts
+     * @param masses the distinct fragment masses - sorted
+     * @param peptideCounts number of peptide-ids for all masses before each index
+     * (one longer then masses)
+     * @param entryCounts number of tree-entries for all masses before each index
+     * (one longer then masses)
+     */
+    FragmentMassHistogram(double[] masses, int[] peptideCounts, int[] entryCounts) {
+        this(new Counts(masses, peptideCounts, entryCounts));
+    }
+
+    /**
+     * the merged counts of all sub-trees
+     */
+    private static class Counts {
+        final double[] masses;
+        final int[] peptideCounts;
+        final int[] entryCounts;
+
+        Counts(double[] masses, int[] peptideCounts, int[] entryCounts) {
+            this.masses = masses;
+            this.peptideCounts = peptideCounts;
+            this.entryCounts = entryCounts;
+        }
+    }
+
+    /**
+     * merges the sorted sub-trees into cumulative counts
+     */
+    private static Counts merge(SortedMap<Double, int[]>[] trees) {
+        int entries = 0;
+        for (SortedMap<Double, int[]> t : trees) {
+            entries += t.size();
+        }
+        double[] masses = new double[entries];
+        int[] peptideCounts = new int[entries + 1];
+        int[] entryCounts = new int[entries + 1];
+
+        // merge the sorted sub-trees
+        @SuppressWarnings("unchecked")
+        Iterator<Map.Entry<Double, int[]>>[] its = new Iterator[trees.length];
+        @SuppressWarnings("unchecked")
+        Map.Entry<Double, int[]>[] heads = new Map.Entry[trees.length];
+        for (int t = 0; t < trees.length; t++) {
+            its[t] = trees[t].entrySet().iterator();
+            heads[t] = its[t].hasNext() ? its[t].next() : null;
+        }
+        int count = 0;
+        while (true) {
+            int next = -1;
+            for (int t = 0; t < heads.length; t++) {
+                if (heads[t] != null && (next < 0 || heads[t].getKey() < heads[next].getKey())) {
+                    next = t;
+                }
+            }
+            if (next < 0) {
+                break;
+            }
+            double mass = heads[next].getKey();
+            if (count == 0 || masses[count - 1] != mass) {
+                masses[count] = mass;
+                peptideCounts[count + 1] = peptideCounts[count];
+                entryCounts[count + 1] = entryCounts[count];
+                count++;
+            }
+            peptideCounts[count] += heads[next].getValue().length;
+            entryCounts[count]++;
+            heads[next] = its[next].hasNext() ? its[next].next() : null;
+        }
+
+        return new Counts(java.util.Arrays.copyOf(masses, count),
+                java.util.Arrays.copyOf(peptideCounts, count + 1),
+                java.util.Arrays.copyOf(entryCounts, count + 1));
+    }
+
+    private FragmentMassHistogram(Counts counts) {
+        m_masses = counts.masses;
+        m_peptideCounts = counts.peptideCounts;
+        m_entryCounts = counts.entryCounts;
+        int count = m_masses.length;
+
+        int bins = Math.max(1, count / MASSES_PER_BIN);
+        if (count > 1 && m_masses[0] > 0) {
+            m_logMinMass = Math.log(m_masses[0]);
+            double range = Math.log(m_masses[count - 1]) - m_logMinMass;
+            m_binScale = range > 0 ? bins / range : 0;
+        } else {
+            m_logMinMass = 0;
+            m_binScale = 0;
+        }
+        m_binStart = new int[bins + 2];
+        int i = 0;
+        for (int b = 0; b < m_binStart.length; b++) {
+            while (i < count && bin(m_masses[i]) < b) {
+                i++;
+            }
+            m_binStart[b] = i;
+        }
+    }
+
+    /**
+     * the bin a mass falls into
+     */
+    private int bin(double mass) {
+        if (m_binScale == 0 || !(mass > 0)) {
+            return 0;
+        }
+        double b = (Math.log(mass) - m_logMinMass) * m_binScale;
+        if (b <= 0) {
+            return 0;
+        }
+        if (b >= m_binStart.length - 1) {
+            return m_binStart.length - 1;
+        }
+        return (int) b;
+    }
+
+    /**
+     * @param mass
+     * @return index of the first mass that is not smaller then the given mass
+     */
+    private int first(double mass) {
+        int i = m_binStart[bin(mass)];
+        while (i < m_masses.length && m_masses[i] < mass) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @param from smallest mass (inclusive)
+     * @param to largest mass (exclusive)
+     * @return number of peptide-ids stored for masses in the given range
+     */
+    public int countPeptides(double from, double to) {
+        if (!(to > from)) {
+            return 0;
+        }
+        return m_peptideCounts[first(to)] - m_peptideCounts[first(from)];
+    }
+
+    /**
+     * @param from smallest mass (inclusive)
+     * @param to largest mass (exclusive)
+     * @return number of tree-entries (masses per sub-tree) in the given range
+     */
+    public int countEntries(double from, double to) {
+        if (!(to > from)) {
+            return 0;
+        }
+        return m_entryCounts[first(to)] - m_entryCounts[first(from)];
+    }
+
+    /**
+     * @return the approximate size of the histogram on the heap in bytes
+     */
+    public long bytes() {
+        return 8L * m_masses.length + 4L * m_peptideCounts.length
+                + 4L * m_entryCounts.length + 4L * m_binStart.length;
+    }
+
+    /**
+     * @return number of distinct fragment masses
+     */
+    public int size() {
+        return m_masses.length;
+    }
+}
@@ -38,6 +38,7 @@ import rappsilber.ms.ToleranceUnit;
 import rappsilber.ms.lookup.peptides.PeptideLookup;
 import rappsilber.ms.sequence.Iterators.PeptideIterator;
 import rappsilber.ms.sequence.Peptide;
+import rappsilber.ms.sequence.PeptideStore;
 import rappsilber.ms.sequence.Sequence;
 import rappsilber.ms.sequence.SequenceList;
 import rappsilber.ms.sequence.ions.Fragment;
@@ -65,6 +66,8 @@ public class FragmentTreeSlimedArrayMassSplitBinned implements FragmentLookup, F
     private AtomicInteger m_processedSequences = new AtomicInteger(0);
 
     private PeptideIterator m_peptides = null;
+    /** the last fragmented peptide - the iterator is not kept, as it would keep the peptide lookup alive */
+    private Peptide m_lastPeptide = null;
     private int[]   peptides_perTree;
     
     private int m_maxPeakCandidates;
@@ -299,6 +302,8 @@ public class FragmentTreeSlimedArrayMassSplitBinned implements FragmentLookup, F
         m_maxPeakCandidates = m_config.getMaximumPeptideCandidatesPerPeak();
 
         insertFragementsFromPeptides(PeptideList);
+        m_lastPeptide = m_peptides.current();
+        m_peptides = null;
     }
 
     public FragmentTreeSlimedArrayMassSplitBinned(PeptideLookup PeptideList, long maxPeptides, Peptide lastPeptide, SequenceList list, ToleranceUnit Tolerance, int threads, double MaximumPeptideMass, RunConfig config){
@@ -316,6 +321,8 @@ public class FragmentTreeSlimedArrayMassSplitBinned implements FragmentLookup, F
         m_maxPeakCandidates = m_config.getMaximumPeptideCandidatesPerPeak();
 
         insertFragementsFromPeptides(PeptideList);
+        m_lastPeptide = m_peptides.current();
+        m_peptides = null;
     }
 
     public void insertFragements(Iterator<Sequence> sequences) {
@@ -405,7 +412,7 @@ public class FragmentTreeSlimedArrayMassSplitBinned implements FragmentLookup, F
 
     public ArrayList<Peptide> getForMass(double mass) {
         ArrayList<Peptide> ret = new ArrayList<Peptide>();
-        Peptide[] allPeptides = m_list.getAllPeptideIDs();
+        PeptideStore allPeptides = m_list.getAllPeptideIDs();
         for (int t = 0; t<m_threadTrees.length;t++) {
 //            if ((int)mass == 173)
 //                        System.err.println("found it");
@@ -416,7 +423,7 @@ public class FragmentTreeSlimedArrayMassSplitBinned implements FragmentLookup, F
                 for (int i = 0; i < ids.length; i++) {
 //                    if (allPeptides[ids.m_peptideIds[i]] == null)
 //                        System.err.println("found it");
-                    ret.add(allPeptides[ids[i]]);
+                    ret.add(allPeptides.get(ids[i]));
                 }
             }
         }
@@ -427,12 +434,12 @@ public class FragmentTreeSlimedArrayMassSplitBinned implements FragmentLookup, F
         ArrayList<Peptide> ret = new ArrayList<Peptide>();
         for (int t = 0; t<m_threadTrees.length;t++) {
             Collection<int[]> entries =  m_threadTrees[t].subMap(m_Tolerance.getMinRange(mass, referenceMass), m_Tolerance.getMaxRange(mass, referenceMass)).values();
-            Peptide[] allPeptides = m_list.getAllPeptideIDs();
+            PeptideStore allPeptides = m_list.getAllPeptideIDs();
             Iterator<int[]> it = entries.iterator();
             while (it.hasNext()) {
                 int[] ids = it.next();
                 for (int i = 0; i < ids.length; i++) {
-                    ret.add(allPeptides[ids[i]]);
+                    ret.add(allPeptides.get(ids[i]));
                 }
             }
         }
@@ -443,14 +450,13 @@ public class FragmentTreeSlimedArrayMassSplitBinned implements FragmentLookup, F
         ArrayList<Peptide> ret = new ArrayList<Peptide>();
         for (int t = 0; t<m_threadTrees.length;t++) {
             Collection<int[]> entries =  m_threadTrees[t].subMap(m_Tolerance.getMinRange(mass, referenceMass), m_Tolerance.getMaxRange(mass, referenceMass)).values();
-            Peptide[] allPeptides = m_list.getAllPeptideIDs();
+            PeptideStore allPeptides = m_list.getAllPeptideIDs();
             Iterator<int[]> it = entries.iterator();
             while (it.hasNext()) {
                 int[] ids = it.next();
                 for (int i = 0; i < ids.length; i++) {
-                    Peptide p = allPeptides[ids[i]];
-                    if (p.getMass()<maxPepass)
-                        ret.add(p);
+                    if (allPeptides.getMass(ids[i])<maxPepass)
+                        ret.add(allPeptides.get(ids[i]));
                 }
             }
         }
@@ -472,14 +478,13 @@ public class FragmentTreeSlimedArrayMassSplitBinned implements FragmentLookup, F
         if (count<= maxPeptides) {
             for (int t = 0; t<allEntries.length;t++) {
                 Collection<int[]> entries =allEntries[t];
-                Peptide[] allPeptides = m_list.getAllPeptideIDs();
+                PeptideStore allPeptides = m_list.getAllPeptideIDs();
                 Iterator<int[]> it = entries.iterator();
                 while (it.hasNext()) {
                     int[] ids = it.next();
                     for (int i = 0; i < ids.length; i++) {
-                        Peptide p = allPeptides[ids[i]];
-                        if (p.getMass()<maxPepass)
-                            ret.add(p);
+                        if (allPeptides.getMass(ids[i])<maxPepass)
+                            ret.add(allPeptides.get(ids[i]));
                     }
                 }
             }
@@ -489,7 +494,7 @@ public class FragmentTreeSlimedArrayMassSplitBinned implements FragmentLookup, F
     
     public ArrayList<Peptide> getPeptidesExactFragmentMass(double mass) {
         ArrayList<Peptide> ret = new ArrayList<Peptide>();
-        Peptide[] allPeptides = m_list.getAllPeptideIDs();
+        PeptideStore allPeptides = m_list.getAllPeptideIDs();
         for (int t = 0; t<m_threadTrees.length;t++) {
 //            if ((int)mass == 173)
 //                        System.err.println("found it");
@@ -498,7 +503,7 @@ public class FragmentTreeSlimedArrayMassSplitBinned implements FragmentLookup, F
                 for (int i = 0; i < ids.length; i++) {
     //                    if (allPeptides[ids.m_peptideIds[i]] == null)
     //                        System.err.println("found it");
-                    ret.add(allPeptides[ids[i]]);
+                    ret.add(allPeptides.get(ids[i]));
                 }
         }
         return ret;
@@ -538,12 +543,12 @@ public class FragmentTreeSlimedArrayMassSplitBinned implements FragmentLookup, F
         HashMap<Peptide, Double> ret = new HashMap<Peptide, Double>();
         for (int t = 0; t<m_threadTrees.length;t++) {
             Collection<int[]> entries =  m_threadTrees[t].subMap(m_Tolerance.getMinRange(mass), m_Tolerance.getMaxRange(mass)).values();
-            Peptide[] allPeptides = m_list.getAllPeptideIDs();
+            PeptideStore allPeptides = m_list.getAllPeptideIDs();
             Iterator<int[]> it = entries.iterator();
             while (it.hasNext()) {
                 int[] ids = it.next();
                 for (int i = 0; i < ids.length; i++)
-                    ret.put(allPeptides[ids[i]], mass);
+                    ret.put(allPeptides.get(ids[i]), mass);
             }
         }
         return ret;
@@ -622,7 +627,7 @@ public class FragmentTreeSlimedArrayMassSplitBinned implements FragmentLookup, F
 
     public void dump(Writer out) throws IOException {
         BufferedWriter bw = new BufferedWriter(out);
-        Peptide[] allPeptides = m_list.getAllPeptideIDs();
+        PeptideStore allPeptides = m_list.getAllPeptideIDs();
         HashSet<Double> masses = new HashSet<Double>();
         for (int i = 0; i < m_threadTrees.length; i++) {
             java.util.Set<Double> s = m_threadTrees[i].keySet();
@@ -828,7 +833,7 @@ public class FragmentTreeSlimedArrayMassSplitBinned implements FragmentLookup, F
     
     @Override
     public Peptide lastFragmentedPeptide() {
-        return m_peptides.current();
+        return m_lastPeptide;
     }
 
     public PeptideIterator getPeptideIterator() {
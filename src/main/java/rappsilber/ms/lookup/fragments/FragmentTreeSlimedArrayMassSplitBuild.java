@@ -39,6 +39,7 @@ import rappsilber.ms.crosslinker.CrossLinker;
 import rappsilber.ms.lookup.peptides.PeptideLookup;
 import rappsilber.ms.sequence.Iterators.PeptideIterator;
 import rappsilber.ms.sequence.Peptide;
+import rappsilber.ms.sequence.PeptideStore;
 import rappsilber.ms.sequence.Sequence;
 import rappsilber.ms.sequence.SequenceList;
 import rappsilber.ms.sequence.ions.CrossLinkedFragmentProducer;
@@ -46,6 +47,7 @@ import rappsilber.ms.sequence.ions.Fragment;
 import rappsilber.ms.spectra.Spectra;
 import rappsilber.ms.spectra.SpectraPeak;
 import rappsilber.utils.ArithmeticScoredOccurence;
+import rappsilber.utils.StringUtils;
 import rappsilber.utils.Util;
 
 
@@ -66,8 +68,12 @@ public class FragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup, Fr
     private AtomicInteger m_processedSequences = new AtomicInteger(0);
 
     private PeptideIterator m_peptides = null;
+    /** the last fragmented peptide - the iterator is not kept, as it would keep the peptide lookup alive */
+    private Peptide m_lastPeptide = null;
     private int[]   peptides_perTree;
     private int m_maxPeakCandidates;
+    /** counts fragments per mass-window without going through the trees */
+    private FragmentMassHistogram m_histogram;
     
 
     /**
@@ -87,6 +93,7 @@ public class FragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup, Fr
     @Override
     public ArithmeticScoredOccurence<Peptide> getAlphaCandidates(Spectra s, double maxPeptideMass) {
         ArithmeticScoredOccurence<Peptide> peakMatchScores = new ArithmeticScoredOccurence<Peptide>();
+        double allFragments = getFragmentCount();
 
         if (m_maxPeakCandidates == -1) {
             //   go through mgc spectra
@@ -100,7 +107,7 @@ public class FragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup, Fr
                     matchedPeptides.addAll(this.getForMass(sp.getMZ()-d,sp.getMZ(),maxPeptideMass));
                 }
                 
-                double peakScore = (double) matchedPeptides.size() / getFragmentCount();
+                double peakScore = matchedPeptides.size() / allFragments;
                 for (Peptide p : matchedPeptides) {
                     peakMatchScores.multiply(p, peakScore);
                 }
@@ -117,7 +124,7 @@ public class FragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup, Fr
                     matchedPeptides.addAll(this.getForMass(sp.getMZ()-d,sp.getMZ(),maxPeptideMass));
                 }
                 
-                double peakScore = (double) matchedPeptides.size() / getFragmentCount();
+                double peakScore = matchedPeptides.size() / allFragments;
                 for (Peptide p : matchedPeptides) {
                     peakMatchScores.multiply(p, peakScore);
                 }
@@ -351,6 +358,8 @@ public class FragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup, Fr
         m_maxPeakCandidates = m_config.getMaximumPeptideCandidatesPerPeak();
 
         insertFragementsFromPeptides(PeptideList);
+        m_lastPeptide = m_peptides.current();
+        m_peptides = null;
     }
 
     public FragmentTreeSlimedArrayMassSplitBuild(PeptideLookup PeptideList, long maxPeptides, Peptide lastPeptide, SequenceList list, ToleranceUnit Tolerance, int threads, double MaximumPeptideMass, RunConfig config){
@@ -368,6 +377,8 @@ public class FragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup, Fr
         m_maxPeakCandidates = m_config.getMaximumPeptideCandidatesPerPeak();
 
         insertFragementsFromPeptides(PeptideList);
+        m_lastPeptide = m_peptides.current();
+        m_peptides = null;
     }
 
     public void insertFragements(Iterator<Sequence> sequences) {
@@ -452,12 +463,13 @@ public class FragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup, Fr
         for (InnerTreeMap t: m_threadTrees)
             t.clear();
         m_threadTrees = null;
+        m_histogram = null;
     }
 
 
     public ArrayList<Peptide> getForMass(double mass) {
         ArrayList<Peptide> ret = new ArrayList<Peptide>();
-        Peptide[] allPeptides = m_list.getAllPeptideIDs();
+        PeptideStore allPeptides = m_list.getAllPeptideIDs();
         for (int t = 0; t<m_threadTrees.length;t++) {
 //            if ((int)mass == 173)
 //                        System.err.println("found it");
@@ -468,7 +480,7 @@ public class FragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup, Fr
                 for (int i = 0; i < ids.length; i++) {
 //                    if (allPeptides[ids.m_peptideIds[i]] == null)
 //                        System.err.println("found it");
-                    ret.add(allPeptides[ids[i]]);
+                    ret.add(allPeptides.get(ids[i]));
                 }
             }
         }
@@ -479,12 +491,12 @@ public class FragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup, Fr
         ArrayList<Peptide> ret = new ArrayList<Peptide>();
         for (int t = 0; t<m_threadTrees.length;t++) {
             Collection<int[]> entries =  m_threadTrees[t].subMap(m_Tolerance.getMinRange(mass, referenceMass), m_Tolerance.getMaxRange(mass, referenceMass)).values();
-            Peptide[] allPeptides = m_list.getAllPeptideIDs();
+            PeptideStore allPeptides = m_list.getAllPeptideIDs();
             Iterator<int[]> it = entries.iterator();
             while (it.hasNext()) {
                 int[] ids = it.next();
                 for (int i = 0; i < ids.length; i++) {
-                    ret.add(allPeptides[ids[i]]);
+                    ret.add(allPeptides.get(ids[i]));
                 }
             }
         }
@@ -495,14 +507,13 @@ public class FragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup, Fr
         ArrayList<Peptide> ret = new ArrayList<Peptide>();
         for (int t = 0; t<m_threadTrees.length;t++) {
             Collection<int[]> entries =  m_threadTrees[t].subMap(m_Tolerance.getMinRange(mass, referenceMass), m_Tolerance.getMaxRange(mass, referenceMass)).values();
-            Peptide[] allPeptides = m_list.getAllPeptideIDs();
+            PeptideStore allPeptides = m_list.getAllPeptideIDs();
             Iterator<int[]> it = entries.iterator();
             while (it.hasNext()) {
                 int[] ids = it.next();
                 for (int i = 0; i < ids.length; i++) {
-                    Peptide p = allPeptides[ids[i]];
-                    if (p.getMass()<maxPepass)
-                        ret.add(p);
+                    if (allPeptides.getMass(ids[i])<maxPepass)
+                        ret.add(allPeptides.get(ids[i]));
                 }
             }
         }
@@ -512,6 +523,9 @@ public class FragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup, Fr
     @Override
     public ArrayList<Peptide> getForMass(double mass, double referenceMass, double maxPepass, int maxPeptides) {
         ArrayList<Peptide> ret = new ArrayList<Peptide>();
+        FragmentMassHistogram histogram = m_histogram;
+        if (histogram != null && histogram.countEntries(m_Tolerance.getMinRange(mass, referenceMass), m_Tolerance.getMaxRange(mass, referenceMass)) > maxPeptides)
+            return ret;
         Collection[] allEntries = new Collection[m_threadTrees.length];
         int count =0;
         for (int t = 0; t<m_threadTrees.length;t++) {
@@ -524,14 +538,13 @@ public class FragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup, Fr
         if (count<= maxPeptides) {
             for (int t = 0; t<allEntries.length;t++) {
                 Collection<int[]> entries =allEntries[t];
-                Peptide[] allPeptides = m_list.getAllPeptideIDs();
+                PeptideStore allPeptides = m_list.getAllPeptideIDs();
                 Iterator<int[]> it = entries.iterator();
                 while (it.hasNext()) {
                     int[] ids = it.next();
                     for (int i = 0; i < ids.length; i++) {
-                        Peptide p = allPeptides[ids[i]];
-                        if (p.getMass()<maxPepass)
-                            ret.add(p);
+                        if (allPeptides.getMass(ids[i])<maxPepass)
+                            ret.add(allPeptides.get(ids[i]));
                     }
                 }
             }
@@ -541,7 +554,7 @@ public class FragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup, Fr
     
     public ArrayList<Peptide> getPeptidesExactFragmentMass(double mass) {
         ArrayList<Peptide> ret = new ArrayList<Peptide>();
-        Peptide[] allPeptides = m_list.getAllPeptideIDs();
+        PeptideStore allPeptides = m_list.getAllPeptideIDs();
         for (int t = 0; t<m_threadTrees.length;t++) {
 //            if ((int)mass == 173)
 //                        System.err.println("found it");
@@ -550,13 +563,16 @@ public class FragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup, Fr
                 for (int i = 0; i < ids.length; i++) {
     //                    if (allPeptides[ids.m_peptideIds[i]] == null)
     //                        System.err.println("found it");
-                    ret.add(allPeptides[ids[i]]);
+                    ret.add(allPeptides.get(ids[i]));
                 }
         }
         return ret;
     }
 
     public int countPeptides(double mass) {
+        FragmentMassHistogram histogram = m_histogram;
+        if (histogram != null)
+            return histogram.countPeptides(m_Tolerance.getMinRange(mass), m_Tolerance.getMaxRange(mass));
         int count = 0;
 //        ArrayList<Peptide> ret = new ArrayList<Peptide>();
         for (int t = 0; t<m_threadTrees.length;t++) {
@@ -575,6 +591,9 @@ public class FragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup, Fr
     }
 
     public int countPeptides(double mass, double referenceMass) {
+        FragmentMassHistogram histogram = m_histogram;
+        if (histogram != null)
+            return histogram.countEntries(m_Tolerance.getMinRange(mass,referenceMass), m_Tolerance.getMaxRange(mass, referenceMass));
         int count = 0;
 //        ArrayList<Peptide> ret = new ArrayList<Peptide>();
         for (int t = 0; t<m_threadTrees.length;t++) {
@@ -590,12 +609,12 @@ public class FragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup, Fr
         HashMap<Peptide, Double> ret = new HashMap<Peptide, Double>();
         for (int t = 0; t<m_threadTrees.length;t++) {
             Collection<int[]> entries =  m_threadTrees[t].subMap(m_Tolerance.getMinRange(mass), m_Tolerance.getMaxRange(mass)).values();
-            Peptide[] allPeptides = m_list.getAllPeptideIDs();
+            PeptideStore allPeptides = m_list.getAllPeptideIDs();
             Iterator<int[]> it = entries.iterator();
             while (it.hasNext()) {
                 int[] ids = it.next();
                 for (int i = 0; i < ids.length; i++)
-                    ret.put(allPeptides[ids[i]], mass);
+                    ret.put(allPeptides.get(ids[i]), mass);
             }
         }
         return ret;
@@ -605,6 +624,16 @@ public class FragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup, Fr
         m_Tolerance = tolerance;
     }
 
+    /**
+     * (re-)builds the histogram, that is used for counting the fragments 
+     * within a mass window.
+     */
+    public void buildHistogram() {
+        m_histogram = new FragmentMassHistogram(m_threadTrees);
+        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Fragment mass histogram: {0} distinct masses ({1})", 
+                new Object[]{m_histogram.size(), StringUtils.toHuman(m_histogram.bytes())});
+    }
+
 
 
 
@@ -628,6 +657,8 @@ public class FragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup, Fr
     public void addFragment(Peptide pep, double mass) {
         synchronized (m_threadTrees) {
             addFragment(pep, mass, m_threadTrees[m_nextTree], m_nextTree);
+            // does not know about the new fragment
+            m_histogram = null;
         }
     }
 
@@ -674,7 +705,7 @@ public class FragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup, Fr
 
     public void dump(Writer out) throws IOException {
         BufferedWriter bw = new BufferedWriter(out);
-        Peptide[] allPeptides = m_list.getAllPeptideIDs();
+        PeptideStore allPeptides = m_list.getAllPeptideIDs();
         HashSet<Double> masses = new HashSet<Double>();
         for (int i = 0; i < m_threadTrees.length; i++) {
             java.util.Set<Double> s = m_threadTrees[i].keySet();
@@ -824,6 +855,7 @@ public class FragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup, Fr
             Logger.getLogger(this.getClass().getName()).log(Level.INFO, "After gc:"  + Util.memoryToString());
             Logger.getLogger(this.getClass().getName()).log(Level.INFO, counts());
         }
+        buildHistogram();
 
     }
 
@@ -881,7 +913,7 @@ public class FragmentTreeSlimedArrayMassSplitBuild implements FragmentLookup, Fr
 
     @Override
     public Peptide lastFragmentedPeptide() {
-        return m_peptides.current();
+        return m_lastPeptide;
     }
 
     public PeptideIterator getPeptideIterator() {
@@ -38,6 +38,7 @@ import rappsilber.ms.ToleranceUnit;
 import rappsilber.ms.lookup.peptides.PeptideLookup;
 import rappsilber.ms.sequence.Iterators.PeptideIterator;
 import rappsilber.ms.sequence.Peptide;
+import rappsilber.ms.sequence.PeptideStore;
 import rappsilber.ms.sequence.Sequence;
 import rappsilber.ms.sequence.SequenceList;
 import rappsilber.ms.sequence.ions.Fragment;
@@ -67,6 +68,8 @@ public class FragmentTreeSlimedIntArray implements FragmentLookup, FragmentColle
     private AtomicInteger m_processedSequences = new AtomicInteger(0);
 
     private PeptideIterator m_peptides = null;
+    /** the last fragmented peptide - the iterator is not kept, as it would keep the peptide lookup alive */
+    private Peptide m_lastPeptide = null;
     private int[]   peptides_perTree;
     
     private int     m_maxPeakCandidates;
@@ -299,6 +302,8 @@ public class FragmentTreeSlimedIntArray implements FragmentLookup, FragmentColle
         m_maxPeakCandidates = m_config.getMaximumPeptideCandidatesPerPeak();
 
         insertFragementsFromPeptides(PeptideList);
+        m_lastPeptide = m_peptides.current();
+        m_peptides = null;
     }
 
     public FragmentTreeSlimedIntArray(PeptideLookup PeptideList, long maxPeptides, Peptide lastPeptide, SequenceList list, ToleranceUnit Tolerance, int threads, double MaximumPeptideMass, RunConfig config){
@@ -316,6 +321,8 @@ public class FragmentTreeSlimedIntArray implements FragmentLookup, FragmentColle
         m_maxPeakCandidates = m_config.getMaximumPeptideCandidatesPerPeak();
 
         insertFragementsFromPeptides(PeptideList);
+        m_lastPeptide = m_peptides.current();
+        m_peptides = null;
     }
 
     public void insertFragements(Iterator<Sequence> sequences) {
@@ -408,7 +415,7 @@ public class FragmentTreeSlimedIntArray implements FragmentLookup, FragmentColle
         int max = (int) (m_Tolerance.getMaxRange(mass)*divide);
         
         ArrayList<Peptide> ret = new ArrayList<Peptide>();
-        Peptide[] allPeptides = m_list.getAllPeptideIDs();
+        PeptideStore allPeptides = m_list.getAllPeptideIDs();
         for (int t = 0; t<m_threadTrees.length;t++) {
 //            if ((int)mass == 173)
 //                        System.err.println("found it");
@@ -420,7 +427,7 @@ public class FragmentTreeSlimedIntArray implements FragmentLookup, FragmentColle
                 for (int i = 0; i < ids.length; i++) {
 //                    if (allPeptides[ids.m_peptideIds[i]] == null)
 //                        System.err.println("found it");
-                    ret.add(allPeptides[ids[i]]);
+                    ret.add(allPeptides.get(ids[i]));
                 }
             }
         }
@@ -433,12 +440,12 @@ public class FragmentTreeSlimedIntArray implements FragmentLookup, FragmentColle
         int max = (int) (m_Tolerance.getMaxRange(mass, referenceMass)*divide);
         for (int t = 0; t<m_threadTrees.length;t++) {
             Collection<int[]> entries =  m_threadTrees[t].subMap(min,max).values();
-            Peptide[] allPeptides = m_list.getAllPeptideIDs();
+            PeptideStore allPeptides = m_list.getAllPeptideIDs();
             Iterator<int[]> it = entries.iterator();
             while (it.hasNext()) {
                 int[] ids = it.next();
                 for (int i = 0; i < ids.length; i++) {
-                    ret.add(allPeptides[ids[i]]);
+                    ret.add(allPeptides.get(ids[i]));
                 }
             }
         }
@@ -452,14 +459,13 @@ public class FragmentTreeSlimedIntArray implements FragmentLookup, FragmentColle
         int max = (int) (m_Tolerance.getMaxRange(mass, referenceMass)*divide);
         for (int t = 0; t<m_threadTrees.length;t++) {
             Collection<int[]> entries =  m_threadTrees[t].subMap(min,max).values();
-            Peptide[] allPeptides = m_list.getAllPeptideIDs();
+            PeptideStore allPeptides = m_list.getAllPeptideIDs();
             Iterator<int[]> it = entries.iterator();
             while (it.hasNext()) {
                 int[] ids = it.next();
                 for (int i = 0; i < ids.length; i++) {
-                    Peptide p = allPeptides[ids[i]];
-                    if (p.getMass()<maxPepMass)
-                        ret.add(p);
+                    if (allPeptides.getMass(ids[i])<maxPepMass)
+                        ret.add(allPeptides.get(ids[i]));
                 }
             }
         }
@@ -484,14 +490,13 @@ public class FragmentTreeSlimedIntArray implements FragmentLookup, FragmentColle
         if (count<= maxPeptides) {
             for (int t = 0; t<allEntries.length;t++) {
                 Collection<int[]> entries =allEntries[t];
-                Peptide[] allPeptides = m_list.getAllPeptideIDs();
+                PeptideStore allPeptides = m_list.getAllPeptideIDs();
                 Iterator<int[]> it = entries.iterator();
                 while (it.hasNext()) {
                     int[] ids = it.next();
                     for (int i = 0; i < ids.length; i++) {
-                        Peptide p = allPeptides[ids[i]];
-                        if (p.getMass()<maxPepMass)
-                            ret.add(p);
+                        if (allPeptides.getMass(ids[i])<maxPepMass)
+                            ret.add(allPeptides.get(ids[i]));
                     }
                 }
             }
@@ -505,7 +510,7 @@ public class FragmentTreeSlimedIntArray implements FragmentLookup, FragmentColle
 
     protected ArrayList<Peptide> getPeptidesExactFragmentMass(int mass) {
         ArrayList<Peptide> ret = new ArrayList<Peptide>();
-        Peptide[] allPeptides = m_list.getAllPeptideIDs();
+        PeptideStore allPeptides = m_list.getAllPeptideIDs();
         for (int t = 0; t<m_threadTrees.length;t++) {
 //            if ((int)mass == 173)
 //                        System.err.println("found it");
@@ -514,7 +519,7 @@ public class FragmentTreeSlimedIntArray implements FragmentLookup, FragmentColle
                 for (int i = 0; i < ids.length; i++) {
     //                    if (allPeptides[ids.m_peptideIds[i]] == null)
     //                        System.err.println("found it");
-                    ret.add(allPeptides[ids[i]]);
+                    ret.add(allPeptides.get(ids[i]));
                 }
         }
         return ret;
@@ -558,12 +563,12 @@ public class FragmentTreeSlimedIntArray implements FragmentLookup, FragmentColle
         int max = (int) (m_Tolerance.getMaxRange(mass)*divide);
         for (int t = 0; t<m_threadTrees.length;t++) {
             Collection<int[]> entries =  m_threadTrees[t].subMap(min, max).values();
-            Peptide[] allPeptides = m_list.getAllPeptideIDs();
+            PeptideStore allPeptides = m_list.getAllPeptideIDs();
             Iterator<int[]> it = entries.iterator();
             while (it.hasNext()) {
                 int[] ids = it.next();
                 for (int i = 0; i < ids.length; i++)
-                    ret.put(allPeptides[ids[i]], mass);
+                    ret.put(allPeptides.get(ids[i]), mass);
             }
         }
         return ret;
@@ -644,7 +649,7 @@ public class FragmentTreeSlimedIntArray implements FragmentLookup, FragmentColle
 
     public void dump(Writer out) throws IOException {
         BufferedWriter bw = new BufferedWriter(out);
-        Peptide[] allPeptides = m_list.getAllPeptideIDs();
+        PeptideStore allPeptides = m_list.getAllPeptideIDs();
         HashSet<Integer> masses = new HashSet<Integer>();
         for (int i = 0; i < m_threadTrees.length; i++) {
             java.util.Set<Integer> s = m_threadTrees[i].keySet();
@@ -713,7 +718,7 @@ public class FragmentTreeSlimedIntArray implements FragmentLookup, FragmentColle
 
     @Override
     public Peptide lastFragmentedPeptide() {
-        return m_peptides.current();
+        return m_lastPeptide;
     }
 
     public PeptideIterator getPeptideIterator() {
@@ -38,6 +38,7 @@ import rappsilber.ms.crosslinker.CrossLinker;
 import rappsilber.ms.lookup.peptides.PeptideLookup;
 import rappsilber.ms.sequence.Iterators.PeptideIterator;
 import rappsilber.ms.sequence.Peptide;
+import rappsilber.ms.sequence.PeptideStore;
 import rappsilber.ms.sequence.Sequence;
 import rappsilber.ms.sequence.SequenceList;
 import rappsilber.ms.sequence.ions.Fragment;
@@ -65,6 +66,8 @@ public class FragmentTreeSlimedMTvArrayOnly implements FragmentLookup, FragmentC
     private UpdateableInteger m_processedSequences = new UpdateableInteger(0);
 
     private PeptideIterator m_peptides = null;
+    /** the last fragmented peptide - the iterator is not kept, as it would keep the peptide lookup alive */
+    private Peptide m_lastPeptide = null;
     private int[]   peptides_perTree;
     private int m_maxPeakCandidates;   
 
@@ -87,6 +90,10 @@ public class FragmentTreeSlimedMTvArrayOnly implements FragmentLookup, FragmentC
     int[]          m_perTreeCount;
     RunConfig      m_config = null;
     int            m_total_Peptides;
+    /** the last sub-trees are segments added after the tree was build */
+    int            m_segments = 0;
+    /** more segments then this get merged into the original sub-trees */
+    int            m_maxSegments = 4;
 
 
 
@@ -323,6 +330,7 @@ public class FragmentTreeSlimedMTvArrayOnly implements FragmentLookup, FragmentC
         m_perTreeCount = new int[threads];
         m_config = config;
         m_maxPeakCandidates = m_config.getMaximumPeptideCandidatesPerPeak();
+        m_maxSegments = m_config.retrieveObject("FRAGMENT_DELTA_SEGMENTS", m_maxSegments);
 
         insertFragements(list.iterator());
     }
@@ -339,8 +347,11 @@ public class FragmentTreeSlimedMTvArrayOnly implements FragmentLookup, FragmentC
         m_total_Peptides = PeptideList.size();
         m_peptides = PeptideList.iterator();
         m_maxPeakCandidates = m_config.getMaximumPeptideCandidatesPerPeak();
+        m_maxSegments = m_config.retrieveObject("FRAGMENT_DELTA_SEGMENTS", m_maxSegments);
 
         insertFragementsFromPeptides(PeptideList);
+        m_lastPeptide = m_peptides.current();
+        m_peptides = null;
     }
 
     public FragmentTreeSlimedMTvArrayOnly(PeptideLookup PeptideList, long maxPeptides, Peptide lastPeptide, SequenceList list, ToleranceUnit Tolerance, int threads, double MaximumPeptideMass, RunConfig config){
@@ -356,8 +367,11 @@ public class FragmentTreeSlimedMTvArrayOnly implements FragmentLookup, FragmentC
         m_peptides = PeptideList.iteratorAfter(lastPeptide);
         m_maxPeptides = maxPeptides;
         m_maxPeakCandidates = m_config.getMaximumPeptideCandidatesPerPeak();
+        m_maxSegments = m_config.retrieveObject("FRAGMENT_DELTA_SEGMENTS", m_maxSegments);
 
         insertFragementsFromPeptides(PeptideList);
+        m_lastPeptide = m_peptides.current();
+        m_peptides = null;
     }
 
     public void insertFragements(Iterator<Sequence> sequences) {
@@ -463,6 +477,60 @@ public class FragmentTreeSlimedMTvArrayOnly implements FragmentLookup, FragmentC
 //    }
 
 
+    /**
+     * Adds the fragments of further peptides as a new segment - without
+     * touching the existing sub-trees. A segment is just another sub-tree, so
+     * all look-ups go through it as well. The peptides have to be part of the
+     * peptide index of the sequence list already.<br/>
+     * If there are more then FRAGMENT_DELTA_SEGMENTS segments, all segments
+     * get merged into the original sub-trees.<br/>
+     * Must not be called while the tree is in use.
+     * @param peptides
+     */
+    public void addSegment(Collection<Peptide> peptides) {
+        int tree = m_threadTrees.length;
+        m_threadTrees = java.util.Arrays.copyOf(m_threadTrees, tree + 1);
+        m_perTreeCount = java.util.Arrays.copyOf(m_perTreeCount, tree + 1);
+        m_threadTrees[tree] = new TreeMap<Double, int[]>();
+        m_total_Peptides += peptides.size();
+        new addingPeptideTree(peptides.iterator(), tree, peptides.size()).run();
+        m_segments++;
+        if (m_segments > m_maxSegments) {
+            compact();
+        }
+    }
+
+    /**
+     * merges all segments into the original sub-trees
+     */
+    public void compact() {
+        int base = m_threadTrees.length - m_segments;
+        for (int t = base; t < m_threadTrees.length; t++) {
+            // each segment goes into the currently smallest sub-tree
+            int target = 0;
+            for (int b = 1; b < base; b++) {
+                if (m_perTreeCount[b] < m_perTreeCount[target]) {
+                    target = b;
+                }
+            }
+            TreeMap<Double, int[]> targetTree = m_threadTrees[target];
+            for (Map.Entry<Double, int[]> e : m_threadTrees[t].entrySet()) {
+                int[] ids = e.getValue();
+                int[] src = targetTree.get(e.getKey());
+                if (src != null) {
+                    int[] merged = java.util.Arrays.copyOf(src, src.length + ids.length);
+                    System.arraycopy(ids, 0, merged, src.length, ids.length);
+                    ids = merged;
+                }
+                targetTree.put(e.getKey(), ids);
+            }
+            m_perTreeCount[target] += m_perTreeCount[t];
+        }
+        m_threadTrees = java.util.Arrays.copyOf(m_threadTrees, base);
+        m_perTreeCount = java.util.Arrays.copyOf(m_perTreeCount, base);
+        m_segments = 0;
+    }
+
     public void clear() {
         for (TreeMap t: m_threadTrees)
             t.clear();
@@ -476,14 +544,14 @@ public class FragmentTreeSlimedMTvArrayOnly implements FragmentLookup, FragmentC
 //            if ((int)mass == 173)
 //                        System.err.println("found it");
             Collection<int[]> entries =  m_threadTrees[t].subMap(m_Tolerance.getMinRange(mass), m_Tolerance.getMaxRange(mass)).values();
-            Peptide[] allPeptides = m_list.getAllPeptideIDs();
+            PeptideStore allPeptides = m_list.getAllPeptideIDs();
             Iterator<int[]> it = entries.iterator();
             while (it.hasNext()) {
                 int[] ids = it.next();
                 for (int i = 0; i < ids.length; i++) {
 //                    if (allPeptides[ids.m_peptideIds[i]] == null)
 //                        System.err.println("found it");
-                    ret.add(allPeptides[ids[i]]);
+                    ret.add(allPeptides.get(ids[i]));
                 }
             }
         }
@@ -494,12 +562,12 @@ public class FragmentTreeSlimedMTvArrayOnly implements FragmentLookup, FragmentC
         ArrayList<Peptide> ret = new ArrayList<Peptide>();
         for (int t = 0; t<m_threadTrees.length;t++) {
             Collection<int[]> entries =  m_threadTrees[t].subMap(m_Tolerance.getMinRange(mass, referenceMass), m_Tolerance.getMaxRange(mass, referenceMass)).values();
-            Peptide[] allPeptides = m_list.getAllPeptideIDs();
+            PeptideStore allPeptides = m_list.getAllPeptideIDs();
             Iterator<int[]> it = entries.iterator();
             while (it.hasNext()) {
                 int[] ids = it.next();
                 for (int i = 0; i < ids.length; i++) {
-                    ret.add(allPeptides[ids[i]]);
+                    ret.add(allPeptides.get(ids[i]));
                 }
             }
         }
@@ -511,14 +579,13 @@ public class FragmentTreeSlimedMTvArrayOnly implements FragmentLookup, FragmentC
         ArrayList<Peptide> ret = new ArrayList<Peptide>();
         for (int t = 0; t<m_threadTrees.length;t++) {
             Collection<int[]> entries =  m_threadTrees[t].subMap(m_Tolerance.getMinRange(mass, referenceMass), m_Tolerance.getMaxRange(mass, referenceMass)).values();
-            Peptide[] allPeptides = m_list.getAllPeptideIDs();
+            PeptideStore allPeptides = m_list.getAllPeptideIDs();
             Iterator<int[]> it = entries.iterator();
             while (it.hasNext()) {
                 int[] ids = it.next();
                 for (int i = 0; i < ids.length; i++) {
-                    Peptide p = allPeptides[ids[i]];
-                    if (p.getMass()<maxPepass)
-                        ret.add(p);
+                    if (allPeptides.getMass(ids[i])<maxPepass)
+                        ret.add(allPeptides.get(ids[i]));
                 }
             }
         }
@@ -538,14 +605,13 @@ public class FragmentTreeSlimedMTvArrayOnly implements FragmentLookup, FragmentC
         if (count<= maxPeptides) {
             for (int t = 0; t<allEntries.length;t++) {
                 Collection<int[]> entries =allEntries[t];
-                Peptide[] allPeptides = m_list.getAllPeptideIDs();
+                PeptideStore allPeptides = m_list.getAllPeptideIDs();
                 Iterator<int[]> it = entries.iterator();
                 while (it.hasNext()) {
                     int[] ids = it.next();
                     for (int i = 0; i < ids.length; i++) {
-                        Peptide p = allPeptides[ids[i]];
-                        if (p.getMass()<maxPepass)
-                            ret.add(p);
+                        if (allPeptides.getMass(ids[i])<maxPepass)
+                            ret.add(allPeptides.get(ids[i]));
                     }
                 }
             }
@@ -555,7 +621,7 @@ public class FragmentTreeSlimedMTvArrayOnly implements FragmentLookup, FragmentC
 
     public ArrayList<Peptide> getPeptidesExactFragmentMass(double mass) {
         ArrayList<Peptide> ret = new ArrayList<Peptide>();
-        Peptide[] allPeptides = m_list.getAllPeptideIDs();
+        PeptideStore allPeptides = m_list.getAllPeptideIDs();
         for (int t = 0; t<m_threadTrees.length;t++) {
 //            if ((int)mass == 173)
 //                        System.err.println("found it");
@@ -564,7 +630,7 @@ public class FragmentTreeSlimedMTvArrayOnly implements FragmentLookup, FragmentC
                 for (int i = 0; i < ids.length; i++) {
     //                    if (allPeptides[ids.m_peptideIds[i]] == null)
     //                        System.err.println("found it");
-                    ret.add(allPeptides[ids[i]]);
+                    ret.add(allPeptides.get(ids[i]));
                 }
         }
         return ret;
@@ -604,12 +670,12 @@ public class FragmentTreeSlimedMTvArrayOnly implements FragmentLookup, FragmentC
         HashMap<Peptide, Double> ret = new HashMap<Peptide, Double>();
         for (int t = 0; t<m_threadTrees.length;t++) {
             Collection<int[]> entries =  m_threadTrees[t].subMap(m_Tolerance.getMinRange(mass), m_Tolerance.getMaxRange(mass)).values();
-            Peptide[] allPeptides = m_list.getAllPeptideIDs();
+            PeptideStore allPeptides = m_list.getAllPeptideIDs();
             Iterator<int[]> it = entries.iterator();
             while (it.hasNext()) {
                 int[] ids = it.next();
                 for (int i = 0; i < ids.length; i++)
-                    ret.put(allPeptides[ids[i]], mass);
+                    ret.put(allPeptides.get(ids[i]), mass);
             }
         }
         return ret;
@@ -688,7 +754,7 @@ public class FragmentTreeSlimedMTvArrayOnly implements FragmentLookup, FragmentC
 
     public void dump(Writer out) throws IOException {
         BufferedWriter bw = new BufferedWriter(out);
-        Peptide[] allPeptides = m_list.getAllPeptideIDs();
+        PeptideStore allPeptides = m_list.getAllPeptideIDs();
         HashSet<Double> masses = new HashSet<Double>();
         for (int i = 0; i < m_threadTrees.length; i++) {
             java.util.Set<Double> s = m_threadTrees[i].keySet();
@@ -770,7 +836,7 @@ public class FragmentTreeSlimedMTvArrayOnly implements FragmentLookup, FragmentC
 
     @Override
     public Peptide lastFragmentedPeptide() {
-        return m_peptides.current();
+        return m_lastPeptide;
     }
 
     public PeptideIterator getPeptideIterator() {
@@ -0,0 +1,837 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.lookup.fragments;
+
+import it.unimi.dsi.fastutil.Swapper;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rappsilber.config.RunConfig;
+import rappsilber.ms.ToleranceUnit;
+import rappsilber.ms.lookup.peptides.PeptideLookup;
+import rappsilber.ms.sequence.Peptide;
+import rappsilber.ms.sequence.PeptideStore;
+import rappsilber.ms.sequence.SequenceList;
+import rappsilber.ms.sequence.ions.Fragment;
+import rappsilber.ms.spectra.Spectra;
+import rappsilber.ms.spectra.SpectraPeak;
+import rappsilber.utils.ArithmeticScoredOccurence;
+import rappsilber.utils.Util;
+
+/**
+ * A fragment lookup for databases, where the fragments of all peptides do not
+ * fit into memory at once.<br/>
+ * The peptides are split into shards of consecutive peptides. The fragments
+ * of each shard are written into a file as sorted arrays and only one shard
+ * is loaded at any time. Only the number of fragments per distinct mass is
+ * kept in memory for all shards - so counting fragments needs no shard.<br/>
+ * The alpha candidates should be looked up for a whole block of spectra at
+ * once via {@link #getAlphaCandidates(List, double[])}. That goes twice
+ * through the shards - first counting the matches of each peak over all
+ * shards and then scoring the matched peptides. As each peptide is in exactly
+ * one shard and gets its peak scores in the same order, the scores are
+ * exactly the same as with a lookup that holds all fragments. Each shard
+ * takes the place of a sub-tree of {@link FragmentTreeSlimedArrayMassSplitBuild},
+ * when it comes to the maximum number of candidates per peak.<br/>
+ * All other look-ups go through all shards for each call and are slow.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class ShardedFragmentLookup implements FragmentLookup, FragmentCollection {
+
+    /** bytes per read/write of the shard-files */
+    private static final int IO_BUFFER = 1024 * 1024;
+
+    private ToleranceUnit m_Tolerance;
+    private SequenceList m_list;
+    private RunConfig m_config;
+    private int m_threads;
+    private int m_maxPeakCandidates;
+    private double m_MinimumMass = 0;
+    private double m_MaximumPeptideMass = Double.MAX_VALUE;
+
+    /** the files holding the fragments of each shard */
+    private File[] m_shardFiles;
+    /** total number of fragments over all shards */
+    private int m_FragmentCount = 0;
+
+    /** all distinct fragment masses over all shards - sorted */
+    private double[] m_countMasses = new double[0];
+    /** number of peptide-ids for all masses before the given index */
+    private int[] m_peptideCounts = new int[]{0};
+    /** number of shard-entries for all masses before the given index */
+    private int[] m_entryCounts = new int[]{0};
+    /** counts the fragments over all shards */
+    private FragmentMassHistogram m_histogram;
+
+    /** the currently loaded shard */
+    private Shard m_loaded;
+    /** threads for the block look-ups - created on first use and kept */
+    private ExecutorService m_pool;
+    /** the last fragmented peptide */
+    private Peptide m_lastPeptide;
+
+    /**
+     * the fragments of one shard
+     */
+    private static class Shard {
+        /** which shard */
+        int index;
+        /** the distinct fragment masses - sorted */
+        double[] masses;
+        /** where the peptide-ids of each mass start (plus the end of the last one) */
+        int[] offsets;
+        /** the peptide-ids */
+        int[] ids;
+
+        /**
+         * @return index of the first mass that is not smaller then the given mass
+         */
+        int first(double mass) {
+            int from = 0;
+            int to = masses.length;
+            while (from < to) {
+                int mid = (from + to) >>> 1;
+                if (masses[mid] < mass) {
+                    from = mid + 1;
+                } else {
+                    to = mid;
+                }
+            }
+            return from;
+        }
+    }
+
+    /**
+     * builds the shards
+     * @param peptides the peptides to fragment
+     * @param list the sequences - for translating peptide-ids
+     * @param shards into how many shards the peptides should be split
+     * @param folder where to write the shard-files (null = temp-folder)
+     * @param threads how many threads to use
+     * @param config
+     */
+    public ShardedFragmentLookup(PeptideLookup peptides, SequenceList list, int shards, File folder, int threads, RunConfig config) {
+        m_list = list;
+        m_config = config;
+        m_Tolerance = config.getFragmentToleranceCandidate();
+        m_threads = Math.max(1, threads);
+        m_maxPeakCandidates = config.getMaximumPeptideCandidatesPerPeak();
+        try {
+            insertFragementsFromPeptides(peptides, Math.max(1, shards), folder);
+        } catch (IOException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "error while writing the fragment shards", ex);
+            throw new Error(ex);
+        }
+    }
+
+    /**
+     * fragments the peptides shard by shard and writes out each shard
+     */
+    private void insertFragementsFromPeptides(PeptideLookup peptides, int shards, File folder) throws IOException {
+        ArrayList<Peptide> all = new ArrayList<Peptide>(peptides.size());
+        for (Peptide p : peptides) {
+            if (p.getMass() < m_MaximumPeptideMass && p.getMass() > m_MinimumMass) {
+                all.add(p);
+            }
+        }
+        int perShard = (all.size() + shards - 1) / shards;
+        m_shardFiles = new File[shards];
+        for (int s = 0; s < shards; s++) {
+            List<Peptide> shardPeptides = all.subList(Math.min(all.size(), s * perShard), Math.min(all.size(), (s + 1) * perShard));
+            m_config.getStatusInterface().setStatus("Fragmentation: shard " + (s + 1) + " of " + shards);
+            Shard shard = buildShard(s, shardPeptides);
+            m_shardFiles[s] = File.createTempFile("xi_fragments_" + s + "_", ".shard", folder);
+            m_shardFiles[s].deleteOnExit();
+            write(shard, m_shardFiles[s]);
+            addCounts(shard);
+            Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Fragment shard {0}: {1} peptides, {2} masses, {3} fragments",
+                    new Object[]{s, shardPeptides.size(), shard.masses.length, shard.ids.length});
+            if (!shardPeptides.isEmpty()) {
+                m_lastPeptide = shardPeptides.get(shardPeptides.size() - 1);
+            }
+            m_loaded = shard;
+        }
+        m_histogram = new FragmentMassHistogram(m_countMasses, m_peptideCounts, m_entryCounts);
+        // only needed while building up the histogram
+        m_countMasses = null;
+        m_peptideCounts = null;
+        m_entryCounts = null;
+        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Fragments in all shards:{0}", m_FragmentCount);
+        Util.forceGC();
+    }
+
+    /**
+     * fragments the peptides of a shard on several threads
+     */
+    private Shard buildShard(int index, final List<Peptide> peptides) {
+        int blocks = m_threads;
+        int blockSize = (peptides.size() + blocks - 1) / Math.max(1, blocks);
+        ExecutorService pool = Executors.newFixedThreadPool(m_threads);
+        ArrayList<Future<Object[]>> parts = new ArrayList<Future<Object[]>>();
+        try {
+            for (int b = 0; b < blocks; b++) {
+                final int from = Math.min(peptides.size(), b * blockSize);
+                final int to = Math.min(peptides.size(), from + blockSize);
+                parts.add(pool.submit(new Callable<Object[]>() {
+                    @Override
+                    public Object[] call() {
+                        double[] masses = new double[1024];
+                        int[] ids = new int[1024];
+                        int n = 0;
+                        for (int i = from; i < to; i++) {
+                            Peptide pep = peptides.get(i);
+                            ArrayList<Fragment> frags = m_config == null ? pep.getPrimaryFragments() : pep.getPrimaryFragments(m_config);
+                            for (int f = 0; f < frags.size(); f++) {
+                                if (n == masses.length) {
+                                    masses = Arrays.copyOf(masses, n * 2);
+                                    ids = Arrays.copyOf(ids, n * 2);
+                                }
+                                masses[n] = frags.get(f).getMass();
+                                ids[n++] = pep.getPeptideIndex();
+                            }
+                        }
+                        return new Object[]{masses, ids, n};
+                    }
+                }));
+            }
+            int total = 0;
+            Object[][] results = new Object[blocks][];
+            for (int b = 0; b < blocks; b++) {
+                results[b] = parts.get(b).get();
+                total += (Integer) results[b][2];
+            }
+            final double[] masses = new double[total];
+            final int[] ids = new int[total];
+            int pos = 0;
+            for (int b = 0; b < blocks; b++) {
+                int n = (Integer) results[b][2];
+                System.arraycopy((double[]) results[b][0], 0, masses, pos, n);
+                System.arraycopy((int[]) results[b][1], 0, ids, pos, n);
+                pos += n;
+                results[b] = null;
+            }
+            m_FragmentCount += total;
+            it.unimi.dsi.fastutil.Arrays.quickSort(0, total, new IntComparator() {
+                @Override
+                public int compare(int k1, int k2) {
+                    int ret = Double.compare(masses[k1], masses[k2]);
+                    return ret != 0 ? ret : Integer.compare(ids[k1], ids[k2]);
+                }
+
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return compare(o1.intValue(), o2.intValue());
+                }
+            }, new Swapper() {
+                @Override
+                public void swap(int a, int b) {
+                    double m = masses[a];
+                    masses[a] = masses[b];
+                    masses[b] = m;
+                    int i = ids[a];
+                    ids[a] = ids[b];
+                    ids[b] = i;
+                }
+            });
+            return toShard(index, masses, ids);
+        } catch (InterruptedException ex) {
+            throw new Error(ex);
+        } catch (ExecutionException ex) {
+            throw new Error(ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * turns the sorted fragments into distinct masses with their peptide-ids.<br/>
+     * Masses with more peptides then the maximum candidates per peak are
+     * dropped.
+     */
+    private Shard toShard(int index, double[] masses, int[] ids) {
+        int n = masses.length;
+        double[] distinct = new double[n];
+        int[] offsets = new int[n + 1];
+        int[] keptIds = ids;
+        int count = 0;
+        int kept = 0;
+        int i = 0;
+        while (i < n) {
+            int j = i + 1;
+            while (j < n && masses[j] == masses[i]) {
+                j++;
+            }
+            if (m_maxPeakCandidates <= 0 || j - i <= m_maxPeakCandidates) {
+                distinct[count] = masses[i];
+                offsets[count++] = kept;
+                // ids only ever move to the front
+                System.arraycopy(ids, i, keptIds, kept, j - i);
+                kept += j - i;
+            }
+            i = j;
+        }
+        offsets[count] = kept;
+        Shard s = new Shard();
+        s.index = index;
+        s.masses = Arrays.copyOf(distinct, count);
+        s.offsets = Arrays.copyOf(offsets, count + 1);
+        s.ids = kept == ids.length ? keptIds : Arrays.copyOf(keptIds, kept);
+        return s;
+    }
+
+    /**
+     * adds the masses of a shard to the counts over all shards
+     */
+    private void addCounts(Shard shard) {
+        double[] masses = new double[m_countMasses.length + shard.masses.length];
+        int[] peptideCounts = new int[masses.length + 1];
+        int[] entryCounts = new int[masses.length + 1];
+        int a = 0;
+        int b = 0;
+        int n = 0;
+        while (a < m_countMasses.length || b < shard.masses.length) {
+            double mass;
+            int peptides = 0;
+            int entries = 0;
+            if (b >= shard.masses.length || (a < m_countMasses.length && m_countMasses[a] <= shard.masses[b])) {
+                mass = m_countMasses[a];
+            } else {
+                mass = shard.masses[b];
+            }
+            if (a < m_countMasses.length && m_countMasses[a] == mass) {
+                peptides += m_peptideCounts[a + 1] - m_peptideCounts[a];
+                entries += m_entryCounts[a + 1] - m_entryCounts[a];
+                a++;
+            }
+            if (b < shard.masses.length && shard.masses[b] == mass) {
+                peptides += shard.offsets[b + 1] - shard.offsets[b];
+                entries++;
+                b++;
+            }
+            masses[n] = mass;
+            peptideCounts[n + 1] = peptideCounts[n] + peptides;
+            entryCounts[n + 1] = entryCounts[n] + entries;
+            n++;
+        }
+        m_countMasses = Arrays.copyOf(masses, n);
+        m_peptideCounts = Arrays.copyOf(peptideCounts, n + 1);
+        m_entryCounts = Arrays.copyOf(entryCounts, n + 1);
+    }
+
+    /**
+     * writes the shard into the file
+     */
+    private static void write(Shard shard, File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            FileChannel ch = raf.getChannel();
+            ByteBuffer head = ByteBuffer.allocate(8);
+            head.putInt(shard.masses.length).putInt(shard.ids.length).flip();
+            while (head.hasRemaining()) {
+                ch.write(head);
+            }
+            ByteBuffer buf = ByteBuffer.allocate(IO_BUFFER);
+            for (int i = 0; i < shard.masses.length; i++) {
+                if (buf.remaining() < 8) {
+                    flush(ch, buf);
+                }
+                buf.putDouble(shard.masses[i]);
+            }
+            for (int i = 0; i < shard.offsets.length; i++) {
+                if (buf.remaining() < 4) {
+                    flush(ch, buf);
+                }
+                buf.putInt(shard.offsets[i]);
+            }
+            for (int i = 0; i < shard.ids.length; i++) {
+                if (buf.remaining() < 4) {
+                    flush(ch, buf);
+                }
+                buf.putInt(shard.ids[i]);
+            }
+            flush(ch, buf);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void flush(FileChannel ch, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+        buf.clear();
+    }
+
+    /**
+     * reads a shard from the file
+     */
+    private static Shard read(int index, File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel ch = raf.getChannel();
+            ByteBuffer buf = ByteBuffer.allocate(IO_BUFFER);
+            // nothing read yet
+            buf.limit(0);
+            fill(ch, buf, 8);
+            Shard s = new Shard();
+            s.index = index;
+            s.masses = new double[buf.getInt()];
+            s.ids = new int[buf.getInt()];
+            s.offsets = new int[s.masses.length + 1];
+            for (int i = 0; i < s.masses.length; i++) {
+                if (buf.remaining() < 8) {
+                    fill(ch, buf, 8);
+                }
+                s.masses[i] = buf.getDouble();
+            }
+            for (int i = 0; i < s.offsets.length; i++) {
+                if (buf.remaining() < 4) {
+                    fill(ch, buf, 4);
+                }
+                s.offsets[i] = buf.getInt();
+            }
+            for (int i = 0; i < s.ids.length; i++) {
+                if (buf.remaining() < 4) {
+                    fill(ch, buf, 4);
+                }
+                s.ids[i] = buf.getInt();
+            }
+            return s;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * reads at least the given number of bytes into the buffer - keeping
+     * anything, that was not read yet
+     */
+    private static void fill(FileChannel ch, ByteBuffer buf, int bytes) throws IOException {
+        buf.compact();
+        while (buf.position() < bytes) {
+            if (ch.read(buf) < 0) {
+                throw new IOException("unexpected end of fragment shard");
+            }
+        }
+        buf.flip();
+    }
+
+    /**
+     * @param s which shard
+     * @return the shard - loading it if needed
+     */
+    private synchronized Shard shard(int s) {
+        if (m_loaded == null || m_loaded.index != s) {
+            // let go of the old one, before reading the next one
+            m_loaded = null;
+            try {
+                m_loaded = read(s, m_shardFiles[s]);
+            } catch (IOException ex) {
+                Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "error while reading fragment shard " + s, ex);
+                throw new Error(ex);
+            }
+        }
+        return m_loaded;
+    }
+
+    /**
+     * @return the threads for the block look-ups
+     */
+    private synchronized ExecutorService pool() {
+        if (m_pool == null) {
+            m_pool = Executors.newFixedThreadPool(m_threads, new ThreadFactory() {
+                private int m_count = 0;
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "FragmentShardLookup_" + m_count++);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return m_pool;
+    }
+
+    /**
+     * @return number of shards
+     */
+    public int getShardCount() {
+        return m_shardFiles.length;
+    }
+
+    /**
+     * looks up the alpha candidates for a block of spectra.<br/>
+     * Goes through each shard twice - the first time counting the peptides
+     * matched by each peak and the second time multiplying the resulting peak
+     * scores into the matched peptides. Only one block is looked up at a
+     * time.
+     * @param spectra the (mgx-)spectra
+     * @param maxPeptideMass for each spectrum the maximum mass of a candidate
+     * @return for each spectrum the scored candidates
+     */
+    public synchronized ArrayList<ArithmeticScoredOccurence<Peptide>> getAlphaCandidates(List<Spectra> spectra, double[] maxPeptideMass) {
+        final int n = spectra.size();
+        final double[][] mz = new double[n][];
+        for (int i = 0; i < n; i++) {
+            ArrayList<SpectraPeak> peaks = new ArrayList<SpectraPeak>();
+            for (SpectraPeak sp : spectra.get(i)) {
+                peaks.add(sp);
+            }
+            mz[i] = new double[peaks.size()];
+            for (int p = 0; p < mz[i].length; p++) {
+                mz[i][p] = peaks.get(p).getMZ();
+            }
+        }
+        Collection<Double> deltaCollection = m_config.getAlphaCandidateDeltaMasses();
+        double[] deltas = new double[deltaCollection.size()];
+        int d = 0;
+        for (Double delta : deltaCollection) {
+            deltas[d++] = delta;
+        }
+        // per peak: matched peptides in the window, the entries in the window and the matches for the delta masses
+        int[][] windowCounts = new int[n][];
+        int[][] entryCounts = new int[n][];
+        int[][] deltaCounts = new int[n][];
+        for (int i = 0; i < n; i++) {
+            windowCounts[i] = new int[mz[i].length];
+            entryCounts[i] = new int[mz[i].length];
+            deltaCounts[i] = new int[mz[i].length];
+        }
+
+        ArrayList<ArithmeticScoredOccurence<Peptide>> ret = new ArrayList<ArithmeticScoredOccurence<Peptide>>(n);
+        for (int i = 0; i < n; i++) {
+            ret.add(new ArithmeticScoredOccurence<Peptide>());
+        }
+
+        // a single spectrum is looked up on the calling thread
+        ExecutorService pool = n > 1 && m_threads > 1 ? pool() : null;
+        // start with the shard that is already loaded
+        int shards = m_shardFiles.length;
+        int first = m_loaded == null ? 0 : m_loaded.index;
+        for (int s = 0; s < shards; s++) {
+            Shard shard = shard((first + s) % shards);
+            countMatches(pool, shard, mz, maxPeptideMass, deltas, windowCounts, entryCounts, deltaCounts);
+        }
+        // and go back the other way round for scoring
+        double allFragments = getFragmentCount();
+        double[][] peakScores = new double[n][];
+        for (int i = 0; i < n; i++) {
+            peakScores[i] = new double[mz[i].length];
+            for (int p = 0; p < mz[i].length; p++) {
+                int window = m_maxPeakCandidates != -1 && entryCounts[i][p] > m_maxPeakCandidates ? 0 : windowCounts[i][p];
+                peakScores[i][p] = (window + deltaCounts[i][p]) / allFragments;
+                if (m_maxPeakCandidates != -1 && entryCounts[i][p] > m_maxPeakCandidates) {
+                    // marks, that the window itself does not count
+                    entryCounts[i][p] = -1;
+                }
+            }
+        }
+        int last = (first + shards - 1) % shards;
+        for (int s = 0; s < shards; s++) {
+            Shard shard = shard((last - s + shards) % shards);
+            scoreMatches(pool, shard, mz, maxPeptideMass, deltas, peakScores, entryCounts, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * counts the matches of all peaks in one shard
+     */
+    private void countMatches(ExecutorService pool, final Shard shard, final double[][] mz, final double[] maxPeptideMass, final double[] deltas,
+            final int[][] windowCounts, final int[][] entryCounts, final int[][] deltaCounts) {
+        final PeptideStore allPeptides = m_list.getAllPeptideIDs();
+        runBlocks(pool, mz.length, new Block() {
+            @Override
+            public void run(int i) {
+                for (int p = 0; p < mz[i].length; p++) {
+                    double mass = mz[i][p];
+                    int from = shard.first(m_Tolerance.getMinRange(mass, mass));
+                    int to = shard.first(m_Tolerance.getMaxRange(mass, mass));
+                    entryCounts[i][p] += to - from;
+                    windowCounts[i][p] += count(shard, allPeptides, from, to, maxPeptideMass[i]);
+                    for (double d : deltas) {
+                        from = shard.first(m_Tolerance.getMinRange(mass - d, mass));
+                        to = shard.first(m_Tolerance.getMaxRange(mass - d, mass));
+                        deltaCounts[i][p] += count(shard, allPeptides, from, to, maxPeptideMass[i]);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * multiplies the peak scores into the peptides of one shard
+     */
+    private void scoreMatches(ExecutorService pool, final Shard shard, final double[][] mz, final double[] maxPeptideMass, final double[] deltas,
+            final double[][] peakScores, final int[][] entryCounts, final ArrayList<ArithmeticScoredOccurence<Peptide>> scores) {
+        final PeptideStore allPeptides = m_list.getAllPeptideIDs();
+        runBlocks(pool, mz.length, new Block() {
+            @Override
+            public void run(int i) {
+                ArithmeticScoredOccurence<Peptide> peakMatchScores = scores.get(i);
+                for (int p = 0; p < mz[i].length; p++) {
+                    double mass = mz[i][p];
+                    double peakScore = peakScores[i][p];
+                    if (entryCounts[i][p] >= 0) {
+                        int from = shard.first(m_Tolerance.getMinRange(mass, mass));
+                        int to = shard.first(m_Tolerance.getMaxRange(mass, mass));
+                        multiply(shard, allPeptides, from, to, maxPeptideMass[i], peakScore, peakMatchScores);
+                    }
+                    for (double d : deltas) {
+                        int from = shard.first(m_Tolerance.getMinRange(mass - d, mass));
+                        int to = shard.first(m_Tolerance.getMaxRange(mass - d, mass));
+                        multiply(shard, allPeptides, from, to, maxPeptideMass[i], peakScore, peakMatchScores);
+                    }
+                }
+            }
+        });
+    }
+
+    private static int count(Shard shard, PeptideStore allPeptides, int from, int to, double maxPeptideMass) {
+        int count = 0;
+        for (int i = shard.offsets[from]; i < shard.offsets[to]; i++) {
+            if (allPeptides.getMass(shard.ids[i]) < maxPeptideMass) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void multiply(Shard shard, PeptideStore allPeptides, int from, int to, double maxPeptideMass, double score, ArithmeticScoredOccurence<Peptide> scores) {
+        for (int i = shard.offsets[from]; i < shard.offsets[to]; i++) {
+            if (allPeptides.getMass(shard.ids[i]) < maxPeptideMass) {
+                scores.multiply(allPeptides.get(shard.ids[i]), score);
+            }
+        }
+    }
+
+    /**
+     * work done for each spectrum of a block
+     */
+    private interface Block {
+        void run(int spectrum);
+    }
+
+    /**
+     * runs the block for all spectra - split into one chunk of spectra per thread
+     * @param pool the threads to use (null: run on the calling thread)
+     */
+    private void runBlocks(ExecutorService pool, final int n, final Block block) {
+        int chunks = Math.min(n, m_threads * 4);
+        if (chunks <= 1 || pool == null) {
+            for (int i = 0; i < n; i++) {
+                block.run(i);
+            }
+            return;
+        }
+        ArrayList<Future<?>> running = new ArrayList<Future<?>>(chunks);
+        final int chunkSize = (n + chunks - 1) / chunks;
+        for (int c = 0; c < chunks; c++) {
+            final int from = c * chunkSize;
+            final int to = Math.min(n, from + chunkSize);
+            running.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = from; i < to; i++) {
+                        block.run(i);
+                    }
+                }
+            }));
+        }
+        try {
+            for (Future<?> f : running) {
+                f.get();
+            }
+        } catch (InterruptedException ex) {
+            throw new Error(ex);
+        } catch (ExecutionException ex) {
+            throw new Error(ex.getCause());
+        }
+    }
+
+    @Override
+    public ArithmeticScoredOccurence<Peptide> getAlphaCandidates(Spectra s, ToleranceUnit precursorTolerance) {
+        return getAlphaCandidates(s, precursorTolerance.getMaxRange(s.getPrecurserMass()));
+    }
+
+    @Override
+    public ArithmeticScoredOccurence<Peptide> getAlphaCandidates(Spectra s, double maxPeptideMass) {
+        ArrayList<Spectra> spectra = new ArrayList<Spectra>(1);
+        spectra.add(s);
+        return getAlphaCandidates(spectra, new double[]{maxPeptideMass}).get(0);
+    }
+
+    /**
+     * all peptide-ids in the given mass range over all shards.<br/>
+     * A range without any fragment (according to the histogram) does not
+     * touch the shards at all. Otherwise the shards are gone through starting
+     * with the one already loaded - so consecutive look-ups load one shard
+     * less. The peptides are still returned in the order of the shards.<br/>
+     * Each of these look-ups has to go through the shards - the search looks
+     * up blocks of spectra with {@link #getAlphaCandidates(List, double[])}.
+     */
+    private synchronized ArrayList<Peptide> getForRange(double from, double to, double maxPeptideMass) {
+        ArrayList<Peptide> ret = new ArrayList<Peptide>();
+        if (m_histogram.countPeptides(from, to) == 0) {
+            return ret;
+        }
+        PeptideStore allPeptides = m_list.getAllPeptideIDs();
+        int shards = m_shardFiles.length;
+        int first = m_loaded == null ? 0 : m_loaded.index;
+        ArrayList<ArrayList<Peptide>> perShard = new ArrayList<ArrayList<Peptide>>(shards);
+        for (int s = 0; s < shards; s++) {
+            perShard.add(null);
+        }
+        for (int s = 0; s < shards; s++) {
+            int index = (first + s) % shards;
+            Shard shard = shard(index);
+            int f = shard.first(from);
+            int t = shard.first(to);
+            ArrayList<Peptide> found = new ArrayList<Peptide>(shard.offsets[t] - shard.offsets[f]);
+            for (int i = shard.offsets[f]; i < shard.offsets[t]; i++) {
+                if (allPeptides.getMass(shard.ids[i]) < maxPeptideMass) {
+                    found.add(allPeptides.get(shard.ids[i]));
+                }
+            }
+            perShard.set(index, found);
+        }
+        for (ArrayList<Peptide> found : perShard) {
+            ret.addAll(found);
+        }
+        return ret;
+    }
+
+    @Override
+    public ArrayList<Peptide> getForMass(double mass) {
+        return getForRange(m_Tolerance.getMinRange(mass), m_Tolerance.getMaxRange(mass), Double.MAX_VALUE);
+    }
+
+    @Override
+    public ArrayList<Peptide> getForMass(double mass, double referenceMass) {
+        return getForRange(m_Tolerance.getMinRange(mass, referenceMass), m_Tolerance.getMaxRange(mass, referenceMass), Double.MAX_VALUE);
+    }
+
+    @Override
+    public ArrayList<Peptide> getForMass(double mass, double referenceMass, double maxMass) {
+        return getForRange(m_Tolerance.getMinRange(mass, referenceMass), m_Tolerance.getMaxRange(mass, referenceMass), maxMass);
+    }
+
+    @Override
+    public ArrayList<Peptide> getForMass(double mass, double referenceMass, double maxMass, int maxPeptides) {
+        if (countPeptides(mass, referenceMass) > maxPeptides) {
+            return new ArrayList<Peptide>();
+        }
+        return getForMass(mass, referenceMass, maxMass);
+    }
+
+    @Override
+    public Map<Peptide, Double> getPeptidesForMasses(double mass) {
+        HashMap<Peptide, Double> ret = new HashMap<Peptide, Double>();
+        for (Peptide p : getForMass(mass)) {
+            ret.put(p, mass);
+        }
+        return ret;
+    }
+
+    @Override
+    public int getFragmentCount() {
+        return m_FragmentCount;
+    }
+
+    @Override
+    public int countPeptides(double mass) {
+        return m_histogram.countPeptides(m_Tolerance.getMinRange(mass), m_Tolerance.getMaxRange(mass));
+    }
+
+    @Override
+    public int countPeptides(double mass, double targetMass) {
+        return m_histogram.countEntries(m_Tolerance.getMinRange(mass, targetMass), m_Tolerance.getMaxRange(mass, targetMass));
+    }
+
+    @Override
+    public Peptide lastFragmentedPeptide() {
+        return m_lastPeptide;
+    }
+
+    @Override
+    public void addFragment(Peptide pep, double mass) {
+        throw new UnsupportedOperationException("Fragments can't be added to a sharded fragment lookup");
+    }
+
+    @Override
+    public void setTolerance(ToleranceUnit tolerance) {
+        m_Tolerance = tolerance;
+    }
+
+    /**
+     * forgets all fragments and deletes the shard-files
+     */
+    @Override
+    public synchronized void clear() {
+        m_loaded = null;
+        if (m_pool != null) {
+            m_pool.shutdown();
+            m_pool = null;
+        }
+        if (m_shardFiles != null) {
+            for (File f : m_shardFiles) {
+                if (f != null && !f.delete()) {
+                    Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "Could not delete fragment shard {0}", f);
+                }
+            }
+        }
+        m_shardFiles = new File[0];
+        m_histogram = new FragmentMassHistogram(new double[0], new int[]{0}, new int[]{0});
+        m_FragmentCount = 0;
+    }
+
+    @Override
+    public synchronized void writeOutTree(File out) throws IOException {
+        PrintWriter o = new PrintWriter(out);
+        try {
+            PeptideStore allPeptides = m_list.getAllPeptideIDs();
+            for (int s = 0; s < m_shardFiles.length; s++) {
+                Shard shard = shard(s);
+                for (int m = 0; m < shard.masses.length; m++) {
+                    for (int i = shard.offsets[m]; i < shard.offsets[m + 1]; i++) {
+                        o.println(s + "," + shard.masses[m] + "," + allPeptides.get(shard.ids[i]));
+                    }
+                }
+            }
+        } finally {
+            o.close();
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.lookup.peptides;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import rappsilber.config.RunConfig;
+import rappsilber.ms.ToleranceUnit;
+import rappsilber.ms.sequence.Iterators.PeptideIterator;
+import rappsilber.ms.sequence.Peptide;
+import rappsilber.ms.sequence.PeptideStore;
+import rappsilber.ms.sequence.Sequence;
+import rappsilber.ms.statistics.utils.StreamingAverageMedianStdDev;
+
+/**
+ * A read-only copy of a {@link PeptideLookup}, that refers to the peptides by
+ * their index in a {@link PeptideStore}.<br/>
+ * Per peptide only the mass and the index are kept - sorted by mass and in the
+ * same order as in the original lookup. So all lookups return the same
+ * peptides in the same order. The peptide objects are requested from the store
+ * when a lookup returns them. Peptides, that are not in the store, are kept as
+ * objects.<br/>
+ * Has to be created, while the store still contains the peptide objects (see
+ * {@link PeptideStore#compact()}).
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class CompactPeptideLookup implements PeptideLookup {
+    /** mass of each peptide - sorted */
+    private final double[] m_masses;
+    /** index of each peptide in the store - or -1 - index in m_unindexed */
+    private final int[] m_ids;
+    /** peptides not found in the store */
+    private final Peptide[] m_unindexed;
+    private final PeptideStore m_store;
+    private ToleranceUnit m_tolerance;
+    private final int m_size;
+    private final double m_minimumMass;
+    private final double m_maximumMass;
+
+    /**
+     * @param lookup the peptides
+     * @param store where to find the peptides by index
+     * @param tolerance the tolerance for the mass windows
+     */
+    public CompactPeptideLookup(PeptideLookup lookup, PeptideStore store, ToleranceUnit tolerance) {
+        m_store = store;
+        m_tolerance = tolerance;
+        m_size = lookup.size();
+        m_minimumMass = lookup.getMinimumMass();
+        m_maximumMass = lookup.getMaximumMass();
+
+        ArrayList<Peptide> unindexed = new ArrayList<Peptide>();
+        double[] masses = new double[Math.max(16, m_size)];
+        int[] ids = new int[masses.length];
+        int count = 0;
+        for (Peptide p : lookup) {
+            if (count == masses.length) {
+                masses = Arrays.copyOf(masses, count * 2);
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            int id = p.getPeptideIndex();
+            if (id < 0 || id >= store.size() || store.get(id) != p) {
+                id = -1 - unindexed.size();
+                unindexed.add(p);
+            }
+            masses[count] = p.getMass();
+            ids[count++] = id;
+        }
+        m_unindexed = unindexed.toArray(new Peptide[unindexed.size()]);
+
+        boolean sorted = true;
+        for (int i = 1; sorted && i < count; i++) {
+            sorted = masses[i - 1] <= masses[i];
+        }
+        if (!sorted) {
+            // a stable sort - so peptides of the same mass stay in the same order
+            final double[] unsorted = masses;
+            int[] order = new int[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            IntArrays.mergeSort(order, new IntComparator() {
+                @Override
+                public int compare(int k1, int k2) {
+                    return Double.compare(unsorted[k1], unsorted[k2]);
+                }
+
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return compare(o1.intValue(), o2.intValue());
+                }
+            });
+            double[] sortedMasses = new double[count];
+            int[] sortedIds = new int[count];
+            for (int i = 0; i < count; i++) {
+                sortedMasses[i] = masses[order[i]];
+                sortedIds[i] = ids[order[i]];
+            }
+            masses = sortedMasses;
+            ids = sortedIds;
+        }
+        m_masses = Arrays.copyOf(masses, count);
+        m_ids = Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * @return the masses of all peptides - sorted; not to be changed
+     */
+    double[] masses() {
+        return m_masses;
+    }
+
+    /**
+     * @param i
+     * @return the i-th peptide
+     */
+    Peptide get(int i) {
+        int id = m_ids[i];
+        return id >= 0 ? m_store.get(id) : m_unindexed[-1 - id];
+    }
+
+    /**
+     * @param mass
+     * @return the index of the first peptide with at least the given mass
+     */
+    private int indexOf(double mass) {
+        int from = 0;
+        int to = m_masses.length;
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (m_masses[mid] < mass) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+    /**
+     * @return all peptides with a mass of at least minmass and smaller then
+     * maxmass
+     */
+    private ArrayList<Peptide> get(double minmass, double maxmass) {
+        int from = indexOf(minmass);
+        int to = indexOf(maxmass);
+        ArrayList<Peptide> peps = new ArrayList<Peptide>(Math.max(0, to - from));
+        for (int i = from; i < to; i++) {
+            peps.add(get(i));
+        }
+        return peps;
+    }
+
+    @Override
+    public ArrayList<Peptide> getForMass(double mass) {
+        return getForMass(mass, mass);
+    }
+
+    @Override
+    public ArrayList<Peptide> getForMass(double mass, double referenceMass) {
+        return get(m_tolerance.getMinRange(mass, referenceMass), m_tolerance.getMaxRange(mass, referenceMass));
+    }
+
+    @Override
+    public ArrayList<Peptide> getForMassRange(double minmass, double maxmass, double referenceMass) {
+        return get(m_tolerance.getMinRange(minmass, referenceMass), m_tolerance.getMaxRange(maxmass, referenceMass));
+    }
+
+    @Override
+    public ArrayList<Peptide> getForExactMassRange(double minmass, double maxmass) {
+        return get(minmass, maxmass);
+    }
+
+    @Override
+    public ArrayList<Peptide> getPeptidesByExactMass(double mass) {
+        int from = indexOf(mass);
+        if (from == m_masses.length || m_masses[from] != mass) {
+            return null;
+        }
+        ArrayList<Peptide> peps = new ArrayList<Peptide>(1);
+        for (int i = from; i < m_masses.length && m_masses[i] == mass; i++) {
+            peps.add(get(i));
+        }
+        return peps;
+    }
+
+    @Override
+    public void setTolerance(ToleranceUnit tolerance) {
+        m_tolerance = tolerance;
+    }
+
+    @Override
+    public int size() {
+        return m_size;
+    }
+
+    @Override
+    public PeptideIterator iterator() {
+        return iterator(0);
+    }
+
+    /**
+     * @param first index of the first peptide to return
+     * @return an iterator starting at the given peptide
+     */
+    private PeptideIterator iterator(final int first) {
+        return new PeptideIterator() {
+            int next = first;
+            Peptide current = null;
+
+            @Override
+            public boolean hasNext() {
+                return next < m_masses.length;
+            }
+
+            @Override
+            public Peptide next() {
+                current = get(next++);
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Not supported.");
+            }
+
+            @Override
+            public Sequence getCurrentSequence() {
+                return current.getSequence();
+            }
+
+            @Override
+            public Peptide current() {
+                return current;
+            }
+        };
+    }
+
+    @Override
+    public PeptideIterator iteratorAfter(Peptide p) {
+        if (p == null) {
+            return iterator();
+        }
+        for (int i = 0; i < m_masses.length; i++) {
+            if (get(i) == p) {
+                return iterator(i + 1);
+            }
+        }
+        return iterator(m_masses.length);
+    }
+
+    @Override
+    public double getMinimumMass() {
+        return m_minimumMass;
+    }
+
+    @Override
+    public double getMaximumMass() {
+        return m_maximumMass;
+    }
+
+    @Override
+    public double countOffset(double offset) {
+        StreamingAverageMedianStdDev stm = new StreamingAverageMedianStdDev(0.5, 10000000);
+        for (int i = 0; i < m_masses.length; i++) {
+            if (i == 0 || m_masses[i] != m_masses[i - 1]) {
+                double mass = m_masses[i] + offset;
+                stm.addValue(indexOf(m_tolerance.getMaxRange(mass, mass)) - indexOf(m_tolerance.getMinRange(mass, mass)));
+            }
+        }
+        return stm.getMedianEstimation();
+    }
+
+    @Override
+    public void addPeptide(Peptide p) {
+        throw new UnsupportedOperationException("The compact peptide lookup is read-only");
+    }
+
+    @Override
+    public void applyVariableModifications(RunConfig config) {
+        throw new UnsupportedOperationException("The compact peptide lookup is read-only");
+    }
+
+    @Override
+    public void applyVariableModifications(RunConfig config, PeptideLookup linear) {
+        throw new UnsupportedOperationException("The compact peptide lookup is read-only");
+    }
+
+    @Override
+    public void applyVariableModificationsLinear(RunConfig conf, PeptideLookup Crosslinked) {
+        throw new UnsupportedOperationException("The compact peptide lookup is read-only");
+    }
+
+    @Override
+    public PeptideLookup applyFixedModificationsPostDigestLinear(RunConfig conf, PeptideLookup Crosslinked) {
+        throw new UnsupportedOperationException("The compact peptide lookup is read-only");
+    }
+
+    @Override
+    public PeptideLookup applyFixedModificationsPostDigest(RunConfig conf, PeptideLookup linear) {
+        throw new UnsupportedOperationException("The compact peptide lookup is read-only");
+    }
+
+    @Override
+    public void cleanup() {
+        throw new UnsupportedOperationException("The compact peptide lookup is read-only");
+    }
+
+    @Override
+    public void cleanup(int minLength) {
+        throw new UnsupportedOperationException("The compact peptide lookup is read-only");
+    }
+
+    @Override
+    public void cleanup(int minLength, int maxAmbiguity) {
+        throw new UnsupportedOperationException("The compact peptide lookup is read-only");
+    }
+
+    @Override
+    public void cleanup(int minLength, int maxAmbiguity, int maxProtAmbiguity) {
+        throw new UnsupportedOperationException("The compact peptide lookup is read-only");
+    }
+
+    @Override
+    public ArrayList<Peptide> addDiscared(RunConfig conf) {
+        throw new UnsupportedOperationException("The compact peptide lookup is read-only");
+    }
+
+    @Override
+    public ArrayList<Peptide> addDiscaredPermut(RunConfig conf) {
+        throw new UnsupportedOperationException("The compact peptide lookup is read-only");
+    }
+
+    @Override
+    public void forceAddDiscarded() {
+        throw new UnsupportedOperationException("The compact peptide lookup is read-only");
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException("The compact peptide lookup is read-only");
+    }
+}
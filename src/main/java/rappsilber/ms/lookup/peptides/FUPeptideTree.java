@@ -22,7 +22,6 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Collection;
 import java.util.Iterator;
 import rappsilber.config.RunConfig;
@@ -35,9 +34,8 @@ import rappsilber.ms.sequence.NonProteinPeptide;
 import rappsilber.ms.sequence.Peptide;
 import rappsilber.ms.sequence.Sequence;
 import rappsilber.ms.sequence.SequenceList;
-import rappsilber.ms.sequence.digest.Digestion;
+import rappsilber.ms.sequence.VariableModificationExpander;
 import rappsilber.ms.statistics.utils.StreamingAverageMedianStdDev;
-import rappsilber.utils.Util;
 
 public class FUPeptideTree extends Double2ObjectRBTreeMap<PeptideLookupElement> implements PeptideLookup{
     private static final long serialVersionUID = -4584307853042554730L;
@@ -428,64 +426,27 @@ public class FUPeptideTree extends Double2ObjectRBTreeMap<PeptideLookupElement>
     
     @Override
     public void applyVariableModifications(RunConfig conf) {
-        Digestion enzym = conf.getDigestion_method();
-        ArrayList<CrossLinker> cl = conf.getCrossLinker();
-        Iterator<Peptide> peps = this.iterator();
-        ArrayList<Peptide> newPeps = new ArrayList<Peptide>();
-        int cm = this.size();
-
-        int c = 0;
-        while (peps.hasNext()) {
-            if (c++ % 10000 == 0) {
-                    conf.getStatusInterface().setStatus("Applying variable modification " +  Util.twoDigits.format(c*100.0/cm) + "%" );
-            }
-
-            Peptide pep = peps.next();
-            for (Peptide p : pep.modify(conf,ModificationType.variable)) {
-                if (enzym.isDigestedPeptide(p)) {
-                    newPeps.add(p);
-                    p.getSequence().getPeptides().add(p);
-                }
+        new VariableModificationExpander(conf, this).expand(ModificationType.variable, new VariableModificationExpander.ModifiedPeptideHandler() {
+            @Override
+            public void add(Peptide p) {
+                addPeptide(p);
             }
-        }
-        for (Peptide p : newPeps)
-            addPeptide(p);
+        });
     }
 
     @Override
     public void applyVariableModificationsLinear(RunConfig conf,PeptideLookup Crosslinked) {
-        long lt = Calendar.getInstance().getTimeInMillis();
-        Digestion enzym = conf.getDigestion_method();
-        ArrayList<CrossLinker> cl = conf.getCrossLinker();
-        Iterator<Peptide> peps = this.iterator();
-        ArrayList<Peptide> newPeps = new ArrayList<Peptide>();
-        int cm = this.size();
-
-        int c = 0;
-        while (peps.hasNext()) {
-            if (c++ % 10000 == 0) {
-                long now = Calendar.getInstance().getTimeInMillis();
-                if (now-lt > 5000) {
-                    conf.getStatusInterface().setStatus("Applying variable modification to Linear Peptides " +  Util.twoDigits.format(c*100.0/cm) + "%" );
-                    lt = now;
-                }
-            }
-
-            Peptide pep = peps.next();
-            for (Peptide p : pep.modify(conf,ModificationType.variable)) {
-                if (enzym.isDigestedPeptide(p)) {
-                    newPeps.add(p);
-                    p.getSequence().getPeptides().add(p);
-                }
+        final ArrayList<CrossLinker> cl = conf.getCrossLinker();
+        final PeptideLookup crosslinked = Crosslinked;
+        new VariableModificationExpander(conf, this).expand(ModificationType.variable, new VariableModificationExpander.ModifiedPeptideHandler() {
+            @Override
+            public void add(Peptide p) {
+                if (CrossLinker.canCrossLink(cl, p))
+                    crosslinked.addPeptide(p);
+                else
+                    addPeptide(p);
             }
-        }
-        
-        for (Peptide p : newPeps)
-            if (CrossLinker.canCrossLink(cl, p))
-                Crosslinked.addPeptide(p);
-            else
-                addPeptide(p);
-        
+        });
     }
 
     public PeptideLookup applyFixedModificationsPostDigestLinear(RunConfig conf,PeptideLookup Crosslinked) {
@@ -521,40 +482,17 @@ public class FUPeptideTree extends Double2ObjectRBTreeMap<PeptideLookupElement>
     }
     
     public void applyVariableModifications(RunConfig conf, PeptideLookup linear) {
-        long lt = Calendar.getInstance().getTimeInMillis();
-        Digestion enzym = conf.getDigestion_method();
-        ArrayList<CrossLinker> cl = conf.getCrossLinker();
-        Iterator<Peptide> peps = this.iterator();
-        ArrayList<Peptide> newPeps = new ArrayList<Peptide>();
-
-        int cm = this.size();
-
-        int c = 0;
-        while (peps.hasNext()) {
-            if (c++ % 10000 == 0) {
-                long now = Calendar.getInstance().getTimeInMillis();
-                if (now-lt > 5000) {
-                    conf.getStatusInterface().setStatus("Applying variable modification " +  Util.twoDigits.format(c*100.0/cm) + "%" );
-                    lt = now;
-                }
-            }
-            Peptide pep = peps.next();
-            ArrayList<Peptide> mps= pep.modify(conf, ModificationType.variable);
-            for (Peptide p : mps) {
-                if (enzym.isDigestedPeptide(p)) {
-                    newPeps.add(p);
-                    p.getSequence().getPeptides().add(p);
-                }
+        final ArrayList<CrossLinker> cl = conf.getCrossLinker();
+        final PeptideLookup linearLookup = linear;
+        new VariableModificationExpander(conf, this).expand(ModificationType.variable, new VariableModificationExpander.ModifiedPeptideHandler() {
+            @Override
+            public void add(Peptide p) {
+                if (CrossLinker.canCrossLink(cl, p))
+                    addPeptide(p);
+                else
+                    linearLookup.addPeptide(p);
             }
-        }
-        
-        for (Peptide p : newPeps) {
-            if (CrossLinker.canCrossLink(cl, p))
-                addPeptide(p);
-            else
-                linear.addPeptide(p);
-        }
-        
+        });
     }
 
     public double getMinimumMass() {
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.lookup.peptides;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import rappsilber.ms.ToleranceUnit;
+import rappsilber.ms.sequence.Peptide;
+
+/**
+ * A read-only copy of a {@link PeptideLookup} as plain arrays sorted by mass.<br/>
+ * A peptide is referenced by its index in the array and all peptides of a
+ * tolerance window have consecutive indexes. So a lookup only returns the
+ * first and the last index of the window - without creating a list.
+ * The peptides are in the same order as in the lookup - so going through a
+ * window returns the same peptides in the same order as
+ * {@link PeptideLookup#getForMass(double, double)}.<br/>
+ * An index of a {@link CompactPeptideLookup} uses the masses of that lookup
+ * and gets the peptides from it - so it does not keep any peptide objects.<br/>
+ * The index does not follow later changes to the lookup - so it should only
+ * be created after the lookup is final.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class PeptideMassIndex {
+    /** mass of each peptide - sorted */
+    private final double[] m_masses;
+    /** the peptides */
+    private final Peptide[] m_peptides;
+    /** the peptides - if the index is made from a compact lookup */
+    private final CompactPeptideLookup m_compact;
+    /** the tolerance for the mass windows */
+    private final ToleranceUnit m_tolerance;
+
+    /**
+     * @param lookup the peptides
+     * @param tolerance the tolerance for the mass windows
+     */
+    public PeptideMassIndex(PeptideLookup lookup, ToleranceUnit tolerance) {
+        m_tolerance = tolerance;
+        if (lookup instanceof CompactPeptideLookup) {
+            // already sorted by mass - and the peptides are only created on demand
+            m_compact = (CompactPeptideLookup) lookup;
+            m_peptides = null;
+            m_masses = m_compact.masses();
+            return;
+        }
+        m_compact = null;
+        ArrayList<Peptide> peps = new ArrayList<Peptide>(lookup.size());
+        for (Peptide p : lookup) {
+            peps.add(p);
+        }
+        Peptide[] peptides = peps.toArray(new Peptide[peps.size()]);
+        boolean sorted = true;
+        for (int i = 1; sorted && i < peptides.length; i++) {
+            sorted = peptides[i - 1].getMass() <= peptides[i].getMass();
+        }
+        if (!sorted) {
+            // a stable sort - so peptides of the same mass stay in the same order
+            Arrays.sort(peptides, new Comparator<Peptide>() {
+                @Override
+                public int compare(Peptide o1, Peptide o2) {
+                    return Double.compare(o1.getMass(), o2.getMass());
+                }
+            });
+        }
+        m_peptides = peptides;
+        m_masses = new double[peptides.length];
+        for (int i = 0; i < peptides.length; i++) {
+            m_masses[i] = peptides[i].getMass();
+        }
+    }
+
+    /**
+     * @return number of peptides
+     */
+    public int size() {
+        return m_masses.length;
+    }
+
+    /**
+     * @param i
+     * @return the i-th peptide
+     */
+    public Peptide get(int i) {
+        if (m_compact != null) {
+            return m_compact.get(i);
+        }
+        return m_peptides[i];
+    }
+
+    /**
+     * @param i
+     * @return the mass of the i-th peptide
+     */
+    public double getMass(int i) {
+        return m_masses[i];
+    }
+
+    /**
+     * @param mass
+     * @return the index of the first peptide with at least the given mass
+     */
+    public int indexOf(double mass) {
+        int from = 0;
+        int to = m_masses.length;
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (m_masses[mid] < mass) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+    /**
+     * @param mass
+     * @param referenceMass defines the size of the tolerance window
+     * @return the index of the first peptide within the tolerance window
+     */
+    public int from(double mass, double referenceMass) {
+        return indexOf(m_tolerance.getMinRange(mass, referenceMass));
+    }
+
+    /**
+     * @param mass
+     * @param referenceMass defines the size of the tolerance window
+     * @return the index after the last peptide within the tolerance window
+     */
+    public int to(double mass, double referenceMass) {
+        return indexOf(m_tolerance.getMaxRange(mass, referenceMass));
+    }
+
+    /**
+     * Collects the mass windows for a lot of masses with the same
+     * reference mass (e.g. all beta masses for a spectrum) and looks them up
+     * in a single sweep over the sorted masses.<br/>
+     * A batch can be reused - but not shared between threads.
+     */
+    public class Batch {
+        private int m_size = 0;
+        private double[] m_queries = new double[32];
+        private int[] m_from = new int[32];
+        private int[] m_to = new int[32];
+        private int[] m_order = new int[32];
+
+        /**
+         * forget all queries
+         */
+        public void clear() {
+            m_size = 0;
+        }
+
+        /**
+         * @param mass
+         * @return the id of the query
+         */
+        public int add(double mass) {
+            if (m_size == m_queries.length) {
+                int n = m_size * 2;
+                m_queries = Arrays.copyOf(m_queries, n);
+                m_from = Arrays.copyOf(m_from, n);
+                m_to = Arrays.copyOf(m_to, n);
+                m_order = Arrays.copyOf(m_order, n);
+            }
+            m_queries[m_size] = mass;
+            return m_size++;
+        }
+
+        /**
+         * @return number of queries
+         */
+        public int size() {
+            return m_size;
+        }
+
+        /**
+         * looks up the mass windows of all queries
+         * @param referenceMass defines the size of the tolerance windows
+         */
+        public void resolve(double referenceMass) {
+            for (int i = 0; i < m_size; i++) {
+                m_order[i] = i;
+            }
+            IntArrays.quickSort(m_order, 0, m_size, new IntComparator() {
+                @Override
+                public int compare(int k1, int k2) {
+                    return Double.compare(m_queries[k1], m_queries[k2]);
+                }
+
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return compare(o1.intValue(), o2.intValue());
+                }
+            });
+            // both ends of the windows only ever move up
+            int from = 0;
+            int to = 0;
+            for (int i = 0; i < m_size; i++) {
+                int q = m_order[i];
+                double min = m_tolerance.getMinRange(m_queries[q], referenceMass);
+                double max = m_tolerance.getMaxRange(m_queries[q], referenceMass);
+                from = seek(from, min);
+                to = seek(Math.max(from, to), max);
+                m_from[q] = from;
+                m_to[q] = to;
+            }
+        }
+
+        /**
+         * @param query
+         * @return the index of the first peptide in the window of the query
+         */
+        public int from(int query) {
+            return m_from[query];
+        }
+
+        /**
+         * @param query
+         * @return the index after the last peptide in the window of the query
+         */
+        public int to(int query) {
+            return m_to[query];
+        }
+    }
+
+    /**
+     * @return a new (empty) batch of lookups
+     */
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    /**
+     * @param start where to start looking
+     * @param mass
+     * @return the index of the first peptide from start on that has at least
+     * the given mass
+     */
+    private int seek(int start, double mass) {
+        // gallop forward and then do a binary search
+        int step = 1;
+        int lo = start;
+        int hi = start;
+        while (hi < m_masses.length && m_masses[hi] < mass) {
+            lo = hi + 1;
+            hi += step;
+            step <<= 1;
+        }
+        if (hi > m_masses.length) {
+            hi = m_masses.length;
+        }
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (m_masses[mid] < mass) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
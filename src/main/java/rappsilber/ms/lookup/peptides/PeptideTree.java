@@ -34,10 +34,9 @@ import rappsilber.ms.sequence.NonProteinPeptide;
 import rappsilber.ms.sequence.Peptide;
 import rappsilber.ms.sequence.Sequence;
 import rappsilber.ms.sequence.SequenceList;
-import rappsilber.ms.sequence.digest.Digestion;
+import rappsilber.ms.sequence.VariableModificationExpander;
 import rappsilber.ms.statistics.utils.StreamingAverageMedianStdDev;
 import rappsilber.ms.statistics.utils.StreamingMedianEstimator;
-import rappsilber.utils.Util;
 
 public class PeptideTree extends TreeMap<Double, PeptideLookupElement> implements PeptideLookup{
     private static final long serialVersionUID = -4584307853042554730L;
@@ -428,28 +427,12 @@ public class PeptideTree extends TreeMap<Double, PeptideLookupElement> implement
     
     @Override
     public void applyVariableModifications(RunConfig conf) {
-        Digestion enzym = conf.getDigestion_method();
-        ArrayList<CrossLinker> cl = conf.getCrossLinker();
-        Iterator<Peptide> peps = this.iterator();
-        ArrayList<Peptide> newPeps = new ArrayList<Peptide>();
-        int cm = this.size();
-
-        int c = 0;
-        while (peps.hasNext()) {
-            if (c++ % 10000 == 0) {
-                    conf.getStatusInterface().setStatus("Applying variable modification " +  Util.twoDigits.format(c*100.0/cm) + "%" );
-            }
-
-            Peptide pep = peps.next();
-            for (Peptide p : pep.modify(conf, ModificationType.variable)) {
-                if (enzym.isDigestedPeptide(p)) {
-                    newPeps.add(p);
-                    p.getSequence().getPeptides().add(p);
-                }
+        new VariableModificationExpander(conf, this).expand(ModificationType.variable, new VariableModificationExpander.ModifiedPeptideHandler() {
+            @Override
+            public void add(Peptide p) {
+                addPeptide(p);
             }
-        }
-        for (Peptide p : newPeps)
-            addPeptide(p);
+        });
     }
 
     public PeptideLookup applyFixedModificationsPostDigestLinear(RunConfig conf,PeptideLookup Crosslinked) {
@@ -487,63 +470,32 @@ public class PeptideTree extends TreeMap<Double, PeptideLookupElement> implement
     
     @Override
     public void applyVariableModificationsLinear(RunConfig conf,PeptideLookup Crosslinked) {
-        Digestion enzym = conf.getDigestion_method();
-        ArrayList<CrossLinker> cl = conf.getCrossLinker();
-        Iterator<Peptide> peps = this.iterator();
-        ArrayList<Peptide> newPeps = new ArrayList<Peptide>();
-        int cm = this.size();
-
-        int c = 0;
-        while (peps.hasNext()) {
-            if (c++ % 10000 == 0) {
-                    conf.getStatusInterface().setStatus("Applying variable modification " +  Util.twoDigits.format(c*100.0/cm) + "%" );
-            }
-
-            Peptide pep = peps.next();
-            for (Peptide p : pep.modify(conf,ModificationType.variable)) {
-                if (enzym.isDigestedPeptide(p)) {
-                    newPeps.add(p);
-                    p.getSequence().getPeptides().add(p);
-                }
+        final ArrayList<CrossLinker> cl = conf.getCrossLinker();
+        final PeptideLookup crosslinked = Crosslinked;
+        new VariableModificationExpander(conf, this).expand(ModificationType.variable, new VariableModificationExpander.ModifiedPeptideHandler() {
+            @Override
+            public void add(Peptide p) {
+                if (CrossLinker.canCrossLink(cl, p))
+                    crosslinked.addPeptide(p);
+                else
+                    addPeptide(p);
             }
-        }
-        for (Peptide p : newPeps)
-            if (CrossLinker.canCrossLink(cl, p))
-                Crosslinked.addPeptide(p);
-            else
-                addPeptide(p);
+        });
     }
 
 
     public void applyVariableModifications(RunConfig conf, PeptideLookup linear) {
-
-        Digestion enzym = conf.getDigestion_method();
-        ArrayList<CrossLinker> cl = conf.getCrossLinker();
-        Iterator<Peptide> peps = this.iterator();
-        ArrayList<Peptide> newPeps = new ArrayList<Peptide>();
-
-        int cm = this.size();
-
-        int c = 0;
-        while (peps.hasNext()) {
-            if (c++ % 10000 == 0) {
-                    conf.getStatusInterface().setStatus("Applying variable modification " +  Util.twoDigits.format(c*100.0/cm) + "%" );
-            }
-            Peptide pep = peps.next();
-            ArrayList<Peptide> mps= pep.modify(conf, ModificationType.variable);
-            for (Peptide p : mps) {
-                if (enzym.isDigestedPeptide(p)) {
-                    newPeps.add(p);
-                    p.getSequence().getPeptides().add(p);
-                }
+        final ArrayList<CrossLinker> cl = conf.getCrossLinker();
+        final PeptideLookup linearLookup = linear;
+        new VariableModificationExpander(conf, this).expand(ModificationType.variable, new VariableModificationExpander.ModifiedPeptideHandler() {
+            @Override
+            public void add(Peptide p) {
+                if (CrossLinker.canCrossLink(cl, p))
+                    addPeptide(p);
+                else
+                    linearLookup.addPeptide(p);
             }
-        }
-        for (Peptide p : newPeps) {
-            if (CrossLinker.canCrossLink(cl, p))
-                addPeptide(p);
-            else
-                linear.addPeptide(p);
-        }
+        });
     }
 
     public double getMinimumMass() {
@@ -15,10 +15,9 @@
  */
 package rappsilber.ms.score;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
-import rappsilber.ms.statistics.utils.StreamingAverageMedianStdDev;
-import rappsilber.ms.statistics.utils.StreamingAverageMedianThreadSafe;
+import rappsilber.ms.statistics.utils.StripedStatistics;
 
 /**
  * a simple abstract class, that forwards the class name as score name
@@ -28,7 +27,14 @@ public abstract class AbstractScoreSpectraMatch implements ScoreSpectraMatch {
 
     public static boolean DO_STATS = false;
 
-    private HashMap<String,StreamingAverageMedianThreadSafe> m_calcs;
+    /** statistics for each of m_slotNames */
+    private StripedStatistics[] m_stats;
+    /** statistics for scores that are not in m_slotNames */
+    private ConcurrentHashMap<String,StripedStatistics> m_otherStats;
+    /** the names of the scores provided by this class */
+    private String[] m_slotNames;
+    /** the {@link ScoreRegistry} slots for m_slotNames */
+    private int[] m_slots;
 
     AbstractScoreSpectraMatch(){
         initCalculations(scoreNames());
@@ -39,19 +45,89 @@ public abstract class AbstractScoreSpectraMatch implements ScoreSpectraMatch {
     }
     
     protected void initCalculations(String[] ScoreNames) {
-        m_calcs = new HashMap<String, StreamingAverageMedianThreadSafe>();
-        for (String score : ScoreNames) {
-            m_calcs.put(score, new StreamingAverageMedianThreadSafe());
+        m_stats = new StripedStatistics[ScoreNames.length];
+        for (int i = 0; i < ScoreNames.length; i++) {
+            m_stats[i] = new StripedStatistics();
         }
+        m_otherStats = new ConcurrentHashMap<String, StripedStatistics>();
+        m_slotNames = ScoreNames.clone();
+        m_slots = ScoreRegistry.slots(ScoreNames);
+    }
+
+    /**
+     * the statistics collected for a score.<br/>
+     * Score names can be null if scoreNames() was called by the constructor
+     * before the fields of a subclass were initialised - these are skipped.
+     * @param name
+     * @return the statistics or null if nothing was collected for that score
+     */
+    protected StripedStatistics getStatistics(String name) {
+        if (name == null) {
+            return null;
+        }
+        String[] names = m_slotNames;
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] != null && names[i].contentEquals(name)) {
+                return m_stats[i];
+            }
+        }
+        return m_otherStats.get(name);
+    }
+
+    /**
+     * @param name
+     * @return the statistics of the score if any values where collected - null otherwise
+     */
+    private StripedStatistics getCollected(String name) {
+        if (!DO_STATS) {
+            return null;
+        }
+        StripedStatistics stats = getStatistics(name);
+        if (stats == null || stats.getCount() == 0) {
+            return null;
+        }
+        return stats;
+    }
+
+    /**
+     * returns the {@link ScoreRegistry} slot for a score name.
+     * Names of this scoring function passed in as the same string object are 
+     * found without any hashing.
+     * @param name
+     * @return 
+     */
+    protected int slot(String name) {
+        String[] names = m_slotNames;
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] == name) {
+                return m_slots[i];
+            }
+        }
+        return ScoreRegistry.slot(name);
     }
 
     protected void addScore(MatchedXlinkedPeptide match, String name, double value) {
-        match.setScore(name,value);
+        addScore(match, slot(name), value);
+    }
+
+    protected void addScore(MatchedXlinkedPeptide match, int slot, double value) {
+        match.setScore(slot,value);
         if (DO_STATS && !Double.isInfinite(value) && !Double.isNaN(value)) {
-            StreamingAverageMedianThreadSafe ssd = m_calcs.get(name);
+            int[] slots = m_slots;
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] == slot) {
+                    m_stats[i].addValue(value);
+                    return;
+                }
+            }
+            String name = ScoreRegistry.name(slot);
+            StripedStatistics ssd = m_otherStats.get(name);
             if (ssd == null) {
-                ssd = new StreamingAverageMedianThreadSafe();
-                m_calcs.put(name, ssd);
+                ssd = new StripedStatistics();
+                StripedStatistics prev = m_otherStats.putIfAbsent(name, ssd);
+                if (prev != null) {
+                    ssd = prev;
+                }
             }
             ssd.addValue(value);
         }
@@ -59,9 +135,8 @@ public abstract class AbstractScoreSpectraMatch implements ScoreSpectraMatch {
 
     @Override
     public double getAverage(String name){
-        if (DO_STATS)
-            return m_calcs.get(name).average();
-        return Double.NaN;
+        StripedStatistics stats = getCollected(name);
+        return stats == null ? Double.NaN : stats.average();
     }
 
 //    public double getMedian(String name){
@@ -70,35 +145,30 @@ public abstract class AbstractScoreSpectraMatch implements ScoreSpectraMatch {
 
     @Override
     public double getStdDev(String name) {
-        if (DO_STATS)
-            return m_calcs.get(name).stdDev();
-        return Double.NaN;
+        StripedStatistics stats = getCollected(name);
+        return stats == null ? Double.NaN : stats.stdDev();
     }
 
     public double getMAD(String name) {
-        if (DO_STATS)
-            return m_calcs.get(name).getMADEstimation();
-        return Double.NaN;
+        StripedStatistics stats = getCollected(name);
+        return stats == null ? Double.NaN : stats.getMADEstimation();
     }
     
     public double getMedian(String name) {
-        if (DO_STATS)
-            return m_calcs.get(name).getMedianEstimation();
-        return Double.NaN;
+        StripedStatistics stats = getCollected(name);
+        return stats == null ? Double.NaN : stats.getMedianEstimation();
     }
     
     @Override
     public double getMin(String name){
-        if (DO_STATS)
-            return m_calcs.get(name).getMin();
-        return Double.NaN;
+        StripedStatistics stats = getCollected(name);
+        return stats == null ? Double.NaN : stats.getMin();
     }
 
     @Override
     public double getMax(String name) {
-        if (DO_STATS)
-            return m_calcs.get(name).getMax();
-        return Double.NaN;
+        StripedStatistics stats = getCollected(name);
+        return stats == null ? Double.NaN : stats.getMax();
     }
     
     
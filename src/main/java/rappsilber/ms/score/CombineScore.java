@@ -15,7 +15,6 @@
  */
 package rappsilber.ms.score;
 
-import java.util.HashMap;
 import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
 
 /**
@@ -32,7 +31,6 @@ public class CombineScore  extends AbstractScoreSpectraMatch{
     public double score(MatchedXlinkedPeptide match) {
         double sum = 0;
         double weight = 0;
-        HashMap<String,Double> scores = match.getScores();
         
         // all fragments
         double s = match.getScore(FragmentCoverage.mCp);
@@ -15,7 +15,6 @@
  */
 package rappsilber.ms.score;
 
-import java.util.HashMap;
 import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
 
 /**
@@ -34,7 +33,6 @@ public class CombinedScores  extends AbstractScoreSpectraMatch{
     public double score(MatchedXlinkedPeptide match) {
         double sum = 0;
         double weight = 0;
-        HashMap<String,Double> scores = match.getScores();
 
         //<editor-fold desc="All">
         //all fragments
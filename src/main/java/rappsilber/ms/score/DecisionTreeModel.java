@@ -0,0 +1,361 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.score;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
+import rappsilber.utils.Util;
+
+/**
+ * A set of decision trees, grouped into named ensembles and stored as flat
+ * arrays.<br/>
+ * The values a model looks at (scores and some properties of the match) are
+ * first gathered into a row of doubles - each tree then only walks through
+ * arrays.
+ * <p>The text format is described in rappsilber/data/AutoValidation.trees.</p>
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class DecisionTreeModel {
+    /** a feature that is just a score */
+    private static final int FEATURE_SCORE = 0;
+    private static final int FEATURE_PRECURSOR_MASS = 1;
+    private static final int FEATURE_PRECURSOR_MZ = 2;
+    private static final int FEATURE_CALC_MASS = 3;
+    private static final int FEATURE_CALC_MZ = 4;
+    private static final int FEATURE_PEPTIDE1_LENGTH = 5;
+    private static final int FEATURE_PEPTIDE2_LENGTH = 6;
+    private static final String[] SPECIAL_FEATURES = new String[] {
+        null, "[precursor mass]", "[precursor mz]", "[calc mass]",
+        "[calc mz]", "[peptide1 length]", "[peptide2 length]"
+    };
+
+    /** what kind of value each column of a row holds */
+    private int[] m_featureType;
+    /** for score features the {@link ScoreRegistry} slot */
+    private int[] m_featureSlot;
+    /** the name of each feature */
+    private String[] m_featureNames;
+
+    /** the column compared in each node - -1 for leafs */
+    private int[] m_column;
+    /** compare with &lt;= instead of &lt; */
+    private boolean[] m_orEqual;
+    /** the threshold of a split or the value of a leaf */
+    private double[] m_value;
+    /** where the else-branch of a split starts (the if-branch directly follows the node) */
+    private int[] m_else;
+
+    /** the root node of each tree of each ensemble */
+    private int[][] m_ensembleRoots;
+    /** the names of the ensembles */
+    private String[] m_ensembleNames;
+
+    private DecisionTreeModel() {
+    }
+
+    /**
+     * reads a model from the class-path
+     * @param resource e.g. ".rappsilber.data.AutoValidation.trees"
+     * @return
+     * @throws IOException
+     */
+    public static DecisionTreeModel read(String resource) throws IOException {
+        BufferedReader br = Util.readFromClassPath(resource);
+        try {
+            return read(br);
+        } finally {
+            br.close();
+        }
+    }
+
+    /**
+     * reads a model
+     * @param br
+     * @return
+     * @throws IOException
+     */
+    public static DecisionTreeModel read(BufferedReader br) throws IOException {
+        DecisionTreeModel m = new DecisionTreeModel();
+        ArrayList<String> featureNames = new ArrayList<String>();
+        HashMap<String, Integer> featureColumns = new HashMap<String, Integer>();
+        ArrayList<String> ensembleNames = new ArrayList<String>();
+        ArrayList<ArrayList<Integer>> ensembleRoots = new ArrayList<ArrayList<Integer>>();
+        ArrayList<Integer> column = new ArrayList<Integer>();
+        ArrayList<Boolean> orEqual = new ArrayList<Boolean>();
+        ArrayList<Double> value = new ArrayList<Double>();
+        // splits still waiting for their else-branch
+        ArrayList<Integer> open = new ArrayList<Integer>();
+        ArrayList<Integer> elseList = new ArrayList<Integer>();
+        // each split needs two branches
+        int missingNodes = 0;
+        int lineNumber = 0;
+        String line;
+        while ((line = br.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\t");
+            int node = column.size();
+            if (parts[0].contentEquals("tree")) {
+                if (missingNodes != 0) {
+                    throw new IOException("Line " + lineNumber + ": previous tree is incomplete");
+                }
+                if (parts.length != 2) {
+                    throw new IOException("Line " + lineNumber + ": tree needs an ensemble name");
+                }
+                int e = ensembleNames.indexOf(parts[1]);
+                if (e < 0) {
+                    e = ensembleNames.size();
+                    ensembleNames.add(parts[1]);
+                    ensembleRoots.add(new ArrayList<Integer>());
+                }
+                ensembleRoots.get(e).add(node);
+                missingNodes = 1;
+                continue;
+            }
+            if (missingNodes == 0) {
+                throw new IOException("Line " + lineNumber + ": node outside of a tree");
+            }
+            // this node is the else-branch of the innermost split that already has its if-branch
+            if (node > 0 && column.get(node - 1) < 0 && !open.isEmpty()) {
+                elseList.set(open.remove(open.size() - 1), node);
+            }
+            if (parts[0].contentEquals("leaf") && parts.length == 2) {
+                column.add(-1);
+                orEqual.add(false);
+                value.add(Double.parseDouble(parts[1]));
+                elseList.add(-1);
+                missingNodes--;
+            } else if (parts[0].contentEquals("split") && parts.length == 4) {
+                Integer c = featureColumns.get(parts[1]);
+                if (c == null) {
+                    c = featureNames.size();
+                    featureNames.add(parts[1]);
+                    featureColumns.put(parts[1], c);
+                }
+                column.add(c);
+                if (parts[2].contentEquals("<")) {
+                    orEqual.add(false);
+                } else if (parts[2].contentEquals("<=")) {
+                    orEqual.add(true);
+                } else {
+                    throw new IOException("Line " + lineNumber + ": unknown comparison " + parts[2]);
+                }
+                value.add(Double.parseDouble(parts[3]));
+                elseList.add(-1);
+                open.add(node);
+                missingNodes++;
+            } else {
+                throw new IOException("Line " + lineNumber + ": can't parse " + line);
+            }
+        }
+        if (missingNodes != 0 || ensembleNames.isEmpty()) {
+            throw new IOException("Incomplete tree model");
+        }
+
+        int features = featureNames.size();
+        m.m_featureNames = featureNames.toArray(new String[features]);
+        m.m_featureType = new int[features];
+        m.m_featureSlot = new int[features];
+        for (int f = 0; f < features; f++) {
+            m.m_featureType[f] = FEATURE_SCORE;
+            m.m_featureSlot[f] = -1;
+            for (int s = 1; s < SPECIAL_FEATURES.length; s++) {
+                if (SPECIAL_FEATURES[s].contentEquals(m.m_featureNames[f])) {
+                    m.m_featureType[f] = s;
+                }
+            }
+            if (m.m_featureType[f] == FEATURE_SCORE) {
+                m.m_featureSlot[f] = ScoreRegistry.slot(m.m_featureNames[f]);
+            }
+        }
+
+        int nodes = column.size();
+        m.m_column = new int[nodes];
+        m.m_orEqual = new boolean[nodes];
+        m.m_value = new double[nodes];
+        m.m_else = new int[nodes];
+        for (int n = 0; n < nodes; n++) {
+            m.m_column[n] = column.get(n);
+            m.m_orEqual[n] = orEqual.get(n);
+            m.m_value[n] = value.get(n);
+            m.m_else[n] = elseList.get(n);
+        }
+
+        m.m_ensembleNames = ensembleNames.toArray(new String[ensembleNames.size()]);
+        m.m_ensembleRoots = new int[ensembleRoots.size()][];
+        for (int e = 0; e < m.m_ensembleRoots.length; e++) {
+            ArrayList<Integer> roots = ensembleRoots.get(e);
+            m.m_ensembleRoots[e] = new int[roots.size()];
+            for (int t = 0; t < roots.size(); t++) {
+                m.m_ensembleRoots[e][t] = roots.get(t);
+            }
+        }
+        return m;
+    }
+
+    /**
+     * @return the number of values in a row
+     */
+    public int features() {
+        return m_featureNames.length;
+    }
+
+    /**
+     * @param name
+     * @return the index of the ensemble or -1 if there is no ensemble of that name
+     */
+    public int getEnsemble(String name) {
+        for (int e = 0; e < m_ensembleNames.length; e++) {
+            if (m_ensembleNames[e].contentEquals(name)) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param ensemble
+     * @return how many trees the ensemble has
+     */
+    public int trees(int ensemble) {
+        return m_ensembleRoots[ensemble].length;
+    }
+
+    /**
+     * writes the values the trees look at for the given match into a row.
+     * Undefined scores become NaN.
+     * @param match
+     * @param row
+     * @param offset where the row starts
+     */
+    public void gather(MatchedXlinkedPeptide match, double[] row, int offset) {
+        int[] type = m_featureType;
+        for (int f = 0; f < type.length; f++) {
+            double v;
+            switch (type[f]) {
+                case FEATURE_PRECURSOR_MASS:
+                    v = match.getSpectrum().getPrecurserMass();
+                    break;
+                case FEATURE_PRECURSOR_MZ:
+                    v = match.getSpectrum().getPrecurserMZ();
+                    break;
+                case FEATURE_CALC_MASS:
+                    v = match.getCalcMass();
+                    break;
+                case FEATURE_CALC_MZ:
+                    v = (match.getCalcMass()/match.getSpectrum().getPrecurserCharge())+Util.PROTON_MASS;
+                    break;
+                case FEATURE_PEPTIDE1_LENGTH:
+                    v = match.getPeptide1().length();
+                    break;
+                case FEATURE_PEPTIDE2_LENGTH:
+                    v = match.getPeptide2().length();
+                    break;
+                default:
+                    v = match.getScore(m_featureSlot[f]);
+            }
+            row[offset + f] = v;
+        }
+    }
+
+    /**
+     * walks a single tree
+     * @param node the root of the tree
+     * @param row
+     * @param offset where the row starts
+     * @return the value of the reached leaf
+     */
+    private double walk(int node, double[] row, int offset) {
+        int[] column = m_column;
+        double[] value = m_value;
+        int c;
+        while ((c = column[node]) >= 0) {
+            double v = row[offset + c];
+            // NaN fails both comparisons and takes the else-branch
+            if (m_orEqual[node] ? v <= value[node] : v < value[node]) {
+                node++;
+            } else {
+                node = m_else[node];
+            }
+        }
+        return value[node];
+    }
+
+    /**
+     * the sum over the leaf values of all trees of an ensemble for a row
+     * @param ensemble
+     * @param row
+     * @param offset where the row starts
+     * @return
+     */
+    public double sum(int ensemble, double[] row, int offset) {
+        double ret = 0;
+        for (int root : m_ensembleRoots[ensemble]) {
+            ret += walk(root, row, offset);
+        }
+        return ret;
+    }
+
+    /**
+     * the sum over the leaf values of all trees of an ensemble for each row of
+     * a matrix
+     * @param ensemble
+     * @param matrix row after row - each {@link #features()} long
+     * @param rows number of rows
+     * @param result receives the sum for each row
+     */
+    public void sum(int ensemble, double[] matrix, int rows, double[] result) {
+        int width = m_featureNames.length;
+        for (int r = 0, offset = 0; r < rows; r++, offset += width) {
+            result[r] = sum(ensemble, matrix, offset);
+        }
+    }
+
+    /**
+     * the sum over the leaf values of all trees of an ensemble for a match
+     * @param ensemble
+     * @param match
+     * @return
+     */
+    public double sum(int ensemble, MatchedXlinkedPeptide match) {
+        double[] row = new double[m_featureNames.length];
+        gather(match, row, 0);
+        return sum(ensemble, row, 0);
+    }
+
+    /**
+     * gathers the values for all matches into a matrix
+     * @param matches
+     * @return row after row - each {@link #features()} long
+     */
+    public double[] gather(Collection<MatchedXlinkedPeptide> matches) {
+        int width = m_featureNames.length;
+        double[] matrix = new double[matches.size() * width];
+        int offset = 0;
+        for (MatchedXlinkedPeptide m : matches) {
+            gather(m, matrix, offset);
+            offset += width;
+        }
+        return matrix;
+    }
+}
@@ -25,13 +25,13 @@ import rappsilber.utils.IntArrayList;
  * @author Lutz Fischer <l.fischer@ed.ac.uk>
  */
 public class FragmentChargeState  extends AbstractScoreSpectraMatch {
-    private String maxName = "MaxCharge";
-    private String averageName = "AverageCharge";
-    private String medianName = "MedianCharge";
-    private String relative = "Relative";
-    private String relativeMaxName = relative + maxName;
-    private String relativeAverageName = relative + averageName;
-    private String relativeMedianName = relative + medianName;
+    private static final String maxName = "MaxCharge";
+    private static final String averageName = "AverageCharge";
+    private static final String medianName = "MedianCharge";
+    private static final String relative = "Relative";
+    private static final String relativeMaxName = relative + maxName;
+    private static final String relativeAverageName = relative + averageName;
+    private static final String relativeMedianName = relative + medianName;
     
     public double score(MatchedXlinkedPeptide match) {
         
@@ -26,7 +26,6 @@ import rappsilber.ms.sequence.ions.PeptideIon;
 import rappsilber.ms.sequence.ions.loss.CleavableCrossLinkerPeptide;
 import rappsilber.ms.sequence.ions.loss.Loss;
 import rappsilber.ms.spectra.SpectraPeak;
-import rappsilber.ms.spectra.annotation.SpectraPeakMatchedFragment;
 import rappsilber.ms.spectra.match.MatchedFragmentCollection;
 import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
 import rappsilber.ms.statistics.utils.UpdateableDouble;
@@ -83,8 +82,53 @@ public class FragmentCoverage extends AbstractScoreSpectraMatch {
     public static final int MAX_PEPTIDES = 2;
     //private RunConfig   m_config;
 
+    /** the scores that are reported for the whole match and each peptide */
+    private static final String[] PART_SCORES = new String[]{m, mp, mNL, mNLp, 
+        mL, mLp, mC, mCp, mmp, mpU, mpUNL, mpUNLc, mpUL, mpULc, mpUC, mpUCp, 
+        mpUxl, mpUNLxl, mpUNLxlc, mpULxl, mpULxlc, mpUCxl, mpUCxlp, stc, 
+        ccPepFrag, ccPepFragError, ccPepFragIntens, ccPepFragCount, 
+        ccPepDoubletCount, ccPepDoubletFound, mAll, mAllLossy};
+    /** marks the base fragment while walking the entries of a fragment group */
+    private static final int BASE_ENTRY = -2;
+    /** {@link ScoreRegistry} slots of the whole-match scores */
+    private final int[] m_wholeSlots = new int[PART_SCORES.length];
+    /** {@link ScoreRegistry} slots of the peptide scores [peptide][score] */
+    private final int[][] m_peptideSlots = new int[MAX_PEPTIDES][PART_SCORES.length];
+
     public FragmentCoverage(int ConservativeLosses) {
         minToConservative = ConservativeLosses;
+        for (int i = 0; i < PART_SCORES.length; i++) {
+            m_wholeSlots[i] = ScoreRegistry.slot(whole + PART_SCORES[i]);
+            for (int p = 0; p < MAX_PEPTIDES; p++) {
+                m_peptideSlots[p][i] = ScoreRegistry.slot(peptide + (p + 1) + " " + PART_SCORES[i]);
+            }
+        }
+    }
+
+    /**
+     * the slot for the score "fragment " + name
+     */
+    private int wholeSlot(String name) {
+        for (int i = 0; i < PART_SCORES.length; i++) {
+            if (PART_SCORES[i] == name) {
+                return m_wholeSlots[i];
+            }
+        }
+        return ScoreRegistry.slot(whole + name);
+    }
+
+    /**
+     * the slot for the score "peptide" + (p+1) + " " + name
+     */
+    private int pepSlot(int p, String name) {
+        if (p < MAX_PEPTIDES) {
+            for (int i = 0; i < PART_SCORES.length; i++) {
+                if (PART_SCORES[i] == name) {
+                    return m_peptideSlots[p][i];
+                }
+            }
+        }
+        return ScoreRegistry.slot(peptide + (p + 1) + " " + name);
     }
 
     private class FragCounts {
@@ -128,13 +172,12 @@ public class FragmentCoverage extends AbstractScoreSpectraMatch {
 
         }
 
-        public void add(SpectraPeakMatchedFragment mf) {
-            Fragment f = mf.getFragment();
+        public void add(Fragment f, boolean primary) {
             int fs = f.length() - 1;
             count[fs]++;
             if (f.isClass(Loss.class)) {
                 countLossy[fs]++;
-                if (mf.isPrimary()) {
+                if (primary) {
                     countLossyPrimary[fs]++;
                     countPrimary[fs]++;
                     if (f.isClass(CrosslinkedFragment.class))
@@ -144,7 +187,7 @@ public class FragmentCoverage extends AbstractScoreSpectraMatch {
 
             } else {
                 countNonLossy[fs]++;
-                if (mf.isPrimary()) {
+                if (primary) {
                     countNonLossyPrimary[fs]++;
                     countPrimary[fs]++;
                     if (f.isClass(CrosslinkedFragment.class))
@@ -316,92 +359,100 @@ public class FragmentCoverage extends AbstractScoreSpectraMatch {
         }
 
         // collect all matches
-        for (SpectraPeak sp : match.getSpectrum()) {
-            for (SpectraPeakMatchedFragment mf : sp.getMatchedAnnotation()) {
-                Fragment f = mf.getFragment();
-                // ignore everything, that is not basic fragment (y or b-ions or losses of theese but e.g. no double fragmentation)
-                if (!f.isBasicFragmentation()) {
-                    if (f instanceof CleavableCrossLinkerPeptide.CleavableCrossLinkerPeptideFragment) {
-                        Fragment p = ((CleavableCrossLinkerPeptide.CleavableCrossLinkerPeptideFragment) f).getParent();
-                        if (p instanceof PeptideIon) {
-                            Peptide pep = p.getPeptide();
-                            UpdateableDouble error = ccPeptideFragmentFound.get(pep);
-                            double e = sp.getMZ() - f.getMZ(mf.getCharge());
-                            if (Math.abs(e) > Math.abs(e - Util.C13_MASS_DIFFERENCE)) {
-                                e = e - Util.C13_MASS_DIFFERENCE;
-                            }
-                            if (match.getFragmentTolerance().isRelative()) {
-                                e = e / p.getMZ(mf.getCharge()) * 1000000;
-                            }
+        // each fragment is matched to exactly one peak per charge state - so
+        // the matched fragments can be read directly from the collection
+        MatchedFragmentCollection primaryMfc = match.getPrimaryMatchedFragments();
+        for (int mc = 0; mc <= mfc.getMaxChargeState(); mc++) {
+            for (int index : mfc.getGroups(mc)) {
+                // the base fragment (if found) followed by the losses of the group
+                int entry = mfc.isBaseFragmentFound(index, mc) ? BASE_ENTRY : mfc.firstLoss(index, mc);
+                for (; entry != -1; entry = entry == BASE_ENTRY ? mfc.firstLoss(index, mc) : mfc.nextLoss(entry)) {
+                    Fragment f = entry == BASE_ENTRY ? mfc.getBaseFragment(index) : mfc.getLoss(entry);
+                    SpectraPeak sp = entry == BASE_ENTRY ? mfc.getBasePeak(index, mc) : mfc.getLossPeak(entry);
+                    // ignore everything, that is not basic fragment (y or b-ions or losses of theese but e.g. no double fragmentation)
+                    if (!f.isBasicFragmentation()) {
+                        if (f instanceof CleavableCrossLinkerPeptide.CleavableCrossLinkerPeptideFragment) {
+                            Fragment p = ((CleavableCrossLinkerPeptide.CleavableCrossLinkerPeptideFragment) f).getParent();
+                            if (p instanceof PeptideIon) {
+                                Peptide pep = p.getPeptide();
+                                UpdateableDouble error = ccPeptideFragmentFound.get(pep);
+                                double e = sp.getMZ() - f.getMZ(mc);
+                                if (Math.abs(e) > Math.abs(e - Util.C13_MASS_DIFFERENCE)) {
+                                    e = e - Util.C13_MASS_DIFFERENCE;
+                                }
+                                if (match.getFragmentTolerance().isRelative()) {
+                                    e = e / p.getMZ(mc) * 1000000;
+                                }
                             
-                            if (error == null) { // we have not seen that fragment ye
-                                error = new UpdateableDouble(e);
-                                ccPeptideFragmentFound.put(pep, error);
-                                HashSet<Fragment> frags = new HashSet<Fragment>();
-                                frags.add(f);
-                                ccPeptideFragmentFoundFrags.put(pep, frags);
-                                ccPeptideFragmentIntensity.put(pep,
-                                        new UpdateableDouble(
-                                                sp.getIntensity()
-                                                / match.getSpectrum().getMaxIntensity()));
-                            } else {
-                                // seen before 
-                                error.value = Math.min(error.value, e);
-                                HashSet<Fragment> frags = ccPeptideFragmentFoundFrags.get(pep);
-                                frags.add(f);
-                                double relIntens = sp.getIntensity()
-                                        / match.getSpectrum().getMaxIntensity();
-                                UpdateableDouble intensity = ccPeptideFragmentIntensity.get(pep);
-                                if (intensity.value < relIntens) {
-                                    intensity.value = relIntens;
+                                if (error == null) { // we have not seen that fragment ye
+                                    error = new UpdateableDouble(e);
+                                    ccPeptideFragmentFound.put(pep, error);
+                                    HashSet<Fragment> frags = new HashSet<Fragment>();
+                                    frags.add(f);
+                                    ccPeptideFragmentFoundFrags.put(pep, frags);
+                                    ccPeptideFragmentIntensity.put(pep,
+                                            new UpdateableDouble(
+                                                    sp.getIntensity()
+                                                    / match.getSpectrum().getMaxIntensity()));
+                                } else {
+                                    // seen before 
+                                    error.value = Math.min(error.value, e);
+                                    HashSet<Fragment> frags = ccPeptideFragmentFoundFrags.get(pep);
+                                    frags.add(f);
+                                    double relIntens = sp.getIntensity()
+                                            / match.getSpectrum().getMaxIntensity();
+                                    UpdateableDouble intensity = ccPeptideFragmentIntensity.get(pep);
+                                    if (intensity.value < relIntens) {
+                                        intensity.value = relIntens;
+                                    }
                                 }
-                            }
-                            // record all in charges - to detect doublets
-                            HashMap<Integer, HashSet<Fragment>> pepChargeFrags = ccPeptideFragmentChargeFoundFrags.get(pep);
-                            if (pepChargeFrags == null) {
-                                pepChargeFrags = new HashMap<>();
-                                ccPeptideFragmentChargeFoundFrags.put(pep, pepChargeFrags);
-                                pepChargeFrags.put(mf.getCharge(), new HashSet<Fragment>(MyArrayUtils.toCollection(new Fragment[]{f})));
-                            } else {
-                                HashSet<Fragment> chargeFrags = pepChargeFrags.get(mf.getCharge());
-                                if (chargeFrags == null) {
-                                    chargeFrags = new HashSet<Fragment>(MyArrayUtils.toCollection(new Fragment[]{f}));
-                                    pepChargeFrags.put(mf.getCharge(), chargeFrags);
+                                // record all in charges - to detect doublets
+                                HashMap<Integer, HashSet<Fragment>> pepChargeFrags = ccPeptideFragmentChargeFoundFrags.get(pep);
+                                if (pepChargeFrags == null) {
+                                    pepChargeFrags = new HashMap<>();
+                                    ccPeptideFragmentChargeFoundFrags.put(pep, pepChargeFrags);
+                                    pepChargeFrags.put(mc, new HashSet<Fragment>(MyArrayUtils.toCollection(new Fragment[]{f})));
                                 } else {
-                                    chargeFrags.add(f);
+                                    HashSet<Fragment> chargeFrags = pepChargeFrags.get(mc);
+                                    if (chargeFrags == null) {
+                                        chargeFrags = new HashSet<Fragment>(MyArrayUtils.toCollection(new Fragment[]{f}));
+                                        pepChargeFrags.put(mc, chargeFrags);
+                                    } else {
+                                        chargeFrags.add(f);
+                                    }
                                 }
-                            }
                             
+                            }
                         }
+                        continue;
                     }
-                    continue;
-                }
 
-                int pep = pepIds.get(f.getPeptide());
-                int mc = mf.getCharge();
+                    int pep = pepIds.get(f.getPeptide());
+                    boolean primary = primaryMfc != null && primaryMfc.hasMatchedFragment(f, mc);
 
-                if (f.isClass(Loss.class)) {
-                    fragmentsMatchesLossy++;
-                    peptideMatchesLossy[pep]++;
-                } else {
-                    fragmentsMatchesNonLossy++;
-                    peptideMatchesNonLossy[pep]++;
-                }
+                    if (f.isClass(Loss.class)) {
+                        fragmentsMatchesLossy++;
+                        peptideMatchesLossy[pep]++;
+                    } else {
+                        fragmentsMatchesNonLossy++;
+                        peptideMatchesNonLossy[pep]++;
+                    }
 
-                boolean isNterminal = f.isNTerminal();
-                boolean isCTerminal = f.isCTerminal();
+                    boolean isNterminal = f.isNTerminal();
+                    boolean isCTerminal = f.isCTerminal();
 
-                if (isNterminal) {
-                    if (nTerminalFrags[pep] == null || nTerminalFrags[pep][mc] == null) {
-                        System.err.println("Something strange is here n ");
+                    if (isNterminal) {
+                        if (nTerminalFrags[pep] == null || nTerminalFrags[pep][mc] == null) {
+                            System.err.println("Something strange is here n ");
+                        }
+                        nTerminalFrags[pep][mc].add(f, primary);
                     }
-                    nTerminalFrags[pep][mc].add(mf);
-                }
-                if (isCTerminal) {
-                    if (cTerminalFrags[pep] == null || cTerminalFrags[pep][mc] == null) {
-                        System.err.println("Something strange is here c ");
+                    if (isCTerminal) {
+                        if (cTerminalFrags[pep] == null || cTerminalFrags[pep][mc] == null) {
+                            System.err.println("Something strange is here c ");
+                        }
+                        cTerminalFrags[pep][mc].add(f, primary);
                     }
-                    cTerminalFrags[pep][mc].add(mf);
                 }
             }
         }
@@ -470,97 +521,97 @@ public class FragmentCoverage extends AbstractScoreSpectraMatch {
                 matchTag.add(tag);
 
                 // setup peptide scores
-                addScore(match, peptide + (p + 1) + " " + mAll, peptideMatchesNonLossy[p]);
-                addScore(match, peptide + (p + 1) + " " + mAllLossy, peptideMatchesLossy[p]);
-                addScore(match, peptide + (p + 1) + " " + m, pepUniqueFragMatches.count[0]);
-                addScore(match, peptide + (p + 1) + " " + mp, pepUniqueFragMatches.count[0] / pepAll);
-                addScore(match, peptide + (p + 1) + " " + mNL, pepUniqueFragMatches.countNonLossy[0]);
-                addScore(match, peptide + (p + 1) + " " + mNLp, pepUniqueFragMatches.countNonLossy[0] / pepAll);
-                addScore(match, peptide + (p + 1) + " " + mL, pepUniqueFragMatches.countLossy[0]);
-                addScore(match, peptide + (p + 1) + " " + mLp, pepUniqueFragMatches.countLossy[0] / pepAll);
-                addScore(match, peptide + (p + 1) + " " + mC, consTotal.count[0]);
-                addScore(match, peptide + (p + 1) + " " + mCp, consTotal.count[0] / pepAll);
-                addScore(match, peptide + (p + 1) + " " + mmp, pepMulti / pepAll);
-                addScore(match, peptide + (p + 1) + " " + mpU, pepUniqueFragMatches.countPrimary[0]);
-                addScore(match, peptide + (p + 1) + " " + mpUNL, pepUniqueFragMatches.countNonLossy[0]);
-                addScore(match, peptide + (p + 1) + " " + mpUNLc, pepUniqueFragMatches.countNonLossy[0] / pepAll);
-                addScore(match, peptide + (p + 1) + " " + mpUL, pepUniqueFragMatches.countLossy[0]);
-                addScore(match, peptide + (p + 1) + " " + mpULc, pepUniqueFragMatches.countLossy[0] / pepAll);
-                addScore(match, peptide + (p + 1) + " " + mpUC, consTotal.countPrimary[0]);
-                addScore(match, peptide + (p + 1) + " " + mpUCp, consTotal.countPrimary[0] / pepAll);
+                addScore(match, pepSlot(p, mAll), peptideMatchesNonLossy[p]);
+                addScore(match, pepSlot(p, mAllLossy), peptideMatchesLossy[p]);
+                addScore(match, pepSlot(p, m), pepUniqueFragMatches.count[0]);
+                addScore(match, pepSlot(p, mp), pepUniqueFragMatches.count[0] / pepAll);
+                addScore(match, pepSlot(p, mNL), pepUniqueFragMatches.countNonLossy[0]);
+                addScore(match, pepSlot(p, mNLp), pepUniqueFragMatches.countNonLossy[0] / pepAll);
+                addScore(match, pepSlot(p, mL), pepUniqueFragMatches.countLossy[0]);
+                addScore(match, pepSlot(p, mLp), pepUniqueFragMatches.countLossy[0] / pepAll);
+                addScore(match, pepSlot(p, mC), consTotal.count[0]);
+                addScore(match, pepSlot(p, mCp), consTotal.count[0] / pepAll);
+                addScore(match, pepSlot(p, mmp), pepMulti / pepAll);
+                addScore(match, pepSlot(p, mpU), pepUniqueFragMatches.countPrimary[0]);
+                addScore(match, pepSlot(p, mpUNL), pepUniqueFragMatches.countNonLossy[0]);
+                addScore(match, pepSlot(p, mpUNLc), pepUniqueFragMatches.countNonLossy[0] / pepAll);
+                addScore(match, pepSlot(p, mpUL), pepUniqueFragMatches.countLossy[0]);
+                addScore(match, pepSlot(p, mpULc), pepUniqueFragMatches.countLossy[0] / pepAll);
+                addScore(match, pepSlot(p, mpUC), consTotal.countPrimary[0]);
+                addScore(match, pepSlot(p, mpUCp), consTotal.countPrimary[0] / pepAll);
         
-                addScore(match, peptide + (p + 1) + " " + mpUxl, pepUniqueFragMatches.countPrimaryXL[0]);
-                addScore(match, peptide + (p + 1) + " " + mpUNLxl, pepUniqueFragMatches.countNonLossyPrimaryXL[0]);
-                addScore(match, peptide + (p + 1) + " " + mpUNLxlc, pepUniqueFragMatches.countNonLossyPrimaryXL[0] / matchPossible);
-                addScore(match, peptide + (p + 1) + " " + mpULxl, pepUniqueFragMatches.countLossyPrimaryXL[0]);
-                addScore(match, peptide + (p + 1) + " " + mpULxlc, pepUniqueFragMatches.countLossyPrimaryXL[0] / matchPossible);
-                addScore(match, peptide + (p + 1) + " " + mpUCxl, consTotal.countPrimaryXL[0]);
-                addScore(match, peptide + (p + 1) + " " + mpUCxlp, consTotal.countPrimaryXL[0] / matchPossible);
+                addScore(match, pepSlot(p, mpUxl), pepUniqueFragMatches.countPrimaryXL[0]);
+                addScore(match, pepSlot(p, mpUNLxl), pepUniqueFragMatches.countNonLossyPrimaryXL[0]);
+                addScore(match, pepSlot(p, mpUNLxlc), pepUniqueFragMatches.countNonLossyPrimaryXL[0] / matchPossible);
+                addScore(match, pepSlot(p, mpULxl), pepUniqueFragMatches.countLossyPrimaryXL[0]);
+                addScore(match, pepSlot(p, mpULxlc), pepUniqueFragMatches.countLossyPrimaryXL[0] / matchPossible);
+                addScore(match, pepSlot(p, mpUCxl), consTotal.countPrimaryXL[0]);
+                addScore(match, pepSlot(p, mpUCxlp), consTotal.countPrimaryXL[0] / matchPossible);
         
-                addScore(match, peptide + (p + 1) + " " + stc, tag.count[0] / pepAll);
+                addScore(match, pepSlot(p, stc), tag.count[0] / pepAll);
                 UpdateableDouble e = ccPeptideFragmentFound.get(cp);
                 if (e != null) {
                     wholeCCPepFrag += 1;
-                    addScore(match, peptide + (p + 1) + " " + ccPepFrag, 1d);
+                    addScore(match, pepSlot(p, ccPepFrag), 1d);
                     wholeCCPepFragError = Double.isNaN(wholeCCPepFragError)? e.value : Math.max(e.value, wholeCCPepFragError);
-                    addScore(match, peptide + (p + 1) + " " + ccPepFragError, e.value);
+                    addScore(match, pepSlot(p, ccPepFragError), e.value);
                     wholeCCPepFragIntens = Math.min(e.value, ccPeptideFragmentIntensity.get(cp).value);
-                    addScore(match, peptide + (p + 1) + " " + ccPepFragIntens, ccPeptideFragmentIntensity.get(cp).value);
+                    addScore(match, pepSlot(p, ccPepFragIntens), ccPeptideFragmentIntensity.get(cp).value);
                     wholeCCPepFragCount += ccPeptideFragmentFoundFrags.get(cp).size();
-                    addScore(match, peptide + (p + 1) + " " + ccPepFragCount, ccPeptideFragmentFoundFrags.get(cp).size());
+                    addScore(match, pepSlot(p, ccPepFragCount), ccPeptideFragmentFoundFrags.get(cp).size());
                     int doublets = 0;                    
                     for (Map.Entry<Integer, HashSet<Fragment>> chargeEntries : ccPeptideFragmentChargeFoundFrags.get(cp).entrySet()) {
                         if (chargeEntries.getValue().size()>1)
                             doublets++;
                     }
-                    addScore(match, peptide + (p + 1) + " " + ccPepDoubletCount, doublets);
+                    addScore(match, pepSlot(p, ccPepDoubletCount), doublets);
                     wholeCCPepDoubletCount += doublets;
-                    addScore(match, peptide + (p + 1) + " " + ccPepDoubletFound, doublets>0?1:0);
+                    addScore(match, pepSlot(p, ccPepDoubletFound), doublets>0?1:0);
                     wholeCCPepDoubletFound += doublets>0?1:0;
                 } else {
-                    addScore(match, peptide + (p + 1) + " " + ccPepFrag, 0);
-                    addScore(match, peptide + (p + 1) + " " + ccPepFragIntens, 0);
-                    addScore(match, peptide + (p + 1) + " " + ccPepFragError, Double.NaN);
-                    addScore(match, peptide + (p + 1) + " " + ccPepFragCount, 0);
-                    addScore(match, peptide + (p + 1) + " " + ccPepDoubletCount, 0);
-                    addScore(match, peptide + (p + 1) + " " + ccPepDoubletFound, 0);
+                    addScore(match, pepSlot(p, ccPepFrag), 0);
+                    addScore(match, pepSlot(p, ccPepFragIntens), 0);
+                    addScore(match, pepSlot(p, ccPepFragError), Double.NaN);
+                    addScore(match, pepSlot(p, ccPepFragCount), 0);
+                    addScore(match, pepSlot(p, ccPepDoubletCount), 0);
+                    addScore(match, pepSlot(p, ccPepDoubletFound), 0);
                 }
 
             } else {
-                addScore(match, peptide + (p + 1) + " " + mAll, 0);
-                addScore(match, peptide + (p + 1) + " " + mAllLossy, 0);
-                addScore(match, peptide + (p + 1) + " " + m, 0);
-                addScore(match, peptide + (p + 1) + " " + mp, 0);
-                addScore(match, peptide + (p + 1) + " " + mNL, 0);
-                addScore(match, peptide + (p + 1) + " " + mNLp, 0);
-                addScore(match, peptide + (p + 1) + " " + mL, 0);
-                addScore(match, peptide + (p + 1) + " " + mLp, 0);
-                addScore(match, peptide + (p + 1) + " " + mC, 0);
-                addScore(match, peptide + (p + 1) + " " + mCp, 0);
-                addScore(match, peptide + (p + 1) + " " + mmp, 0);
-                addScore(match, peptide + (p + 1) + " " + mpU, 0);
-                addScore(match, peptide + (p + 1) + " " + mpUNL, 0);
-                addScore(match, peptide + (p + 1) + " " + mpUNLc, 0);
-                addScore(match, peptide + (p + 1) + " " + mpUL, 0);
-                addScore(match, peptide + (p + 1) + " " + mpULc, 0);
-                addScore(match, peptide + (p + 1) + " " + mpUC, 0);
-                addScore(match, peptide + (p + 1) + " " + mpUCp, 0);
+                addScore(match, pepSlot(p, mAll), 0);
+                addScore(match, pepSlot(p, mAllLossy), 0);
+                addScore(match, pepSlot(p, m), 0);
+                addScore(match, pepSlot(p, mp), 0);
+                addScore(match, pepSlot(p, mNL), 0);
+                addScore(match, pepSlot(p, mNLp), 0);
+                addScore(match, pepSlot(p, mL), 0);
+                addScore(match, pepSlot(p, mLp), 0);
+                addScore(match, pepSlot(p, mC), 0);
+                addScore(match, pepSlot(p, mCp), 0);
+                addScore(match, pepSlot(p, mmp), 0);
+                addScore(match, pepSlot(p, mpU), 0);
+                addScore(match, pepSlot(p, mpUNL), 0);
+                addScore(match, pepSlot(p, mpUNLc), 0);
+                addScore(match, pepSlot(p, mpUL), 0);
+                addScore(match, pepSlot(p, mpULc), 0);
+                addScore(match, pepSlot(p, mpUC), 0);
+                addScore(match, pepSlot(p, mpUCp), 0);
         
-                addScore(match, peptide + (p + 1) + " " + mpUxl, 0);
-                addScore(match, peptide + (p + 1) + " " + mpUNLxl, 0);
-                addScore(match, peptide + (p + 1) + " " + mpUNLxlc, 0);
-                addScore(match, peptide + (p + 1) + " " + mpULxl, 0);
-                addScore(match, peptide + (p + 1) + " " + mpULxlc, 0);
-                addScore(match, peptide + (p + 1) + " " + mpUCxl, 0);
-                addScore(match, peptide + (p + 1) + " " + mpUCxlp, 0);
+                addScore(match, pepSlot(p, mpUxl), 0);
+                addScore(match, pepSlot(p, mpUNLxl), 0);
+                addScore(match, pepSlot(p, mpUNLxlc), 0);
+                addScore(match, pepSlot(p, mpULxl), 0);
+                addScore(match, pepSlot(p, mpULxlc), 0);
+                addScore(match, pepSlot(p, mpUCxl), 0);
+                addScore(match, pepSlot(p, mpUCxlp), 0);
         
-                addScore(match, peptide + (p + 1) + " " + stc, 0);
-                addScore(match, peptide + (p + 1) + " " + ccPepFrag, 0);
-                addScore(match, peptide + (p + 1) + " " + ccPepFragError, Double.NaN);
-                addScore(match, peptide + (p + 1) + " " + ccPepFragIntens, 0);
-                addScore(match, peptide + (p + 1) + " " + ccPepFragCount, 0);
-                addScore(match, peptide + (p + 1) + " " + ccPepDoubletCount, 0);
-                addScore(match, peptide + (p + 1) + " " + ccPepDoubletFound, 0);
+                addScore(match, pepSlot(p, stc), 0);
+                addScore(match, pepSlot(p, ccPepFrag), 0);
+                addScore(match, pepSlot(p, ccPepFragError), Double.NaN);
+                addScore(match, pepSlot(p, ccPepFragIntens), 0);
+                addScore(match, pepSlot(p, ccPepFragCount), 0);
+                addScore(match, pepSlot(p, ccPepDoubletCount), 0);
+                addScore(match, pepSlot(p, ccPepDoubletFound), 0);
             }
 
         }
@@ -568,38 +619,38 @@ public class FragmentCoverage extends AbstractScoreSpectraMatch {
         //all = fragmentsMatched + unmatched;
         addScore(match, mAll, fragmentsMatchesNonLossy);
         addScore(match, mAllLossy, fragmentsMatchesLossy);
-        addScore(match, whole + m, matchAll.count[0]);
-        addScore(match, whole + mp, matchAll.count[0] / matchPossible);
-        addScore(match, whole + mNL, matchAll.countNonLossy[0]);
-        addScore(match, whole + mNLp, matchAll.countNonLossy[0] / matchPossible);
-        addScore(match, whole + mL, matchAll.countLossy[0]);
-        addScore(match, whole + mLp, matchAll.countLossy[0] / matchPossible);
-        addScore(match, whole + mC, matchCons.count[0]);
-        addScore(match, whole + mCp, matchCons.count[0] / matchPossible);
-        addScore(match, whole + mmp, matchMulti / matchPossible);
-        addScore(match, whole + mpU, matchAll.countPrimary[0]);
-        addScore(match, whole + mpUNL, matchAll.countNonLossyPrimary[0]);
-        addScore(match, whole + mpUNLc, matchAll.countNonLossyPrimary[0] / matchPossible);
-        addScore(match, whole + mpUL, matchAll.countLossyPrimary[0]);
-        addScore(match, whole + mpULc, matchAll.countLossyPrimary[0] / matchPossible);
-        addScore(match, whole + mpUC, matchCons.countPrimary[0]);
-        addScore(match, whole + mpUCp, matchCons.countPrimary[0] / matchPossible);
+        addScore(match, wholeSlot(m), matchAll.count[0]);
+        addScore(match, wholeSlot(mp), matchAll.count[0] / matchPossible);
+        addScore(match, wholeSlot(mNL), matchAll.countNonLossy[0]);
+        addScore(match, wholeSlot(mNLp), matchAll.countNonLossy[0] / matchPossible);
+        addScore(match, wholeSlot(mL), matchAll.countLossy[0]);
+        addScore(match, wholeSlot(mLp), matchAll.countLossy[0] / matchPossible);
+        addScore(match, wholeSlot(mC), matchCons.count[0]);
+        addScore(match, wholeSlot(mCp), matchCons.count[0] / matchPossible);
+        addScore(match, wholeSlot(mmp), matchMulti / matchPossible);
+        addScore(match, wholeSlot(mpU), matchAll.countPrimary[0]);
+        addScore(match, wholeSlot(mpUNL), matchAll.countNonLossyPrimary[0]);
+        addScore(match, wholeSlot(mpUNLc), matchAll.countNonLossyPrimary[0] / matchPossible);
+        addScore(match, wholeSlot(mpUL), matchAll.countLossyPrimary[0]);
+        addScore(match, wholeSlot(mpULc), matchAll.countLossyPrimary[0] / matchPossible);
+        addScore(match, wholeSlot(mpUC), matchCons.countPrimary[0]);
+        addScore(match, wholeSlot(mpUCp), matchCons.countPrimary[0] / matchPossible);
         
-        addScore(match, whole + mpUxl, matchAll.countPrimaryXL[0]);
-        addScore(match, whole + mpUNLxl, matchAll.countNonLossyPrimaryXL[0]);
-        addScore(match, whole + mpUNLxlc, matchAll.countNonLossyPrimaryXL[0] / matchPossible);
-        addScore(match, whole + mpULxl, matchAll.countLossyPrimaryXL[0]);
-        addScore(match, whole + mpULxlc, matchAll.countLossyPrimaryXL[0] / matchPossible);
-        addScore(match, whole + mpUCxl, matchCons.countPrimaryXL[0]);
-        addScore(match, whole + mpUCxlp, matchCons.countPrimaryXL[0] / matchPossible);
+        addScore(match, wholeSlot(mpUxl), matchAll.countPrimaryXL[0]);
+        addScore(match, wholeSlot(mpUNLxl), matchAll.countNonLossyPrimaryXL[0]);
+        addScore(match, wholeSlot(mpUNLxlc), matchAll.countNonLossyPrimaryXL[0] / matchPossible);
+        addScore(match, wholeSlot(mpULxl), matchAll.countLossyPrimaryXL[0]);
+        addScore(match, wholeSlot(mpULxlc), matchAll.countLossyPrimaryXL[0] / matchPossible);
+        addScore(match, wholeSlot(mpUCxl), matchCons.countPrimaryXL[0]);
+        addScore(match, wholeSlot(mpUCxlp), matchCons.countPrimaryXL[0] / matchPossible);
         
-        addScore(match, whole + stc, matchTag.count[0] / matchPossible);
-        addScore(match, whole + ccPepFrag, wholeCCPepFrag);
-        addScore(match, whole + ccPepFragError, wholeCCPepFragError);
-        addScore(match, whole + ccPepFragIntens, wholeCCPepFragIntens);
-        addScore(match, whole + ccPepFragCount, wholeCCPepFragCount);
-        addScore(match, whole + ccPepDoubletCount, wholeCCPepDoubletCount);
-        addScore(match, whole + ccPepDoubletFound, wholeCCPepDoubletFound);
+        addScore(match, wholeSlot(stc), matchTag.count[0] / matchPossible);
+        addScore(match, wholeSlot(ccPepFrag), wholeCCPepFrag);
+        addScore(match, wholeSlot(ccPepFragError), wholeCCPepFragError);
+        addScore(match, wholeSlot(ccPepFragIntens), wholeCCPepFragIntens);
+        addScore(match, wholeSlot(ccPepFragCount), wholeCCPepFragCount);
+        addScore(match, wholeSlot(ccPepDoubletCount), wholeCCPepDoubletCount);
+        addScore(match, wholeSlot(ccPepDoubletFound), wholeCCPepDoubletFound);
 
         return all;
 
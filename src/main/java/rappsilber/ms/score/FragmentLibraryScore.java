@@ -43,6 +43,8 @@ public class FragmentLibraryScore extends AbstractScoreSpectraMatch {
     public static final String ExpScore = "FragmentLibraryScoreExponential";
     public static final String LogScore = "FragmentLibraryScoreLog";
     private final static double factor = Math.exp(100);
+    /** how many of the matched peaks make up the score */
+    public static final int MAX_PEAKS = 50;
 
 
     public FragmentLibraryScore(FragmentLookup fl, long peptides) {
@@ -50,6 +52,15 @@ public class FragmentLibraryScore extends AbstractScoreSpectraMatch {
         m_countPeptides = peptides;
     }
 
+    /**
+     * @param fl the fragment lookup to score against
+     * @param peptides the number of peptides the fragment lookup was build from
+     */
+    public void setFragmentLookup(FragmentLookup fl, long peptides) {
+        m_FragmentLookup  = fl;
+        m_countPeptides = peptides;
+    }
+
 
     public double score(MatchedXlinkedPeptide match) {
 
@@ -60,6 +71,8 @@ public class FragmentLibraryScore extends AbstractScoreSpectraMatch {
         TreeSet<Double> ps = new TreeSet<Double>();
         MatchedFragmentCollection mfc = match.getMatchedFragments();
         HashMap<SpectraPeak,SpectraPeakMatchedFragment> primaryMatches = match.getSpectrum().getPrimaryMatches(mfc);
+        // mass of the whole match - only needed for crosslinked fragments
+        double precCalcMass = Double.NaN;
 
         for (Map.Entry<SpectraPeak,SpectraPeakMatchedFragment> e : primaryMatches.entrySet()) {
             SpectraPeakMatchedFragment spmf = e.getValue();
@@ -72,13 +85,15 @@ public class FragmentLibraryScore extends AbstractScoreSpectraMatch {
                 double scoreMass = f.getMass();
 
                 if (f.isClass(CrosslinkedFragment.class)) {
-                    double precCalcMass = 0;
+                    if (Double.isNaN(precCalcMass)) {
+                        precCalcMass = 0;
 
-                    for (Peptide p : match.getPeptides())
-                        precCalcMass += p.getMass();
+                        for (Peptide p : match.getPeptides())
+                            precCalcMass += p.getMass();
 
-                    if (match.getCrosslinker() != null) {
-                        precCalcMass += match.getCrosslinker().getCrossLinkedMass();
+                        if (match.getCrosslinker() != null) {
+                            precCalcMass += match.getCrosslinker().getCrossLinkedMass();
+                        }
                     }
 
                     double linMass = precCalcMass - f.getNeutralMass() + Util.PROTON_MASS;
@@ -87,6 +102,7 @@ public class FragmentLibraryScore extends AbstractScoreSpectraMatch {
 
                 } //else
                 //    peakScore = m_FragmentLookup.countPeptides(mbf.getBaseFragment().getMZ(1))/m_countPeptides;
+                // answered by the fragment mass histogram of the lookup - if it has one
                 peakScore = m_FragmentLookup.countPeptides(scoreMass)/m_countPeptides;
 //                if (peakScore == 0)
 //                    System.err.println("found it " + this.getClass().getName());
@@ -97,7 +113,7 @@ public class FragmentLibraryScore extends AbstractScoreSpectraMatch {
 //        matchScore = -Math.log(matchScore);
         //matchScore = 1/(matchScore * matchScore + 0.01);
         Iterator<Double> it = ps.iterator();
-        for (int i =0; i<50 && it.hasNext(); i++) {
+        for (int i =0; i<MAX_PEAKS && it.hasNext(); i++) {
             matchScore *= it.next();
         }
 
@@ -113,6 +129,17 @@ public class FragmentLibraryScore extends AbstractScoreSpectraMatch {
     }
 
 
+    /**
+     * the highest finite value {@link #LogScore} can have.<br/>
+     * Each peak contributes the number of peptides for its mass - at least 
+     * one - divided by the number of peptides. So the product over at most 
+     * {@link #MAX_PEAKS} peaks can not get smaller then 1/peptides^MAX_PEAKS.
+     * @return 
+     */
+    public double getMaxLogScore() {
+        return Math.max(0, MAX_PEAKS * Math.log(m_countPeptides));
+    }
+
     public double getOrder() {
         return 20;
     }
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.score;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import rappsilber.data.ScoreInfosML;
+import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
+
+/**
+ * The weighted sum of normalised sub-scores used by {@link NormalizerML},
+ * compiled into flat coefficient arrays.<br/>
+ * Only sub-scores with a weight take part. This is only used to give an upper
+ * bound for the score of a match, that is not yet fully scored - the score 
+ * itself is calculated by {@link NormalizerML#score(rappsilber.ms.spectra.match.MatchedXlinkedPeptide)}.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class LinearScoreModel {
+    /** {@link ScoreRegistry} slots of the used sub-scores */
+    private final int[] m_slots;
+    /** average of each sub-score */
+    private final double[] m_average;
+    /** standard deviation of each sub-score */
+    private final double[] m_stdev;
+    /** what the normalised sub-score gets multiplied with */
+    private final double[] m_coefficient;
+    /** absolute weight of each sub-score */
+    private final double[] m_absWeight;
+    /** name of each sub-score */
+    private final String[] m_names;
+    /** lowest value of each sub-score seen in the training data */
+    private final double[] m_trainingMin;
+    /** highest value of each sub-score seen in the training data */
+    private final double[] m_trainingMax;
+    /** 
+     * the highest weighted value each sub-score can contribute - 
+     * +Infinity if that is not known 
+     */
+    private volatile double[] m_maxWeighted;
+    /** value used for sub-scores that can't be normalised */
+    private final double m_missingValue;
+    /** are sub-scores that can't be normalised counted with m_missingValue */
+    private final boolean m_countMissing;
+
+    /**
+     * @param infos the sub-score definitions
+     * @param missingScoreValue if not null sub-scores that can not be
+     * normalised are counted with this value
+     */
+    public LinearScoreModel(Map<String,ScoreInfosML.ScoreInfoStruct> infos, Double missingScoreValue) {
+        m_countMissing = missingScoreValue != null;
+        m_missingValue = m_countMissing ? missingScoreValue : 0;
+        ArrayList<ScoreInfosML.ScoreInfoStruct> used = new ArrayList<ScoreInfosML.ScoreInfoStruct>();
+        for (ScoreInfosML.ScoreInfoStruct si : infos.values()) {
+            // without a factor the score can only ever count as missing
+            if (si.weigth != 0 && (si.factor != 0 || m_countMissing)) {
+                used.add(si);
+            }
+        }
+        int n = used.size();
+        m_slots = new int[n];
+        m_average = new double[n];
+        m_stdev = new double[n];
+        m_coefficient = new double[n];
+        m_absWeight = new double[n];
+        m_names = new String[n];
+        m_trainingMin = new double[n];
+        m_trainingMax = new double[n];
+        for (int k = 0; k < n; k++) {
+            ScoreInfosML.ScoreInfoStruct si = used.get(k);
+            m_slots[k] = ScoreRegistry.slot(si.name);
+            m_names[k] = si.name;
+            m_trainingMin[k] = si.min;
+            m_trainingMax[k] = si.max;
+            m_absWeight[k] = Math.abs(si.weigth);
+            if (si.factor == 0) {
+                // makes the normalised score NaN -> counted as missing
+                m_average[k] = Double.NaN;
+                m_stdev[k] = 1;
+                m_coefficient[k] = 0;
+            } else {
+                m_average[k] = si.average;
+                m_stdev[k] = si.stdev;
+                if (si.normalizedSplit == 0) {
+                    m_coefficient[k] = si.weigth / si.factor;
+                } else {
+                    m_coefficient[k] = si.factor * si.weigth / si.normalizedSplit;
+                }
+            }
+        }
+        setBounds(new HashMap<String, double[]>(), false);
+    }
+
+    /**
+     * defines the range the sub-scores are guaranteed to be in. 
+     * These are used by {@link #upperBound(rappsilber.ms.spectra.match.MatchedXlinkedPeptide)}
+     * for sub-scores that are not yet known.<br/>
+     * A sub-score without a range could have any value - and as long as it
+     * is not known no useful upper bound can be given.
+     * @param ranges min and max for each sub-score by name
+     * @param training sub-scores without a given range are assumed to lie 
+     * within the min and max seen in the training data. 
+     * This is not guaranteed - so matches that could still reach the 
+     * required score might get their bound underestimated.
+     */
+    public void setBounds(Map<String,double[]> ranges, boolean training) {
+        int n = m_slots.length;
+        double[] maxWeighted = new double[n];
+        for (int k = 0; k < n; k++) {
+            double[] range = ranges.get(m_names[k]);
+            if (range == null && training) {
+                range = new double[]{m_trainingMin[k], m_trainingMax[k]};
+            }
+            double max;
+            if (m_coefficient[k] == 0) {
+                // gets counted as missing anyway
+                max = Double.NEGATIVE_INFINITY;
+            } else if (range == null) {
+                max = Double.POSITIVE_INFINITY;
+            } else {
+                max = Math.max((range[0] - m_average[k]) / m_stdev[k] * m_coefficient[k],
+                        (range[1] - m_average[k]) / m_stdev[k] * m_coefficient[k]);
+                if (Double.isNaN(max)) {
+                    max = Double.POSITIVE_INFINITY;
+                }
+            }
+            if (m_countMissing) {
+                max = Math.max(max, m_missingValue);
+            }
+            maxWeighted[k] = max;
+        }
+        m_maxWeighted = maxWeighted;
+    }
+
+    /**
+     * @return the number of sub-scores
+     */
+    public int size() {
+        return m_slots.length;
+    }
+
+    /**
+     * the highest combined score the match could get, once all sub-scores
+     * that are not yet set are known.<br/>
+     * Sub-scores that are not set are assumed to be within the ranges given
+     * by {@link #setBounds(java.util.Map, boolean)}. If any of them has no 
+     * range the bound is +Infinity.
+     * @param match
+     * @return
+     */
+    public double upperBound(MatchedXlinkedPeptide match) {
+        int[] slots = m_slots;
+        double[] maxWeighted = m_maxWeighted;
+        double combined = 0;
+        double totalWeight = 0;
+        // what unset sub-scores could add at most
+        double unknownGain = 0;
+        double unknownWeight = 0;
+        for (int k = 0; k < slots.length; k++) {
+            if (!match.hasScore(slots[k])) {
+                if (maxWeighted[k] > 0) {
+                    unknownGain += maxWeighted[k];
+                }
+                unknownWeight += m_absWeight[k];
+                continue;
+            }
+            double x = match.getScore(slots[k]);
+            if (!(x < 999999)) {
+                continue;
+            }
+            double w = (x - m_average[k]) / m_stdev[k] * m_coefficient[k];
+            if (!Double.isNaN(w) && !Double.isInfinite(w)) {
+                combined += w;
+            } else if (m_countMissing) {
+                combined += m_missingValue;
+            } else {
+                continue;
+            }
+            totalWeight += m_absWeight[k];
+        }
+        double best = combined + unknownGain;
+        double bound;
+        if (best > 0) {
+            // the fewer sub-scores count the higher the score
+            bound = totalWeight > 0 ? best / totalWeight * 7 : Double.POSITIVE_INFINITY;
+        } else {
+            // the more sub-scores count the closer to 0 the score
+            double weight = totalWeight + unknownWeight;
+            bound = weight > 0 ? best / weight * 7 : 0;
+        }
+        if (totalWeight == 0) {
+            // if nothing gets counted the score is 0
+            bound = Math.max(bound, 0);
+        }
+        return bound;
+    }
+}
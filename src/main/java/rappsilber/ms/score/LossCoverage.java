@@ -19,7 +19,7 @@ import java.util.HashMap;
 import rappsilber.ms.sequence.Peptide;
 import rappsilber.ms.sequence.ions.Fragment;
 import rappsilber.ms.sequence.ions.loss.Loss;
-import rappsilber.ms.spectra.SpectraPeak;
+import rappsilber.ms.spectra.match.MatchedFragmentCollection;
 import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
 
 /**
@@ -53,11 +53,12 @@ public class LossCoverage extends AbstractScoreSpectraMatch{
         }
 
 
-        //MatchedFragmentCollection allMatches = new MatchedFragmentCollection();
-        for (SpectraPeak sp : match.getSpectrum() ){
-            for (Fragment f : sp.getMatchedFragments()) {
-                if ((f instanceof Loss)) {
-                    foundFragments.get(f.getPeptide()).put(f, Boolean.TRUE);
+        MatchedFragmentCollection mfc = match.getMatchedFragments();
+        for (int charge = 0; charge <= mfc.getMaxChargeState(); charge++) {
+            for (int index : mfc.getGroups(charge)) {
+                for (int e = mfc.firstLoss(index, charge); e >= 0; e = mfc.nextLoss(e)) {
+                    Loss l = mfc.getLoss(e);
+                    foundFragments.get(l.getPeptide()).put(l, Boolean.TRUE);
                     all++;
                 }
             }
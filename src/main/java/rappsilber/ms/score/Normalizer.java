@@ -40,6 +40,8 @@ public class Normalizer extends AbstractScoreSpectraMatch {
 
 
     public double score(MatchedXlinkedPeptide match) {
+        // summed up in the order of the map - changing that changes the 
+        // last digits of the score
         HashMap<String, Double> scores = match.getScores();
         double CombScore = 0;
         int scorecount = 0;
@@ -53,7 +55,7 @@ public class Normalizer extends AbstractScoreSpectraMatch {
                     CombScore += normScore * si.weigth;
                     
                     if (m_InsertNormalizedScores) {
-                        scores.put(name, normScore);
+                        match.setScore(name, normScore);
                     }
 
                 }
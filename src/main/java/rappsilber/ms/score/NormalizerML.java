@@ -44,6 +44,12 @@ public class NormalizerML extends AbstractScoreSpectraMatch {
     Double missingScoreValue = null;
     /** contains information about the score like the expected average and standard-deviation */
     HashMap<String,ScoreInfosML.ScoreInfoStruct> m_scoreInfos = ScoreInfosML.getScoreInfos();
+    /** the weighted sum as flat coefficient vectors - used for the upper bound */
+    private LinearScoreModel m_model;
+    /** the ranges the sub-scores are guaranteed to be in */
+    private HashMap<String,double[]> m_ranges;
+    /** assume sub-scores without range to be in the range of the training data */
+    private boolean m_trainingRanges;
 
     static double m_order = 100001;
     public static final String NAME = "match score";
@@ -56,10 +62,65 @@ public class NormalizerML extends AbstractScoreSpectraMatch {
         if (dv != null) {
             missingScoreValue=new Double(dv.toString().trim());
         }
+        m_model = new LinearScoreModel(m_scoreInfos, missingScoreValue);
+        // guaranteed ranges for the pre-score gate
+        m_ranges = guaranteedRanges();
+        for (String r : m_config.retrieveObject("PRESCORE_RANGES", "").split(";")) {
+            if (r.trim().isEmpty()) {
+                continue;
+            }
+            String[] p = r.split(":");
+            if (p.length != 3) {
+                throw new IllegalArgumentException("PRESCORE_RANGES: expected name:min:max but got " + r);
+            }
+            m_ranges.put(p[0].trim(), new double[]{Double.parseDouble(p[1].trim()), Double.parseDouble(p[2].trim())});
+        }
+        m_trainingRanges = m_config.retrieveObject("PRESCORE_TRAINING_RANGES", false);
+        m_model.setBounds(m_ranges, m_trainingRanges);
+    }
+
+    /**
+     * The ranges the sub-scores calculated after {@link FragmentCoverage} 
+     * are in - by the way they are calculated.<br/>
+     * All of them are ratios or averages of ratios - except for 
+     * {@link FragmentLibraryScore#Score}, that can't be above 1, and
+     * {@link FragmentLibraryScore#LogScore}, that depends on the number of 
+     * peptides (see {@link #setScoreRange(java.lang.String, double, double) }).
+     * With these a match that went through the fragment matching gets a 
+     * finite upper bound before the expensive scores are calculated.
+     * @return 
+     */
+    private static HashMap<String,double[]> guaranteedRanges() {
+        HashMap<String,double[]> ranges = new HashMap<String, double[]>();
+        double[] ratio = new double[]{0, 1};
+        ranges.put(FragmentLibraryScore.Score, new double[]{Double.NEGATIVE_INFINITY, 1});
+        ranges.put(FragmentLibraryScore.ExpScore, ratio);
+        for (String name : new String[]{SpectraCoverage.mp, SpectraCoverage.mnlp,
+                SpectraCoverage.ip, SpectraCoverage.imp, SpectraCoverage.smp,
+                SpectraCoverage.t10mp, SpectraCoverage.t20mp, SpectraCoverage.t40mp,
+                SpectraCoverage.t100mp, SpectraCoverage.pmp,
+                SpectraCoverageConservative.class.getSimpleName(),
+                CombinedScores.pep1, CombinedScores.pep2, CombinedScores.spectrum}) {
+            ranges.put(name, ratio);
+        }
+        return ranges;
+    }
+
+    /**
+     * sets the range a sub-score is guaranteed to be in for the upper bound
+     * @param name the name of the sub-score
+     * @param min
+     * @param max 
+     */
+    public synchronized void setScoreRange(String name, double min, double max) {
+        m_ranges.put(name, new double[]{min, max});
+        m_model.setBounds(m_ranges, m_trainingRanges);
     }
 
 
     public double score(MatchedXlinkedPeptide match) {
+        // summed up in the order of the map - changing that changes the 
+        // last digits of the score
         HashMap<String, Double> scores = match.getScores();
         double CombScore = 0;
         int scorecount = 0;
@@ -82,7 +143,7 @@ public class NormalizerML extends AbstractScoreSpectraMatch {
                     totalWeight += Math.abs(si.weigth);
                     
                     if (m_InsertNormalizedScores) {
-                        scores.put(name, normScore);
+                        match.setScore(name, normScore);
                     }
 
                 } else if (missingScoreValue != null)  {
@@ -104,6 +165,17 @@ public class NormalizerML extends AbstractScoreSpectraMatch {
         return finalScore;
     }
 
+    /**
+     * the highest score the match could get once all sub-scores that are not
+     * yet set are known
+     * @param match
+     * @return
+     * @see LinearScoreModel#upperBound(rappsilber.ms.spectra.match.MatchedXlinkedPeptide) 
+     */
+    public double upperBound(MatchedXlinkedPeptide match) {
+        return m_model.upperBound(match);
+    }
+
     public double getOrder() {
         return m_order;
     }
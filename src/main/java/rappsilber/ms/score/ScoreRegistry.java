@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.score;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns each score name a fixed slot.<br/>
+ * Matches store their scores in a double array addressed by these slots.
+ * All scores of the configured {@link ScoreSpectraMatch}es get registered when
+ * the scores are set up - so they occupy the first slots. Any other score name
+ * gets a new slot the first time it is used.
+ * Slots never change during the lifetime of the JVM.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public final class ScoreRegistry {
+    /** maps score names to slots */
+    private static final ConcurrentHashMap<String,Integer> m_slots = new ConcurrentHashMap<String, Integer>();
+    /** the name for each slot */
+    private static volatile String[] m_names = new String[0];
+
+    private ScoreRegistry() {
+    }
+
+    /**
+     * returns the slot for the given score name - if the name is not yet
+     * known a new slot is assigned.
+     * @param name name of the score
+     * @return the slot of the score
+     */
+    public static int slot(String name) {
+        Integer s = m_slots.get(name);
+        if (s != null) {
+            return s;
+        }
+        return register(name);
+    }
+
+    /**
+     * returns the slot for the given score name without registering it.
+     * @param name name of the score
+     * @return the slot or -1 if there is no score of that name
+     */
+    public static int lookup(String name) {
+        Integer s = m_slots.get(name);
+        return s == null ? -1 : s;
+    }
+
+    /**
+     * registers a score name
+     * @param name
+     * @return the slot of the score
+     */
+    public static synchronized int register(String name) {
+        Integer s = m_slots.get(name);
+        if (s != null) {
+            return s;
+        }
+        String[] names = Arrays.copyOf(m_names, m_names.length + 1);
+        int slot = names.length - 1;
+        names[slot] = name;
+        m_names = names;
+        m_slots.put(name, slot);
+        return slot;
+    }
+
+    /**
+     * registers all scores provided by the given scoring function
+     * @param score
+     */
+    public static void register(ScoreSpectraMatch score) {
+        for (String name : score.scoreNames()) {
+            register(name);
+        }
+    }
+
+    /**
+     * returns the slots for a list of score names (registering unknown names).
+     * A null name - e.g. from a scoring function asked for its names before
+     * its fields are initialised - gets the slot -1.
+     * @param names
+     * @return
+     */
+    public static int[] slots(String[] names) {
+        int[] ret = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            ret[i] = names[i] == null ? -1 : slot(names[i]);
+        }
+        return ret;
+    }
+
+    /**
+     * @return how many scores are currently registered
+     */
+    public static int size() {
+        return m_names.length;
+    }
+
+    /**
+     * @param slot
+     * @return the name of the score in the given slot
+     */
+    public static String name(int slot) {
+        return m_names[slot];
+    }
+}
@@ -18,10 +18,10 @@ package rappsilber.ms.score;
 import java.util.ArrayList;
 import java.util.HashSet;
 import rappsilber.ms.sequence.ions.DoubleFragmentation;
+import rappsilber.ms.sequence.ions.Fragment;
 import rappsilber.ms.spectra.SpectraPeak;
 import rappsilber.ms.spectra.SpectraPeakCluster;
 import rappsilber.ms.spectra.annotation.SpectraPeakMatchedFragment;
-import rappsilber.ms.spectra.match.MatchedBaseFragment;
 import rappsilber.ms.spectra.match.MatchedFragmentCollection;
 import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
 
@@ -38,6 +38,16 @@ public class SpectraCoverageConservative extends AbstractScoreSpectraMatch{
     }
     
     
+    /**
+     * is the match part of a fragment group with a found base fragment or
+     * enough losses
+     */
+    private boolean isConservative(MatchedFragmentCollection mfc, SpectraPeakMatchedFragment spmf) {
+        Fragment f = spmf.getFragment();
+        int charge = spmf.getCharge();
+        return mfc.hasMatchedNonLossyFragment(f, charge) || mfc.getLossCount(f, charge) >= minConservativeLosses;
+    }
+
     public double score(MatchedXlinkedPeptide match) {
         MatchedFragmentCollection mfc = match.getMatchedFragments();
         double matched = 0;
@@ -56,8 +66,7 @@ public class SpectraCoverageConservative extends AbstractScoreSpectraMatch{
                     continue;
 
                 if (spmf.getCharge() == spc.getCharge()) {
-                    MatchedBaseFragment mbf = mfc.getMatchedFragmentGroup(spmf.getFragment(), spmf.getCharge());
-                    if (mbf.isBaseFragmentFound() || mbf.getLosses().size() >= minConservativeLosses ) {
+                    if (isConservative(mfc, spmf)) {
                         for (SpectraPeak sp : spc) {
                             peaks.add(sp);
                         }
@@ -71,8 +80,7 @@ public class SpectraCoverageConservative extends AbstractScoreSpectraMatch{
             for (SpectraPeakMatchedFragment spmf : sp.getMatchedAnnotation()) {
                 if (spmf.getFragment().isClass(DoubleFragmentation.class))
                     continue;
-                MatchedBaseFragment mbf = mfc.getMatchedFragmentGroup(spmf.getFragment(), spmf.getCharge());
-                if (mbf.isBaseFragmentFound() || mbf.getLosses().size() >= minConservativeLosses ) {
+                if (isConservative(mfc, spmf)) {
                     peaks.add(sp);
                 }
             }
@@ -109,10 +109,11 @@ public class Peptide implements AminoAcidSequence{
 
     /** 
      * if this is a modified peptied (a modification not part of the sequence)
-     * then all modifications are listed here
+     * then all modifications are listed here.<br/>
+     * The sets are immutable and shared between all peptides with the same
+     * modified sites.
      */
-    private HashMap<Integer, AminoAcid> m_modificationSides =
-            new HashMap<Integer, AminoAcid>();
+    private PeptideModifications m_modificationSides = PeptideModifications.NONE;
 
 
     // <editor-fold desc=" Constructors ">
@@ -183,20 +184,37 @@ public class Peptide implements AminoAcidSequence{
 //        for (int i = 0; i< pos.length; i++) {
 //            m_sources[i] = new PeptidePositions(pos[i].base, pos[i].start+start, length);
 //        }
-        for (Integer i : p.m_modificationSides.keySet()) {
-            if (i >= start && i < length) {
-                AminoAcid mod = p.m_modificationSides.get(i);
-                m_modificationSides.put(i, mod);
-//                this.m_mass -= (p.aminoAcidAt(i).mass - mod.mass);
-            }
-        }
+        m_modificationSides = p.m_modificationSides.range(start, length);
         
         recalcMass();
 
     }
 
     protected Peptide() {
-        
+
+    }
+
+    /**
+     * restores a peptide from the values kept in a {@link PeptideStore}
+     * @param sources the positions of the peptide - first one is the sequence
+     * it was derived from
+     * @param length
+     * @param mods the modified sites
+     * @param mass
+     * @param nTerminal
+     * @param cTerminal
+     * @param missedCleavages
+     * @param index the index of the peptide
+     */
+    Peptide(PeptidePositions[] sources, short length, PeptideModifications mods, double mass, boolean nTerminal, boolean cTerminal, short missedCleavages, int index) {
+        m_sources = sources;
+        m_length = length;
+        m_modificationSides = mods;
+        m_mass = mass;
+        m_isNTerminal = nTerminal;
+        m_isCTerminal = cTerminal;
+        m_missedCleavages = missedCleavages;
+        m_peptideIndex = index;
     }
 
     /**
@@ -205,12 +223,12 @@ public class Peptide implements AminoAcidSequence{
      */
     public Peptide(Peptide p) {
         this(p.getSequence(), p.getStart(), p.m_length);
-        this.m_sources = p.m_sources.clone();
+        // the array is never changed - only replaced - so it can be shared
+        this.m_sources = p.m_sources;
 //        this.m_startPositions = (HashMap<Sequence, HashSet<Integer>>) p.m_startPositions.clone();
 //        this.m_startPositions = (HashMap<Sequence, HashSet<Integer>>) p.m_startPositions.clone();
 
-        this.m_modificationSides =
-                (HashMap<Integer, AminoAcid>) p.m_modificationSides.clone();
+        this.m_modificationSides = p.m_modificationSides;
 //        this.m_cterminal_modification = p.getCTerminalModification();
 //        this.m_nterminal_modification = p.getNTerminalModification();
         this.m_mass = p.getMass();
@@ -227,7 +245,7 @@ public class Peptide implements AminoAcidSequence{
         this(p);
 //        this.m_mass -= (p.aminoAcidAt(position + m_start).mass
 //                           - am.mass);
-        this.m_modificationSides.put(position, am);
+        this.m_modificationSides = m_modificationSides.with(position, am);
         recalcMass();
     }
 
@@ -253,9 +271,7 @@ public class Peptide implements AminoAcidSequence{
     public AminoAcid[] toArray() {
         AminoAcid[] aas = new AminoAcid[getLength()];
         for (int i = getLength() ; --i >= 0;)
-            if (m_modificationSides.containsKey(i))
-                aas[i] = m_modificationSides.get(i);
-            else
+            if ((aas[i] = m_modificationSides.get(i)) == null)
                 aas[i] = getSequence().aminoAcidAt(getStart() + i);
 
         return aas;
@@ -476,7 +492,7 @@ public class Peptide implements AminoAcidSequence{
      * @return the list modification on this peptide
      */
     public HashMap<Integer,AminoAcid> getModification() {
-        return m_modificationSides;
+        return m_modificationSides.toMap();
     }
 
 //    /**
@@ -529,60 +545,13 @@ public class Peptide implements AminoAcidSequence{
      * @return 
      */
     public ArrayList<Peptide> modify(RunConfig conf, ModificationType t) {
-
-        ArrayList<Peptide> returnList = new ArrayList<Peptide>();
-        ArrayList<NonAminoAcidModification> ctmods = conf.getVariableCterminalPeptideModifications();
-        ArrayList<NonAminoAcidModification> ntmods = conf.getVariableNterminalPeptideModifications();
-        modify(conf, returnList,0,0,t);
-        if (ctmods.size() > 0 || ntmods.size() >0) {
-            ArrayList<Peptide> returnList2 = new ArrayList<Peptide>();
-
-            for (NonAminoAcidModification m : ctmods) {
-                Peptide np = this.clone();
-//                np.setCTerminalModification(m);
-                np.recalcMass();
-                returnList2.add(np);
-
-                for (NonAminoAcidModification mn : ntmods) {
-                    Peptide np2 = np.clone();
-//                    np2.setNterminalModification(mn);
-                    returnList2.add(np2);
-                }
-            }
-
-            for (NonAminoAcidModification m : ntmods) {
-                Peptide np = this.clone();
-//                np.setNterminalModification(m);
-                returnList2.add(np);
-            }
-
-
-
-            for (Peptide p : returnList)  {
-                int mods = p.m_modificationSides.size();
-                if (mods < conf.getMaximumModificationPerPeptide()) {
-                    for (NonAminoAcidModification m : ctmods) {
-                        Peptide np = p.clone();
-//                        np.setCTerminalModification(m);
-                        returnList2.add(np);
-
-                        if (mods < conf.getMaximumModificationPerPeptide() -1)
-                            for (NonAminoAcidModification mn : ntmods) {
-                                Peptide np2 = np.clone();
-//                                np2.setNterminalModification(mn);
-                                returnList2.add(np2);
-                            }
-                    }
-
-                    for (NonAminoAcidModification m : ntmods) {
-                        Peptide np = p.clone();
-//                        np.setNterminalModification(m);
-                        returnList2.add(np);
-                    }
-                }
-
-            }
-            returnList.addAll(returnList2);
+        ArrayList<PeptideModifications> sets = new ArrayList<PeptideModifications>();
+        modificationSets(conf, t, sets);
+        ArrayList<Peptide> returnList = new ArrayList<Peptide>(sets.size());
+        for (PeptideModifications set : sets) {
+            Peptide np = new Peptide(this);
+            np.setModificationSet(set);
+            returnList.add(np);
         }
         return returnList;
     }
@@ -596,7 +565,8 @@ public class Peptide implements AminoAcidSequence{
      * @return the previous amino-acid or modified amino-acid at the given place
      */
     public AminoAcid modify(int position, AminoAcid aa) {
-        AminoAcid prev = m_modificationSides.put(position,aa);
+        AminoAcid prev = m_modificationSides.get(position);
+        m_modificationSides = m_modificationSides.with(position, aa);
         if (prev==null) {
             prev = aminoAcidAt(position);
 //            m_mass -= (m_sequence.aminoAcidAt(m_start + position).mass - aa.mass);
@@ -729,44 +699,85 @@ public class Peptide implements AminoAcidSequence{
     }
     
     /**
-     * recursively generates all possible peptides with all possible
-     * modifications
-     * @param returnList
-     * @param startPosition
+     * generates the modified sites of all variable modified versions of this
+     * peptide without creating any peptide.<br/>
+     * {@link #modify(RunConfig, ModificationType)} creates one peptide per
+     * entry.<br/>
+     * The sets are shared instances, so each entry only costs a reference.
+     * @param conf
+     * @param t what kind of modifications to apply
+     * @param sets receives the modification sets
      */
-    private int modify(RunConfig conf, ArrayList<Peptide> returnList, int startPosition, int modifiedPeptides, ModificationType t) {
-        ArrayList<Peptide> modified = new ArrayList<Peptide>();
+    void modificationSets(RunConfig conf, ModificationType t, ArrayList<PeptideModifications> sets) {
+        ArrayList<NonAminoAcidModification> ctmods = conf.getVariableCterminalPeptideModifications();
+        ArrayList<NonAminoAcidModification> ntmods = conf.getVariableNterminalPeptideModifications();
+        int first = sets.size();
+        modificationSets(conf, m_modificationSides, sets, 0, 0, t);
+        if (ctmods.size() > 0 || ntmods.size() >0) {
+            // the terminal modifications only produce copies
+            int last = sets.size();
+            for (NonAminoAcidModification m : ctmods) {
+                sets.add(m_modificationSides);
+                for (NonAminoAcidModification mn : ntmods) {
+                    sets.add(m_modificationSides);
+                }
+            }
 
+            for (NonAminoAcidModification m : ntmods) {
+                sets.add(m_modificationSides);
+            }
+
+            for (int i = first; i < last; i++) {
+                PeptideModifications p = sets.get(i);
+                int mods = p.size();
+                if (mods < conf.getMaximumModificationPerPeptide()) {
+                    for (NonAminoAcidModification m : ctmods) {
+                        sets.add(p);
+                        if (mods < conf.getMaximumModificationPerPeptide() -1)
+                            for (NonAminoAcidModification mn : ntmods) {
+                                sets.add(p);
+                            }
+                    }
+
+                    for (NonAminoAcidModification m : ntmods) {
+                        sets.add(p);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * recursively generates the modified sites for all possible modifications
+     * starting from the sites given as current
+     */
+    private int modificationSets(RunConfig conf, PeptideModifications current, ArrayList<PeptideModifications> sets, int startPosition, int modifiedPeptides, ModificationType t) {
         if (modifiedPeptides > conf.getMaximumModifiedPeptidesPerPeptide())
             return modifiedPeptides;
 
-        if (this.m_modificationSides.size() >= conf.getMaximumModificationPerPeptide())
+        if (current.size() >= conf.getMaximumModificationPerPeptide())
             return modifiedPeptides;
 
+        AminoAcid aa = current.get(startPosition);
+        if (aa == null)
+            aa = getSequence().aminoAcidAt(getStart() + startPosition);
 
-//        int countMods = previousModifications;
-        
-        // get the possible modifications for the current aminoacid
-        AminoAcid aa = aminoAcidAt(startPosition);
-        
-        // select what list of modifications to use
         ArrayList<AminoModification> mods;
-        // linear only modifications?
         if (t == ModificationType.linear) {
-            // all varaibale or only the ones ignoring digest
             if (startPosition == length() - 1)
                 mods = conf.getLinearModificationsPostDigest(aa);
             else 
                 mods = conf.getLinearModifications(aa);
         }else {
-            // all varaibale or only the ones ignoring digest
             if (startPosition == length() - 1) {
                 mods = conf.getVariableModificationsPostDigest(aa);
             } else {
                 mods = conf.getVariableModifications(aa);
             }
         }
-        
+
+        // the sets of this position are followed up after the unmodified position
+        int modifiedFrom = sets.size();
         if (mods != null) {
             int count = mods.size();
             for (int i = 0; i < count; i++) {
@@ -777,9 +788,7 @@ public class Peptide implements AminoAcidSequence{
                         (am.prot_position == AminoModification.POSITIONAL_UNRESTRICTED || 
                         am.prot_position == AminoModification.POSITIONAL_NTERMINAL && startPosition == 0 && this.isNTerminal() ||
                         am.prot_position == AminoModification.POSITIONAL_CTERMINAL && startPosition == this.length() -1 && this.isCTerminal())) {
-                    Peptide modPep = new Peptide(this,startPosition, mods.get(i));
-                    modified.add(modPep);
-                    returnList.add(modPep);
+                    sets.add(current.with(startPosition, am));
                     modifiedPeptides++;
                 }
             }
@@ -789,9 +798,7 @@ public class Peptide implements AminoAcidSequence{
             List<NonAminoAcidModification> ntermmods = conf.getVariableNterminalPeptideModifications();
             for (NonAminoAcidModification ntm : ntermmods) {
                 if (ntm.canModify(this)) {
-                    Peptide modPep = new Peptide(this);
-                    modified.add(modPep);
-                    returnList.add(modPep);
+                    sets.add(current);
                     modifiedPeptides++;
                 }
             }
@@ -801,28 +808,24 @@ public class Peptide implements AminoAcidSequence{
             List<NonAminoAcidModification> ctermmods = conf.getVariableCterminalPeptideModifications();
             for (NonAminoAcidModification ctm : ctermmods) {
                 if (ctm.canModify(this)) {
-                    Peptide modPep = new Peptide(this);
-                    modified.add(modPep);
-                    returnList.add(modPep);
+                    sets.add(current);
                     modifiedPeptides++;
                 }
             }
         }
+        int modifiedTo = sets.size();
         
         if (startPosition < this.getLength() - 1) {
-            modifiedPeptides = modify(conf,returnList, startPosition + 1, modifiedPeptides,t);
-            for (Peptide toMod : modified) {
+            modifiedPeptides = modificationSets(conf, current, sets, startPosition + 1, modifiedPeptides, t);
+            for (int m = modifiedFrom; m < modifiedTo; m++) {
                 if (modifiedPeptides > conf.getMaximumModifiedPeptidesPerPeptide())
                     break;
-                modifiedPeptides = toMod.modify(conf,returnList, startPosition + 1, modifiedPeptides,t);
+                modifiedPeptides = modificationSets(conf, sets.get(m), sets, startPosition + 1, modifiedPeptides, t);
             }
         }
 
-        
         return modifiedPeptides;
-
     }
-
     
     /**
      * returns a ordered list of peptides that represent all permutation of the 
@@ -872,8 +875,9 @@ public class Peptide implements AminoAcidSequence{
         if (m_modificationSides.size() > 0) {
             // TODO more than one modification
             for (int i = 0 ; i< getLength(); i++) {
-                if (m_modificationSides.containsKey(i))
-                    out.append(m_modificationSides.get(i).SequenceID);
+                AminoAcid mod = m_modificationSides.get(i);
+                if (mod != null)
+                    out.append(mod.SequenceID);
                 else
                     out.append(getSequence().aminoAcidAt(getStart() + i).SequenceID);
             }
@@ -897,8 +901,9 @@ public class Peptide implements AminoAcidSequence{
         if (m_modificationSides.size() > 0) {
             // TODO more than one modification
             for (int i = 0 ; i< getLength(); i++) {
-                if (m_modificationSides.containsKey(i))
-                    out.append(m_modificationSides.get(i).SequenceID);
+                AminoAcid mod = m_modificationSides.get(i);
+                if (mod != null)
+                    out.append(mod.SequenceID);
                 else
                     out.append(getSequence().aminoAcidAt(getStart() + i).SequenceID);
                 if (weights[i] != 0)
@@ -973,8 +978,7 @@ public class Peptide implements AminoAcidSequence{
 //            m_Fragments.clear();
 //            m_Fragments = null;
 //        }
-        m_modificationSides.clear();
-        m_modificationSides = null;
+        m_modificationSides = PeptideModifications.NONE;
 //        m_sequence = null;
     }
 
@@ -1096,6 +1100,29 @@ public class Peptide implements AminoAcidSequence{
         return m_sources;
     }
 
+    /**
+     * @return the modified sites
+     */
+    PeptideModifications getModificationSet() {
+        return m_modificationSides;
+    }
+
+    /**
+     * replaces all modified sites
+     * @param mods
+     */
+    void setModificationSet(PeptideModifications mods) {
+        m_modificationSides = mods;
+        recalcMass();
+    }
+
+    /**
+     * @return all positions of the peptide - even if there are a lot of them
+     */
+    PeptidePositions[] getSourcePositions() {
+        return m_sources;
+    }
+
     protected void setPositions(PeptidePositions[] pos) {
         m_sources = pos;
     }
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.sequence;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable set of modified sites of a peptide.<br/>
+ * The sets are shared - each distinct set exists only once and all peptides
+ * with the same modified sites (relative to the peptide) refer to the same
+ * instance. Unmodified peptides all refer to {@link #NONE}.
+ * So a modified peptide costs no more memory then an unmodified one, as long
+ * as another peptide has the same modifications at the same places.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+final class PeptideModifications {
+    /** all known sets */
+    private static final ConcurrentHashMap<PeptideModifications, PeptideModifications> m_sets =
+            new ConcurrentHashMap<PeptideModifications, PeptideModifications>();
+
+    /** no modifications at all */
+    static final PeptideModifications NONE = new PeptideModifications(new int[0], new AminoAcid[0]);
+
+    /** the modified positions - sorted */
+    private final int[] m_positions;
+    /** the amino acid for each modified position */
+    private final AminoAcid[] m_aminoAcids;
+    private final int m_hash;
+
+    private PeptideModifications(int[] positions, AminoAcid[] aminoAcids) {
+        m_positions = positions;
+        m_aminoAcids = aminoAcids;
+        int hash = Arrays.hashCode(positions);
+        for (AminoAcid aa : aminoAcids) {
+            hash = hash * 31 + System.identityHashCode(aa);
+        }
+        m_hash = hash;
+    }
+
+    /**
+     * @return the shared instance for the given sites
+     */
+    private static PeptideModifications intern(int[] positions, AminoAcid[] aminoAcids) {
+        if (positions.length == 0) {
+            return NONE;
+        }
+        PeptideModifications m = new PeptideModifications(positions, aminoAcids);
+        PeptideModifications prev = m_sets.putIfAbsent(m, m);
+        return prev == null ? m : prev;
+    }
+
+    /**
+     * @param position
+     * @return the amino acid at the given position or null if that position is not modified
+     */
+    AminoAcid get(int position) {
+        for (int i = 0; i < m_positions.length; i++) {
+            if (m_positions[i] == position) {
+                return m_aminoAcids[i];
+            }
+            if (m_positions[i] > position) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return number of modified sites
+     */
+    int size() {
+        return m_positions.length;
+    }
+
+    /**
+     * @param position
+     * @param aa
+     * @return the set with the given site set to the amino acid
+     */
+    PeptideModifications with(int position, AminoAcid aa) {
+        int i = Arrays.binarySearch(m_positions, position);
+        if (i >= 0) {
+            if (m_aminoAcids[i] == aa) {
+                return this;
+            }
+            AminoAcid[] aas = m_aminoAcids.clone();
+            aas[i] = aa;
+            return intern(m_positions, aas);
+        }
+        i = -i - 1;
+        int[] pos = new int[m_positions.length + 1];
+        AminoAcid[] aas = new AminoAcid[m_positions.length + 1];
+        System.arraycopy(m_positions, 0, pos, 0, i);
+        System.arraycopy(m_aminoAcids, 0, aas, 0, i);
+        pos[i] = position;
+        aas[i] = aa;
+        System.arraycopy(m_positions, i, pos, i + 1, m_positions.length - i);
+        System.arraycopy(m_aminoAcids, i, aas, i + 1, m_positions.length - i);
+        return intern(pos, aas);
+    }
+
+    /**
+     * @param from first position to keep
+     * @param to first position not to keep
+     * @return the set with only the sites within the given range
+     */
+    PeptideModifications range(int from, int to) {
+        int first = 0;
+        while (first < m_positions.length && m_positions[first] < from) {
+            first++;
+        }
+        int last = first;
+        while (last < m_positions.length && m_positions[last] < to) {
+            last++;
+        }
+        if (first == 0 && last == m_positions.length) {
+            return this;
+        }
+        return intern(Arrays.copyOfRange(m_positions, first, last),
+                Arrays.copyOfRange(m_aminoAcids, first, last));
+    }
+
+    /**
+     * @return the modified sites as a new map
+     */
+    HashMap<Integer, AminoAcid> toMap() {
+        HashMap<Integer, AminoAcid> ret = new HashMap<Integer, AminoAcid>(m_positions.length * 2);
+        for (int i = 0; i < m_positions.length; i++) {
+            ret.put(m_positions[i], m_aminoAcids[i]);
+        }
+        return ret;
+    }
+
+    @Override
+    public int hashCode() {
+        return m_hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof PeptideModifications)) {
+            return false;
+        }
+        PeptideModifications o = (PeptideModifications) obj;
+        if (o.m_hash != m_hash || !Arrays.equals(o.m_positions, m_positions)) {
+            return false;
+        }
+        for (int i = 0; i < m_aminoAcids.length; i++) {
+            if (o.m_aminoAcids[i] != m_aminoAcids[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.sequence;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import rappsilber.ms.sequence.Peptide.PeptidePositions;
+
+/**
+ * All indexed peptides of a {@link SequenceList} - the peptide with the index
+ * i is returned by {@link #get(int) get(i)}.<br/>
+ * A new store just holds the peptide objects. After {@link #compact()} it only
+ * keeps the values of each peptide in primitive arrays - the residues are not
+ * copied but read from the sequences as before. A peptide object is then
+ * created on demand and shared as long as something still refers to it - so
+ * during the scoring of a spectrum all candidates for the same index are the
+ * same object. Once no longer used the object gets garbage collected and the
+ * next request creates a new one with the same values. The database id set via
+ * {@link Peptide#setID(long)} is kept in the store, so it survives that.<br/>
+ * Peptides of a subclass (e.g. {@link NonProteinPeptide}) are kept as
+ * objects.<br/>
+ * A compacted store can not be extended.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class PeptideStore {
+    private static final byte N_TERMINAL = 1;
+    private static final byte C_TERMINAL = 2;
+
+    /** the peptides - as long as the store is not compacted */
+    private Peptide[] m_peptides;
+    /** number of peptides */
+    private final int m_size;
+
+    /** the sequences - referenced by their index in the position arrays */
+    private Sequence[] m_proteins;
+    /** where the positions of each peptide start in the position arrays */
+    private int[] m_positionsFrom;
+    /** sequence of each position */
+    private int[] m_positionProtein;
+    /** start of each position */
+    private int[] m_positionStart;
+    /** length of each peptide */
+    private short[] m_length;
+    /** the distinct sets of modified sites */
+    private PeptideModifications[] m_modificationSets;
+    /** the set of modified sites for each peptide */
+    private int[] m_modificationSet;
+    /** mass of each peptide */
+    private double[] m_mass;
+    /** terminal flags of each peptide */
+    private byte[] m_flags;
+    /** missed cleavages of each peptide */
+    private short[] m_missedCleavages;
+    /** database id of each peptide */
+    private long[] m_ids;
+    /** peptides, that are not restored from the arrays */
+    private HashMap<Integer, Peptide> m_pinned;
+    /** the peptide objects that are currently in use */
+    private AtomicReferenceArray<PeptideReference> m_inUse;
+    /** receives the references of peptides that got garbage collected */
+    private ReferenceQueue<Peptide> m_collected;
+
+    /**
+     * a weak reference to a restored peptide that knows its index
+     */
+    private static class PeptideReference extends WeakReference<Peptide> {
+        final int index;
+
+        PeptideReference(Peptide p, int index, ReferenceQueue<Peptide> queue) {
+            super(p, queue);
+            this.index = index;
+        }
+    }
+
+    /**
+     * a peptide restored from a compacted store
+     */
+    private static class StoredPeptide extends Peptide {
+        private final PeptideStore m_store;
+
+        StoredPeptide(PeptideStore store, PeptidePositions[] sources, short length, PeptideModifications mods, double mass, boolean nTerminal, boolean cTerminal, short missedCleavages, int index) {
+            super(sources, length, mods, mass, nTerminal, cTerminal, missedCleavages, index);
+            m_store = store;
+        }
+
+        @Override
+        public long getID() {
+            return m_store.m_ids[getPeptideIndex()];
+        }
+
+        @Override
+        public void setID(long id) {
+            m_store.m_ids[getPeptideIndex()] = id;
+        }
+    }
+
+    /**
+     * @param peptides the peptides - each peptide should have its position in
+     * the array as peptide index
+     */
+    public PeptideStore(Peptide[] peptides) {
+        m_peptides = peptides;
+        m_size = peptides.length;
+    }
+
+    /**
+     * @return number of peptides
+     */
+    public int size() {
+        return m_size;
+    }
+
+    /**
+     * @return whether the store only keeps the values of the peptides
+     */
+    public boolean isCompact() {
+        return m_peptides == null;
+    }
+
+    /**
+     * @param index
+     * @return the peptide with the given index
+     */
+    public Peptide get(int index) {
+        if (m_peptides != null) {
+            return m_peptides[index];
+        }
+        if (m_pinned != null) {
+            Peptide p = m_pinned.get(index);
+            if (p != null) {
+                return p;
+            }
+        }
+        expunge();
+        PeptideReference r = m_inUse.get(index);
+        Peptide p = r == null ? null : r.get();
+        while (p == null) {
+            Peptide n = restore(index);
+            if (m_inUse.compareAndSet(index, r, new PeptideReference(n, index, m_collected))) {
+                return n;
+            }
+            // an other thread was faster
+            r = m_inUse.get(index);
+            p = r == null ? null : r.get();
+        }
+        return p;
+    }
+
+    /**
+     * @param index
+     * @return the sequence the peptide with the given index was derived from
+     */
+    public Sequence getSequence(int index) {
+        if (m_peptides != null) {
+            return m_peptides[index].getSequence();
+        }
+        if (m_pinned != null) {
+            Peptide p = m_pinned.get(index);
+            if (p != null) {
+                return p.getSequence();
+            }
+        }
+        return m_proteins[m_positionProtein[m_positionsFrom[index]]];
+    }
+
+    /**
+     * @param index
+     * @return the mass of the peptide with the given index
+     */
+    public double getMass(int index) {
+        if (m_peptides != null) {
+            return m_peptides[index].getMass();
+        }
+        return m_mass[index];
+    }
+
+    /**
+     * @param added further peptides - their peptide index should follow the
+     * ones already in the store
+     * @return a new store containing the peptides of this one and the given
+     * ones
+     */
+    public PeptideStore extend(List<Peptide> added) {
+        if (m_peptides == null) {
+            throw new UnsupportedOperationException("A compacted peptide store can not be extended");
+        }
+        Peptide[] all = Arrays.copyOf(m_peptides, m_size + added.size());
+        for (int i = 0; i < added.size(); i++) {
+            all[m_size + i] = added.get(i);
+        }
+        return new PeptideStore(all);
+    }
+
+    /**
+     * replaces the peptide objects by arrays of their values.
+     */
+    public synchronized void compact() {
+        if (m_peptides == null) {
+            return;
+        }
+        IdentityHashMap<Sequence, Integer> proteinIds = new IdentityHashMap<Sequence, Integer>();
+        ArrayList<Sequence> proteins = new ArrayList<Sequence>();
+        IdentityHashMap<PeptideModifications, Integer> setIds = new IdentityHashMap<PeptideModifications, Integer>();
+        ArrayList<PeptideModifications> sets = new ArrayList<PeptideModifications>();
+
+        int positions = 0;
+        for (Peptide p : m_peptides) {
+            positions += p.getSourcePositions().length;
+        }
+
+        m_positionsFrom = new int[m_size + 1];
+        m_positionProtein = new int[positions];
+        m_positionStart = new int[positions];
+        m_length = new short[m_size];
+        m_modificationSet = new int[m_size];
+        m_mass = new double[m_size];
+        m_flags = new byte[m_size];
+        m_missedCleavages = new short[m_size];
+        m_ids = new long[m_size];
+        m_pinned = new HashMap<Integer, Peptide>();
+
+        int pos = 0;
+        for (int i = 0; i < m_size; i++) {
+            Peptide p = m_peptides[i];
+            m_positionsFrom[i] = pos;
+            // the mass is also read for pinned peptides
+            m_mass[i] = p.getMass();
+            if (p.getClass() != Peptide.class) {
+                // can't be restored as a plain peptide
+                m_pinned.put(i, p);
+                continue;
+            }
+            for (PeptidePositions pp : p.getSourcePositions()) {
+                Integer protein = proteinIds.get(pp.base);
+                if (protein == null) {
+                    protein = proteins.size();
+                    proteins.add(pp.base);
+                    proteinIds.put(pp.base, protein);
+                }
+                m_positionProtein[pos] = protein;
+                m_positionStart[pos++] = pp.start;
+            }
+            PeptideModifications mods = p.getModificationSet();
+            Integer set = setIds.get(mods);
+            if (set == null) {
+                set = sets.size();
+                sets.add(mods);
+                setIds.put(mods, set);
+            }
+            m_modificationSet[i] = set;
+            m_length[i] = p.getLength();
+            m_flags[i] = (byte) ((p.isNTerminal() ? N_TERMINAL : 0) | (p.isCTerminal() ? C_TERMINAL : 0));
+            m_missedCleavages[i] = p.getMissedCleavages();
+            m_ids[i] = p.getID();
+        }
+        m_positionsFrom[m_size] = pos;
+        if (pos < positions) {
+            m_positionProtein = Arrays.copyOf(m_positionProtein, pos);
+            m_positionStart = Arrays.copyOf(m_positionStart, pos);
+        }
+        m_proteins = proteins.toArray(new Sequence[proteins.size()]);
+        m_modificationSets = sets.toArray(new PeptideModifications[sets.size()]);
+        if (m_pinned.isEmpty()) {
+            m_pinned = null;
+        }
+        m_collected = new ReferenceQueue<Peptide>();
+        m_inUse = new AtomicReferenceArray<PeptideReference>(m_size);
+        m_peptides = null;
+    }
+
+    /**
+     * creates a new peptide object from the arrays
+     */
+    private Peptide restore(int index) {
+        int from = m_positionsFrom[index];
+        int to = m_positionsFrom[index + 1];
+        short length = m_length[index];
+        PeptidePositions[] sources = new PeptidePositions[to - from];
+        for (int i = from; i < to; i++) {
+            sources[i - from] = new PeptidePositions(m_proteins[m_positionProtein[i]], m_positionStart[i], length);
+        }
+        byte flags = m_flags[index];
+        return new StoredPeptide(this, sources, length, m_modificationSets[m_modificationSet[index]],
+                m_mass[index], (flags & N_TERMINAL) != 0, (flags & C_TERMINAL) != 0,
+                m_missedCleavages[index], index);
+    }
+
+    /**
+     * forgets the references of garbage collected peptides
+     */
+    private void expunge() {
+        PeptideReference r;
+        while ((r = (PeptideReference) m_collected.poll()) != null) {
+            m_inUse.compareAndSet(r.index, r, null);
+        }
+    }
+
+    /**
+     * @return an estimate of the bytes used by the arrays of a compacted
+     * store
+     */
+    public long bytes() {
+        if (m_peptides != null) {
+            return 0;
+        }
+        return 4l * m_positionsFrom.length
+                + 8l * m_positionStart.length
+                + 2l * m_length.length
+                + 4l * m_modificationSet.length
+                + 8l * m_mass.length
+                + m_flags.length
+                + 2l * m_missedCleavages.length
+                + 8l * m_ids.length
+                + 4l * m_size;
+    }
+}
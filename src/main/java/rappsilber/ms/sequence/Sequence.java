@@ -23,6 +23,7 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Random;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -42,6 +43,11 @@ import rappsilber.utils.Util;
  * @author Lutz Fischer <l.fischer@ed.ac.uk>
  */
 public class Sequence implements AminoAcidSequence{
+    /**
+     * counts all ever created objects of Sequence
+     */
+    static private final AtomicInteger m_countSequences = new AtomicInteger();
+
     public static final Sequence EMPTY_SEQUENCE = new Sequence(new AminoAcid[0]);
     public static final Peptide EMPTY_PEPTIDE = new Peptide(EMPTY_SEQUENCE, 0, 0);
     
@@ -70,15 +76,10 @@ public class Sequence implements AminoAcidSequence{
 
     private long m_id = -1;
     
-    /**
-     * counts all ever created objects of Sequence
-     */
-    static private int m_countSequences;
-    
     /**
      * a unique id for this instance of Sequence
      */
-    private int m_uniqueID = m_countSequences++;
+    private int m_uniqueID = m_countSequences.getAndIncrement();
     
     
     /**
@@ -91,6 +92,13 @@ public class Sequence implements AminoAcidSequence{
     /** the target complement for a decoy or the current object itself for a target */
     public Sequence target = this;
 
+    /**
+     * for a decoy with peptides derived from the target peptides: the
+     * position in the target for each position in the decoy (and as the
+     * residues only swap places - also the other way round)
+     */
+    private int[] m_targetPositions = null;
+
 //    /**
 //     * Creates a new Object representing the sequence
 //     * @param sequence
@@ -249,8 +257,13 @@ public class Sequence implements AminoAcidSequence{
 
     public Sequence(String sequence, String fastaHeader, RunConfig conf) {
         this(sequence, conf);
+        // only split up when needed
         m_FastaHeader = fastaHeader;
-        m_SplittFastaHeader = new FastaHeader(fastaHeader);
+    }
+
+    public Sequence(String sequence, FastaHeader fastaHeader, RunConfig conf) {
+        this(sequence, conf);
+        setFastaHeader(fastaHeader);
     }
 
     /**
@@ -327,7 +340,10 @@ public class Sequence implements AminoAcidSequence{
      * @return
      */
     public int digest(Digestion method, double MaxMath, ArrayList<CrossLinker> cl) {
-        this.m_peptides = method.digest(this, MaxMath, cl);
+        if (m_targetPositions != null)
+            this.m_peptides = method.deriveDecoyPeptides(this, MaxMath, cl);
+        else
+            this.m_peptides = method.digest(this, MaxMath, cl);
         return m_peptides.size();
     }
 
@@ -422,7 +438,12 @@ public class Sequence implements AminoAcidSequence{
      * @return the split up fasta-header
      */
     public FastaHeader getSplitFastaHeader() {
-        return m_SplittFastaHeader;
+        FastaHeader fh = m_SplittFastaHeader;
+        if (fh == null && m_FastaHeader != null) {
+            fh = new FastaHeader(m_FastaHeader);
+            m_SplittFastaHeader = fh;
+        }
+        return fh;
     }
 
 
@@ -431,7 +452,7 @@ public class Sequence implements AminoAcidSequence{
      */
     public void setFastaHeader(String FastaHeader) {
         this.m_FastaHeader = FastaHeader;
-        m_SplittFastaHeader = new FastaHeader(FastaHeader);
+        m_SplittFastaHeader = null;
     }
     
     public void setFastaHeader(FastaHeader fh) {
@@ -615,7 +636,7 @@ public class Sequence implements AminoAcidSequence{
 
     public Sequence reverse() {
         Sequence rev = new Sequence(m_sequence);
-        rev.m_SplittFastaHeader = m_SplittFastaHeader.cloneHeader("REV_");
+        rev.m_SplittFastaHeader = getSplitFastaHeader().cloneHeader("REV_");
         rev.m_FastaHeader = rev.m_SplittFastaHeader.getHeader();
         for (int i = 0; i < m_sequence.length; i++) {
             int source = m_sequence.length - 1 - i;
@@ -636,6 +657,94 @@ public class Sequence implements AminoAcidSequence{
         return rev;
     }
 
+    /**
+     * Creates a decoy, where each stretch between two cleavage sites is
+     * reversed in place. The fixed residues (e.g. the ones the enzyme cleaves
+     * at) and the first residue keep their place - so an internal methionine
+     * never becomes the N-terminal one, that a digest would also cleave
+     * off.<br/>
+     * So each peptide, that starts and ends at a cleavage site, has a decoy
+     * counterpart at the same place with the same length and composition -
+     * and therefore the same mass. The peptides of the decoy are not
+     * digested but derived from the peptides of the target
+     * (see {@link #getDecoyPeptide(Peptide)}).
+     * @param cleavageSites for each residue whether the target gets cleaved after it
+     * @param fixed residues that keep their place
+     * @return the decoy
+     */
+    public Sequence reversePeptides(boolean[] cleavageSites, Collection<AminoAcid> fixed) {
+        int length = m_sequence.length;
+        int[] positions = new int[length];
+        int[] moving = new int[length];
+        int stretchStart = 0;
+        for (int i = 0; i < length; i++) {
+            positions[i] = i;
+            if (cleavageSites[i] || i == length - 1) {
+                int count = 0;
+                for (int j = stretchStart; j <= i; j++) {
+                    if (j > 0 && !fixed.contains(nonLabeledAminoAcidAt(j))) {
+                        moving[count++] = j;
+                    }
+                }
+                for (int m = 0; m < count; m++) {
+                    positions[moving[m]] = moving[count - 1 - m];
+                }
+                stretchStart = i + 1;
+            }
+        }
+
+        AminoAcid[] newSequence = new AminoAcid[length];
+        for (int i = 0; i < length; i++) {
+            newSequence[i] = m_sequence[positions[i]];
+        }
+        Sequence rev = new Sequence(newSequence);
+        for (Map.Entry<Integer,ArrayList<AminoAcid>> e : m_expected_Modifications.entrySet()) {
+            rev.m_expected_Modifications.put(positions[e.getKey()], e.getValue());
+        }
+        rev.m_targetPositions = positions;
+        rev.m_SplittFastaHeader = getSplitFastaHeader().cloneHeader("REV_");
+        rev.m_FastaHeader = rev.m_SplittFastaHeader.getHeader();
+        rev.target = this;
+        rev.setSource(m_source);
+        return rev;
+    }
+
+    /**
+     * @return whether the peptides of this decoy get derived from the
+     * peptides of the target instead of digesting it
+     */
+    public boolean isDerivedDecoy() {
+        return m_targetPositions != null;
+    }
+
+    /**
+     * For a decoy created by {@link #reversePeptides}: the counterpart of a
+     * target peptide - the same stretch of the decoy, with the modifications
+     * moved together with their residues.
+     * @param targetPeptide a peptide of the target
+     * @return the decoy peptide or null if a modification would end up
+     * outside of the peptide
+     */
+    public Peptide getDecoyPeptide(Peptide targetPeptide) {
+        int start = targetPeptide.getStart();
+        int length = targetPeptide.length();
+        Peptide p = new Peptide(this, start, length);
+        PeptideModifications mods = targetPeptide.getModificationSet();
+        if (mods.size() > 0) {
+            PeptideModifications decoyMods = PeptideModifications.NONE;
+            for (Map.Entry<Integer, AminoAcid> e : mods.toMap().entrySet()) {
+                int pos = m_targetPositions[start + e.getKey()] - start;
+                if (pos < 0 || pos >= length) {
+                    return null;
+                }
+                decoyMods = decoyMods.with(pos, e.getValue());
+            }
+            p.setModificationSet(decoyMods);
+        }
+        p.setMissedCleavages(targetPeptide.getMissedCleavages());
+        return p;
+    }
+
     public Sequence shuffle() {
         AminoAcid[] newSequence = new AminoAcid[length()];
         ArrayList<AminoAcid> ranSeq = new ArrayList<AminoAcid>(m_sequence.length);
@@ -670,7 +779,7 @@ public class Sequence implements AminoAcidSequence{
             }
         }
         rev.m_expected_Modifications = newExpMod;
-        rev.m_SplittFastaHeader = m_SplittFastaHeader.cloneHeader("RAN_");
+        rev.m_SplittFastaHeader = getSplitFastaHeader().cloneHeader("RAN_");
         rev.m_FastaHeader = rev.m_SplittFastaHeader.getHeader();
         rev.target = this;
         rev.setSource(m_source);
@@ -736,7 +845,7 @@ public class Sequence implements AminoAcidSequence{
             }
         }
         rev.m_expected_Modifications = newExpMod;
-        rev.m_SplittFastaHeader = m_SplittFastaHeader.cloneHeader("REV_");
+        rev.m_SplittFastaHeader = getSplitFastaHeader().cloneHeader("REV_");
         rev.m_FastaHeader = rev.m_SplittFastaHeader.getHeader();
         rev.target = this;
         rev.setSource(m_source);
@@ -783,7 +892,7 @@ public class Sequence implements AminoAcidSequence{
             }
         }
         rev.m_expected_Modifications = newExpMod;
-        rev.m_SplittFastaHeader = m_SplittFastaHeader.cloneHeader("RAN_");
+        rev.m_SplittFastaHeader = getSplitFastaHeader().cloneHeader("RAN_");
         rev.m_FastaHeader = rev.m_SplittFastaHeader.getHeader();
         rev.target = this;
         rev.setSource(m_source);
@@ -866,7 +975,7 @@ public class Sequence implements AminoAcidSequence{
         }
         rev.m_expected_Modifications = newExpMod;
 
-        rev.m_SplittFastaHeader = m_SplittFastaHeader.cloneHeader("RAN_");
+        rev.m_SplittFastaHeader = getSplitFastaHeader().cloneHeader("RAN_");
         rev.m_FastaHeader = rev.m_SplittFastaHeader.getHeader();
         rev.target = this;
         rev.setSource(m_source);
@@ -937,7 +1046,7 @@ public class Sequence implements AminoAcidSequence{
             }
         }
         rev.m_expected_Modifications = newExpMod;
-        rev.m_SplittFastaHeader = m_SplittFastaHeader.cloneHeader("RAN_");
+        rev.m_SplittFastaHeader = getSplitFastaHeader().cloneHeader("RAN_");
         rev.m_FastaHeader = rev.m_SplittFastaHeader.getHeader();
         rev.target = this;
         rev.setSource(m_source);
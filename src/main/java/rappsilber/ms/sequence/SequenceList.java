@@ -25,21 +25,35 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.AbstractCollection;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
 import rappsilber.config.RunConfig;
 import rappsilber.ms.crosslinker.CrossLinker;
 import rappsilber.ms.dataAccess.filter.fastafilter.FastaFilter;
+import rappsilber.ms.dataAccess.filter.fastafilter.FastaHeaderFilter;
 import rappsilber.ms.dataAccess.filter.fastafilter.MultiFilterAnd;
 import rappsilber.ms.dataAccess.filter.fastafilter.NoFilter;
 import rappsilber.ms.lookup.peptides.PeptideLookup;
 import rappsilber.ms.sequence.Iterators.FragmentIterator;
 import rappsilber.ms.sequence.Iterators.PeptideIterator;
+import rappsilber.ms.sequence.digest.AAConstrained;
+import rappsilber.ms.sequence.digest.AASpecificity;
 import rappsilber.ms.sequence.digest.Digestion;
 import rappsilber.ms.sequence.fasta.FastaFile;
+import rappsilber.ms.sequence.fasta.FastaHeader;
 import rappsilber.ms.sequence.ions.Fragment;
 
 /**
@@ -51,7 +65,7 @@ public class SequenceList extends ArrayList<Sequence> {
 
     private int     m_countPeptides = 0;
     private int     m_countModifiedPeptides = 0;
-    private Peptide[] m_AllPeptides = null;
+    private PeptideStore m_AllPeptides = null;
     private RunConfig m_config = null;
     
     private boolean m_hasDecoys = false;
@@ -238,8 +252,7 @@ public class SequenceList extends ArrayList<Sequence> {
     public SequenceList(DECOY_GENERATION decoys,File[] FastaFile,RunConfig config) throws IOException {
         this(decoys);
         m_config = config;
-        for (File f : FastaFile)
-            addFasta(f, decoys);
+        addFasta(FastaFile, decoys);
     }
 
     public SequenceList(File[] FastaFile,RunConfig config) throws IOException {
@@ -275,17 +288,102 @@ public class SequenceList extends ArrayList<Sequence> {
 
 
     public int digest(Digestion method, double maxMass, ArrayList<CrossLinker> cl) {
-        int countPeptides = 0;
-        Iterator<Sequence> list = iterator();
-        while (list.hasNext()) {
-            countPeptides += list.next().digest(method, maxMass, cl);
+        // decoys with peptides derived from the target peptides can only be
+        // done after all targets
+        ArrayList<Sequence> digested = new ArrayList<Sequence>(size());
+        ArrayList<Sequence> derived = new ArrayList<Sequence>();
+        for (Sequence s : this) {
+            if (s.isDerivedDecoy())
+                derived.add(s);
+            else
+                digested.add(s);
         }
+        int countPeptides = digest(digested, method, maxMass, cl);
+        countPeptides += digest(derived, method, maxMass, cl);
         m_countPeptides = countPeptides;
         m_config.getStatusInterface().setStatus("Digest: Peptides: " + countPeptides );
         return countPeptides;
     }
 
 
+    /**
+     * digests the given sequences - on several threads if configured
+     * @return number of peptides
+     */
+    private int digest(List<Sequence> sequences, Digestion method, double maxMass, ArrayList<CrossLinker> cl) {
+        int threads = m_config == null ? 1 : m_config.getPreSearchThreads();
+        if (threads > 1 && sequences.size() > threads) {
+            return digestParallel(sequences, method, maxMass, cl, threads);
+        }
+        int countPeptides = 0;
+        for (Sequence s : sequences) {
+            countPeptides += s.digest(method, maxMass, cl);
+        }
+        return countPeptides;
+    }
+
+    /**
+     * Digests blocks of consecutive sequences on several threads.<br/>
+     * Each block writes its peptides into its own buffer. The buffers are
+     * added to the peptide lookups strictly in the order of the blocks -
+     * while later blocks are still being digested. So the lookups (including
+     * which of several identical peptides is kept) end up the same as for a
+     * single threaded digest.
+     * @param list the sequences to digest
+     * @param method
+     * @param maxMass
+     * @param cl
+     * @param threads
+     * @return number of peptides
+     */
+    protected int digestParallel(final List<Sequence> list, final Digestion method, final double maxMass, final ArrayList<CrossLinker> cl, int threads) {
+        int sequences = list.size();
+        // several blocks per thread to even out sequences of different length
+        int blockSize = Math.max(1, sequences / (threads * 16));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<Integer>> digested = new ArrayList<Future<Integer>>();
+        ArrayList<Digestion.PeptideBuffer> buffers = new ArrayList<Digestion.PeptideBuffer>();
+        try {
+            for (int from = 0; from < sequences; from += blockSize) {
+                final int blockFrom = from;
+                final int blockTo = Math.min(sequences, from + blockSize);
+                final Digestion.PeptideBuffer buffer = new Digestion.PeptideBuffer();
+                buffers.add(buffer);
+                digested.add(pool.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        int count = 0;
+                        Digestion.bufferPeptides(buffer);
+                        try {
+                            for (int s = blockFrom; s < blockTo; s++) {
+                                count += list.get(s).digest(method, maxMass, cl);
+                            }
+                        } finally {
+                            Digestion.bufferPeptides(null);
+                        }
+                        return count;
+                    }
+                }));
+            }
+
+            int countPeptides = 0;
+            for (int b = 0; b < digested.size(); b++) {
+                countPeptides += digested.get(b).get();
+                buffers.get(b).flush();
+                // free up the memory as we go
+                buffers.set(b, null);
+            }
+            return countPeptides;
+        } catch (InterruptedException ex) {
+            throw new Error(ex);
+        } catch (ExecutionException ex) {
+            throw new Error(ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+
 //    public int fragment(Digestion digest) {
 //        int countFragments = 0;
 //        Iterator<Peptide> peps = peptides();
@@ -312,17 +410,86 @@ public class SequenceList extends ArrayList<Sequence> {
                 }
                
             }
-            m_AllPeptides = new Peptide[all.size()];
-            all.toArray(m_AllPeptides);
+            m_AllPeptides = new PeptideStore(all.toArray(new Peptide[all.size()]));
         } catch (Exception e) {
             throw new Error(e);
         }
     }
 
+    /**
+     * Appends the peptides of the given sequences to the peptide index.<br/>
+     * The peptide lists of the sequences get rewritten to the peptides, that
+     * are actually in the lookups: a peptide, that got folded into an other
+     * peptide with the same sequence, is replaced by that one and peptides,
+     * that are in none of the lookups, are left out. Only the peptides not
+     * already in the index get a new id - appended after the existing ones,
+     * so anything that refers to a peptide by its id stays valid. The
+     * peptide count goes up by the peptides digested from the sequences -
+     * like for a digest of the whole list.<br/>
+     * The sequences should already be part of this list.
+     * @param sequences
+     * @param lookups where the peptides of the sequences ended up
+     */
+    public void extendIndex(SequenceList sequences, PeptideLookup... lookups) {
+        ArrayList<Peptide> added = new ArrayList<Peptide>();
+        Set<Peptide> seen = Collections.newSetFromMap(new IdentityHashMap<Peptide, Boolean>());
+        if (m_AllPeptides != null && m_AllPeptides.isCompact()) {
+            throw new UnsupportedOperationException("Can't extend the index of compacted peptides");
+        }
+        int indexed = m_AllPeptides == null ? 0 : m_AllPeptides.size();
+        for (Sequence s : sequences) {
+            ArrayList<Peptide> peptides = s.getPeptides();
+            ArrayList<Peptide> kept = new ArrayList<Peptide>(peptides.size());
+            for (Peptide p : peptides) {
+                if (p == null)
+                    continue;
+                Peptide found = null;
+                for (PeptideLookup l : lookups) {
+                    found = findPeptide(l, p);
+                    if (found != null)
+                        break;
+                }
+                if (found == null)
+                    continue;
+                kept.add(found);
+                int id = found.getPeptideIndex();
+                boolean isIndexed = id >= 0 && id < indexed && m_AllPeptides.get(id) == found;
+                if (!isIndexed && seen.add(found)) {
+                    found.setPeptideIndex(indexed + added.size());
+                    added.add(found);
+                }
+            }
+            peptides.clear();
+            peptides.addAll(kept);
+        }
+        if (m_AllPeptides == null) {
+            buildIndex();
+            return;
+        }
+        m_AllPeptides = m_AllPeptides.extend(added);
+        m_countPeptides += sequences.getCountPeptides();
+    }
+
+    /**
+     * @return the peptide in the lookup, that has the same sequence and
+     * decoy state as p - or null
+     */
+    private static Peptide findPeptide(PeptideLookup lookup, Peptide p) {
+        ArrayList<Peptide> sameMass = lookup.getPeptidesByExactMass(p.getMass());
+        if (sameMass != null) {
+            for (Peptide e : sameMass) {
+                if (e == p || (e.isDecoy() == p.isDecoy() && e.equalSequenceAAMass(p)))
+                    return e;
+            }
+        }
+        return null;
+    }
+
     public void dumpPeptides() {
-        if (m_AllPeptides != null || m_AllPeptides.length == 0)
+        if (m_AllPeptides != null || m_AllPeptides.size() == 0)
             buildIndex();
-        for (Peptide p : m_AllPeptides) {
+        for (int i = 0; i < m_AllPeptides.size(); i++) {
+            Peptide p = m_AllPeptides.get(i);
             System.out.println(p.toString() + "  " + p.getMass());
         }
     }
@@ -419,18 +586,40 @@ public class SequenceList extends ArrayList<Sequence> {
     /**
      * @return the m_AllPeptides
      */
-    public Peptide[] getAllPeptideIDs() {
+    public PeptideStore getAllPeptideIDs() {
         if (m_AllPeptides == null)
             buildIndex();
         return m_AllPeptides;
     }
 
     public Peptide getPeptide(int index) {
-        return m_AllPeptides[index];
+        return m_AllPeptides.get(index);
     }
 
     public Sequence getSequence(int peptide) {
-        return m_AllPeptides[peptide].getSequence();
+        return m_AllPeptides.getSequence(peptide);
+    }
+
+    /**
+     * Replaces the indexed peptides by a compact store of their values
+     * (see {@link PeptideStore#compact()}) and clears the peptide lists of
+     * the sequences.<br/>
+     * Afterwards peptides are only available via their index and no further
+     * peptides can be indexed. So this should only be called after the peptide
+     * and fragment lookups are build.
+     * @return the store
+     */
+    public PeptideStore compactPeptides() {
+        PeptideStore store = getAllPeptideIDs();
+        store.compact();
+        for (Sequence s : this) {
+            ArrayList<Peptide> peps = s.getPeptides();
+            if (peps != null) {
+                peps.clear();
+                peps.trimToSize();
+            }
+        }
+        return store;
     }
 
     public void applyFixedModifications(AminoModification[] modifications) {
@@ -516,6 +705,50 @@ public class SequenceList extends ArrayList<Sequence> {
 
     }
     
+    /**
+     * include decoys, where the stretches between cleavage sites are reversed
+     * in place (see {@link #includeReversedPeptides(Digestion, Collection)}).
+     * If the decoys should be digestion aware, the amino acids the digestion
+     * cleaves at and the ones that prevent a cleavage (e.g. P for trypsin)
+     * keep their place - so the decoy has the same cleavage sites as the
+     * target.
+     * @param digest defines the cleavage sites
+     * @param digestionAware keep the amino acids the digestion depends on in place
+     * @return returns an iterator of all decoy sequences
+     */
+    public ArrayList<Sequence> includeReversedPeptides (Digestion digest, boolean digestionAware) {
+        HashSet<AminoAcid> fixed = new HashSet<AminoAcid>();
+        if (digestionAware) {
+            if (digest instanceof AASpecificity) {
+                fixed.addAll(((AASpecificity) digest).getAminoAcidSpecificity());
+            }
+            if (digest instanceof AAConstrained) {
+                fixed.addAll(((AAConstrained) digest).getConstrainingAminoAcids());
+            }
+        }
+        return includeReversedPeptides(digest, fixed);
+    }
+
+    /**
+     * include decoys, where the stretches between cleavage sites are reversed
+     * in place (see {@link Sequence#reversePeptides}). The peptides of these
+     * decoys are not digested but derived from the target peptides - and each
+     * fully cleaved decoy peptide has the same mass as its target peptide.
+     * @param digest defines the cleavage sites
+     * @param fixed amino acids that should keep their place
+     * @return returns an iterator of all decoy sequences
+     */
+    public ArrayList<Sequence> includeReversedPeptides (Digestion digest, Collection<AminoAcid> fixed) {
+        ArrayList<Sequence> decoys = new ArrayList<Sequence>(size());
+        for (Sequence s : this) {
+            Sequence ds = s.reversePeptides(digest.getCleavageSites(s), fixed);
+            ds.setDecoy(true);
+            decoys.add(ds);
+        }
+        this.addAll(decoys);
+        return decoys;
+    }
+
     /**
      * include reversed sequences as decoys
      * @return returns an iterator of all decoy sequences
@@ -655,6 +888,54 @@ public class SequenceList extends ArrayList<Sequence> {
         }
     }
 
+    public void addFasta(File[] FastaFiles) throws IOException {
+        addFasta(FastaFiles, m_decoyTreatment);
+    }
+
+    /**
+     * reads several FASTA-files - on several threads if configured. The
+     * sequences are added in the order of the files.
+     * @param FastaFiles
+     * @param decoy
+     * @throws IOException
+     */
+    public void addFasta(File[] FastaFiles, final DECOY_GENERATION decoy) throws IOException {
+        int threads = m_config == null ? 1 : Math.min(m_config.getPreSearchThreads(), FastaFiles.length);
+        if (threads <= 1) {
+            for (File f : FastaFiles)
+                addFasta(f, decoy);
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<SequenceList>> read = new ArrayList<Future<SequenceList>>(FastaFiles.length);
+        try {
+            for (final File f : FastaFiles) {
+                read.add(pool.submit(new Callable<SequenceList>() {
+                    @Override
+                    public SequenceList call() throws IOException {
+                        SequenceList l = new SequenceList(m_decoyTreatment, m_config);
+                        l.m_filter = m_filter;
+                        l.addFasta(f, decoy);
+                        return l;
+                    }
+                }));
+            }
+            for (Future<SequenceList> fl : read) {
+                SequenceList l = fl.get();
+                m_hasDecoys = m_hasDecoys || l.m_hasDecoys;
+                addAll(l);
+            }
+        } catch (InterruptedException ex) {
+            throw new Error(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new Error(ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
     public void addFastaList(File FastaFile) throws IOException {
         BufferedReader br = new BufferedReader(new FileReader(FastaFile));
         String line = null;
@@ -686,17 +967,24 @@ public class SequenceList extends ArrayList<Sequence> {
     }
 
 
+    /**
+     * reads the FASTA entries one at a time and only keeps the ones, that
+     * pass the filter. If the filter can decide on the header alone
+     * ({@link FastaHeaderFilter}), rejected entries never get parsed.
+     * @param FastaFile
+     * @param decoy
+     * @param source
+     * @throws IOException
+     */
     public void addFasta(BufferedReader FastaFile, DECOY_GENERATION decoy, String source) throws IOException {
         StringBuilder s = null;
         String FastaHeader = null;
         FastaFile FastaSource = new FastaFile(source);
         m_hasDecoys = m_hasDecoys || decoy != DECOY_GENERATION.ISTARGET;
         int linecount = 0;
-        while (FastaFile.ready()) {
-            String line = FastaFile.readLine();
+        String line;
+        while ((line = FastaFile.readLine()) != null) {
             linecount++;
-            if (line == null)
-                break;
             line = line.trim();
             if (line.length() > 0) {
                 if (line.charAt(0) == '>') {
@@ -707,56 +995,58 @@ public class SequenceList extends ArrayList<Sequence> {
                            s = new StringBuilder();
                            continue;
                         }
-                        if (s.subSequence(s.length()-1, s.length()).toString().contentEquals("*"))
-                            s.setLength(s.length() - 1);
-                        Sequence seq = new Sequence(s.toString(), FastaHeader, m_config);
-                        seq.setDecoy(decoy==DECOY_GENERATION.ISDECOY);
-                        
-                        Sequence[] toAdd = m_filter.getSequences(seq);
-                        
-                        for (Sequence a : toAdd ) {
-                            a.setSource(FastaSource);
-                            this.add(a);
-                            if (decoy == DECOY_GENERATION.GENERATE_REVERSED_DECOY) {
-                                Sequence d =  a.reverse();
-                                d.setSource(FastaSource);
-                                this.add(d);
-                            } else if (decoy == DECOY_GENERATION.GENERATE_SHUFFLED_DECOY) {
-                                Sequence d =  a.shuffle();
-                                d.setSource(FastaSource);
-                                this.add(d);
-                            } else if (decoy == DECOY_GENERATION.GENERATE_RANDOMIZED_DECOY) {
-                                Sequence d =  a.randomizeN(new ArrayList<AminoAcid>(), m_config, 100, new Random());
-                                d.setSource(FastaSource);
-                                this.add(d);
-                            }
-                        }
-
+                        addFastaEntry(FastaHeader, s, decoy, FastaSource);
                     }
                     FastaHeader = line.substring(1);
                     s = new StringBuilder();
-                } else if (line.length() > 0 && FastaHeader != null) {
+                } else if (FastaHeader != null) {
                     s.append(line);
                 }
             }
         }
         if (s != null && s.length() > 0) {
+            addFastaEntry(FastaHeader, s, decoy, FastaSource);
+        }
+    }
+
+    /**
+     * parses a single FASTA entry and adds it - if it passes the filter
+     */
+    private void addFastaEntry(String header, StringBuilder s, DECOY_GENERATION decoy, FastaFile source) {
+        Sequence seq;
+        if (m_filter instanceof FastaHeaderFilter) {
+            FastaHeader fh = new FastaHeader(header);
+            if (!((FastaHeaderFilter) m_filter).passesHeader(fh)) {
+                return;
+            }
             // delete a trailing *
-            if (s.subSequence(s.length()-1, s.length()).toString().contentEquals("*"))
+            if (s.charAt(s.length() - 1) == '*')
                 s.setLength(s.length() - 1);
-
-            Sequence seq = new Sequence(s.toString(), FastaHeader, m_config);
-            seq.setDecoy(decoy==DECOY_GENERATION.ISDECOY);
-            
-            Sequence[] toAdd = m_filter.getSequences(seq);
-
-            for (Sequence a : toAdd ) {
-                this.add(seq);
-                if (decoy == DECOY_GENERATION.GENERATE_REVERSED_DECOY) {
-                    this.add(seq.reverse());
-                } else if (decoy == DECOY_GENERATION.GENERATE_RANDOMIZED_DECOY) {
-                    this.add(seq.shuffle());
-                }
+            seq = new Sequence(s.toString(), fh, m_config);
+        } else {
+            if (s.charAt(s.length() - 1) == '*')
+                s.setLength(s.length() - 1);
+            seq = new Sequence(s.toString(), header, m_config);
+        }
+        seq.setDecoy(decoy==DECOY_GENERATION.ISDECOY);
+
+        Sequence[] toAdd = m_filter.getSequences(seq);
+
+        for (Sequence a : toAdd ) {
+            a.setSource(source);
+            this.add(a);
+            if (decoy == DECOY_GENERATION.GENERATE_REVERSED_DECOY) {
+                Sequence d =  a.reverse();
+                d.setSource(source);
+                this.add(d);
+            } else if (decoy == DECOY_GENERATION.GENERATE_SHUFFLED_DECOY) {
+                Sequence d =  a.shuffle();
+                d.setSource(source);
+                this.add(d);
+            } else if (decoy == DECOY_GENERATION.GENERATE_RANDOMIZED_DECOY) {
+                Sequence d =  a.randomizeN(new ArrayList<AminoAcid>(), m_config, 100, new Random());
+                d.setSource(source);
+                this.add(d);
             }
         }
     }
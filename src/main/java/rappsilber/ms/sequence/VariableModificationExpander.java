@@ -0,0 +1,244 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.sequence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rappsilber.config.RunConfig;
+import rappsilber.ms.sequence.Peptide.PeptidePositions;
+import rappsilber.ms.sequence.digest.Digestion;
+import rappsilber.utils.Util;
+
+/**
+ * Generates the variable modified versions of a list of peptides on several
+ * threads.<br/>
+ * The peptides are split into blocks of consecutive peptides and each block
+ * is modified by one of the threads. A modified peptide is only generated as
+ * a reference to its base peptide plus the shared set of modified sites
+ * (see {@link Peptide#modificationSets}). The actual
+ * {@link Peptide}s are only created one at a time, when the results get
+ * handed over - in the order of the base peptides. So the result is the same
+ * as modifying all peptides one after the other on a single thread.<br/>
+ * The number of modified peptides per peptide is limited by
+ * {@link RunConfig#getMaximumModifiedPeptidesPerPeptide()} and the total
+ * number by the config entry MAX_VARIABLE_MODIFIED_PEPTIDES (0 = unlimited).
+ * Both limits are applied while the peptides are generated.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class VariableModificationExpander {
+
+    /**
+     * receives the modified peptides
+     */
+    public static interface ModifiedPeptideHandler {
+        /**
+         * @param p a new modified peptide
+         */
+        void add(Peptide p);
+    }
+
+    /** blocks per thread to even out the differences between peptides */
+    private static final int BLOCKS_PER_THREAD = 16;
+
+    private final RunConfig m_config;
+    /** the peptides to modify */
+    private final Peptide[] m_base;
+    /** positions of the base peptides before anything new got added */
+    private final PeptidePositions[][] m_baseSources;
+    /** maximum number of modified peptides (0 = unlimited) */
+    private final long m_maxPeptides;
+
+    /** number of consecutive blocks from the start that are done */
+    private int m_doneBlocks = 0;
+    /** number of modified peptides in the done blocks */
+    private long m_doneCount = 0;
+    /** number of modified peptides per block (-1 = not done yet) */
+    private long[] m_blockCounts;
+
+    /**
+     * modified peptides as base peptide plus the (shared) set of modified sites
+     */
+    private static class ModifiedPeptides {
+        private int m_size = 0;
+        private int[] m_base = new int[64];
+        private PeptideModifications[] m_modifications = new PeptideModifications[64];
+
+        void add(int base, PeptideModifications modifications) {
+            if (m_size == m_base.length) {
+                m_base = Arrays.copyOf(m_base, m_size * 2);
+                m_modifications = Arrays.copyOf(m_modifications, m_size * 2);
+            }
+            m_base[m_size] = base;
+            m_modifications[m_size++] = modifications;
+        }
+
+        int size() {
+            return m_size;
+        }
+    }
+
+    /**
+     * @param config
+     * @param peptides the peptides to modify
+     */
+    public VariableModificationExpander(RunConfig config, Iterable<Peptide> peptides) {
+        m_config = config;
+        ArrayList<Peptide> base = new ArrayList<Peptide>();
+        for (Peptide p : peptides) {
+            base.add(p);
+        }
+        m_base = base.toArray(new Peptide[base.size()]);
+        m_baseSources = new PeptidePositions[m_base.length][];
+        for (int i = 0; i < m_base.length; i++) {
+            m_baseSources[i] = m_base[i].getSourcePositions();
+        }
+        m_maxPeptides = config.retrieveObject("MAX_VARIABLE_MODIFIED_PEPTIDES", 0L);
+    }
+
+    /**
+     * generates the modified peptides and hands them over.<br/>
+     * Each new peptide is also registered with its protein sequence.
+     * @param t what kind of modifications to apply
+     * @param handler receives the peptides - in the same order as a single
+     * threaded modification would have produced them
+     * @return number of modified peptides
+     */
+    public int expand(final ModificationType t, ModifiedPeptideHandler handler) {
+        final Digestion enzym = m_config.getDigestion_method();
+        int threads = Math.max(1, m_config.getPreSearchThreads());
+        int blockSize = Math.max(1, m_base.length / (threads * BLOCKS_PER_THREAD));
+        int blocks = (m_base.length + blockSize - 1) / blockSize;
+        m_blockCounts = new long[blocks];
+        Arrays.fill(m_blockCounts, -1);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<ModifiedPeptides>> modified = new ArrayList<Future<ModifiedPeptides>>(blocks);
+        try {
+            for (int b = 0; b < blocks; b++) {
+                final int block = b;
+                final int from = b * blockSize;
+                final int to = Math.min(m_base.length, from + blockSize);
+                modified.add(pool.submit(new Callable<ModifiedPeptides>() {
+                    @Override
+                    public ModifiedPeptides call() {
+                        ModifiedPeptides ret = new ModifiedPeptides();
+                        ArrayList<PeptideModifications> sets = new ArrayList<PeptideModifications>();
+                        for (int i = from; i < to && !limitReached(block, ret.size()); i++) {
+                            Peptide base = m_base[i];
+                            sets.clear();
+                            base.modificationSets(m_config, t, sets);
+                            if (sets.isEmpty()) {
+                                continue;
+                            }
+                            // the digestion is checked on a single peptide
+                            // that takes on each set of modifications in turn
+                            Peptide probe = new Peptide(base);
+                            for (PeptideModifications set : sets) {
+                                probe.setModificationSet(set);
+                                if (enzym.isDigestedPeptide(probe)) {
+                                    ret.add(i, set);
+                                }
+                            }
+                        }
+                        blockDone(block, ret.size());
+                        return ret;
+                    }
+                }));
+            }
+
+            // wait for all blocks before creating any peptide - adding a
+            // peptide to a lookup can change the base peptides
+            ModifiedPeptides[] results = new ModifiedPeptides[blocks];
+            for (int b = 0; b < blocks; b++) {
+                results[b] = modified.get(b).get();
+            }
+
+            int count = 0;
+            for (int b = 0; b < blocks; b++) {
+                ModifiedPeptides mp = results[b];
+                results[b] = null;
+                for (int i = 0; i < mp.m_size; i++) {
+                    if (m_maxPeptides > 0 && count >= m_maxPeptides) {
+                        Logger.getLogger(this.getClass().getName()).log(Level.WARNING,
+                                "Reached the maximum of " + m_maxPeptides + " variable modified peptides");
+                        return count;
+                    }
+                    Peptide p = build(mp, i);
+                    p.getSequence().getPeptides().add(p);
+                    handler.add(p);
+                    count++;
+                }
+                if (b % 10 == 0) {
+                    m_config.getStatusInterface().setStatus("Applying variable modification " + Util.twoDigits.format((b + 1) * 100.0 / blocks) + "%");
+                }
+            }
+            return count;
+        } catch (InterruptedException ex) {
+            throw new Error(ex);
+        } catch (ExecutionException ex) {
+            throw new Error(ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * creates the i-th modified peptide
+     */
+    private Peptide build(ModifiedPeptides mp, int i) {
+        int base = mp.m_base[i];
+        Peptide p = new Peptide(m_base[base]);
+        p.setPositions(m_baseSources[base]);
+        p.setModificationSet(mp.m_modifications[i]);
+        return p;
+    }
+
+    /**
+     * Is the limit of modified peptides already reached before this block
+     * got to the given number of peptides?<br/>
+     * Only the blocks that are done, without a gap from the start, are
+     * taken into account - so no peptide, that is within the limit in the
+     * order of the peptides, gets lost.
+     * @param block
+     * @param blockCount number of modified peptides in the block so far
+     */
+    private boolean limitReached(int block, int blockCount) {
+        if (m_maxPeptides <= 0) {
+            return false;
+        }
+        synchronized (this) {
+            long count = m_doneCount;
+            if (m_doneBlocks == block) {
+                count += blockCount;
+            }
+            return count >= m_maxPeptides;
+        }
+    }
+
+    private synchronized void blockDone(int block, int count) {
+        m_blockCounts[block] = count;
+        while (m_doneBlocks < m_blockCounts.length && m_blockCounts[m_doneBlocks] >= 0) {
+            m_doneCount += m_blockCounts[m_doneBlocks++];
+        }
+    }
+}
@@ -140,6 +140,18 @@ public class Digestion {
         return (m_CTermAminoAcids.contains(seq.nonLabeledAminoAcidAt(AAPos)));
     }
 
+    /**
+     * @param seq
+     * @return for each residue of the sequence whether it can be cleaved after it
+     */
+    public boolean[] getCleavageSites(Sequence seq) {
+        boolean[] sites = new boolean[seq.length()];
+        for (int i = 0; i < sites.length; i++) {
+            sites[i] = isCleavageSite(seq, i);
+        }
+        return sites;
+    }
+
     
     /**
      * tests whether a sequence can be cleaved after the given amin-oacid
@@ -178,6 +190,84 @@ public class Digestion {
     }
 
     
+    /**
+     * Peptides that where digested but not yet added to the peptide lookups.<br/>
+     * While a buffer is registered for a thread (see
+     * {@link #bufferPeptides(PeptideBuffer)}) all digestions on that thread
+     * only record the peptides here. {@link #flush()} then adds them to the
+     * lookups in the order they were digested.
+     */
+    public static class PeptideBuffer {
+        private final ArrayList<PeptideLookup> m_lookups = new ArrayList<PeptideLookup>();
+        private final ArrayList<Peptide> m_peptides = new ArrayList<Peptide>();
+
+        void add(PeptideLookup lookup, Peptide p) {
+            m_lookups.add(lookup);
+            m_peptides.add(p);
+        }
+
+        /**
+         * adds all buffered peptides to their lookups and empties the buffer
+         */
+        public void flush() {
+            for (int i = 0; i < m_peptides.size(); i++) {
+                m_lookups.get(i).addPeptide(m_peptides.get(i));
+            }
+            m_lookups.clear();
+            m_peptides.clear();
+        }
+
+        /**
+         * @return number of buffered peptides
+         */
+        public int size() {
+            return m_peptides.size();
+        }
+    }
+
+    /** buffer for the peptides digested by the current thread */
+    private static final ThreadLocal<PeptideBuffer> m_buffer = new ThreadLocal<PeptideBuffer>();
+
+    /**
+     * All following digestions on the current thread write their peptides
+     * into the given buffer instead of the peptide lookups.
+     * @param buffer the buffer or null to write directly into the lookups again
+     */
+    public static void bufferPeptides(PeptideBuffer buffer) {
+        if (buffer == null) {
+            m_buffer.remove();
+        } else {
+            m_buffer.set(buffer);
+        }
+    }
+
+    /**
+     * adds the peptide to the lookup - or to the buffer of the current thread
+     * @param lookup
+     * @param p
+     */
+    protected void addToLookup(PeptideLookup lookup, Peptide p) {
+        PeptideBuffer buffer = m_buffer.get();
+        if (buffer == null) {
+            lookup.addPeptide(p);
+        } else {
+            buffer.add(lookup, p);
+        }
+    }
+
+    /**
+     * updates the estimate of amino acids per peptide.
+     * Sequences can be digested by several threads at the same time.
+     * @param peptides number of peptides from a sequence
+     * @param pepSeqLen summed up length of these peptides
+     * @param seqLength length of the sequence
+     */
+    protected synchronized void countDigested(int peptides, int pepSeqLen, int seqLength) {
+        m_AminoAcidsPerPeptide = (m_AminoAcidsPerPeptide*m_peptides+ pepSeqLen)/(m_peptides+peptides);
+        m_peptides += peptides;
+        m_seqLength += seqLength;
+    }
+
     protected void addPeptide(Peptide p, Sequence s, ArrayList<Peptide> sequencePeptides) {
         if (p.getMass() == Double.POSITIVE_INFINITY || p.length() <=1)
             return;
@@ -211,7 +301,7 @@ public class Digestion {
 //                }
 //            }
 //        }
-        m_peptidetree.addPeptide(p);
+        addToLookup(m_peptidetree, p);
         sequencePeptides.add(p);
     }
 
@@ -372,9 +462,9 @@ public class Digestion {
 //        if (CrossLinker.canCrossLink(cl, p.subSequence((short)0, (short)(p.length() - 1))))
         if (mods.isEmpty()) {
             if (CrossLinker.canCrossLink(cl, p))
-                m_peptidetree.addPeptide(p);
+                addToLookup(m_peptidetree, p);
             else if (p.length() > 3)
-                m_peptideTreeLinear.addPeptide(p);
+                addToLookup(m_peptideTreeLinear, p);
             sequencePeptides.add(p);
         }
         
@@ -485,9 +575,7 @@ public class Digestion {
 
         // just take the average of all digested sequences for estimation of expected peptides
         if (!peptides.isEmpty()) {
-            m_AminoAcidsPerPeptide = (m_AminoAcidsPerPeptide*m_peptides+ pepSeqLen)/(m_peptides+peptides.size());
-            m_peptides += peptides.size();
-            m_seqLength += seqLength;
+            countDigested(peptides.size(), pepSeqLen, seqLength);
         }
 
 
@@ -497,6 +585,39 @@ public class Digestion {
     
     
 
+    /**
+     * Instead of digesting a decoy created by {@link Sequence#reversePeptides}
+     * its peptides are derived from the peptides of the target - so the
+     * target has to be digested first. Each decoy peptide goes into the same
+     * lookup a digested peptide would go into.
+     * @param decoy
+     * @param MaxMass
+     * @param cl
+     * @return the decoy peptides
+     */
+    public ArrayList<Peptide> deriveDecoyPeptides(Sequence decoy, double MaxMass, ArrayList<CrossLinker> cl) {
+        ArrayList<Peptide> targetPeptides = decoy.target.getPeptides();
+        ArrayList<Peptide> peptides = new ArrayList<Peptide>(targetPeptides.size());
+        int pepSeqLen = 0;
+        for (Peptide tp : targetPeptides) {
+            Peptide p = decoy.getDecoyPeptide(tp);
+            if (p == null || p.getMass() == Double.POSITIVE_INFINITY || p.getMass() > MaxMass)
+                continue;
+
+            if (CrossLinker.canCrossLink(cl, p))
+                addToLookup(m_peptidetree, p);
+            else if (p.length() > 3)
+                addToLookup(m_peptideTreeLinear, p);
+            peptides.add(p);
+            pepSeqLen += p.length();
+        }
+
+        if (!peptides.isEmpty()) {
+            countDigested(peptides.size(), pepSeqLen, decoy.length());
+        }
+        return peptides;
+    }
+
     /**
      * do the actual digestion of a sequence, but only return peptides with a
      * given maximum mass
@@ -602,9 +723,7 @@ public class Digestion {
 
         // just take the average of all digested sequences for estimation of expected peptides
         if (!peptides.isEmpty()) {
-            m_AminoAcidsPerPeptide = (m_AminoAcidsPerPeptide*m_peptides+ pepSeqLen)/(m_peptides+peptides.size());
-            m_peptides += peptides.size();
-            m_seqLength += seqLength;
+            countDigested(peptides.size(), pepSeqLen, seqLength);
         }
 
 
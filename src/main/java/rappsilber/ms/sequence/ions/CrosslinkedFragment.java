@@ -323,6 +323,31 @@ public class CrosslinkedFragment extends Fragment implements CrosslinkerContaini
     }
 
 
+    @Override
+    public void getXlinkConflicts(Peptide p, int[] range) {
+        // a site conflicts if it is outside of any fragment of that peptide
+        int first = 0;
+        int last = Integer.MAX_VALUE;
+        boolean found = false;
+        for (Fragment f : getFragments()) {
+            if (p == f.getPeptide()) {
+                first = Math.max(first, f.getStart());
+                last = Math.min(last, f.getEnd());
+                found = true;
+            }
+        }
+        if (found) {
+            range[0] = first;
+            range[1] = last;
+            range[2] = 1;
+        } else {
+            range[0] = 0;
+            range[1] = -1;
+            range[2] = 0;
+        }
+    }
+
+
 //    public void registerIonTypeID(int id) {
 //        this.getBaseFragment().get
 //    }
@@ -525,6 +525,26 @@ public abstract class Fragment implements AminoAcidSequence {
         return true;
     }
 
+    /**
+     * the link sites in p this fragment conflicts with - as a range of
+     * residues.<br/>
+     * Agrees with {@link #canFullfillXlink(Peptide, int)} but describes all
+     * sites at once. range receives {first, last, outside}: a site conflicts
+     * if it is within first..last or - if outside is 1 - if it is not.
+     * @param p
+     * @param range receives the range
+     */
+    public void getXlinkConflicts(Peptide p, int[] range) {
+        if (p == getPeptide()) {
+            range[0] = getStart();
+            range[1] = getEnd();
+        } else {
+            range[0] = 0;
+            range[1] = -1;
+        }
+        range[2] = 0;
+    }
+
     public AminoAcidSequence getSourceSequence() {
         return getPeptide().getSourceSequence();
     }
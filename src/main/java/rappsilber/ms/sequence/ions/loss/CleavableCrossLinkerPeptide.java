@@ -88,6 +88,19 @@ public class CleavableCrossLinkerPeptide extends Loss implements CrossLinkedFrag
             return true;
         }
 
+        @Override
+        public void getXlinkConflicts(Peptide p, int[] range) {
+            if (parent.getPeptide() == p) {
+                range[0] = getStart();
+                range[1] = getEnd();
+                range[2] = 1;
+            } else {
+                range[0] = 0;
+                range[1] = -1;
+                range[2] = 0;
+            }
+        }
+
         @Override
         public boolean canFullfillXlink(Peptide p1, int site1, Peptide p2, int site2) {
             return canFullfillXlink(p1, site1) && canFullfillXlink(p2, site2);
@@ -76,6 +76,19 @@ public class CrosslinkerModified extends Loss implements CrosslinkerContaining {
             return true;
         }
 
+        @Override
+        public void getXlinkConflicts(Peptide p, int[] range) {
+            if (p == getPeptide()) {
+                range[0] = getStart();
+                range[1] = getEnd();
+                range[2] = 1;
+            } else {
+                range[0] = 0;
+                range[1] = -1;
+                range[2] = 0;
+            }
+        }
+
         public boolean canFullfillXlink(Peptide pep1, int site1, Peptide pep2, int site2) {
             if (pep1 == getPeptide()) {
                 if (getStart() > site1 || getEnd() < site1)
@@ -230,6 +243,19 @@ public class CrosslinkerModified extends Loss implements CrosslinkerContaining {
         return true;
     }
 
+    @Override
+    public void getXlinkConflicts(Peptide p, int[] range) {
+        if (p == getPeptide()) {
+            range[0] = getStart();
+            range[1] = getEnd();
+            range[2] = 1;
+        } else {
+            range[0] = 0;
+            range[1] = -1;
+            range[2] = 0;
+        }
+    }
+
 
     public static void parseArgs(String args, RunConfig conf) throws ParseException {
         String[] argParts = args.split(";");
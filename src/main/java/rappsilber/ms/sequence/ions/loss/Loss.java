@@ -375,6 +375,11 @@ public abstract class Loss extends Fragment {
         return m_parentFragment.canFullfillXlink(p, site);
     }
 
+    @Override
+    public void getXlinkConflicts(Peptide p, int[] range) {
+        m_parentFragment.getXlinkConflicts(p, range);
+    }
+
     @Override
     public boolean canFullfillXlink(HashMap<Peptide, Integer> sites) {
         return m_parentFragment.canFullfillXlink(sites);
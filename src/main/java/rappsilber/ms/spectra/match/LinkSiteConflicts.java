@@ -0,0 +1,193 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.spectra.match;
+
+import java.util.Arrays;
+
+/**
+ * Sums up the values (e.g. intensities) of fragment matches that conflict
+ * with a pair of link sites - without looking at each match again for each
+ * pair of sites.<br/>
+ * Each item is described by the sites in either peptide it conflicts with -
+ * as a range of residues, so testing a site is a constant time operation.
+ * A match conflicts with a pair of sites if it conflicts with either of them.
+ * Most matches only depend on the link site in one peptide (linear fragments
+ * and fragments that contain the other peptide completely). For these the
+ * values are summed up once per site. Only the few items that depend on both
+ * sites get looked at for each pair.
+ * <p>Pairs of sites that conflict with the same set of items get exactly the
+ * same sums - so ties between link sites are kept.</p>
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class LinkSiteConflicts {
+    /** number of values per item */
+    private final int m_columns;
+    /** number of residues of the first peptide */
+    private final int m_sites1;
+    /** number of residues of the second peptide */
+    private final int m_sites2;
+    /** per site of peptide 1: summed values of the items that only depend on that site */
+    private final double[] m_sum1;
+    /** per site of peptide 2: summed values of the items that only depend on that site */
+    private final double[] m_sum2;
+    /** for each item the range of sites in peptide 1 it conflicts with as {first, last, outside} */
+    private int[] m_ranges1 = new int[8 * 3];
+    /** for each item the range of sites in peptide 2 it conflicts with as {first, last, outside} */
+    private int[] m_ranges2 = new int[8 * 3];
+    /** number of items */
+    private int m_size = 0;
+    /** the items that depend on both sites */
+    private int[] m_cross = new int[8];
+    /** the values of the items that depend on both sites */
+    private double[] m_crossValues;
+    /** number of items that depend on both sites */
+    private int m_crossCount = 0;
+
+    /**
+     * @param sites1 number of residues of the first peptide
+     * @param sites2 number of residues of the second peptide
+     * @param columns number of values for each item
+     */
+    public LinkSiteConflicts(int sites1, int sites2, int columns) {
+        m_columns = columns;
+        m_sites1 = sites1;
+        m_sites2 = sites2;
+        m_sum1 = new double[sites1 * columns];
+        m_sum2 = new double[sites2 * columns];
+        m_crossValues = new double[m_cross.length * columns];
+    }
+
+    /**
+     * adds an item.<br/>
+     * The conflicting sites are given as ranges like they are returned by
+     * {@link rappsilber.ms.sequence.ions.Fragment#getXlinkConflicts(rappsilber.ms.sequence.Peptide, int[])}.
+     * @param conflicts1 {first, last, outside} for the first peptide
+     * @param conflicts2 {first, last, outside} for the second peptide
+     * @param values the values to sum up for this item
+     * @return the index of the item
+     */
+    public int add(int[] conflicts1, int[] conflicts2, double... values) {
+        int item = m_size++;
+        if (item * 3 == m_ranges1.length) {
+            m_ranges1 = Arrays.copyOf(m_ranges1, m_ranges1.length * 2);
+            m_ranges2 = Arrays.copyOf(m_ranges2, m_ranges2.length * 2);
+        }
+        System.arraycopy(conflicts1, 0, m_ranges1, item * 3, 3);
+        System.arraycopy(conflicts2, 0, m_ranges2, item * 3, 3);
+        boolean any1 = any(conflicts1, m_sites1);
+        boolean any2 = any(conflicts2, m_sites2);
+        if (!any2) {
+            addPerSite(m_sum1, m_sites1, conflicts1, values);
+        } else if (!any1) {
+            addPerSite(m_sum2, m_sites2, conflicts2, values);
+        } else {
+            if (m_crossCount == m_cross.length) {
+                m_cross = Arrays.copyOf(m_cross, m_crossCount * 2);
+                m_crossValues = Arrays.copyOf(m_crossValues, m_cross.length * m_columns);
+            }
+            m_cross[m_crossCount] = item;
+            System.arraycopy(values, 0, m_crossValues, m_crossCount * m_columns, m_columns);
+            m_crossCount++;
+        }
+        return item;
+    }
+
+    /**
+     * does a range conflict with the given site
+     */
+    private static boolean conflicts(int[] ranges, int offset, int site) {
+        boolean inside = ranges[offset] <= site && site <= ranges[offset + 1];
+        return inside != (ranges[offset + 2] != 0);
+    }
+
+    /**
+     * does a range conflict with any of the sites
+     */
+    private static boolean any(int[] range, int sites) {
+        int first = Math.max(0, range[0]);
+        int last = Math.min(sites - 1, range[1]);
+        if (range[2] == 0) {
+            return first <= last;
+        }
+        return first > 0 || last < sites - 1 || first > last;
+    }
+
+    private void addPerSite(double[] sums, int sites, int[] range, double[] values) {
+        int first = Math.max(0, range[0]);
+        int last = Math.min(sites - 1, range[1]);
+        if (range[2] == 0) {
+            addPerSite(sums, first, last + 1, values);
+        } else if (first > last) {
+            addPerSite(sums, 0, sites, values);
+        } else {
+            addPerSite(sums, 0, first, values);
+            addPerSite(sums, last + 1, sites, values);
+        }
+    }
+
+    private void addPerSite(double[] sums, int from, int to, double[] values) {
+        int columns = m_columns;
+        for (int s = from; s < to; s++) {
+            int offset = s * columns;
+            for (int c = 0; c < columns; c++) {
+                sums[offset + c] += values[c];
+            }
+        }
+    }
+
+    /**
+     * @return number of items
+     */
+    public int size() {
+        return m_size;
+    }
+
+    /**
+     * does the item conflict with a cross-link between the given sites
+     * @param item
+     * @param site1 residue in the first peptide
+     * @param site2 residue in the second peptide
+     * @return
+     */
+    public boolean conflicts(int item, int site1, int site2) {
+        return conflicts(m_ranges1, item * 3, site1) || conflicts(m_ranges2, item * 3, site2);
+    }
+
+    /**
+     * sums up the values of all items that conflict with a cross-link
+     * between the given sites
+     * @param site1 residue in the first peptide
+     * @param site2 residue in the second peptide
+     * @param result receives the sum for each value
+     */
+    public void sum(int site1, int site2, double[] result) {
+        int columns = m_columns;
+        int o1 = site1 * columns;
+        int o2 = site2 * columns;
+        for (int c = 0; c < columns; c++) {
+            result[c] = m_sum1[o1 + c] + m_sum2[o2 + c];
+        }
+        for (int x = 0; x < m_crossCount; x++) {
+            int item = m_cross[x];
+            if (conflicts(item, site1, site2)) {
+                int offset = x * columns;
+                for (int c = 0; c < columns; c++) {
+                    result[c] += m_crossValues[offset + c];
+                }
+            }
+        }
+    }
+}
@@ -15,84 +15,386 @@
  */
 package rappsilber.ms.spectra.match;
 
+import it.unimi.dsi.fastutil.Hash;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenCustomHashMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import rappsilber.ms.sequence.ions.Fragment;
 import rappsilber.ms.sequence.ions.loss.Loss;
 import rappsilber.ms.spectra.SpectraPeak;
 import rappsilber.ms.spectra.annotation.SpectraPeakMatchedFragment;
-import rappsilber.utils.HashMapList;
 import rappsilber.utils.HashSetList;
-import rappsilber.utils.MyArrayUtils;
 
 /**
  * A collection of fragment groups.<br/>
  * A fragment group consists of a base fragment (A/B/C/X/Y/Z-ion) and all lossy
  * fragments of it
+ * <p>Internally each base fragment gets a small index that is local to this
+ * collection. For each charge state the groups are stored in primitive tables
+ * addressed by that index - bitsets for which groups exist and where the base
+ * fragment was found, the matched peaks in parallel arrays and the losses as
+ * linked lists over a set of loss-arrays.</p>
+ * <p>{@link MatchedBaseFragment}s returned by this collection are read-only
+ * snapshots of a group. Code that needs to look at many groups should use the
+ * index based methods ({@link #getGroups(int)} and friends) instead.</p>
+ * <p>Within a charge state groups are iterated in the order their base 
+ * fragment was first added to the collection (i.e. by local index) and the 
+ * losses of a group in the order they were added.</p>
  * @author Lutz Fischer <l.fischer@ed.ac.uk>
  */
 public class MatchedFragmentCollection implements Iterable<MatchedBaseFragment> {
     // curretnly hardcoded maximal charge state to be considered
     private int m_maxChargeState = 10;
 
- 
-    
-    
+    /**
+     * hashes fragments by class, neutral mass and peptide. Equality is
+     * defined by {@link Fragment#equals(java.lang.Object)} - but the cheap
+     * properties get compared first, as that one compares the names of the
+     * fragments.
+     */
+    private static final Hash.Strategy<Fragment> FRAGMENT_STRATEGY = new Hash.Strategy<Fragment>() {
+        public int hashCode(Fragment f) {
+            if (f == null) {
+                return 0;
+            }
+            long bits = Double.doubleToLongBits(f.getNeutralMass());
+            int hash = f.getClass().hashCode();
+            hash = 31 * hash + (int) (bits ^ (bits >>> 32));
+            hash = 31 * hash + System.identityHashCode(f.getPeptide());
+            return hash;
+        }
 
+        public boolean equals(Fragment a, Fragment b) {
+            return sameFragment(a, b);
+        }
+    };
 
     /**
-     * map, that maps a fragment to the fragment group
+     * the tables for the fragment groups of one charge state - each addressed
+     * by the local index of the base fragment
      */
-    private class MatchedBaseFragmentLookup extends HashMap<Fragment,MatchedBaseFragment> {
-        private static final long serialVersionUID = -8068772341550345106L;
-        public void free() {
-            for (MatchedBaseFragment mbf : values()) 
-                mbf.free();
-            this.clear();
+    private static class ChargeTable {
+        /** bitset of the existing groups */
+        long[] groups;
+        /** bitset of the groups where the base fragment was found */
+        long[] found;
+        /** the peak the base fragment was matched to */
+        SpectraPeak[] basePeak;
+        /** first loss entry of each group (-1 for none) */
+        int[] firstLoss;
+        /** number of losses in each group */
+        int[] lossCount;
+        /** number of groups */
+        int count;
+        /** the groups in iteration order - null if that needs to be worked out again */
+        int[] order;
+        /** cached {@link MatchedBaseFragment} snapshots of the groups */
+        MatchedBaseFragment[] view;
+
+        ChargeTable(int capacity) {
+            groups = new long[(capacity + 63) >>> 6];
+            found = new long[groups.length];
+            basePeak = new SpectraPeak[capacity];
+            firstLoss = new int[capacity];
+            Arrays.fill(firstLoss, -1);
+            lossCount = new int[capacity];
+            view = new MatchedBaseFragment[capacity];
+        }
+
+        void ensureCapacity(int capacity) {
+            int old = basePeak.length;
+            if (capacity <= old) {
+                return;
+            }
+            int n = Math.max(old * 2, capacity);
+            int words = (n + 63) >>> 6;
+            groups = Arrays.copyOf(groups, words);
+            found = Arrays.copyOf(found, words);
+            basePeak = Arrays.copyOf(basePeak, n);
+            firstLoss = Arrays.copyOf(firstLoss, n);
+            Arrays.fill(firstLoss, old, n, -1);
+            lossCount = Arrays.copyOf(lossCount, n);
+            view = Arrays.copyOf(view, n);
+        }
+
+        boolean hasGroup(int index) {
+            return index >= 0 && index < basePeak.length && (groups[index >>> 6] & (1L << index)) != 0;
+        }
+
+        boolean isFound(int index) {
+            return (found[index >>> 6] & (1L << index)) != 0;
+        }
+
+        void setFound(int index, boolean isFound, SpectraPeak peak) {
+            if (isFound) {
+                found[index >>> 6] |= 1L << index;
+            } else {
+                found[index >>> 6] &= ~(1L << index);
+            }
+            basePeak[index] = peak;
+            view[index] = null;
         }
-    }
 
-    ///**
-    // * a list of all fragments - independent of charge state
-    // */
-    //private HashSet<Fragment> m_fragments = new HashSet<Fragment>();
-    //private HashMap<Peptide,HashSet<Fragment>> m_peptideFragments = new HashMap<Peptide, HashSet<Fragment>>(2);
+        void clear(int count) {
+            Arrays.fill(groups, 0);
+            Arrays.fill(found, 0);
+            int n = Math.min(count, basePeak.length);
+            Arrays.fill(basePeak, 0, n, null);
+            Arrays.fill(firstLoss, 0, n, -1);
+            Arrays.fill(lossCount, 0, n, 0);
+            Arrays.fill(view, 0, n, null);
+            this.count = 0;
+            order = null;
+        }
+    }
 
     private int m_matchedNonLossy = 0;
     private int m_matchedLossy = 0;
 
+    /**
+     * local index of each base fragment
+     */
+    private Object2IntOpenCustomHashMap<Fragment> m_index = new Object2IntOpenCustomHashMap<Fragment>(FRAGMENT_STRATEGY);
+    /**
+     * the base fragment for each local index
+     */
+    private Fragment[] m_baseFragments = new Fragment[16];
+    /**
+     * number of base fragments with a local index
+     */
+    private int m_baseCount = 0;
 
-//    private void addMatchedFragment(Fragment f) {
-//        Peptide p = f.getPeptide();
-//        HashSet<Fragment> fragments = m_peptideFragments.get(p);
-//        if (fragments == null) {
-//            fragments = new HashSet<Fragment>();
-//            m_peptideFragments.put(p, fragments);
-//        }
-//        fragments.add(f);
-//        //m_fragments.add(f);
-//    }
-
     /**
-     * for each charge state create a lookup table for the fragments
+     * for each charge state the tables of the fragment groups - created when
+     * the first group of that charge state is added
+     */
+    private ChargeTable[] m_charges;
+    /**
+     * number of existing fragment groups over all charge states
      */
-    MatchedBaseFragmentLookup[] m_list;
+    private int m_groupCount = 0;
+
+    /** the lossy fragment of each loss entry */
+    private Loss[] m_loss = new Loss[16];
+    /** the peak of each loss entry */
+    private SpectraPeak[] m_lossPeak = new SpectraPeak[16];
+    /** the next loss entry of the same group (-1 for none) */
+    private int[] m_nextLoss = new int[16];
+    /** number of used loss entries */
+    private int m_lossEntries = 0;
 
 
     public MatchedFragmentCollection(int MaxChargeState) {
         m_maxChargeState = MaxChargeState;
-        m_list = new MatchedBaseFragmentLookup[MaxChargeState+1];
-        
-        {
-            for (int i = 0; i< m_list.length; i++) {
-                m_list[i] = new MatchedBaseFragmentLookup();
+        m_charges = new ChargeTable[MaxChargeState+1];
+        m_index.defaultReturnValue(-1);
+    }
+
+    /**
+     * compares two fragments like {@link Fragment#equals(java.lang.Object)}
+     * but only falls back to that if class, mass and peptide agree
+     */
+    private static boolean sameFragment(Fragment a, Fragment b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null) {
+            return false;
+        }
+        return a.getClass() == b.getClass()
+                && a.getNeutralMass() == b.getNeutralMass()
+                && a.getPeptide() == b.getPeptide()
+                && a.equals(b);
+    }
+
+    /**
+     * @param f
+     * @return the local index of the base fragment of f or -1 if it is unknown
+     */
+    private int groupIndex(Fragment f) {
+        if (f.isClass(Loss.class))
+            return m_index.getInt(((Loss)f).getBaseFragment());
+        else
+            return m_index.getInt(f);
+    }
+
+    /**
+     * returns the local index of a base fragment - registers the fragment if
+     * it does not have one yet
+     */
+    private int registerBase(Fragment base) {
+        int index = m_index.getInt(base);
+        if (index < 0) {
+            index = m_baseCount++;
+            if (index == m_baseFragments.length) {
+                m_baseFragments = Arrays.copyOf(m_baseFragments, index * 2);
             }
+            m_baseFragments[index] = base;
+            m_index.put(base, index);
         }
+        return index;
     }
-    
+
+    /**
+     * @return the table for the charge state or null if there is none
+     */
+    private ChargeTable table(int charge) {
+        if (charge < 0 || charge >= m_charges.length)
+            return null;
+        return m_charges[charge];
+    }
+
+    /**
+     * returns the table for the charge state and makes sure it can hold the
+     * given index - creating and growing as needed
+     */
+    private ChargeTable table(int charge, int index) {
+        if (charge >= m_charges.length) {
+            m_charges = Arrays.copyOf(m_charges, charge + 1);
+            m_maxChargeState = charge;
+        }
+        ChargeTable ct = m_charges[charge];
+        if (ct == null) {
+            ct = new ChargeTable(Math.max(16, m_baseFragments.length));
+            m_charges[charge] = ct;
+        }
+        ct.ensureCapacity(index + 1);
+        return ct;
+    }
+
+    /**
+     * creates an empty group in the table
+     */
+    private void addGroup(ChargeTable ct, int index) {
+        ct.groups[index >>> 6] |= 1L << index;
+        ct.view[index] = null;
+        ct.count++;
+        ct.order = null;
+        m_groupCount++;
+    }
+
+    /**
+     * removes a group from the table
+     */
+    private void removeGroup(ChargeTable ct, int index) {
+        ct.groups[index >>> 6] &= ~(1L << index);
+        ct.setFound(index, false, null);
+        ct.firstLoss[index] = -1;
+        ct.lossCount[index] = 0;
+        ct.count--;
+        ct.order = null;
+        m_groupCount--;
+    }
+
+    /**
+     * the groups of a table ordered by local index - i.e. by when their base
+     * fragment was first added to the collection
+     */
+    private int[] order(ChargeTable ct, int charge) {
+        int[] order = ct.order;
+        if (order == null) {
+            order = new int[ct.count];
+            int k = 0;
+            for (int i = nextGroup(charge, 0); i >= 0; i = nextGroup(charge, i + 1)) {
+                order[k++] = i;
+            }
+            ct.order = order;
+        }
+        return order;
+    }
+
+    /**
+     * @return the loss entry for l within the group or -1
+     */
+    private int findLoss(ChargeTable ct, int index, Fragment l) {
+        for (int e = ct.firstLoss[index]; e >= 0; e = m_nextLoss[e]) {
+            if (sameFragment(m_loss[e], l)) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * sets the peak for a loss within a group - adding the loss to the end of
+     * the group if needed
+     * @return true if the loss was not yet part of the group
+     */
+    private boolean putLoss(ChargeTable ct, int index, Loss l, SpectraPeak peak) {
+        ct.view[index] = null;
+        int last = -1;
+        for (int e = ct.firstLoss[index]; e >= 0; e = m_nextLoss[e]) {
+            if (sameFragment(m_loss[e], l)) {
+                m_lossPeak[e] = peak;
+                return false;
+            }
+            last = e;
+        }
+        int e = m_lossEntries++;
+        if (e == m_loss.length) {
+            int n = e * 2;
+            m_loss = Arrays.copyOf(m_loss, n);
+            m_lossPeak = Arrays.copyOf(m_lossPeak, n);
+            m_nextLoss = Arrays.copyOf(m_nextLoss, n);
+        }
+        m_loss[e] = l;
+        m_lossPeak[e] = peak;
+        m_nextLoss[e] = -1;
+        if (last < 0) {
+            ct.firstLoss[index] = e;
+        } else {
+            m_nextLoss[last] = e;
+        }
+        ct.lossCount[index]++;
+        return true;
+    }
+
+    /**
+     * removes a loss from a group
+     * @return true if the loss was part of the group
+     */
+    private boolean removeLoss(ChargeTable ct, int index, Fragment l) {
+        int prev = -1;
+        for (int e = ct.firstLoss[index]; e >= 0; e = m_nextLoss[e]) {
+            if (sameFragment(m_loss[e], l)) {
+                if (prev < 0) {
+                    ct.firstLoss[index] = m_nextLoss[e];
+                } else {
+                    m_nextLoss[prev] = m_nextLoss[e];
+                }
+                m_loss[e] = null;
+                m_lossPeak[e] = null;
+                ct.lossCount[index]--;
+                ct.view[index] = null;
+                return true;
+            }
+            prev = e;
+        }
+        return false;
+    }
+
+    /**
+     * returns a snapshot of the group
+     */
+    private MatchedBaseFragment view(ChargeTable ct, int index, int charge) {
+        MatchedBaseFragment mbf = ct.view[index];
+        if (mbf == null) {
+            mbf = new MatchedBaseFragment(m_baseFragments[index], charge);
+            if (ct.isFound(index)) {
+                mbf.setBaseFragmentFound(ct.basePeak[index]);
+            }
+            for (int e = ct.firstLoss[index]; e >= 0; e = m_nextLoss[e]) {
+                mbf.getLosses().put(m_loss[e], m_lossPeak[e]);
+            }
+            ct.view[index] = mbf;
+        }
+        return mbf;
+    }
+
 
     /**
      * returns the number of fragments in the list (each fragment is counted the
@@ -100,10 +402,7 @@ public class MatchedFragmentCollection implements Iterable<MatchedBaseFragment>
      * @return
      */
     public int size() {
-        int s = 0;
-        for (int i = 0; i < m_list.length; i++)
-            s += m_list[i].size();
-        return s;
+        return m_groupCount;
     }
 
 
@@ -112,30 +411,24 @@ public class MatchedFragmentCollection implements Iterable<MatchedBaseFragment>
      * @return true: no fragments where registered; false otherwise
      */
     public boolean isEmpty() {
-        for (int i = 0; i < m_list.length; i++)
-            if (!m_list[i].isEmpty())
-                return false;
-        return true;
+        return m_groupCount == 0;
     }
 
     public SpectraPeak getMatchedPeak(Fragment f, int charge)  {
+        ChargeTable ct = table(charge);
+        if (ct == null)
+            return null;
 
-        Fragment search;
+        int index = groupIndex(f);
+        if (!ct.hasGroup(index))
+            return null;
 
         if (f.isClass(Loss.class)) {
-
-            search = ((Loss)f).getBaseFragment();
-
-            if (m_list[charge].containsKey(search)) {
-                return m_list[charge].get(search).getLosses().get(f);
-            }
+            int e = findLoss(ct, index, f);
+            return e < 0 ? null : m_lossPeak[e];
         } else {
-            search = f;
-            if (m_list[charge].containsKey(search)) {
-                return m_list[charge].get(search).getBasePeak();
-            }
+            return ct.basePeak[index];
         }
-        return null;
     }
 
     /**
@@ -145,10 +438,13 @@ public class MatchedFragmentCollection implements Iterable<MatchedBaseFragment>
      * @return
      */
     public MatchedBaseFragment getMatchedFragmentGroup(Fragment f, int charge) {
-        if (f.isClass(Loss.class))
-            return m_list[charge].get(((Loss)f).getBaseFragment());
-        else
-            return m_list[charge].get(f);
+        ChargeTable ct = table(charge);
+        if (ct == null)
+            return null;
+        int index = groupIndex(f);
+        if (!ct.hasGroup(index))
+            return null;
+        return view(ct, index, charge);
     }
 
     /**
@@ -158,16 +454,16 @@ public class MatchedFragmentCollection implements Iterable<MatchedBaseFragment>
      * @return
      */
     public ArrayList<MatchedBaseFragment> getMatchedFragmentGroup(Fragment f) {
-        Fragment search;
         ArrayList<MatchedBaseFragment> ret = new ArrayList<MatchedBaseFragment>();
-        if (f.isClass(Loss.class))
-            search = ((Loss)f).getBaseFragment();
-        else
-            search = f;
+        int index = groupIndex(f);
+        if (index < 0)
+            return ret;
 
-        for (int charge = 1; charge< m_list.length; charge++)
-            if (m_list[charge].containsKey(search))
-                ret.add(m_list[charge].get(search));
+        for (int charge = 1; charge< m_charges.length; charge++) {
+            ChargeTable ct = m_charges[charge];
+            if (ct != null && ct.hasGroup(index))
+                ret.add(view(ct, index, charge));
+        }
 
         return ret;
     }
@@ -180,10 +476,8 @@ public class MatchedFragmentCollection implements Iterable<MatchedBaseFragment>
      * @return
      */
     public boolean hasMatchedFragmentGroup(Fragment f, int charge) {
-        if (f.isClass(Loss.class))
-            return m_list[charge].containsKey(((Loss)f).getBaseFragment());
-        else
-            return m_list[charge].containsKey(f);
+        ChargeTable ct = table(charge);
+        return ct != null && ct.hasGroup(groupIndex(f));
     }
 
     /**
@@ -192,29 +486,16 @@ public class MatchedFragmentCollection implements Iterable<MatchedBaseFragment>
      * @return
      */
     public boolean hasMatchedFragment(Fragment f) {
-
-        Fragment search;
-
-        if (f.isClass(Loss.class)) {
-
-            search = ((Loss)f).getBaseFragment();
-
-            for (int charge = 1; charge< m_list.length; charge++) {
-                if (m_list[charge].containsKey(search)) {
-                    if (m_list[charge].get(search).getLosses().containsKey(f)) {
-                        return true;
-                    }
-                }
-            }
-
-        } else {
-            search = f;
-
-            for (int charge = 1; charge< m_list.length; charge++) {
-                if (m_list[charge].containsKey(search)) {
-                    if (m_list[charge].get(search).isBaseFragmentFound()) {
-                        return true;
-                    }
+        int index = groupIndex(f);
+        if (index < 0)
+            return false;
+
+        boolean isLoss = f.isClass(Loss.class);
+        for (int charge = 1; charge< m_charges.length; charge++) {
+            ChargeTable ct = m_charges[charge];
+            if (ct != null && ct.hasGroup(index)) {
+                if (isLoss ? findLoss(ct, index, f) >= 0 : ct.isFound(index)) {
+                    return true;
                 }
             }
         }
@@ -229,28 +510,19 @@ public class MatchedFragmentCollection implements Iterable<MatchedBaseFragment>
      * @return
      */
     public boolean hasMatchedFragment(Fragment f, int charge) {
+        ChargeTable ct = table(charge);
+        if (ct == null)
+            return false;
 
-        Fragment search;
+        int index = groupIndex(f);
+        if (!ct.hasGroup(index))
+            return false;
 
         if (f.isClass(Loss.class)) {
-
-            search = ((Loss)f).getBaseFragment();
-
-            if (m_list[charge].containsKey(search)) {
-                if (m_list[charge].get(search).getLosses().containsKey(f)) {
-                    return true;
-                }
-            }
+            return findLoss(ct, index, f) >= 0;
         } else {
-            search = f;
-            if (m_list[charge].containsKey(search)) {
-                if (m_list[charge].get(search).isBaseFragmentFound()) {
-                    return true;
-                }
-            }
+            return ct.isFound(index);
         }
-
-        return false;
     }
 
     /**
@@ -259,15 +531,15 @@ public class MatchedFragmentCollection implements Iterable<MatchedBaseFragment>
      * @return
      */
     public boolean hasMatchedFragmentGroup(Fragment f) {
-        Fragment search;
-        if (f.isClass(Loss.class))
-            search = ((Loss)f).getBaseFragment();
-        else
-            search = f;
+        int index = groupIndex(f);
+        if (index < 0)
+            return false;
 
-        for (int charge = 1; charge< m_list.length; charge++)
-            if (m_list[charge].containsKey(search))
+        for (int charge = 1; charge< m_charges.length; charge++) {
+            ChargeTable ct = m_charges[charge];
+            if (ct != null && ct.hasGroup(index))
                 return true;
+        }
 
         return false;
     }
@@ -279,19 +551,180 @@ public class MatchedFragmentCollection implements Iterable<MatchedBaseFragment>
      * @return
      */
     public boolean hasMatchedNonLossyFragment(Fragment f) {
-        Fragment search;
-        if (f.isClass(Loss.class))
-            search = ((Loss)f).getBaseFragment();
-        else
-            search = f;
+        int index = groupIndex(f);
+        if (index < 0)
+            return false;
 
-        for (int charge = 1; charge< m_list.length; charge++)
-            if (m_list[charge].containsKey(search) && m_list[charge].get(search).isBaseFragmentFound())
+        for (int charge = 1; charge< m_charges.length; charge++) {
+            ChargeTable ct = m_charges[charge];
+            if (ct != null && ct.hasGroup(index) && ct.isFound(index))
                 return true;
+        }
 
         return false;
     }
 
+    /**
+     * tests whether there was a non-lossy fragment found in the given charge
+     * state that would be either the given fragment or that the given fragment
+     * would be loss of.
+     * @param f
+     * @param charge
+     * @return
+     */
+    public boolean hasMatchedNonLossyFragment(Fragment f, int charge) {
+        ChargeTable ct = table(charge);
+        if (ct == null)
+            return false;
+        int index = groupIndex(f);
+        return ct.hasGroup(index) && ct.isFound(index);
+    }
+
+    /**
+     * the number of lossy fragments found in the given charge state for the
+     * base fragment of f
+     * @param f
+     * @param charge
+     * @return
+     */
+    public int getLossCount(Fragment f, int charge) {
+        ChargeTable ct = table(charge);
+        if (ct == null)
+            return 0;
+        int index = groupIndex(f);
+        return ct.hasGroup(index) ? ct.lossCount[index] : 0;
+    }
+
+
+    /**
+     * the number of base fragments that have a local index. The indices of
+     * the groups are smaller then this number.
+     * @return
+     */
+    public int getBaseFragmentCount() {
+        return m_baseCount;
+    }
+
+    /**
+     * @param index local index of a group
+     * @return the base fragment of the group
+     */
+    public Fragment getBaseFragment(int index) {
+        return m_baseFragments[index];
+    }
+
+    /**
+     * the local indices of the groups of a charge state in iteration order - 
+     * i.e. ordered by index.<br/>
+     * The array belongs to the collection and must not be changed. It stays 
+     * valid - but is not updated - when groups get added or removed.
+     * @param charge
+     * @return the indices (empty if there are no groups)
+     */
+    public int[] getGroups(int charge) {
+        ChargeTable ct = table(charge);
+        if (ct == null)
+            return new int[0];
+        return order(ct, charge);
+    }
+
+    /**
+     * the index of the next group that exists in the given charge state.<br/>
+     * <pre>
+     * for (int i = mfc.nextGroup(charge, 0); i &gt;= 0; i = mfc.nextGroup(charge, i + 1))
+     * </pre>
+     * iterates over all groups of a charge state - ordered by index, which is 
+     * also the order of {@link #getGroups(int)}.
+     * @param charge
+     * @param from first index to look at
+     * @return the index or -1 if there are no further groups
+     */
+    public int nextGroup(int charge, int from) {
+        ChargeTable ct = table(charge);
+        if (ct == null || from < 0)
+            return -1;
+        long[] bits = ct.groups;
+        int w = from >>> 6;
+        if (w >= bits.length)
+            return -1;
+        long word = bits[w] & (-1L << from);
+        while (true) {
+            if (word != 0)
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+            if (++w == bits.length)
+                return -1;
+            word = bits[w];
+        }
+    }
+
+    /**
+     * @param index local index of a group
+     * @param charge
+     * @return whether the base fragment of the group was found in that charge state
+     */
+    public boolean isBaseFragmentFound(int index, int charge) {
+        ChargeTable ct = table(charge);
+        return ct != null && ct.hasGroup(index) && ct.isFound(index);
+    }
+
+    /**
+     * @param index local index of a group
+     * @param charge
+     * @return the peak the base fragment was matched to in that charge state
+     */
+    public SpectraPeak getBasePeak(int index, int charge) {
+        ChargeTable ct = table(charge);
+        return ct != null && ct.hasGroup(index) ? ct.basePeak[index] : null;
+    }
+
+    /**
+     * @param index local index of a group
+     * @param charge
+     * @return the number of lossy fragments of the group in that charge state
+     */
+    public int getLossCount(int index, int charge) {
+        ChargeTable ct = table(charge);
+        return ct != null && ct.hasGroup(index) ? ct.lossCount[index] : 0;
+    }
+
+    /**
+     * the first loss entry of a group.<br/>
+     * <pre>
+     * for (int e = mfc.firstLoss(index, charge); e &gt;= 0; e = mfc.nextLoss(e))
+     * </pre>
+     * iterates over all lossy fragments of the group.
+     * @param index local index of a group
+     * @param charge
+     * @return the entry or -1 if the group has no lossy fragments
+     */
+    public int firstLoss(int index, int charge) {
+        ChargeTable ct = table(charge);
+        return ct != null && ct.hasGroup(index) ? ct.firstLoss[index] : -1;
+    }
+
+    /**
+     * @param entry a loss entry
+     * @return the next loss entry of the same group or -1
+     */
+    public int nextLoss(int entry) {
+        return m_nextLoss[entry];
+    }
+
+    /**
+     * @param entry a loss entry
+     * @return the lossy fragment
+     */
+    public Loss getLoss(int entry) {
+        return m_loss[entry];
+    }
+
+    /**
+     * @param entry a loss entry
+     * @return the peak the lossy fragment was matched to
+     */
+    public SpectraPeak getLossPeak(int entry) {
+        return m_lossPeak[entry];
+    }
 
 
     /**
@@ -300,43 +733,31 @@ public class MatchedFragmentCollection implements Iterable<MatchedBaseFragment>
      */
     public Iterator<MatchedBaseFragment> iterator() {
         return new Iterator<MatchedBaseFragment>() {
-            Iterator<MatchedBaseFragment> currentIterator;
-            int nextList = 0;
-            MatchedBaseFragment next = null;
+            int charge = 0;
+            int[] groups = getGroups(0);
+            int next = 0;
 
             {
-                do  {
-                    currentIterator = m_list[nextList].values().iterator();
-                    if (currentIterator.hasNext())
-                        next = currentIterator.next();
-                    nextList++;
-                } while (next == null && nextList <m_list.length);
+                findNext();
+            }
 
+            private void findNext() {
+                while (next == groups.length && ++charge < m_charges.length) {
+                    groups = getGroups(charge);
+                    next = 0;
+                }
             }
 
             public boolean hasNext() {
-                return next != null;
+                return next < groups.length;
             }
 
             public MatchedBaseFragment next() {
-                MatchedBaseFragment ret = next;
-                if (currentIterator.hasNext()) {
-                    next = currentIterator.next();
-                } else {
-                    if (nextList < m_list.length) {
-                        do  {
-                            next = null;
-                            currentIterator = m_list[nextList].values().iterator();
-                            if (currentIterator.hasNext())
-                                next = currentIterator.next();
-                            nextList++;
-                        } while (next == null && nextList < m_list.length);
-                    } else {
-                        next = null;
-                    }
-                }
+                if (next == groups.length)
+                    throw new NoSuchElementException();
+                MatchedBaseFragment ret = view(m_charges[charge], groups[next++], charge);
+                findNext();
                 return ret;
-
             }
 
             public void remove() {
@@ -377,51 +798,31 @@ public class MatchedFragmentCollection implements Iterable<MatchedBaseFragment>
     }
 
     protected boolean add(MatchedBaseFragment e, int charge) {
-        if (charge>=m_list.length) {
-            MatchedBaseFragmentLookup[] newlist = new MatchedBaseFragmentLookup[charge+1];
-            System.arraycopy(m_list, 0, newlist, 0, m_list.length);
-            for (int i = m_list.length; i<=charge; i++) {
-                newlist[i]=new MatchedBaseFragmentLookup();
-            }
-            m_list=newlist;
-            m_maxChargeState = charge;
-            if (e.isBaseFragmentFound()) 
-               m_matchedNonLossy++;
-
-            m_list[charge].put(e.getBaseFragment(), e);
-            m_matchedLossy+=e.getLosses().size();
-
-            return true;
-        } else if (m_list[charge].containsKey(e.getBaseFragment())) {
-            MatchedBaseFragment ex = m_list[charge].get(e.getBaseFragment());
-            Set<Loss> exLosses = ex.getLosses().keySet();
-            for (Loss l : e.getLosses().keySet()) {
-                if (!exLosses.contains(l)) {
-                    ex.getLosses().put(l, e.getLosses().get(l));
-//                    addMatchedFragment(l);
-//                    m_fragments.add(e.getBaseFragment());
-//                    m_peptideFragments
+        int index = registerBase(e.getBaseFragment());
+        ChargeTable ct = table(charge, index);
+        if (ct.hasGroup(index)) {
+            // existing losses keep their peak
+            for (Map.Entry<Loss, SpectraPeak> l : e.getLosses().entrySet()) {
+                if (findLoss(ct, index, l.getKey()) < 0) {
+                    putLoss(ct, index, l.getKey(), l.getValue());
                 }
             }
             if (e.isBaseFragmentFound()) {
                 m_matchedNonLossy++;
-                ex.setBaseFragmentFound(true);
-//                addMatchedFragment(e.getBaseFragment());
+                ct.setFound(index, true, ct.basePeak[index]);
             }
-            m_matchedLossy+=e.getLosses().size();
-            return true;
         } else {
-            if (e.isBaseFragmentFound()) 
-               m_matchedNonLossy++;
-
-            m_list[charge].put(e.getBaseFragment(), e);
-            m_matchedLossy+=e.getLosses().size();
-
-//            for (Fragment f : e.getFragments()) {
-//                addMatchedFragment(f);
-//            }
-            return true;
+            addGroup(ct, index);
+            if (e.isBaseFragmentFound()) {
+                m_matchedNonLossy++;
+                ct.setFound(index, true, e.getBasePeak());
+            }
+            for (Map.Entry<Loss, SpectraPeak> l : e.getLosses().entrySet()) {
+                putLoss(ct, index, l.getKey(), l.getValue());
+            }
         }
+        m_matchedLossy+=e.getLosses().size();
+        return true;
     }
 
 
@@ -433,17 +834,15 @@ public class MatchedFragmentCollection implements Iterable<MatchedBaseFragment>
      * @return
      */
     public boolean add(Loss l, int charge, SpectraPeak peak) {
-//        addMatchedFragment(l);
         m_matchedLossy++;
 
-        if (m_list[charge].containsKey(l.getBaseFragment())) {
-            MatchedBaseFragment ex = m_list[charge].get(l.getBaseFragment());
-            ex.getLosses().put(l,peak);
-            return true;
-        } else {
-            m_list[charge].put(l.getBaseFragment(), new MatchedBaseFragment(l.getBaseFragment(), charge, l, peak));
-            return true;
+        int index = registerBase(l.getBaseFragment());
+        ChargeTable ct = table(charge, index);
+        if (!ct.hasGroup(index)) {
+            addGroup(ct, index);
         }
+        putLoss(ct, index, l, peak);
+        return true;
     }
 
     /**
@@ -454,22 +853,21 @@ public class MatchedFragmentCollection implements Iterable<MatchedBaseFragment>
      * @return
      */
     public boolean add(Fragment f, int charge, SpectraPeak peak) {
-//        addMatchedFragment(f);
         if (f.isClass(Loss.class))
             return add((Loss) f, charge, peak);
         else  {
             m_matchedNonLossy++;
-            if (m_list[charge].containsKey(f)) {
-                if (m_list[charge].get(f).isBaseFragmentFound()) {
+            int index = registerBase(f);
+            ChargeTable ct = table(charge, index);
+            if (ct.hasGroup(index)) {
+                if (ct.isFound(index)) {
                     System.err.println("error here! tried to add the same fragment twice.");
                     new Exception().printStackTrace();
                 }
-
-                m_list[charge].get(f).setBaseFragmentFound(peak);
             } else {
-                MatchedBaseFragment m = new MatchedBaseFragment(f, charge, peak);
-                m_list[charge].put(f, m);
+                addGroup(ct, index);
             }
+            ct.setFound(index, true, peak);
             return true;
         }
     }
@@ -482,18 +880,6 @@ public class MatchedFragmentCollection implements Iterable<MatchedBaseFragment>
      */
     public boolean add(Fragment f, int charge) {
         return add(f,charge,null);
-//        if (f instanceof Loss)
-//            return add((Loss) f, charge, null);
-//        else  {
-//            if (m_list[charge].containsKey(f)) {
-//                m_list[charge].get(f).setBaseFragmentFound();
-//            } else {
-//                MatchedBaseFragment m = new MatchedBaseFragment(f, charge);
-//                m.setBaseFragmentFound();
-//                m_list[charge].put(f, m);
-//            }
-//            return true;
-//        }
     }
 
     /**
@@ -503,30 +889,41 @@ public class MatchedFragmentCollection implements Iterable<MatchedBaseFragment>
      * @return true, if the fragment was removed
      */
     public boolean remove(Object o, int charge) {
+        ChargeTable ct = table(charge);
         if (o instanceof Loss) {
-
-            MatchedBaseFragment m = m_list[charge].get(((Loss) o).getBaseFragment());
-            if (m != null) {
-                boolean ret = m.getLosses().remove((Loss)o) != null;
-                if (m.getLosses().isEmpty() && !m.isBaseFragmentFound())
-                    m_list[charge].remove(((Loss) o).getBaseFragment());
+            int index = m_index.getInt(((Loss) o).getBaseFragment());
+            if (ct != null && ct.hasGroup(index)) {
+                boolean ret = removeLoss(ct, index, (Loss) o);
+                if (ct.lossCount[index] == 0 && !ct.isFound(index))
+                    removeGroup(ct, index);
                 m_matchedLossy--;
                 return ret;
             } else {
                 return false;
             }
         } else if(o instanceof Fragment) {
+            int index = m_index.getInt((Fragment) o);
+            if (ct == null || !ct.hasGroup(index))
+                return false;
             m_matchedNonLossy--;
-            MatchedBaseFragment mbf =  m_list[charge].get(o);
-            if (mbf.getLosses().size()>0) {
-                mbf.unsetBaseFragmentFound();
-                return true;
+            if (ct.lossCount[index]>0) {
+                ct.setFound(index, false, null);
             } else {
-                return m_list[charge].remove((Fragment)o) != null;
+                removeGroup(ct, index);
             }
+            return true;
         } else if(o instanceof MatchedBaseFragment) {
             MatchedBaseFragment mbf = (MatchedBaseFragment) o;
-            boolean ret = m_list[charge].remove(mbf.getBaseFragment()) != null;
+            int index = m_index.getInt(mbf.getBaseFragment());
+            boolean ret = false;
+            if (ct != null && ct.hasGroup(index)) {
+                for (int e = ct.firstLoss[index]; e >= 0; e = m_nextLoss[e]) {
+                    m_loss[e] = null;
+                    m_lossPeak[e] = null;
+                }
+                removeGroup(ct, index);
+                ret = true;
+            }
             if (mbf.isBaseFragmentFound())
                 m_matchedNonLossy--;
             m_matchedLossy -= mbf.getLosses().size();
@@ -543,11 +940,8 @@ public class MatchedFragmentCollection implements Iterable<MatchedBaseFragment>
      * @return true, if a fragment was removed
      */
     public boolean remove(Object o) {
-//        if (o instanceof Fragment)
-//            addMatchedFragment((Fragment) o);
-
         boolean ret = false;
-        for (int charge = 1; charge<m_list.length; charge++)
+        for (int charge = 1; charge<m_charges.length; charge++)
             ret = (remove(o, charge)) || ret;
         return ret;
     }
@@ -578,32 +972,9 @@ public class MatchedFragmentCollection implements Iterable<MatchedBaseFragment>
         }
         return ret;
     }    
-    
-//    /**
-//     * a list of all fragments - independent of charge state
-//     * @return the fragments
-//     */
-//    public HashSet<Fragment> getFragments() {
-//        return m_fragments;
-//    }
-
-//    /**
-//     * a list of all fragments - independent of charge state
-//     * @return the fragments
-//     */
-//    public HashMap<Peptide,HashSet<Fragment>> getPeptideFragments() {
-//        return m_peptideFragments;
-//    }
 
     public MatchedFragmentCollection toSinglyCharged() {
-        MatchedFragmentCollection mfc = new MatchedFragmentCollection(1);
-
-        for (MatchedBaseFragment mbf : this) {
-            MatchedBaseFragment cmbf = mbf.clone();
-            cmbf.setCharge(1);
-            mfc.add(cmbf);
-        }
-        return mfc;
+        return toSinglyCharged(0);
     }
 
     /**
@@ -614,20 +985,29 @@ public class MatchedFragmentCollection implements Iterable<MatchedBaseFragment>
     public MatchedFragmentCollection toSinglyCharged(int minLosses) {
         MatchedFragmentCollection mfc = new MatchedFragmentCollection(1);
 
-        for (MatchedBaseFragment mbf : this) 
-            if (mbf.isBaseFragmentFound() || mbf.getLosses().size() >= minLosses) {
-
-                MatchedBaseFragment cmbf = mbf.clone();
-                cmbf.setCharge(1);
-                mfc.add(cmbf);
+        for (int charge = 0; charge < m_charges.length; charge++) {
+            ChargeTable ct = m_charges[charge];
+            for (int i : getGroups(charge)) {
+                if (ct.isFound(i) || ct.lossCount[i] >= minLosses) {
+                    mfc.add(view(ct, i, charge), 1);
+                }
             }
+        }
         return mfc;
     }
 
     public Fragment[] getFragments() {
         HashSetList<Fragment> frags = new HashSetList<Fragment>();
-        for (MatchedBaseFragment mbf : this)  {
-            frags.addAll(mbf.getFragments());
+        for (int charge = 0; charge < m_charges.length; charge++) {
+            ChargeTable ct = m_charges[charge];
+            for (int i : getGroups(charge)) {
+                for (int e = ct.firstLoss[i]; e >= 0; e = m_nextLoss[e]) {
+                    frags.add(m_loss[e]);
+                }
+                if (ct.isFound(i)) {
+                    frags.add(m_baseFragments[i]);
+                }
+            }
         }
         return frags.toArray(new Fragment[0]);
 
@@ -652,28 +1032,18 @@ public class MatchedFragmentCollection implements Iterable<MatchedBaseFragment>
         return m_matchedLossy;
     }
 
-    //    public boolean removeAll(Collection<?> c) {
-//        throw new UnsupportedOperationException("Not supported yet.");
-//    }
-
-//    public boolean retainAll(Collection<?> c) {
-//        throw new UnsupportedOperationException("Not supported yet.");
-//    }
-
     /**
      * small function to ease the live of the garbage collector
      */
     public void free() {
-        //m_fragments.clear();
-
-//        for (HashSet<Fragment> f : m_peptideFragments.values())
-//            f.clear();
-//
-//        m_peptideFragments.clear();
-
-        for (int i = 0; i< m_list.length; i++) {
-            m_list[i].free();
-        }
+        clear();
+        m_index = new Object2IntOpenCustomHashMap<Fragment>(FRAGMENT_STRATEGY);
+        m_index.defaultReturnValue(-1);
+        m_baseFragments = new Fragment[16];
+        m_loss = new Loss[16];
+        m_lossPeak = new SpectraPeak[16];
+        m_nextLoss = new int[16];
+        Arrays.fill(m_charges, null);
     }
 
     public int getMaxChargeState(){
@@ -697,9 +1067,17 @@ public class MatchedFragmentCollection implements Iterable<MatchedBaseFragment>
     }
     
     public void clear() {
-        for (MatchedBaseFragmentLookup mbfl : m_list) {
-            mbfl.clear();
+        for (ChargeTable ct : m_charges) {
+            if (ct != null)
+                ct.clear(m_baseCount);
         }
+        m_index.clear();
+        Arrays.fill(m_baseFragments, 0, m_baseCount, null);
+        m_baseCount = 0;
+        Arrays.fill(m_loss, 0, m_lossEntries, null);
+        Arrays.fill(m_lossPeak, 0, m_lossEntries, null);
+        m_lossEntries = 0;
+        m_groupCount = 0;
     }
 
 }
@@ -24,6 +24,7 @@ import rappsilber.ms.spectra.Spectra;
 import rappsilber.ms.ToleranceUnit;
 import rappsilber.ms.crosslinker.CrossLinker;
 import rappsilber.ms.crosslinker.NonCovalentBound;
+import rappsilber.ms.score.ScoreRegistry;
 import rappsilber.ms.sequence.AminoAcid;
 import rappsilber.ms.sequence.ions.CrossLinkedFragmentProducer;
 import rappsilber.ms.spectra.match.matcher.DirectMatchFragmentsTree;
@@ -38,6 +39,7 @@ import rappsilber.ms.spectra.SpectraPeakCluster;
 import rappsilber.ms.spectra.annotation.SpectraPeakMatchedFragment;
 import rappsilber.ms.spectra.match.matcher.DirectMatchBinarySort;
 import rappsilber.ms.spectra.match.matcher.DirectMatchFragmentsTreeLowRes;
+import rappsilber.ms.spectra.match.matcher.DirectMatchSortedMerge;
 import rappsilber.ms.statistics.utils.UpdateableInteger;
 
 // TODO: expand to an arbitrary number of peptides
@@ -315,6 +317,10 @@ public class MatchedXlinkedPeptide implements ScoredPeptideMatch {
      * @return the m_matcher
      */
     protected Match getMatcher() {
+        if (m_matcher == null) {
+            // the merge matcher keeps buffers between calls - so each thread has its own
+            return DirectMatchSortedMerge.forThread(m_config);
+        }
         return m_matcher;
     }
 
@@ -520,6 +526,13 @@ public class MatchedXlinkedPeptide implements ScoredPeptideMatch {
         }
     }
 
+    /**
+     * does a miss-match to this fragment count as non-lossy miss-match
+     */
+    private static boolean isNonLossyMiss(Fragment f) {
+        return !(f.isClass(Loss.class) || f.isClass(SecondaryFragment.class) || f.getFragmentationSites().length > 1);
+    }
+
     private class MatchPeakList extends ArrayList<MatchPeakPair> {
 
         int nonLossyCount = 0;
@@ -534,7 +547,7 @@ public class MatchedXlinkedPeptide implements ScoredPeptideMatch {
         public boolean add(MatchPeakPair mp, double intensity) {
             boolean ret = super.add(mp);
             missIntensity += intensity;
-            if (!(mp.f.getFragment().isClass(Loss.class) || mp.f.getFragment().isClass(SecondaryFragment.class) || mp.f.getFragment().getFragmentationSites().length > 1)) {
+            if (isNonLossyMiss(mp.f.getFragment())) {
                 nonLossyCount++;
                 nonLossyMissIntensity += intensity;
             }
@@ -552,7 +565,17 @@ public class MatchedXlinkedPeptide implements ScoredPeptideMatch {
 
     private RunConfig m_config = null;
 
-    private HashMap<String, Double> m_scores = new HashMap<String, Double>();
+    /** 
+     * the scores of the match - addressed by the slots defined in 
+     * {@link ScoreRegistry} 
+     */
+    private double[] m_scores = new double[ScoreRegistry.size()];
+    /** which slots actually have a score assigned */
+    private boolean[] m_scoreSet = new boolean[m_scores.length];
+    /** the slots in the order they first got a score assigned */
+    private int[] m_scoreOrder = new int[m_scores.length];
+    /** how many slots have a score assigned */
+    private int m_scoreCount = 0;
 
 //    /**
 //     * creates a new match
@@ -620,7 +643,10 @@ public class MatchedXlinkedPeptide implements ScoredPeptideMatch {
 //        else if (m_config.retrieveObject("FRAGMENTTREE", "default").toLowerCase().contentEquals("fu")) {
 //            m_matcher = new DirectMatchFragmentsTreeFastUtils(config);
 //        } 
-        else {
+        else if (m_config.retrieveObject("FRAGMENTMATCHER", "binarysort").toLowerCase().contentEquals("merge")) {
+            // see getMatcher()
+            m_matcher = null;
+        } else {
             m_matcher = new DirectMatchBinarySort(config);
 //            m_matcher = new DirectMatchFragmentsTree(config);
         }
@@ -745,27 +771,41 @@ public class MatchedXlinkedPeptide implements ScoredPeptideMatch {
         return missMatch;
     }
 
-    private MatchPeakList getCrosslinkMissMatches(int pos1, int pos2) {
-        MatchPeakList missMatch = new MatchPeakList();
+    /**
+     * collects all fragment matches together with the link sites in either
+     * peptide they would conflict with
+     * @param annotations receives the matches in the order they were added
+     * to the returned table
+     * @return the conflicts and for each match its count, non-lossy count,
+     * intensity and non-lossy intensity
+     */
+    private LinkSiteConflicts getCrosslinkConflicts(ArrayList<MatchPeakPair> annotations) {
+        int len1 = m_Peptide1.length();
+        int len2 = m_Peptide2.length();
+        LinkSiteConflicts conflicts = new LinkSiteConflicts(len1, len2, 4);
+        int[] c1 = new int[3];
+        int[] c2 = new int[3];
         for (SpectraPeak sp : m_Spectra.getPeaks()) {
             for (SpectraPeakMatchedFragment mf : sp.getMatchedAnnotation()) {
                 Fragment f = mf.getFragment();
-                if (!f.canFullfillXlink(m_Peptide1, pos1) || !f.canFullfillXlink(m_Peptide2, pos2)) {
-                    SpectraPeakCluster spc;
-                    if ((spc = mf.getCluster()) != null) {
-                        missMatch.add(new MatchPeakPair(mf, sp), spc.getSummedIntensity()); // we have a missmatch
-                    } else {
-                        missMatch.add(new MatchPeakPair(mf, sp), sp.getIntensity()); // we have a missmatch
-                    }
+                f.getXlinkConflicts(m_Peptide1, c1);
+                f.getXlinkConflicts(m_Peptide2, c2);
+                SpectraPeakCluster spc;
+                double intensity;
+                if ((spc = mf.getCluster()) != null) {
+                    intensity = spc.getSummedIntensity();
+                } else {
+                    intensity = sp.getIntensity();
                 }
-//                 if (f.getPeptide() == p)
-//                     // if the match is covering the crosslink side
-//                     //and the the matched fragmentPrimary is not crosslinked
-//                     if (isMissCrossLinkMatched(p, pos, f))
-//                        missMatch.add(mf); // we have a missmatch
+                if (isNonLossyMiss(f)) {
+                    conflicts.add(c1, c2, 1, 1, intensity, intensity);
+                } else {
+                    conflicts.add(c1, c2, 1, 0, intensity, 0);
+                }
+                annotations.add(new MatchPeakPair(mf, sp));
             }
         }
-        return missMatch;
+        return conflicts;
     }
 
     protected void findCrossLinkedResidues(ArrayList<MatchPeakPair> miss) {
@@ -775,7 +815,10 @@ public class MatchedXlinkedPeptide implements ScoredPeptideMatch {
         double missNonLossyMatchedIntensity = Double.MAX_VALUE;
         AminoAcid aa1 = AminoAcid.G;
         AminoAcid aa2 = AminoAcid.G;
-        ArrayList<MatchPeakPair> missMatch = null;
+        // the miss-matches for all link sites are derived from one pass over the matches
+        ArrayList<MatchPeakPair> annotations = new ArrayList<MatchPeakPair>();
+        LinkSiteConflicts conflicts = getCrosslinkConflicts(annotations);
+        double[] mm = new double[4];
         int pos1 = -1;
         int pos2 = -1;
         for (int i1 = 0; i1 < m_Peptide1.length(); i1++) // for each residue
@@ -783,35 +826,37 @@ public class MatchedXlinkedPeptide implements ScoredPeptideMatch {
         {
             for (int i2 = 0; i2 < m_Peptide2.length(); i2++) { // for each residue
                 if (getCrosslinker().canCrossLink(m_Peptide1, i1, m_Peptide2, i2)) { // if the crosslinker can act there
-                    MatchPeakList mm = getCrosslinkMissMatches(i1, i2); // count the missmatched fragments
-                    if (mm.nonLossyCount < nlMissCount) { // do we have the (untill now) lowest number of missmatches?
+                    conflicts.sum(i1, i2, mm); // count the missmatched fragments
+                    int mmCount = (int) mm[0];
+                    int mmNonLossyCount = (int) mm[1];
+                    double mmIntensity = mm[2];
+                    double mmNonLossyIntensity = mm[3];
+                    if (mmNonLossyCount < nlMissCount) { // do we have the (untill now) lowest number of missmatches?
                         pos1 = i1;
                         pos2 = i2;
                         aa1 = m_Peptide1.aminoAcidAt(i1);
                         aa2 = m_Peptide2.aminoAcidAt(i2);
-                        missCount = mm.size();
-                        nlMissCount = mm.nonLossyCount;
-                        missMatch = mm;
-                        missMatchedIntensity = mm.missIntensity;
-                        missNonLossyMatchedIntensity = mm.nonLossyMissIntensity;
-                    } else if (mm.nonLossyCount == nlMissCount) {
+                        missCount = mmCount;
+                        nlMissCount = mmNonLossyCount;
+                        missMatchedIntensity = mmIntensity;
+                        missNonLossyMatchedIntensity = mmNonLossyIntensity;
+                    } else if (mmNonLossyCount == nlMissCount) {
                         AminoAcid paa1 = m_Peptide1.aminoAcidAt(i1);
                         AminoAcid paa2 = m_Peptide2.aminoAcidAt(i2);
                         if (m_isopenmod || (aa1 != AminoAcid.K || (aa1 == AminoAcid.K && paa1 == AminoAcid.K))
                                 || (aa2 != AminoAcid.K || (aa2 == AminoAcid.K && paa2 == AminoAcid.K))) {
-                            if ((mm.nonLossyMissIntensity < missNonLossyMatchedIntensity
-                                    || (mm.nonLossyMissIntensity == missNonLossyMatchedIntensity && mm.missIntensity < missMatchedIntensity)
-                                    || (!m_isopenmod && (mm.nonLossyMissIntensity == missNonLossyMatchedIntensity && mm.nonLossyMissIntensity == missNonLossyMatchedIntensity && mm.missIntensity < missMatchedIntensity))
+                            if ((mmNonLossyIntensity < missNonLossyMatchedIntensity
+                                    || (mmNonLossyIntensity == missNonLossyMatchedIntensity && mmIntensity < missMatchedIntensity)
+                                    || (!m_isopenmod && (mmNonLossyIntensity == missNonLossyMatchedIntensity && mmNonLossyIntensity == missNonLossyMatchedIntensity && mmIntensity < missMatchedIntensity))
                                     || (!m_isopenmod && ((aa1 != AminoAcid.K && paa1 == AminoAcid.K) || (aa2 != AminoAcid.K && paa2 == AminoAcid.K))))) {
                                 pos1 = i1;
                                 pos2 = i2;
                                 aa1 = m_Peptide1.aminoAcidAt(i1);
                                 aa2 = m_Peptide2.aminoAcidAt(i2);
-                                missCount = mm.size();
-                                nlMissCount = mm.nonLossyCount;
-                                missMatch = mm;
-                                missMatchedIntensity = mm.missIntensity;
-                                missNonLossyMatchedIntensity = mm.nonLossyMissIntensity;
+                                missCount = mmCount;
+                                nlMissCount = mmNonLossyCount;
+                                missMatchedIntensity = mmIntensity;
+                                missNonLossyMatchedIntensity = mmNonLossyIntensity;
                             }
                         }
                     }
@@ -819,7 +864,12 @@ public class MatchedXlinkedPeptide implements ScoredPeptideMatch {
             }
         }
         if (missCount > 0 && missCount < Integer.MAX_VALUE) {
-            miss.addAll(missMatch); // add the missmatches to the list of missmatches
+            // add the missmatches to the list of missmatches
+            for (int a = 0; a < annotations.size(); a++) {
+                if (conflicts.conflicts(a, pos1, pos2)) {
+                    miss.add(annotations.get(a));
+                }
+            }
         }
         setLinkingSitePeptide1(pos1);
         setLinkingSitePeptide2(pos2);
@@ -856,13 +906,18 @@ public class MatchedXlinkedPeptide implements ScoredPeptideMatch {
      */
     public void setCrossLinkedResidues(int site1, int site2) {
         //deleteCrossLinkedMissMatches(m_Peptide2, m_LinkingSitePeptide2);
-        ArrayList<MatchPeakPair> missMatches = new ArrayList<MatchPeakPair>();
-        findCrossLinkedResidues(missMatches);
+        // the sites are given - so there is no need to search for the best ones
         MatchedFragmentCollection mfc = getMatchedFragments();
+        Peptide pep1 = getPeptide1();
+        Peptide pep2 = getPeptide2();
         ArrayList<MatchedBaseFragment> toDelete = new ArrayList<MatchedBaseFragment>();
-        for (MatchedBaseFragment mbf : mfc) {
-            if (!mbf.getBaseFragment().canFullfillXlink(getPeptide1(), site1, getPeptide2(), site2)) {
-                toDelete.add(mbf);
+        // only the conflicting groups need to be turned into objects
+        for (int charge = 0; charge <= mfc.getMaxChargeState(); charge++) {
+            for (int index : mfc.getGroups(charge)) {
+                Fragment f = mfc.getBaseFragment(index);
+                if (!f.canFullfillXlink(pep1, site1, pep2, site2)) {
+                    toDelete.add(mfc.getMatchedFragmentGroup(f, charge));
+                }
             }
         }
 
@@ -1046,10 +1101,13 @@ public class MatchedXlinkedPeptide implements ScoredPeptideMatch {
                 matchcount.put(p, new UpdateableInteger(0));
             }
 
-            for (MatchedBaseFragment mbf : m_matchedFragments) {
-                Fragment f = mbf.getBaseFragment();
-                if (mbf.isBaseFragmentFound() && f.getFragmentationSites().length == 1) {
-                    matchcount.get(f.getPeptide()).value++;
+            MatchedFragmentCollection mfc = m_matchedFragments;
+            for (int charge = 0; charge <= mfc.getMaxChargeState(); charge++) {
+                for (int index : mfc.getGroups(charge)) {
+                    Fragment f = mfc.getBaseFragment(index);
+                    if (mfc.isBaseFragmentFound(index, charge) && f.getFragmentationSites().length == 1) {
+                        matchcount.get(f.getPeptide()).value++;
+                    }
                 }
             }
 
@@ -1200,13 +1258,20 @@ public class MatchedXlinkedPeptide implements ScoredPeptideMatch {
     }
 
     StackTraceElement[] stack = null;
+    private static final StackTraceElement[] NO_STACK = new StackTraceElement[0];
+    /**
+     * record where a match got freed - to find out where a match gets freed 
+     * twice. As matches can get freed as soon as they are dropped this is 
+     * rather expensive and therefore off by default.
+     */
+    public static boolean TRACE_FREE = false;
 
     /**
      * a small function to ease the live of th system.gc();
      */
     public void free() {
         if (stack == null) {
-            stack = Thread.currentThread().getStackTrace();
+            stack = TRACE_FREE ? Thread.currentThread().getStackTrace() : NO_STACK;
         } else {
             System.err.println("----------------------");
             System.err.println("---- Repeated Free ---");
@@ -1265,7 +1330,29 @@ public class MatchedXlinkedPeptide implements ScoredPeptideMatch {
      * @param value value of the score
      */
     public void setScore(String name, double value) {
-        m_scores.put(name, new Double(value));
+        setScore(ScoreRegistry.slot(name), value);
+    }
+
+    /**
+     * sets the score in the given slot
+     *
+     * @param slot slot of the score as defined by {@link ScoreRegistry}
+     * @param value value of the score
+     */
+    public void setScore(int slot, double value) {
+        if (slot >= m_scores.length) {
+            int size = Math.max(slot + 1, ScoreRegistry.size());
+            m_scores = java.util.Arrays.copyOf(m_scores, size);
+            m_scoreSet = java.util.Arrays.copyOf(m_scoreSet, size);
+        }
+        m_scores[slot] = value;
+        if (!m_scoreSet[slot]) {
+            m_scoreSet[slot] = true;
+            if (m_scoreCount == m_scoreOrder.length) {
+                m_scoreOrder = java.util.Arrays.copyOf(m_scoreOrder, m_scores.length);
+            }
+            m_scoreOrder[m_scoreCount++] = slot;
+        }
     }
 
     /**
@@ -1275,18 +1362,56 @@ public class MatchedXlinkedPeptide implements ScoredPeptideMatch {
      * @return
      */
     public double getScore(String name) {
-        Double ret = m_scores.get(name);
-        return ret == null ? Double.NaN : ret.doubleValue();
+        return getScore(ScoreRegistry.lookup(name));
     }
 
     /**
-     * returns a named score
+     * returns the score in the given slot
+     *
+     * @param slot slot of the score as defined by {@link ScoreRegistry}
+     * @return the score or NaN if the score was not set
+     */
+    public double getScore(int slot) {
+        if (slot < 0 || slot >= m_scores.length || !m_scoreSet[slot]) {
+            return Double.NaN;
+        }
+        return m_scores[slot];
+    }
+
+    /**
+     * is a score in the given slot defined
+     *
+     * @param slot slot of the score as defined by {@link ScoreRegistry}
+     * @return 
+     */
+    public boolean hasScore(int slot) {
+        return slot >= 0 && slot < m_scores.length && m_scoreSet[slot];
+    }
+
+    /**
+     * @return the number of slots currently allocated for this match. 
+     * Slots above that have no score defined.
+     */
+    public int getScoreSlots() {
+        return m_scores.length;
+    }
+
+    /**
+     * returns all defined scores by name.<br/>
+     * This is a copy - changes to the map will not be reflected in the match.
+     * The scores are put into the map in the order they were first set - so 
+     * the map iterates them in the same order as a map that got the scores 
+     * put in directly.
      *
-     * @param name of the score
      * @return
      */
     public HashMap<String, Double> getScores() {
-        return m_scores;
+        HashMap<String, Double> ret = new HashMap<String, Double>();
+        for (int i = 0; i < m_scoreCount; i++) {
+            int slot = m_scoreOrder[i];
+            ret.put(ScoreRegistry.name(slot), m_scores[slot]);
+        }
+        return ret;
     }
 
     /**
@@ -1432,43 +1557,46 @@ public class MatchedXlinkedPeptide implements ScoredPeptideMatch {
         countNonLossy.value = 0;
         // find non-crosslinked y ion of pep1 or crosslinked b-yons of pep1
         // and non-crosslinked b ions of peptide 2 or crosslinked large y-ions
-        for (MatchedBaseFragment mbf : mfc) {
-            Fragment f = mbf.getBaseFragment();
-            // ignore double fragmentation
-            if (f.isClass(DoubleFragmentation.class)) {
-                continue;
-            }
-
-            if (f.getPeptide() == pep1) {
-                // linear fragments after the linkage site
-                if (f.getStart() > link1 && f.isCTerminal()) {
-                    supportingIntensity = getIntensitySupport(mbf, f, pep1, countNonLossy);
-                } else if (f.isNTerminal() && f.getEnd() >= link1) {
-                    supportingIntensity = getIntensitySupport(mbf, f, pep1, countNonLossy);
+        // and sum up the intensity of all of them
+        for (int charge = 0; charge <= mfc.getMaxChargeState(); charge++) {
+            for (int index : mfc.getGroups(charge)) {
+                Fragment f = mfc.getBaseFragment(index);
+                // ignore double fragmentation
+                if (f.isClass(DoubleFragmentation.class)) {
+                    continue;
                 }
-            } else {
-                // linear fragments before the linkage site
-                if (f.getEnd() < link2 && f.isNTerminal()) {
-                    supportingIntensity = getIntensitySupport(mbf, f, pep2, countNonLossy);
-                } else if (f.isCTerminal() && f.getStart() <= link2) {
-                    supportingIntensity = getIntensitySupport(mbf, f, pep2, countNonLossy);
+
+                if (f.getPeptide() == pep1) {
+                    // linear fragments after the linkage site
+                    if (f.getStart() > link1 && f.isCTerminal()) {
+                        supportingIntensity += getIntensitySupport(mfc, index, charge, f, pep1, countNonLossy);
+                    } else if (f.isNTerminal() && f.getEnd() >= link1) {
+                        supportingIntensity += getIntensitySupport(mfc, index, charge, f, pep1, countNonLossy);
+                    }
+                } else {
+                    // linear fragments before the linkage site
+                    if (f.getEnd() < link2 && f.isNTerminal()) {
+                        supportingIntensity += getIntensitySupport(mfc, index, charge, f, pep2, countNonLossy);
+                    } else if (f.isCTerminal() && f.getStart() <= link2) {
+                        supportingIntensity += getIntensitySupport(mfc, index, charge, f, pep2, countNonLossy);
+                    }
                 }
             }
         }
         return supportingIntensity;
     }
 
-    private double getIntensitySupport(MatchedBaseFragment mbf, Fragment f, Peptide pep1, UpdateableInteger countNonLossy) {
+    private double getIntensitySupport(MatchedFragmentCollection mfc, int index, int charge, Fragment f, Peptide pep1, UpdateableInteger countNonLossy) {
         double supportingIntensity = 0;
-        if (mbf.isBaseFragmentFound()) {
+        if (mfc.isBaseFragmentFound(index, charge)) {
             if (f.getPeptide() == pep1) {
-                supportingIntensity += mbf.getBasePeak().getIntensity();
+                supportingIntensity += mfc.getBasePeak(index, charge).getIntensity();
                 countNonLossy.value++;
             }
         }
         // lossy peaks are only counted with 1/10 of their intensity
-        for (SpectraPeak lp : mbf.getLosses().values()) {
-            supportingIntensity += lp.getIntensity() / 10;
+        for (int e = mfc.firstLoss(index, charge); e >= 0; e = mfc.nextLoss(e)) {
+            supportingIntensity += mfc.getLossPeak(e).getIntensity() / 10;
         }
         return supportingIntensity;
     }
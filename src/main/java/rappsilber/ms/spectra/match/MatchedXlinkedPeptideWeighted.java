@@ -113,26 +113,31 @@ public class MatchedXlinkedPeptideWeighted extends MatchedXlinkedPeptide {
                 double w = cl.getWeight(pep, i);
                 ArrayList<MatchPeakPair> weightMiss = new ArrayList<MatchPeakPair>();
                 // find all missmatched entries
-                for (MatchedBaseFragment mbf : getMatchedFragments()) {
-                    Fragment f = mbf.getBaseFragment();
-                    // it would be a missmatch  miss
-                    if (!f.canFullfillXlink(pep, i)) {
-
-                        // add the missmatch weights
-                        if (mbf.isBaseFragmentFound()) {
-                            SpectraPeak sp = mbf.getBasePeak();
-                            w+=getMissMatchWeight(f, sp);
-                            weightMiss.add(new MatchPeakPair(f, mbf.getCharge(), sp));
-                        }
+                MatchedFragmentCollection mfc = getMatchedFragments();
+                for (int charge = 0; charge <= mfc.getMaxChargeState(); charge++) {
+                    for (int index : mfc.getGroups(charge)) {
+                        Fragment f = mfc.getBaseFragment(index);
+                        // it would be a missmatch  miss
+                        if (!f.canFullfillXlink(pep, i)) {
+
+                            // add the missmatch weights
+                            if (mfc.isBaseFragmentFound(index, charge)) {
+                                SpectraPeak sp = mfc.getBasePeak(index, charge);
+                                w+=getMissMatchWeight(f, sp);
+                                weightMiss.add(new MatchPeakPair(f, charge, sp));
+                            }
 
-                        for (Loss l :  mbf.getLosses().keySet()) {
-                            SpectraPeak sp = mbf.getLosses().get(l);
-                            w+=getMissMatchWeight(l, sp);
-                            weightMiss.add(new MatchPeakPair(l, mbf.getCharge(), sp));
+                            for (int e = mfc.firstLoss(index, charge); e >= 0; e = mfc.nextLoss(e)) {
+                                Loss l = mfc.getLoss(e);
+                                SpectraPeak sp = mfc.getLossPeak(e);
+                                w+=getMissMatchWeight(l, sp);
+                                weightMiss.add(new MatchPeakPair(l, charge, sp));
+                            }
                         }
                     }
                 }
 
+                // on a tie the first site is kept
                 if (w<minWeight) {
                     minWeight = w;
                     minWeightMiss = weightMiss;
@@ -172,16 +177,34 @@ public class MatchedXlinkedPeptideWeighted extends MatchedXlinkedPeptide {
      * @return the linkage site, that produces the fewest miss-matches
      */
     private HashMap<int[],UpdateableDouble> findCrossLinkedResiduesWeighted(Peptide pep1, Peptide pep2, ArrayList<MatchPeakPair> miss) {
-        int missCount=Integer.MAX_VALUE;
         double minWeight = Double.MAX_VALUE;
         CrossLinker cl = getCrosslinker();
         HashMap<int[],UpdateableDouble> weights = new HashMap<int[], UpdateableDouble>();
-        ArrayList<MatchPeakPair> minWeightMiss = new ArrayList<MatchPeakPair>();
 
-        
-        ArrayList<MatchPeakPair> missMatch = null;
-//        HashMap<Integer,Double> siteWeights = new HashMap<Integer, Double>(pep1.length());
-//        double[][] siteWeights = new double[2][Math.max(pep1.length(), pep2.length())];
+        // the miss-match weight of each fragment group is only calculated once
+        MatchedFragmentCollection mfc = getMatchedFragments();
+        int groupCount = mfc.size();
+        Fragment[] groups = new Fragment[groupCount];
+        int[] groupIndex = new int[groupCount];
+        int[] groupCharge = new int[groupCount];
+        double[] groupWeights = new double[groupCount];
+        int g = 0;
+        for (int charge = 0; charge <= mfc.getMaxChargeState(); charge++) {
+            for (int index : mfc.getGroups(charge)) {
+                groups[g] = mfc.getBaseFragment(index);
+                groupIndex[g] = index;
+                groupCharge[g] = charge;
+                groupWeights[g] = getMissMatchWeight(mfc, index, charge);
+                g++;
+            }
+        }
+        // and the weights for all link sites are derived from the sites each group conflicts with
+        LinkSiteConflicts conflicts = null;
+        if (pep1 != pep2) {
+            conflicts = getConflicts(pep1, pep2, groups, groupWeights);
+        }
+        double[] conflictWeight = new double[1];
+
         int pos1 = -1;
         int pos2 = -1;
         for (int p1=pep1.length()-1 ; p1>=0; p1--) { // for each residue
@@ -189,30 +212,21 @@ public class MatchedXlinkedPeptideWeighted extends MatchedXlinkedPeptide {
             for (int p2=pep2.length() - 1; p2>=0; p2--) { // for each residue
                 if (cl.canCrossLink(pep1, p1, pep2, p2)) { // if the crosslinker can act there
                     double w2 = cl.getWeight(pep1, p1) + cl.getWeight(pep2, p2);
-                    ArrayList<MatchPeakPair> weightMiss = new ArrayList<MatchPeakPair>();
-                    // find all missmatched entries
-                    for (MatchedBaseFragment mbf : getMatchedFragments()) {
-                        Fragment f = mbf.getBaseFragment();
-                        // it would be a missmatch  miss
-                        if (!f.canFullfillXlink(pep1, p1, pep2, p2)) {
-
-                        // add the missmatch weights
-                            if (mbf.isBaseFragmentFound()) {
-                                SpectraPeak sp = mbf.getBasePeak();
-                                w2+=getMissMatchWeight(f, sp);
-                                weightMiss.add(new MatchPeakPair(f, mbf.getCharge(), sp));
-                            }
-
-                            for (Loss l :  mbf.getLosses().keySet()) {
-                                SpectraPeak sp = mbf.getLosses().get(l);
-                                w2+=getMissMatchWeight(l, sp);
-                                weightMiss.add(new MatchPeakPair(l, mbf.getCharge(), sp));
+                    // add the missmatch weights
+                    if (conflicts != null) {
+                        conflicts.sum(p1, p2, conflictWeight);
+                        w2 += conflictWeight[0];
+                    } else {
+                        for (g = 0; g < groupCount; g++) {
+                            if (!groups[g].canFullfillXlink(pep1, p1, pep2, p2)) {
+                                w2 += groupWeights[g];
                             }
                         }
                     }
+                    // on a tie the site looked at first - the one closest to
+                    // the C-terminus - is kept
                     if (w2<minWeight) {
                         minWeight = w2;
-                        minWeightMiss = weightMiss;
                         pos1 = p1;
                         pos2 = p2;
                     }
@@ -223,8 +237,26 @@ public class MatchedXlinkedPeptideWeighted extends MatchedXlinkedPeptide {
                 }
             }
         }
-        if (minWeightMiss.size() > 0)
-            miss.addAll(minWeightMiss); // add the missmatches to the list of missmatches
+
+        // add the missmatches to the list of missmatches
+        if (pos1 >= 0) {
+            for (g = 0; g < groupCount; g++) {
+                Fragment f = groups[g];
+                int index = groupIndex[g];
+                int charge = groupCharge[g];
+                boolean conflict = conflicts != null ?
+                        conflicts.conflicts(g, pos1, pos2) :
+                        !f.canFullfillXlink(pep1, pos1, pep2, pos2);
+                if (conflict) {
+                    if (mfc.isBaseFragmentFound(index, charge)) {
+                        miss.add(new MatchPeakPair(f, charge, mfc.getBasePeak(index, charge)));
+                    }
+                    for (int e = mfc.firstLoss(index, charge); e >= 0; e = mfc.nextLoss(e)) {
+                        miss.add(new MatchPeakPair(mfc.getLoss(e), charge, mfc.getLossPeak(e)));
+                    }
+                }
+            }
+        }
 
         // recalculate the weights, so that the best match has the highest score and the sum of scores is 1
         double ws = 0;
@@ -242,7 +274,67 @@ public class MatchedXlinkedPeptideWeighted extends MatchedXlinkedPeptide {
 
         return weights;
     }
-    
+
+    /**
+     * the sites in either peptide each fragment group conflicts with.<br/>
+     * For two different peptides every fragment type fulfils a link between
+     * site1 and site2 if it fulfils site1 in the first and site2 in the
+     * second peptide - so each side is looked at on its own.
+     * @param pep1
+     * @param pep2
+     * @param groups the base fragments of the matched fragment groups
+     * @param groupWeights the miss-match weight of each group
+     * @return
+     */
+    private LinkSiteConflicts getConflicts(Peptide pep1, Peptide pep2, Fragment[] groups, double[] groupWeights) {
+        int len1 = pep1.length();
+        int len2 = pep2.length();
+        LinkSiteConflicts conflicts = new LinkSiteConflicts(len1, len2, 1);
+        int[] c1 = new int[3];
+        int[] c2 = new int[3];
+        for (int g = 0; g < groupWeights.length; g++) {
+            Fragment f = groups[g];
+            f.getXlinkConflicts(pep1, c1);
+            f.getXlinkConflicts(pep2, c2);
+            conflicts.add(c1, c2, groupWeights[g]);
+        }
+        return conflicts;
+    }
+
+    /**
+     * the summed miss-match weight of all matched fragments in a group
+     * @param mbf
+     * @return
+     */
+    protected double getMissMatchWeight(MatchedBaseFragment mbf) {
+        double w = 0;
+        if (mbf.isBaseFragmentFound()) {
+            w+=getMissMatchWeight(mbf.getBaseFragment(), mbf.getBasePeak());
+        }
+        for (Map.Entry<Loss, SpectraPeak> e : mbf.getLosses().entrySet()) {
+            w+=getMissMatchWeight(e.getKey(), e.getValue());
+        }
+        return w;
+    }
+
+    /**
+     * the summed miss-match weight of all matched fragments in a group
+     * @param mfc
+     * @param index local index of the group
+     * @param charge
+     * @return
+     */
+    private double getMissMatchWeight(MatchedFragmentCollection mfc, int index, int charge) {
+        double w = 0;
+        if (mfc.isBaseFragmentFound(index, charge)) {
+            w+=getMissMatchWeight(mfc.getBaseFragment(index), mfc.getBasePeak(index, charge));
+        }
+        for (int e = mfc.firstLoss(index, charge); e >= 0; e = mfc.nextLoss(e)) {
+            w+=getMissMatchWeight(mfc.getLoss(e), mfc.getLossPeak(e));
+        }
+        return w;
+    }
+
     protected double getMissMatchWeight(Fragment f, SpectraPeak sp  ) {
         double w = sp.getIntensity()/getSpectrum().getMaxIntensity();
         if (f.isClass(Loss.class)) {
@@ -314,10 +406,15 @@ public class MatchedXlinkedPeptideWeighted extends MatchedXlinkedPeptide {
         
         HashMap<int[], UpdateableDouble> lw = findCrossLinkedResiduesWeighted(getPeptide1(), getPeptide2(), missMatches);
         MatchedFragmentCollection mfc = getMatchedFragments();
+        Peptide pep1 = getPeptide1();
+        Peptide pep2 = getPeptide2();
         ArrayList<MatchedBaseFragment> toDelete = new ArrayList<MatchedBaseFragment>();
-        for (MatchedBaseFragment mbf : mfc ){
-            if (!mbf.getBaseFragment().canFullfillXlink(getPeptide1(), site1, getPeptide2(), site2)) {
-                toDelete.add(mbf);
+        for (int charge = 0; charge <= mfc.getMaxChargeState(); charge++) {
+            for (int index : mfc.getGroups(charge)) {
+                Fragment f = mfc.getBaseFragment(index);
+                if (!f.canFullfillXlink(pep1, site1, pep2, site2)) {
+                    toDelete.add(mfc.getMatchedFragmentGroup(f, charge));
+                }
             }
         }
         
@@ -0,0 +1,427 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.spectra.match.matcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import rappsilber.config.RunConfig;
+import rappsilber.ms.Range;
+import rappsilber.ms.ToleranceUnit;
+import rappsilber.ms.sequence.ions.Fragment;
+import rappsilber.ms.sequence.ions.loss.Loss;
+import rappsilber.ms.spectra.Spectra;
+import rappsilber.ms.spectra.SpectraPeak;
+import rappsilber.ms.spectra.SpectraPeakCluster;
+import rappsilber.ms.spectra.annotation.SpectraPeakAnnotation;
+import rappsilber.ms.spectra.annotation.SpectraPeakMatchedFragment;
+import rappsilber.ms.spectra.match.MatchedFragmentCollection;
+import rappsilber.utils.Util;
+
+/**
+ * Matches the same way as {@link DirectMatchBinarySort} - but the fragments
+ * are only sorted as an array of neutral masses and each charge state walks
+ * with its own pointer down the fragment masses while the peaks are walked
+ * down by m/z.
+ * <p>The contract: a fragment with the neutral mass M matches a peak (or
+ * the monoisotopic peak of an isotope cluster) with the m/z mz in the charge
+ * state z if <code>tolerance.getRange((mz-PROTON_MASS)*z, mz*z)</code> contains
+ * M (both ends inclusive). Isotope clusters are only matched in their own charge
+ * state, single peaks in each charge state from the precursor charge down to 1.
+ * Peaks that are part of an isotope cluster are not matched on their own.
+ * Missing monoisotopic peaks are matched as {@link DirectMatchBinarySort} does.</p>
+ * <p>The possible matches are first collected into a {@link FragmentMatchBuffer}
+ * and then turned into the same annotations in the same order as 
+ * {@link DirectMatchBinarySort} produces them. The list of fragments ends up 
+ * sorted by neutral mass as well.</p>
+ * <p>An instance keeps its buffers between calls and must only be used by one
+ * thread at a time - {@link #forThread(rappsilber.config.RunConfig)} gives 
+ * each thread its own.</p>
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class DirectMatchSortedMerge implements Match {
+
+    private boolean m_MatchMissingMonoIsotopic = true;
+    private boolean m_TransferLossToBase = false;
+    /** reused between calls */
+    private FragmentMatchBuffer m_buffer = new FragmentMatchBuffer();
+    private int[] m_order = new int[0];
+    private int[] m_orderTemp = new int[0];
+
+    /** the config the instance was set up from */
+    private final RunConfig m_config;
+    /** one matcher per thread */
+    private static final ThreadLocal<DirectMatchSortedMerge> m_threadMatcher = new ThreadLocal<DirectMatchSortedMerge>();
+
+    public DirectMatchSortedMerge(RunConfig config) {
+        m_config = config;
+        m_MatchMissingMonoIsotopic = config.retrieveObject("MATCH_MISSING_MONOISOTOPIC", m_MatchMissingMonoIsotopic);
+        m_TransferLossToBase = config.retrieveObject("TransferLossToBase", m_TransferLossToBase);
+    }
+
+    /**
+     * returns the matcher of the current thread for the given config
+     * @param config
+     * @return 
+     */
+    public static DirectMatchSortedMerge forThread(RunConfig config) {
+        DirectMatchSortedMerge m = m_threadMatcher.get();
+        if (m == null || m.m_config != config) {
+            m = new DirectMatchSortedMerge(config);
+            m_threadMatcher.set(m);
+        }
+        return m;
+    }
+
+    @Override
+    public void matchFragmentsNonGreedy(Spectra s, ArrayList<Fragment> frags, ToleranceUnit tolerance, MatchedFragmentCollection matchedFragments) {
+        FragmentMatchBuffer buffer = m_buffer;
+        buffer.clear();
+        sortFragments(frags, buffer);
+        // the fragment list gets sorted as DirectMatchBinarySort would do
+        for (int i = 0; i < buffer.m_fragmentCount; i++) {
+            frags.set(i, buffer.m_fragments[i]);
+        }
+
+        matchClusters(s.getIsotopeClusters(), tolerance, buffer);
+        ArrayList<SpectraPeakCluster> added = new ArrayList<SpectraPeakCluster>();
+        annotate(s, 0, buffer, tolerance, matchedFragments, added);
+        s.getIsotopeClusters().addAll(added);
+
+        int first = buffer.size();
+        matchPeaks(s, tolerance, buffer);
+        annotate(s, first, buffer, tolerance, matchedFragments, null);
+
+        // don't hold on to the spectrum
+        Arrays.fill(buffer.m_clusters, null);
+        Arrays.fill(buffer.m_peaks, null);
+        Arrays.fill(buffer.m_fragments, null);
+    }
+
+    /**
+     * writes the fragments sorted by neutral mass into the buffer.
+     * Fragments of the same mass keep their order.
+     */
+    private void sortFragments(ArrayList<Fragment> frags, FragmentMatchBuffer buffer) {
+        int n = frags.size();
+        if (buffer.m_fragments.length < n) {
+            buffer.m_fragments = new Fragment[n];
+            buffer.m_fragmentMass = new double[n];
+        }
+        if (m_order.length < n) {
+            m_order = new int[n];
+            m_orderTemp = new int[n];
+        }
+        Fragment[] fragments = buffer.m_fragments;
+        double[] mass = buffer.m_fragmentMass;
+        int[] order = m_order;
+        boolean sorted = true;
+        for (int i = 0; i < n; i++) {
+            Fragment f = frags.get(i);
+            fragments[i] = f;
+            mass[i] = f.getNeutralMass();
+            order[i] = i;
+            if (i > 0 && Double.compare(mass[i - 1], mass[i]) > 0) {
+                sorted = false;
+            }
+        }
+        if (!sorted) {
+            mergeSort(mass, order, m_orderTemp, 0, n);
+            Fragment[] unsorted = Arrays.copyOf(fragments, n);
+            double[] unsortedMass = Arrays.copyOf(mass, n);
+            for (int i = 0; i < n; i++) {
+                fragments[i] = unsorted[order[i]];
+                mass[i] = unsortedMass[order[i]];
+            }
+        }
+        buffer.m_fragmentCount = n;
+    }
+
+    /**
+     * stable sort of the indices by mass
+     */
+    private static void mergeSort(double[] mass, int[] order, int[] temp, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(mass, order, temp, from, mid);
+        mergeSort(mass, order, temp, mid, to);
+        if (Double.compare(mass[order[mid - 1]], mass[order[mid]]) <= 0) {
+            return;
+        }
+        System.arraycopy(order, from, temp, from, to - from);
+        int l = from;
+        int r = mid;
+        for (int i = from; i < to; i++) {
+            if (r >= to || (l < mid && Double.compare(mass[temp[l]], mass[temp[r]]) <= 0)) {
+                order[i] = temp[l++];
+            } else {
+                order[i] = temp[r++];
+            }
+        }
+    }
+
+    /**
+     * moves the pointer down until it points to the last fragment with a
+     * mass not above maxMass (-1 if there is none)
+     */
+    private static int walkDown(double[] mass, int pointer, double maxMass) {
+        while (pointer >= 0 && mass[pointer] > maxMass) {
+            pointer--;
+        }
+        return pointer;
+    }
+
+    private void matchClusters(Collection<SpectraPeakCluster> clusterCollection, ToleranceUnit tolerance, FragmentMatchBuffer buffer) {
+        SpectraPeakCluster[] clusters = clusterCollection.toArray(new SpectraPeakCluster[clusterCollection.size()]);
+        Arrays.sort(clusters, new Comparator<SpectraPeakCluster>() {
+            @Override
+            public int compare(SpectraPeakCluster o1, SpectraPeakCluster o2) {
+                return Double.compare(o2.getMass() - Util.PROTON_MASS*o2.getCharge(),
+                        o1.getMass()- Util.PROTON_MASS*o1.getCharge());
+            }
+        });
+        buffer.m_clusters = clusters;
+        Fragment[] fragments = buffer.m_fragments;
+        double[] mass = buffer.m_fragmentMass;
+        int maxIndex = buffer.m_fragmentCount - 1;
+
+        for (int ci = 0; ci < clusters.length; ci++) {
+            SpectraPeakCluster c = clusters[ci];
+            double cmz = c.getMZ();
+            int cCharge = c.getCharge();
+
+            double monoNeutral = (cmz - Util.PROTON_MASS) * cCharge;
+            double massCharged = cmz * cCharge;
+            double missingNeutral = monoNeutral - Util.C13_MASS_DIFFERENCE;
+            double missingCharged = massCharged - Util.C13_MASS_DIFFERENCE;
+
+            Range rMonoNeutral = tolerance.getRange(monoNeutral, massCharged);
+            maxIndex = walkDown(mass, maxIndex, rMonoNeutral.max);
+            boolean matched = false;
+            boolean matchedPrimary = false;
+            for (int f = maxIndex; f >= 0 && mass[f] >= rMonoNeutral.min; f--) {
+                buffer.add(FragmentMatchBuffer.CLUSTER, ci, f, cCharge);
+                if (!fragments[f].isClass(Loss.class)) {
+                    matchedPrimary = true;
+                }
+                matched = true;
+            }
+
+            // match missing monoisotpoic only if we don't have a primary explanation
+            if (m_MatchMissingMonoIsotopic && !matchedPrimary && missingNeutral > 1000) {
+                Range r = tolerance.getRange(missingNeutral, missingCharged);
+                for (int f = walkDown(mass, maxIndex, r.max); f >= 0 && mass[f] >= r.min; f--) {
+                    // if we have a loss annotation only primary fragments are considered
+                    if (!matched || !fragments[f].isClass(Loss.class)) {
+                        buffer.add(FragmentMatchBuffer.CLUSTER_MISSING_MONOISOTOPIC, ci, f, cCharge);
+                    }
+                }
+            }
+        }
+    }
+
+    private void matchPeaks(Spectra s, ToleranceUnit tolerance, FragmentMatchBuffer buffer) {
+        SpectraPeak[] peaks = s.getPeaksArray();
+        // peaks come sorted by m/z - but make sure to have the same order as DirectMatchBinarySort
+        boolean ascending = true;
+        for (int i = 1; i < peaks.length; i++) {
+            if (!(peaks[i - 1].getMZ() < peaks[i].getMZ())) {
+                ascending = false;
+                break;
+            }
+        }
+        if (ascending) {
+            for (int i = 0, j = peaks.length - 1; i < j; i++, j--) {
+                SpectraPeak t = peaks[i];
+                peaks[i] = peaks[j];
+                peaks[j] = t;
+            }
+        } else {
+            Arrays.sort(peaks, new Comparator<SpectraPeak>() {
+                @Override
+                public int compare(SpectraPeak o1, SpectraPeak o2) {
+                    return Double.compare(o2.getMZ(), o1.getMZ());
+                }
+            });
+        }
+        buffer.m_peaks = peaks;
+
+        Fragment[] fragments = buffer.m_fragments;
+        double[] mass = buffer.m_fragmentMass;
+        int maxCharge = s.getPrecurserCharge();
+        int[] maxIndex = new int[Math.max(maxCharge, 0) + 1];
+        Arrays.fill(maxIndex, buffer.m_fragmentCount - 1);
+
+        for (int pi = 0; pi < peaks.length; pi++) {
+            SpectraPeak p = peaks[pi];
+            if (p.hasAnnotation(SpectraPeakAnnotation.isotop) || p.hasAnnotation(SpectraPeakAnnotation.monoisotop)) {
+                continue;
+            }
+
+            double peakMZ = p.getMZ();
+            boolean matched = false;
+            boolean matchedPrimary = false;
+
+            for (int charge = maxCharge; charge > 0; charge--) {
+                double monoNeutral = (peakMZ - Util.PROTON_MASS) * charge;
+                double massCharged = peakMZ * charge;
+
+                Range r = tolerance.getRange(monoNeutral, massCharged);
+                maxIndex[charge] = walkDown(mass, maxIndex[charge], r.max);
+                for (int f = maxIndex[charge]; f >= 0 && mass[f] >= r.min; f--) {
+                    buffer.add(FragmentMatchBuffer.PEAK, pi, f, charge);
+                    if (!fragments[f].isClass(Loss.class)) {
+                        matchedPrimary = true;
+                    }
+                    matched = true;
+                }
+            }
+
+            if (m_MatchMissingMonoIsotopic && !matchedPrimary) {
+                // with a loss annotation only primary fragments of bigger masses are considered
+                double minMass = matched ? 2000 : 1000;
+                for (int charge = maxCharge; charge > 0; charge--) {
+                    double monoNeutral = (peakMZ - Util.PROTON_MASS) * charge;
+                    if (monoNeutral > minMass) {
+                        double missingNeutral = monoNeutral - Util.C13_MASS_DIFFERENCE;
+                        double missingMZ = missingNeutral / charge + Util.PROTON_MASS;
+                        double missingCharged = missingMZ * charge;
+
+                        Range r = tolerance.getRange(missingNeutral, missingCharged);
+                        for (int f = walkDown(mass, maxIndex[charge], r.max); f >= 0 && mass[f] >= r.min; f--) {
+                            if (!matched || !fragments[f].isClass(Loss.class)) {
+                                buffer.add(FragmentMatchBuffer.PEAK_MISSING_MONOISOTOPIC, pi, f, charge);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * turns the matches from the given index on into annotations
+     */
+    private void annotate(Spectra s, int first, FragmentMatchBuffer buffer, ToleranceUnit tolerance, MatchedFragmentCollection matchedFragments, ArrayList<SpectraPeakCluster> added) {
+        Fragment[] fragments = buffer.m_fragments;
+        for (int i = first; i < buffer.size(); i++) {
+            Fragment f = fragments[buffer.getFragment(i)];
+            int charge = buffer.getCharge(i);
+            switch (buffer.getKind(i)) {
+                case FragmentMatchBuffer.CLUSTER: {
+                    SpectraPeakCluster c = buffer.m_clusters[buffer.getSource(i)];
+                    SpectraPeak m = c.getMonoIsotopic();
+                    m.annotate(new SpectraPeakMatchedFragment(f, charge, c));
+                    // was the same fragment with the same charge matched previously ?
+                    if (matchedFragments.hasMatchedFragment(f, charge)) {
+                        // if yes it must have been an missing-peak so we should delete that
+                        SpectraPeak prevPeak = matchedFragments.getMatchedPeak(f, charge);
+                        for (SpectraPeakMatchedFragment mf : prevPeak.getMatchedAnnotation()) {
+                            if (mf.getFragment() == f) {
+                                prevPeak.deleteAnnotation(mf);
+                                break;
+                            }
+                        }
+                        matchedFragments.remove(f, charge);
+                    }
+                    if (m_TransferLossToBase && f.isClass(Loss.class) && !matchedFragments.hasMatchedFragment(((Loss) f).getBaseFragment(), charge)) {
+                        transferLossToBase(s, (Loss) f, charge, tolerance, matchedFragments, added);
+                    }
+                    matchedFragments.add(f, charge, m);
+                    break;
+                }
+                case FragmentMatchBuffer.CLUSTER_MISSING_MONOISOTOPIC: {
+                    if (!matchedFragments.hasMatchedFragment(f, charge)) {
+                        SpectraPeakCluster c = buffer.m_clusters[buffer.getSource(i)];
+                        SpectraPeak m = c.getMonoIsotopic();
+                        double missingMZ = c.getMZ() - (Util.C13_MASS_DIFFERENCE / c.getCharge());
+                        m.annotate(new SpectraPeakMatchedFragment(f, charge, missingMZ, c));
+                        matchedFragments.add(f, charge, m);
+                    }
+                    break;
+                }
+                case FragmentMatchBuffer.PEAK: {
+                    SpectraPeak p = buffer.m_peaks[buffer.getSource(i)];
+                    // if it has been mathed somewhere before
+                    if (matchedFragments.hasMatchedFragment(f, charge)) {
+                        // if yes it must have been an missing-peak so we should delete that
+                        SpectraPeak prevPeak = matchedFragments.getMatchedPeak(f, charge);
+                        // getMatchedAnnotation() returns a copy - so we can delete while going through it
+                        for (SpectraPeakMatchedFragment mf : prevPeak.getMatchedAnnotation()) {
+                            if (mf.getFragment() == f) {
+                                prevPeak.deleteAnnotation(mf);
+                            }
+                        }
+                        matchedFragments.remove(f, charge);
+                    }
+                    p.annotate(new SpectraPeakMatchedFragment(f, charge));
+                    matchedFragments.add(f, charge, p);
+                    break;
+                }
+                default: {
+                    if (!matchedFragments.hasMatchedFragment(f, charge)) {
+                        SpectraPeak p = buffer.m_peaks[buffer.getSource(i)];
+                        double monoNeutral = (p.getMZ() - Util.PROTON_MASS) * charge;
+                        double missingNeutral = monoNeutral - Util.C13_MASS_DIFFERENCE;
+                        double missingMZ = missingNeutral / charge + Util.PROTON_MASS;
+                        p.annotate(new SpectraPeakMatchedFragment(f, charge, missingMZ));
+                        matchedFragments.add(f, charge, p);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * a lossy fragment was matched but not the base fragment - try to find
+     * an isotope cluster for the base fragment
+     */
+    private void transferLossToBase(Spectra s, Loss f, int cCharge, ToleranceUnit tolerance, MatchedFragmentCollection matchedFragments, ArrayList<SpectraPeakCluster> added) {
+        Fragment bf = f.getBaseFragment();
+        Double mz = bf.getMZ(cCharge);
+        SpectraPeak basepeak = s.getPeakAt(mz, tolerance);
+        // try to detect a cluster from that point with the given charge
+        if (basepeak != null && basepeak.hasAnnotation(SpectraPeakAnnotation.isotop)) {
+            SpectraPeakCluster spc = new SpectraPeakCluster(tolerance);
+            spc.add(basepeak);
+            double diff = Util.C13_MASS_DIFFERENCE / cCharge;
+            int pc = 1;
+            SpectraPeak n = s.getPeakAt(mz + diff * pc++);
+            double intensity = 0;
+            // do we already go down with the itenasity
+            boolean down = false;
+            while (n != null) {
+                if (intensity * 0.95 > n.getIntensity()) {
+                    down = true;
+                } else if (down && intensity < n.getIntensity() * 0.95) {
+                    break;
+                }
+                spc.add(n);
+                intensity = n.getIntensity();
+                n = s.getPeakAt(mz + diff * pc++);
+            }
+            if (spc.size() > 1) {
+                spc.setCharge(cCharge);
+                added.add(spc);
+                basepeak.annotate(new SpectraPeakMatchedFragment(bf, cCharge, spc));
+                matchedFragments.add(bf, cCharge, basepeak);
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.spectra.match.matcher;
+
+import java.util.Arrays;
+import rappsilber.ms.sequence.ions.Fragment;
+import rappsilber.ms.spectra.SpectraPeak;
+import rappsilber.ms.spectra.SpectraPeakCluster;
+
+/**
+ * Primitive list of fragment matches as found by {@link DirectMatchSortedMerge}.<br/>
+ * Each entry refers to a fragment, an isotope cluster or a peak (by index
+ * into {@link #getFragments()}, {@link #getClusters()} and {@link #getPeaks()}),
+ * the charge state and the kind of match.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class FragmentMatchBuffer {
+    /** the monoisotopic peak of an isotope cluster matches the fragment */
+    public static final byte CLUSTER = 0;
+    /** the isotope cluster matches the fragment with a missing monoisotopic peak */
+    public static final byte CLUSTER_MISSING_MONOISOTOPIC = 1;
+    /** a peak that is not part of an isotope cluster matches the fragment */
+    public static final byte PEAK = 2;
+    /** the peak matches the fragment with a missing monoisotopic peak */
+    public static final byte PEAK_MISSING_MONOISOTOPIC = 3;
+
+    private int m_size = 0;
+    private byte[] m_kind = new byte[64];
+    private int[] m_source = new int[64];
+    private int[] m_fragment = new int[64];
+    private int[] m_charge = new int[64];
+
+    /** fragments sorted by neutral mass */
+    Fragment[] m_fragments = new Fragment[0];
+    /** the neutral mass of each fragment */
+    double[] m_fragmentMass = new double[0];
+    /** number of fragments */
+    int m_fragmentCount = 0;
+    /** isotope clusters in the order they were matched */
+    SpectraPeakCluster[] m_clusters = new SpectraPeakCluster[0];
+    /** peaks in the order they were matched */
+    SpectraPeak[] m_peaks = new SpectraPeak[0];
+
+    /**
+     * forget all matches
+     */
+    public void clear() {
+        m_size = 0;
+    }
+
+    void add(byte kind, int source, int fragment, int charge) {
+        if (m_size == m_kind.length) {
+            int n = m_size * 2;
+            m_kind = Arrays.copyOf(m_kind, n);
+            m_source = Arrays.copyOf(m_source, n);
+            m_fragment = Arrays.copyOf(m_fragment, n);
+            m_charge = Arrays.copyOf(m_charge, n);
+        }
+        m_kind[m_size] = kind;
+        m_source[m_size] = source;
+        m_fragment[m_size] = fragment;
+        m_charge[m_size] = charge;
+        m_size++;
+    }
+
+    /**
+     * @return number of matches
+     */
+    public int size() {
+        return m_size;
+    }
+
+    /**
+     * @param i
+     * @return one of {@link #CLUSTER}, {@link #CLUSTER_MISSING_MONOISOTOPIC},
+     * {@link #PEAK} or {@link #PEAK_MISSING_MONOISOTOPIC}
+     */
+    public byte getKind(int i) {
+        return m_kind[i];
+    }
+
+    /**
+     * @param i
+     * @return index into {@link #getClusters()} or {@link #getPeaks()} - depending on the kind
+     */
+    public int getSource(int i) {
+        return m_source[i];
+    }
+
+    /**
+     * @param i
+     * @return index into {@link #getFragments()}
+     */
+    public int getFragment(int i) {
+        return m_fragment[i];
+    }
+
+    /**
+     * @param i
+     * @return the charge state the fragment was matched with
+     */
+    public int getCharge(int i) {
+        return m_charge[i];
+    }
+
+    /**
+     * @return the fragments sorted by neutral mass (the array can be longer
+     * then the number of fragments)
+     */
+    public Fragment[] getFragments() {
+        return m_fragments;
+    }
+
+    /**
+     * @return the isotope clusters (the array can be longer then the number of clusters)
+     */
+    public SpectraPeakCluster[] getClusters() {
+        return m_clusters;
+    }
+
+    /**
+     * @return the peaks (the array can be longer then the number of peaks)
+     */
+    public SpectraPeak[] getPeaks() {
+        return m_peaks;
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.statistics.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Count, average, standard deviation, min, max and quantile estimates over
+ * streaming data, that gets added by several threads.<br/>
+ * Each thread writes into its own stripe without any locking. The stripes
+ * are only merged when a value is requested. The quantiles are estimated from
+ * a histogram with logarithmic bins - so each estimate is within the given
+ * relative accuracy of a value that was actually seen.<br/>
+ * Values requested while other threads are still adding can lag behind by
+ * the values that are currently being added.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class StripedStatistics {
+    /** absolute values below this are counted as 0 for the quantiles */
+    private static final double MIN_INDEXABLE = 1e-12;
+
+    /** the stripe of the current thread */
+    private final ThreadLocal<Stripe> m_local = new ThreadLocal<Stripe>();
+    /** all stripes ever created */
+    private final CopyOnWriteArrayList<Stripe> m_stripes = new CopyOnWriteArrayList<Stripe>();
+    /** ratio between the bounds of a histogram bin */
+    private final double m_gamma;
+    private final double m_logGamma;
+
+    /**
+     * quantile estimates within 1% of a seen value
+     */
+    public StripedStatistics() {
+        this(0.01);
+    }
+
+    /**
+     * @param relativeAccuracy how close quantile estimates should be to a seen value
+     */
+    public StripedStatistics(double relativeAccuracy) {
+        m_gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        m_logGamma = Math.log(m_gamma);
+    }
+
+    /**
+     * counts of consecutive histogram bins.<br/>
+     * Only replaced as a whole - so a reader always sees a matching offset
+     * and array.
+     */
+    private static final class Bins {
+        /** the bin index of the first entry */
+        final int offset;
+        final long[] counts;
+
+        Bins(int offset, long[] counts) {
+            this.offset = offset;
+            this.counts = counts;
+        }
+
+        /**
+         * @return bins that include the given index - either this or a copy
+         */
+        Bins include(int index) {
+            if (index >= offset && index < offset + counts.length) {
+                return this;
+            }
+            if (counts.length == 0) {
+                return new Bins(index - 8, new long[16]);
+            }
+            int from = Math.min(offset, index);
+            int to = Math.max(offset + counts.length, index + 1);
+            // leave some room to grow
+            int grow = Math.max(16, (to - from) / 2);
+            if (index < offset) {
+                from -= grow;
+            } else {
+                to += grow;
+            }
+            long[] n = new long[to - from];
+            System.arraycopy(counts, 0, n, offset - from, counts.length);
+            return new Bins(from, n);
+        }
+    }
+
+    /**
+     * the merged histogram - non-empty bins only and sorted by value
+     */
+    private static final class Histogram {
+        double[] values;
+        long[] counts;
+        int size;
+    }
+
+    /**
+     * values seen by a single thread.
+     * Only that thread writes to it.
+     */
+    private static final class Stripe {
+        double mean = 0;
+        double m2 = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        long zero = 0;
+        volatile Bins positive = new Bins(0, new long[0]);
+        volatile Bins negative = new Bins(0, new long[0]);
+        /** written last - so readers see the other values of at least that many values */
+        volatile long count = 0;
+    }
+
+    /**
+     * @param v
+     * @return the histogram bin for the absolute value
+     */
+    private int bin(double v) {
+        return (int) Math.ceil(Math.log(v) / m_logGamma);
+    }
+
+    /**
+     * @param bin
+     * @return the value representing the histogram bin
+     */
+    private double binValue(int bin) {
+        return 2 * Math.pow(m_gamma, bin) / (m_gamma + 1);
+    }
+
+    /**
+     * takes the value into account
+     * @param v
+     */
+    public void addValue(double v) {
+        Stripe s = m_local.get();
+        if (s == null) {
+            s = new Stripe();
+            m_local.set(s);
+            m_stripes.add(s);
+        }
+        long n = s.count + 1;
+        double delta = v - s.mean;
+        s.mean += delta / n;
+        s.m2 += delta * (v - s.mean);
+        if (v < s.min) {
+            s.min = v;
+        }
+        if (v > s.max) {
+            s.max = v;
+        }
+        if (v >= MIN_INDEXABLE) {
+            int b = bin(v);
+            Bins bins = s.positive.include(b);
+            bins.counts[b - bins.offset]++;
+            s.positive = bins;
+        } else if (v <= -MIN_INDEXABLE) {
+            int b = bin(-v);
+            Bins bins = s.negative.include(b);
+            bins.counts[b - bins.offset]++;
+            s.negative = bins;
+        } else {
+            s.zero++;
+        }
+        s.count = n;
+    }
+
+    /**
+     * @return how many values were seen
+     */
+    public long getCount() {
+        long count = 0;
+        for (Stripe s : m_stripes) {
+            count += s.count;
+        }
+        return count;
+    }
+
+    /**
+     * @return the average over all seen values
+     */
+    public double average() {
+        double count = 0;
+        double sum = 0;
+        for (Stripe s : m_stripes) {
+            long c = s.count;
+            count += c;
+            sum += c * s.mean;
+        }
+        return sum / count;
+    }
+
+    /**
+     * @return the standard deviation over all seen values
+     */
+    public double stdDev() {
+        // combine the per stripe values
+        double count = 0;
+        double mean = 0;
+        double m2 = 0;
+        for (Stripe s : m_stripes) {
+            long c = s.count;
+            if (c == 0) {
+                continue;
+            }
+            double delta = s.mean - mean;
+            double n = count + c;
+            mean += delta * c / n;
+            m2 += s.m2 + delta * delta * count * c / n;
+            count = n;
+        }
+        return Math.sqrt(m2 / count);
+    }
+
+    /**
+     * @return the smallest seen value
+     */
+    public double getMin() {
+        double min = Double.POSITIVE_INFINITY;
+        for (Stripe s : m_stripes) {
+            if (s.count > 0 && s.min < min) {
+                min = s.min;
+            }
+        }
+        return min;
+    }
+
+    /**
+     * @return the largest seen value
+     */
+    public double getMax() {
+        double max = Double.NEGATIVE_INFINITY;
+        for (Stripe s : m_stripes) {
+            if (s.count > 0 && s.max > max) {
+                max = s.max;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * merges the histograms of all stripes
+     */
+    private Histogram histogram() {
+        long[] neg = merge(true);
+        long[] pos = merge(false);
+        long zero = 0;
+        for (Stripe s : m_stripes) {
+            zero += s.zero;
+        }
+        int size = (int) neg[0] + (int) pos[0] + 1;
+        double[] v = new double[size];
+        long[] c = new long[size];
+        int n = 0;
+        // the largest negative bin holds the smallest values
+        int negOffset = (int) neg[1];
+        for (int i = neg.length - 1; i >= 2; i--) {
+            if (neg[i] > 0) {
+                v[n] = -binValue(negOffset + i - 2);
+                c[n++] = neg[i];
+            }
+        }
+        if (zero > 0) {
+            v[n] = 0;
+            c[n++] = zero;
+        }
+        int posOffset = (int) pos[1];
+        for (int i = 2; i < pos.length; i++) {
+            if (pos[i] > 0) {
+                v[n] = binValue(posOffset + i - 2);
+                c[n++] = pos[i];
+            }
+        }
+        Histogram h = new Histogram();
+        h.values = v;
+        h.counts = c;
+        h.size = n;
+        return h;
+    }
+
+    /**
+     * sums up the bins of all stripes
+     * @return number of non-empty bins, the bin index of the first count and then the counts
+     */
+    private long[] merge(boolean negative) {
+        int from = Integer.MAX_VALUE;
+        int to = Integer.MIN_VALUE;
+        Bins[] all = new Bins[m_stripes.size()];
+        int a = 0;
+        for (Stripe s : m_stripes) {
+            if (a == all.length) {
+                all = Arrays.copyOf(all, a * 2 + 1);
+            }
+            Bins b = negative ? s.negative : s.positive;
+            all[a++] = b;
+            if (b.counts.length > 0) {
+                from = Math.min(from, b.offset);
+                to = Math.max(to, b.offset + b.counts.length);
+            }
+        }
+        if (from > to) {
+            return new long[]{0, 0};
+        }
+        long[] ret = new long[to - from + 2];
+        ret[1] = from;
+        for (int i = 0; i < a; i++) {
+            Bins b = all[i];
+            for (int j = 0; j < b.counts.length; j++) {
+                ret[b.offset - from + j + 2] += b.counts[j];
+            }
+        }
+        for (int i = 2; i < ret.length; i++) {
+            if (ret[i] > 0) {
+                ret[0]++;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * the weighted median of the given values
+     */
+    private static double median(double[] values, long[] counts, int size) {
+        long all = 0;
+        for (int i = 0; i < size; i++) {
+            all += counts[i];
+        }
+        if (all == 0) {
+            return Double.NaN;
+        }
+        // same as the median of the expanded list of values
+        long lower = (all - 1) / 2;
+        long upper = all / 2;
+        double lowerValue = Double.NaN;
+        long seen = 0;
+        for (int i = 0; i < size; i++) {
+            seen += counts[i];
+            if (Double.isNaN(lowerValue) && seen > lower) {
+                lowerValue = values[i];
+            }
+            if (seen > upper) {
+                return (lowerValue + values[i]) / 2;
+            }
+        }
+        return lowerValue;
+    }
+
+    /**
+     * @return an estimate of the median of all seen values
+     */
+    public double getMedianEstimation() {
+        Histogram h = histogram();
+        return median(h.values, h.counts, h.size);
+    }
+
+    /**
+     * @return an estimate of the median absolute deviation of all seen values
+     */
+    public double getMADEstimation() {
+        Histogram h = histogram();
+        int n = h.size;
+        double median = median(h.values, h.counts, n);
+        // sort the bins by their deviation
+        final double[] deviation = new double[n];
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            deviation[i] = Math.abs(h.values[i] - median);
+            order[i] = i;
+        }
+        Arrays.sort(order, new java.util.Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Double.compare(deviation[o1], deviation[o2]);
+            }
+        });
+        double[] sortedDeviation = new double[n];
+        long[] sortedCounts = new long[n];
+        for (int i = 0; i < n; i++) {
+            sortedDeviation[i] = deviation[order[i]];
+            sortedCounts[i] = h.counts[order[i]];
+        }
+        return median(sortedDeviation, sortedCounts, n);
+    }
+
+    /**
+     * @param q the quantile (between 0 and 1)
+     * @return an estimate of the given quantile of all seen values
+     */
+    public double getQuantileEstimation(double q) {
+        Histogram h = histogram();
+        long all = 0;
+        for (int i = 0; i < h.size; i++) {
+            all += h.counts[i];
+        }
+        if (all == 0) {
+            return Double.NaN;
+        }
+        long rank = (long) Math.floor(q * (all - 1));
+        long seen = 0;
+        for (int i = 0; i < h.size; i++) {
+            seen += h.counts[i];
+            if (seen > rank) {
+                return h.values[i];
+            }
+        }
+        return h.values[h.size - 1];
+    }
+}
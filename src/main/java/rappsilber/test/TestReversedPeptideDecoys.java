@@ -0,0 +1,169 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.TreeSet;
+import rappsilber.config.RunConfig;
+import rappsilber.config.RunConfigFile;
+import rappsilber.ms.lookup.peptides.PeptideTree;
+import rappsilber.ms.sequence.AminoAcid;
+import rappsilber.ms.sequence.Peptide;
+import rappsilber.ms.sequence.Sequence;
+import rappsilber.ms.sequence.SequenceList;
+import rappsilber.ms.sequence.digest.Digestion;
+
+/**
+ * Compares the peptides of the reverse_peptides decoys, that get derived from
+ * the target peptides, with the peptides a regular digest of the same decoy
+ * sequences produces.<br/>
+ * For each decoy protein both sets of peptides (position, sequence and
+ * missed cleavages) have to be the same. This is checked for trypsin with
+ * and without the rule, that it does not cut before a proline, and for
+ * proteins with internal methionines - including ones that do not start with
+ * a methionine.<br/>
+ * This is not a comparison with the decoys of DECOY_GENERATION:reverse -
+ * these are different proteins with different peptides.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class TestReversedPeptideDecoys {
+
+    private static final String CONFIG =
+            "crosslinker:SymetricSingleAminoAcidRestrictedCrossLinker:Name:BS3;MASS:138.06807;LINKEDAMINOACIDS:K(0),S(0.2),T(0.2),Y(0.2),nterm(0)\n"
+            + "modification:fixed::SYMBOLEXT:cm;MODIFIED:C;DELTAMASS:57.021464\n"
+            + "missedcleavages:2\n"
+            + "MINIMUM_PEPTIDE_LENGTH:6\n"
+            + "tolerance:precursor:6ppm\n"
+            + "UseCPUs:1\n";
+
+    /** the digestions to check */
+    private static final String[] DIGESTIONS = new String[] {
+        "digestion:PostAAConstrainedDigestion:DIGESTED:K,R;ConstrainingAminoAcids:P;NAME=Trypsin\n",
+        "digestion:PostAAConstrainedDigestion:DIGESTED:K,R;ConstrainingAminoAcids:;NAME=Trypsin/P\n"
+    };
+
+    private static final String FASTA =
+            ">sp|P00001|TEST1\n"
+            + "MSADKGLEVTRAQYNEHCLLGKRSTDAFVWQKPEDILNGRYSVTEAKKHLGSWDCFEAR\n"
+            + ">sp|P00002|TEST2\n"
+            + "MKTAYIAKQRQISFVKSHFSRQLEERLGLIEVQAPILSRVGDGTQDNLSGAEKAVQVK\n"
+            + ">sp|P00003|TEST3\n"
+            + "MGSSHHHHHHSSGLVPRGSHASDEYTLKALCDRSGFQEVTNAYKEGTRWLDQKFGSAK\n"
+            + ">sp|P00004|TEST4\n"
+            + "MPEIVDTCSLASPASVCRTKHLHLRCSVDFTRRTLTGTAALTVQSQEDNLRSLVLDTK\n"
+            + ">sp|P00005|TEST5\n"
+            + "MAHWEGCKDLSYRQGVAFNTESKTRLIGKRRAYSNEDQFVKWTGHCLAEK\n"
+            // K/R before P - inside and at the ends of stretches
+            + ">sp|P00006|TEST6\n"
+            + "MTEYKPLVDGAKPRPEFLTSWNGRPQDAVLMKGEPTYRPAPSLIEKPPFDNAGMR\n"
+            // internal methionines but no N-terminal one
+            + ">sp|P00007|TEST7\n"
+            + "SLDGTVAEMKNPTWMFYEDLSGMRAPLQNMEVTKHWSMGFDPERLIAMSQK\n"
+            // internal methionine as the first residue of a later stretch
+            + ">sp|P00008|TEST8\n"
+            + "ADGLSTWEKMLPDVFSTGNRMEAPWTLKPSGFMDLR\n";
+
+    /**
+     * reads the test sequences and adds reverse_peptides decoys to them - the
+     * same way a search would do it
+     */
+    private static SequenceList sequences(RunConfig conf) throws Exception {
+        SequenceList sl = new SequenceList(SequenceList.DECOY_GENERATION.ISTARGET,
+                new BufferedReader(new StringReader(FASTA)), conf, "test");
+        sl.includeReversedPeptides(digestion(conf), true);
+        sl.applyFixedModifications(conf);
+        return sl;
+    }
+
+    /**
+     * the digestion of the config - with its own peptide lookups
+     */
+    private static Digestion digestion(RunConfig conf) {
+        Digestion dig = conf.getDigestion_method();
+        dig.setPeptideLookup(new PeptideTree(conf.getPrecousorTolerance()),
+                new PeptideTree(conf.getPrecousorTolerance()));
+        return dig;
+    }
+
+    private static TreeSet<String> peptideSet(ArrayList<Peptide> peptides) {
+        TreeSet<String> ret = new TreeSet<String>();
+        for (Peptide p : peptides) {
+            ret.add(p.getStart() + ":" + p.toString() + ":" + p.getMissedCleavages());
+        }
+        return ret;
+    }
+
+    /**
+     * compares the derived decoy peptides with the digested ones
+     * @return number of failed checks
+     */
+    private static int check(String config) throws Exception {
+        RunConfig conf = new RunConfigFile(new StringReader(config));
+        SequenceList derived = sequences(conf);
+        derived.digest(conf.getDigestion_method(), conf.getCrossLinker());
+
+        // the old way - the same decoy sequences but digested
+        RunConfig digestConf = new RunConfigFile(new StringReader(config));
+        Digestion digest = digestion(digestConf);
+        int failed = 0;
+        int decoys = 0;
+        for (Sequence s : derived) {
+            if (!s.isDerivedDecoy()) {
+                continue;
+            }
+            decoys++;
+            AminoAcid[] aas = new AminoAcid[s.length()];
+            for (int i = 0; i < aas.length; i++) {
+                aas[i] = s.aminoAcidAt(i);
+            }
+            Sequence plain = new Sequence(aas);
+            plain.setDecoy(true);
+            TreeSet<String> expected = peptideSet(digest.digest(plain, Double.MAX_VALUE - 1, digestConf.getCrossLinker()));
+            TreeSet<String> found = peptideSet(s.getPeptides());
+            if (!expected.equals(found)) {
+                failed++;
+                TreeSet<String> missing = new TreeSet<String>(expected);
+                missing.removeAll(found);
+                TreeSet<String> extra = new TreeSet<String>(found);
+                extra.removeAll(expected);
+                System.out.println("FAILED: " + s.getFastaHeader());
+                System.out.println("  missing: " + missing);
+                System.out.println("  unexpected: " + extra);
+            }
+        }
+
+        if (decoys == 0) {
+            System.out.println("FAILED: no decoys with derived peptides");
+            failed++;
+        }
+        return failed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int failed = 0;
+        for (String d : DIGESTIONS) {
+            System.out.print(d);
+            failed += check(CONFIG + d);
+        }
+        if (failed > 0) {
+            System.out.println(failed + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("Success");
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.test;
+
+import rappsilber.ms.score.AbstractScoreSpectraMatch;
+import rappsilber.ms.score.FragmentChargeState;
+
+/**
+ * Requests the score statistics of FragmentChargeState before any values
+ * were collected.<br/>
+ * Each request has to return NaN - for the registered score names, for
+ * names the class only adds scores for and for unknown names.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class TestScoreStatistics {
+
+    public static void main(String[] args) {
+        boolean doStats = AbstractScoreSpectraMatch.DO_STATS;
+        AbstractScoreSpectraMatch.DO_STATS = true;
+        int failed = 0;
+        try {
+            FragmentChargeState fcs = new FragmentChargeState();
+            String[] names = fcs.scoreNames();
+            String[] requested = new String[names.length + 3];
+            System.arraycopy(names, 0, requested, 0, names.length);
+            requested[names.length] = "MedianCharge";
+            requested[names.length + 1] = "not a score";
+            requested[names.length + 2] = null;
+
+            for (String name : names) {
+                if (name == null) {
+                    System.out.println("FAILED: scoreNames() contains null");
+                    failed++;
+                }
+            }
+
+            for (String name : requested) {
+                try {
+                    double[] values = new double[] {
+                        fcs.getAverage(name), fcs.getStdDev(name), fcs.getMin(name),
+                        fcs.getMax(name), fcs.getMedian(name), fcs.getMAD(name)
+                    };
+                    for (double v : values) {
+                        if (!Double.isNaN(v)) {
+                            System.out.println("FAILED: " + name + " returned " + v + " without values");
+                            failed++;
+                            break;
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    System.out.println("FAILED: " + name + " threw " + e);
+                    failed++;
+                }
+            }
+        } finally {
+            AbstractScoreSpectraMatch.DO_STATS = doStats;
+        }
+
+        if (failed > 0) {
+            System.out.println(failed + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("Success");
+    }
+}